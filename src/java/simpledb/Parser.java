@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -24,6 +26,17 @@ import simpledb.transaction.TransactionId;
 
 public class Parser {
     static boolean explain = false;
+    static int parallelism = 1;
+
+    // LIMIT n [OFFSET m] at the end of a statement, which Zql cannot parse;
+    // it is cut off the statement before Zql reads it
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    // the LIMIT and OFFSET of the statement being handled; limit is -1 if
+    // it has none
+    private int limit = -1;
+    private int offset = 0;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -258,18 +271,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -284,6 +294,8 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        addLimit(lp);
+        lp.setParallelism(parallelism);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -376,6 +388,9 @@ public class Parser {
 
                 i++;
             }
+            if (limit >= 0)
+                throw new simpledb.ParsingException(
+                        "LIMIT is not supported in INSERT ... VALUES statements.");
             List<Tuple> tups = new ArrayList<>();
             tups.add(t);
             newTups = new TupleArrayIterator(tups);
@@ -383,6 +398,7 @@ public class Parser {
         } else {
             ZQuery zq = s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            addLimit(lp);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -404,6 +420,9 @@ public class Parser {
             throw new simpledb.ParsingException("Unknown table : "
                     + s.getTable());
         }
+        if (limit >= 0)
+            throw new simpledb.ParsingException(
+                    "LIMIT is not supported in DELETE statements.");
         String name = s.getTable();
         Query sdbq = new Query(tid);
 
@@ -465,12 +484,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                addLimit(lp);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -481,6 +502,41 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Cuts a LIMIT clause off the end of the first statement in s, the one Zql
+     * reads, and remembers its limit and offset for {@link #addLimit}.
+     *
+     * @return s without the LIMIT clause of its first statement
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        // the first statement ends at the first ';' outside a string literal
+        int end = 0;
+        boolean quoted = false;
+        while (end < s.length() && (quoted || s.charAt(end) != ';')) {
+            if (s.charAt(end) == '\'')
+                quoted = !quoted;
+            end++;
+        }
+        Matcher m = LIMIT_CLAUSE.matcher(s.substring(0, end));
+        if (!m.find())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(1));
+            offset = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT and OFFSET must be at most "
+                    + Integer.MAX_VALUE);
+        }
+        return s.substring(0, m.start()) + s.substring(end);
+    }
+
+    private void addLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -495,7 +551,13 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream statement = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                statement.write(buf, 0, n);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stripLimit(
+                    statement.toString("UTF-8")).getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -567,7 +629,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -581,7 +643,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-parallel n] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -611,6 +673,18 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-parallel")) {
+                    try {
+                        parallelism = Integer.parseInt(argv[++i]);
+                        if (parallelism < 1)
+                            throw new NumberFormatException();
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        System.out.println("Expected a positive number after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    System.out.println("Running large joins and aggregations on "
+                            + parallelism + " threads.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
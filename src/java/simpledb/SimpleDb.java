@@ -50,13 +50,25 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    ParallelHeapFileEncoder.Stats stats = ParallelHeapFileEncoder.convert(sourceTxtFile,
+                            targetDatFile, BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    System.out.println("Converted " + stats);
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
                 break;
+            case "compress":
+                try {
+                    if (args.length != 3) {
+                        System.err.println("Unexpected number of arguments to compress ");
+                        return;
+                    }
+                    CompressedHeapFile.convert(new File(args[1]), new File(args[2]));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
             case "print":
                 File tableFile = new File(args[1]);
                 int columns = Integer.parseInt(args[2]);
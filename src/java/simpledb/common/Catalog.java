@@ -1,6 +1,8 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.HashFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -11,6 +13,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -26,6 +29,9 @@ public class Catalog {
     // 所有表
     private final ConcurrentHashMap<Integer, Table> hashTable;
 
+    // 每张表上的二级索引
+    private final ConcurrentHashMap<Integer, List<SecondaryIndex>> indexes;
+
     /**
      * 表
      * */
@@ -53,6 +59,7 @@ public class Catalog {
     public Catalog() {
         // some code goes here
         hashTable = new ConcurrentHashMap<>();
+        indexes = new ConcurrentHashMap<>();
     }
 
     /**
@@ -84,6 +91,26 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index to the catalog. The BTreeFile holding its entries is
+     * added as a table under the given name, and the BufferPool maintains the index
+     * on every insert and delete into the indexed table from now on.
+     * @param index the index to add
+     * @param name the name of the table storing the index entries
+     */
+    public void addIndex(SecondaryIndex index, String name) {
+        addTable(index.getFile(), name);
+        indexes.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes over the specified table, which may be empty
+     * @param tableid The id of the indexed table
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return indexes.getOrDefault(tableid, Collections.emptyList());
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -160,10 +187,13 @@ public class Catalog {
     public void clear() {
         // some code goes here
         hashTable.clear();
+        indexes.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A field annotated with "hash" instead of "pk" is the primary key of a table
+     * stored as a HashFile keyed on it.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -182,6 +212,8 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<>();
                 ArrayList<Type> types = new ArrayList<>();
                 String primaryKey = "";
+                // 以 hash 标注的字段作为键，表存为 HashFile
+                int hashKey = -1;
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -196,6 +228,10 @@ public class Catalog {
                     if (els2.length == 3) {
                         if (els2[2].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[2].trim().equals("hash")) {
+                            primaryKey = els2[0].trim();
+                            hashKey = names.size() - 1;
+                        }
                         else {
                             System.out.println("Unknown annotation " + els2[2]);
                             System.exit(0);
@@ -205,7 +241,8 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf = hashKey >= 0 ? new HashFile(tabFile, hashKey, t) : new HeapFile(tabFile, t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
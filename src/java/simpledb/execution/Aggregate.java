@@ -6,7 +6,9 @@ import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.NoSuchElementException;
 
@@ -14,22 +16,55 @@ import java.util.NoSuchElementException;
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * At most {@link #setMaxGroups maxGroups} groups are aggregated in memory.
+ * Once there are that many, the tuples of the groups already in memory are
+ * still merged into them, but those of any other group are split by hash of
+ * their group into partitions on disk. After the groups in memory are
+ * returned, each partition is aggregated in turn the same way, and split again
+ * if it still has too many groups.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of groups aggregated in memory. */
+    public final static int MAX_GROUPS = 100000;
+
+    /** The number of partitions the groups that do not fit are split into. */
+    public final static int FANOUT = 16;
+
+    /** The number of times a partition that still does not fit is split again. */
+    public final static int MAX_LEVELS = 3;
+
     // 需要聚合的 tuples
     private OpIterator child;
     private final int afield;// 聚合字段
     private final int gfield;// 分组字段
     private Aggregator.Op aop;// 运算符
+    private int maxGroups = MAX_GROUPS;
 
-    // 进行聚合操作的类
-    private Aggregator aggregator;
     // 聚合结果的迭代器
     private OpIterator opIterator;
     // 聚合结果的属性行
     private TupleDesc tupleDesc;
+    // 按批读取聚合结果
+    private transient BatchOpIterator resultBatches;
+
+    /** Tuples of groups that did not fit in memory, written to disk. */
+    private static class Partition {
+        final SpillFile tuples;
+        final int level;
+
+        Partition(SpillFile tuples, int level) {
+            this.tuples = tuples;
+            this.level = level;
+        }
+    }
+
+    // 等待聚合的分区
+    private transient Deque<Partition> pending;
+    private transient int numSpilled = 0;
 
     /**
      * Constructor.
@@ -52,13 +87,6 @@ public class Aggregate extends Operator {
         // 判断是否分组
         Type gfieldtype = gfield == -1 ? null : child.getTupleDesc().getFieldType(gfield);
 
-        // 创建聚合器
-        if (child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE) {
-            this.aggregator = new StringAggregator(gfield, gfieldtype, afield, aop);
-        } else {
-            this.aggregator = new IntegerAggregator(gfield, gfieldtype, afield, aop);
-        }
-
         // 组建 TupleDesc
         List<Type> typeList = new ArrayList<>();
         List<String> nameList = new ArrayList<>();
@@ -126,16 +154,137 @@ public class Aggregate extends Operator {
         return aop.toString();
     }
 
-    public void open() throws NoSuchElementException, DbException,
-            TransactionAbortedException {
-        child.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+    /**
+     * Sets the number of groups that are aggregated in memory. If there are
+     * more, the tuples of the others are split by hash into partitions on
+     * disk, which are then aggregated one at a time. The number of groups in
+     * memory may exceed it by up to a batch of tuples.
+     */
+    public void setMaxGroups(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * @return the number of partitions written to disk since the aggregate
+     *         was opened
+     */
+    public int numSpilledPartitions() {
+        return numSpilled;
+    }
+
+    // 创建聚合器
+    private Aggregator newAggregator() {
+        Type gfieldtype = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+        if (child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE) {
+            return new StringAggregator(gfield, gfieldtype, afield, aop);
+        }
+        return new IntegerAggregator(gfield, gfieldtype, afield, aop);
+    }
+
+    /**
+     * Aggregates the tuples of an open input, spilling the groups that do not
+     * fit to partitions queued on pending, and starts returning the results
+     * of the groups that fit.
+     */
+    private void aggregate(OpIterator input, int level) throws DbException, TransactionAbortedException {
+        Aggregator aggregator = newAggregator();
+        boolean spill = gfield != Aggregator.NO_GROUPING && level < MAX_LEVELS;
+        // 内存中的组已满后：已有组的元组继续聚合，其余元组按分组字段的哈希写入分区
+        SpillFile[] parts = null;
+        if (input instanceof BatchOpIterator) {
+            // 子节点支持按批读取时，整批聚合；按批读取的子节点不能再按元组读取
+            Batch batch;
+            while ((batch = ((BatchOpIterator) input).nextBatch()) != null) {
+                if (!spill || aggregator.numGroups() < maxGroups) {
+                    aggregator.mergeBatchIntoGroups(batch);
+                    continue;
+                }
+                if (parts == null)
+                    parts = newPartitions(input.getTupleDesc());
+                int[] sel = batch.selection();
+                for (int i = 0; i < batch.numSelected(); i++)
+                    spillTuple(aggregator, batch.getTuple(sel[i]), parts, level);
+            }
+        } else {
+            while (input.hasNext()) {
+                Tuple t = input.next();
+                if (!spill || aggregator.numGroups() < maxGroups) {
+                    aggregator.mergeTupleIntoGroup(t);
+                    continue;
+                }
+                if (parts == null)
+                    parts = newPartitions(input.getTupleDesc());
+                spillTuple(aggregator, t, parts, level);
+            }
+        }
+        if (parts != null) {
+            for (SpillFile part : parts) {
+                if (part.size() == 0) {
+                    part.delete();
+                } else {
+                    pending.add(new Partition(part, level + 1));
+                    numSpilled++;
+                }
+            }
         }
         // 获取聚合后的迭代器
         opIterator = aggregator.iterator();
         // 查询
         opIterator.open();
+        resultBatches = Batches.batches(opIterator);
+    }
+
+    private static SpillFile[] newPartitions(TupleDesc td) throws DbException {
+        SpillFile[] parts = new SpillFile[FANOUT];
+        for (int i = 0; i < FANOUT; i++)
+            parts[i] = new SpillFile(td);
+        return parts;
+    }
+
+    /**
+     * Merges a tuple into its group if the group is in memory, or writes it to
+     * the partition its group hashes to otherwise.
+     */
+    private void spillTuple(Aggregator aggregator, Tuple t, SpillFile[] parts, int level) throws DbException {
+        if (!aggregator.mergeTupleIntoExistingGroup(t))
+            parts[SpillFile.partitionOf(t.getField(gfield), level, FANOUT)].add(t);
+    }
+
+    /**
+     * Starts returning the results of the next partition.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        Partition p = pending.poll();
+        if (p == null)
+            return false;
+        opIterator.close();
+        OpIterator tuples = p.tuples.iterator();
+        tuples.open();
+        try {
+            aggregate(tuples, p.level);
+        } finally {
+            tuples.close();
+            p.tuples.delete();
+        }
+        return true;
+    }
+
+    private void deletePartitions() {
+        if (pending == null)
+            return;
+        for (Partition p : pending)
+            p.tuples.delete();
+        pending.clear();
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        child.open();
+        pending = new ArrayDeque<>();
+        numSpilled = 0;
+        aggregate(child, 0);
         // 使父类状态保持一致
         super.open();
     }
@@ -148,15 +297,40 @@ public class Aggregate extends Operator {
      * aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if(opIterator.hasNext()){
-            return opIterator.next();
-        }
+        do {
+            if (opIterator.hasNext()) {
+                return opIterator.next();
+            }
+        } while (nextPartition());
+        return null;
+    }
+
+    /**
+     * Returns the results of the aggregate a batch at a time, in the same
+     * order as fetchNext.
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        do {
+            Batch batch = resultBatches.nextBatch();
+            if (batch != null) {
+                return batch;
+            }
+        } while (nextPartition());
         return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        if (numSpilled == 0) {
+            // 结果都在内存中，从头读取即可
+            opIterator.rewind();
+            return;
+        }
+        // 分区在读取时已删除，重新聚合
+        deletePartitions();
+        opIterator.close();
         child.rewind();
-        opIterator.rewind();
+        numSpilled = 0;
+        aggregate(child, 0);
     }
 
     /**
@@ -177,7 +351,10 @@ public class Aggregate extends Operator {
     public void close() {
         super.close();
         child.close();
-        opIterator.close();
+        if (opIterator != null)
+            opIterator.close();
+        resultBatches = null;
+        deletePartitions();
     }
 
     @Override
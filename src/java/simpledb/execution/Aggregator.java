@@ -79,6 +79,34 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge a tuple into the aggregate of its group only if that group has
+     * already been encountered, for an aggregation that has run out of room
+     * for new groups.
+     *
+     * @param tup the Tuple containing an aggregate field and a group-by field
+     * @return true if the tuple was merged
+     */
+    boolean mergeTupleIntoExistingGroup(Tuple tup);
+
+    /**
+     * @return the number of distinct group values encountered so far
+     */
+    int numGroups();
+
+    /**
+     * Merge the selected rows of a batch into the aggregates of their groups,
+     * as mergeTupleIntoGroup does for each of them.
+     *
+     * @param batch the Batch containing an aggregate field and a group-by field
+     */
+    default void mergeBatchIntoGroups(Batch batch) {
+        int[] sel = batch.selection();
+        for (int i = 0; i < batch.numSelected(); i++) {
+            mergeTupleIntoGroup(batch.getTuple(sel[i]));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
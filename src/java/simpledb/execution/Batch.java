@@ -0,0 +1,239 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.List;
+
+/**
+ * Batch holds up to a fixed number of rows of a TupleDesc by column, for
+ * batch-at-a-time execution through {@link BatchOpIterator}. The values of an
+ * integer column are kept in an int array and those of a string column in a
+ * String array, so operators can work on a whole column in a tight loop
+ * without a Tuple or Field object per row.
+ * <p>
+ * Rows are never moved once added. Operators drop rows by editing the
+ * selection vector, which holds the indexes of the rows still in the batch,
+ * in increasing order.
+ */
+public class Batch {
+
+    /** The number of rows a batch holds unless another size is given. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints;
+    private final String[][] strings;
+    private final RecordId[] rids;
+    private final int[] selection;
+    private int size;
+    private int numSelected;
+
+    /**
+     * Create an empty batch of {@link #DEFAULT_SIZE} rows.
+     *
+     * @param td the TupleDesc of the rows
+     */
+    public Batch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td       the TupleDesc of the rows
+     * @param capacity the largest number of rows in the batch
+     */
+    public Batch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+        this.rids = new RecordId[capacity];
+        this.selection = new int[capacity];
+    }
+
+    private Batch(TupleDesc td, Batch source, int[][] ints, String[][] strings) {
+        this.td = td;
+        this.capacity = source.capacity;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = source.rids;
+        this.selection = source.selection;
+        this.size = source.size;
+        this.numSelected = source.numSelected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows added to this batch, selected or not
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more rows can be added to this batch
+     */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the number of rows in the selection vector
+     */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /**
+     * @return the selection vector. Its first {@link #numSelected()} entries are
+     *         the indexes of the rows in the batch.
+     */
+    public int[] selection() {
+        return selection;
+    }
+
+    /**
+     * Keep only the first n entries of the selection vector.
+     */
+    public void setNumSelected(int n) {
+        if (n < 0 || n > size)
+            throw new IllegalArgumentException("invalid number of selected rows " + n);
+        numSelected = n;
+    }
+
+    /**
+     * @return the values of integer column i, by row
+     */
+    public int[] intColumn(int i) {
+        return ints[i];
+    }
+
+    /**
+     * @return the values of string column i, by row
+     */
+    public String[] stringColumn(int i) {
+        return strings[i];
+    }
+
+    /**
+     * @return the RecordIds of the rows, which may be null
+     */
+    public RecordId[] recordIds() {
+        return rids;
+    }
+
+    /**
+     * Remove all rows.
+     */
+    public void clear() {
+        size = 0;
+        numSelected = 0;
+    }
+
+    /**
+     * Add an empty row at the end of the batch and select it.
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        if (size == capacity)
+            throw new IllegalStateException("batch is full");
+        rids[size] = null;
+        selection[numSelected++] = size;
+        return size++;
+    }
+
+    /**
+     * Add a row with the values and RecordId of a tuple.
+     *
+     * @return the index of the new row
+     */
+    public int addTuple(Tuple t) {
+        int row = addRow();
+        setFields(row, t, 0);
+        rids[row] = t.getRecordId();
+        return row;
+    }
+
+    /**
+     * Set the columns of a row from offset on to the values of a tuple.
+     */
+    public void setFields(int row, Tuple t, int offset) {
+        int n = t.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            Field f = t.getField(i);
+            if (ints[offset + i] != null)
+                ints[offset + i][row] = ((IntField) f).getValue();
+            else
+                strings[offset + i][row] = ((StringField) f).getValue();
+        }
+    }
+
+    /**
+     * Set the columns of a row from offset on to the values of a row of another
+     * batch.
+     */
+    public void copyFields(int row, Batch source, int sourceRow, int offset) {
+        int n = source.td.numFields();
+        for (int i = 0; i < n; i++) {
+            if (ints[offset + i] != null)
+                ints[offset + i][row] = source.ints[i][sourceRow];
+            else
+                strings[offset + i][row] = source.strings[i][sourceRow];
+        }
+    }
+
+    /**
+     * @return the value of column i of a row
+     */
+    public Field getField(int row, int i) {
+        if (ints[i] != null)
+            return new IntField(ints[i][row]);
+        return new StringField(strings[i][row], Type.STRING_LEN);
+    }
+
+    /**
+     * @return a tuple with the values and RecordId of a row
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            t.setField(i, getField(row, i));
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /**
+     * Project out some of the columns of this batch. The projection shares the
+     * columns and the selection vector of this batch instead of copying them.
+     *
+     * @param td     the TupleDesc of the projection
+     * @param fields the column of this batch for each field of td
+     */
+    public Batch project(TupleDesc td, List<Integer> fields) {
+        int[][] pints = new int[fields.size()][];
+        String[][] pstrings = new String[fields.size()][];
+        for (int i = 0; i < fields.size(); i++) {
+            pints[i] = ints[fields.get(i)];
+            pstrings[i] = strings[fields.get(i)];
+        }
+        return new Batch(td, this, pints, pstrings);
+    }
+}
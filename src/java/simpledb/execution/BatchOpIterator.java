@@ -0,0 +1,27 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BatchOpIterator is an OpIterator that can also return its tuples a
+ * {@link Batch} at a time, so that a pipeline of operators costs one call per
+ * batch instead of several per tuple.
+ * <p>
+ * Once opened, an iterator is read either with hasNext and next or with
+ * nextBatch, not with both. A returned batch belongs to the iterator and may be
+ * reused by the next call to nextBatch; until then the caller may edit its
+ * selection vector. Use {@link Batches} to read batches from any OpIterator and
+ * tuples from any BatchOpIterator.
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /**
+     * Returns the next batch of tuples.
+     *
+     * @return a batch with at least one selected row, or null if there are no
+     *         more tuples
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    Batch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,145 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Adapters between the tuple-at-a-time and the batch-at-a-time interface of
+ * operators.
+ */
+public final class Batches {
+
+    private Batches() {
+    }
+
+    /**
+     * Read an OpIterator a batch at a time. A BatchOpIterator is returned as it
+     * is; any other iterator is wrapped so that its batches are filled by calling
+     * next. The wrapper opens, rewinds and closes the iterator it wraps, and an
+     * operator that has already opened its child may read batches from the
+     * wrapper without opening it.
+     */
+    public static BatchOpIterator batches(OpIterator it) {
+        if (it instanceof BatchOpIterator)
+            return (BatchOpIterator) it;
+        return new TupleBatcher(it);
+    }
+
+    /**
+     * Read a BatchOpIterator a tuple at a time through nextBatch, for the top of
+     * a plan that runs in batch mode.
+     */
+    public static OpIterator tuples(BatchOpIterator it) {
+        return new BatchUnbatcher(it);
+    }
+
+    /**
+     * Fill a batch with the next tuples of an iterator.
+     *
+     * @return the batch, or null if the iterator had no more tuples
+     */
+    static Batch fill(OpIterator it, Batch batch) throws DbException, TransactionAbortedException {
+        batch.clear();
+        while (!batch.isFull() && it.hasNext())
+            batch.addTuple(it.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
+    private static class TupleBatcher implements BatchOpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final OpIterator child;
+        private transient Batch batch = null;
+
+        TupleBatcher(OpIterator child) {
+            this.child = child;
+        }
+
+        public Batch nextBatch() throws DbException, TransactionAbortedException {
+            if (batch == null)
+                batch = new Batch(child.getTupleDesc());
+            return fill(child, batch);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return child.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            return child.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void close() {
+            child.close();
+            batch = null;
+        }
+    }
+
+    private static class BatchUnbatcher extends Operator {
+
+        private static final long serialVersionUID = 1L;
+        private BatchOpIterator child;
+        private transient Batch batch = null;
+        private transient int pos = 0;
+
+        BatchUnbatcher(BatchOpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+            batch = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+            batch = null;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (batch == null || pos == batch.numSelected()) {
+                batch = child.nextBatch();
+                pos = 0;
+                if (batch == null)
+                    return null;
+            }
+            return batch.getTuple(batch.selection()[pos++]);
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            child = batches(children[0]);
+        }
+    }
+}
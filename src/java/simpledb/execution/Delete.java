@@ -3,6 +3,8 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
@@ -73,6 +75,9 @@ public class Delete extends Operator {
      * Deletes tuples as they are read from the child operator. Deletes are
      * processed via the buffer pool (which can be accessed via the
      * Database.getBufferPool() method.
+     * <p>
+     * If the tuples come straight from a range scan of a B+ tree, the whole
+     * range is deleted at once instead.
      * 
      * @return A 1-field tuple containing the number of deleted records.
      * @see Database#getBufferPool
@@ -84,15 +89,26 @@ public class Delete extends Operator {
         if(!isDeleted){
             isDeleted = true;
             int count = 0;
-            while (child.hasNext()){
-                Tuple tuple = child.next();
-                try{
-                    Database.getBufferPool().deleteTuple(tid, tuple);
-                    count++;
-                }catch (IOException e){
+            BTreeScan range = rangeScan();
+            if (range != null) {
+                BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(range.getTableId());
+                try {
+                    count = file.deleteRange(tid, range.getIndexPredicate());
+                } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            else {
+                while (child.hasNext()){
+                    Tuple tuple = child.next();
+                    try{
+                        Database.getBufferPool().deleteTuple(tid, tuple);
+                        count++;
+                    }catch (IOException e){
+                        e.printStackTrace();
+                    }
+                }
+            }
             Tuple res = new Tuple(tupleDesc);
             res.setField(0, new IntField(count));
             return res;
@@ -100,6 +116,31 @@ public class Delete extends Operator {
         return null;
     }
 
+    /**
+     * @return the B+ tree scan the child reads all its tuples from, if it can
+     *         be deleted as a key range, or null
+     */
+    private BTreeScan rangeScan() {
+        // a projection does not change which tuples are deleted
+        OpIterator source = child;
+        while (source instanceof Project) {
+            source = ((Project) source).getChildren()[0];
+        }
+        if (!(source instanceof BTreeScan)) {
+            return null;
+        }
+        BTreeScan scan = (BTreeScan) source;
+        // secondary indexes have to see every deleted tuple
+        if (!Database.getCatalog().getIndexes(scan.getTableId()).isEmpty()) {
+            return null;
+        }
+        IndexPredicate ipred = scan.getIndexPredicate();
+        if (ipred != null && (ipred.getOp() == Predicate.Op.NOT_EQUALS || ipred.getOp() == Predicate.Op.LIKE)) {
+            return null;
+        }
+        return scan;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
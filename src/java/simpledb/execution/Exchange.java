@@ -0,0 +1,203 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.ToIntFunction;
+
+/**
+ * Exchange is the receiving end of an exchange operator, in the manner of
+ * Volcano: the subplans that feed it run on threads of a shared pool and send
+ * their tuples, in chunks, through bounded queues. The rest of a plan is
+ * unchanged and still pulls tuples one at a time, so any operator can run in
+ * parallel by placing exchanges below and above it.
+ * <p>
+ * A failure in a producer thread is rethrown by the next call to next() or
+ * hasNext() on the receiving end, and closing the receiving end stops the
+ * producers and closes their subplans before returning.
+ *
+ * @see Gather
+ * @see Repartition
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tuples sent through a queue at a time. */
+    public static final int CHUNK_SIZE = 256;
+
+    /** The number of chunks a queue holds before producers wait. */
+    public static final int QUEUE_CHUNKS = 16;
+
+    private static final long SEND_WAIT_MILLIS = 10;
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "exchange");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** A chunk of tuples, the end of a producer or its failure. */
+    static final class Chunk {
+        final List<Tuple> tuples;
+        final Exception error;
+
+        Chunk(List<Tuple> tuples, Exception error) {
+            this.tuples = tuples;
+            this.error = error;
+        }
+    }
+
+    static final Chunk END = new Chunk(null, null);
+
+    /**
+     * One run of the producers of an exchange: the queues to each receiving
+     * end and the producer tasks.
+     */
+    static final class Run {
+        final List<BlockingQueue<Chunk>> queues = new ArrayList<>();
+        // 1 once the receiving end of a queue no longer reads it
+        final AtomicIntegerArray closed;
+        final List<Future<?>> tasks = new ArrayList<>();
+        volatile boolean cancelled = false;
+
+        Run(int numQueues) {
+            for (int i = 0; i < numQueues; i++)
+                queues.add(new ArrayBlockingQueue<>(QUEUE_CHUNKS));
+            closed = new AtomicIntegerArray(numQueues);
+        }
+
+        /**
+         * Sends a chunk to queue i, waiting while the queue is full. The chunk
+         * is dropped if the run is cancelled or queue i is no longer read.
+         */
+        void send(int i, Chunk c) throws InterruptedException {
+            while (!cancelled && closed.get(i) == 0) {
+                if (queues.get(i).offer(c, SEND_WAIT_MILLIS, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        }
+
+        /**
+         * Starts a producer that sends each tuple of child to the queue
+         * chosen by target, or to every queue if target returns -1.
+         */
+        void startProducer(OpIterator child, ToIntFunction<Tuple> target) {
+            tasks.add(POOL.submit(() -> {
+                int n = queues.size();
+                List<List<Tuple>> buffers = new ArrayList<>(n);
+                for (int i = 0; i < n; i++)
+                    buffers.add(new ArrayList<>(CHUNK_SIZE));
+                try {
+                    try {
+                        child.open();
+                        while (!cancelled && child.hasNext()) {
+                            Tuple t = child.next();
+                            int i = target.applyAsInt(t);
+                            for (int j = i < 0 ? 0 : i; j < (i < 0 ? n : i + 1); j++) {
+                                List<Tuple> buffer = buffers.get(j);
+                                buffer.add(t);
+                                if (buffer.size() == CHUNK_SIZE) {
+                                    send(j, new Chunk(buffer, null));
+                                    buffers.set(j, new ArrayList<>(CHUNK_SIZE));
+                                }
+                            }
+                        }
+                        for (int j = 0; j < n; j++) {
+                            if (!buffers.get(j).isEmpty())
+                                send(j, new Chunk(buffers.get(j), null));
+                        }
+                    } finally {
+                        child.close();
+                    }
+                    for (int j = 0; j < n; j++)
+                        send(j, END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    Chunk failure = new Chunk(null, e);
+                    try {
+                        for (int j = 0; j < n; j++)
+                            send(j, failure);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Stops the producers and waits until they have closed their
+         * subplans.
+         */
+        void cancel() {
+            cancelled = true;
+            for (Future<?> f : tasks) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    // already sent to the receiving end
+                }
+            }
+        }
+    }
+
+    private transient BlockingQueue<Chunk> queue;
+    private transient int numProducers;
+    private transient int ended;
+    private transient Iterator<Tuple> current;
+
+    /**
+     * @return a short description of this exchange for query plans
+     */
+    public abstract String getName();
+
+    /**
+     * Starts receiving from a queue that is fed by numProducers producers.
+     */
+    void receive(BlockingQueue<Chunk> queue, int numProducers) {
+        this.queue = queue;
+        this.numProducers = numProducers;
+        this.ended = 0;
+        this.current = Collections.emptyIterator();
+    }
+
+    /**
+     * Returns the next tuple sent by the producers, or null once every
+     * producer is done.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (!current.hasNext()) {
+            if (ended == numProducers)
+                return null;
+            Chunk c;
+            try {
+                c = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException(getName() + " interrupted");
+            }
+            if (c == END) {
+                ended++;
+            } else if (c.error != null) {
+                if (c.error instanceof DbException)
+                    throw (DbException) c.error;
+                if (c.error instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) c.error;
+                if (c.error instanceof RuntimeException)
+                    throw (RuntimeException) c.error;
+                throw new DbException(getName() + " failed: " + c.error);
+            } else {
+                current = c.tuples.iterator();
+            }
+        }
+        return current.next();
+    }
+}
@@ -10,11 +10,12 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private Predicate p;
     private OpIterator child;
+    private transient BatchOpIterator input;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -46,6 +47,7 @@ public class Filter extends Operator {
     public void close() {
         super.close();
         child.close();
+        input = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -73,6 +75,28 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Reads batches from the child and drops the rows that do not pass the
+     * predicate from their selection vectors.
+     *
+     * @return The next batch with a row that passes the filter, or null if
+     *         there are no more tuples
+     * @see Predicate#filter(Batch)
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        if (input == null) {
+            input = Batches.batches(child);
+        }
+        Batch batch;
+        while ((batch = input.nextBatch()) != null) {
+            p.filter(batch);
+            if (batch.numSelected() > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -81,6 +105,7 @@ public class Filter extends Operator {
     @Override
     public void setChildren(OpIterator[] children) {
         this.child = children[0];
+        this.input = null;
     }
 
 }
@@ -0,0 +1,77 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gather runs each of its children on a thread of its own and returns the
+ * tuples of all of them, in no particular order. The children usually work on
+ * the partitions of a {@link Repartition}, so that Gather collects the result
+ * of an operator that ran in parallel.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+    private List<OpIterator> children;
+    private transient Run run;
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            The subplans to run in parallel; they must all have the same
+     *            TupleDesc
+     */
+    public Gather(List<OpIterator> children) {
+        if (children.isEmpty())
+            throw new IllegalArgumentException("nothing to gather");
+        this.children = new ArrayList<>(children);
+    }
+
+    public String getName() {
+        return "gather(" + children.size() + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children.get(0).getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        run = new Run(1);
+        for (OpIterator child : children)
+            run.startProducer(child, t -> 0);
+        receive(run.queues.get(0), children.size());
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (run != null) {
+            run.cancel();
+            run = null;
+        }
+    }
+
+    /**
+     * Runs the children again from the start.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return children.toArray(new OpIterator[0]);
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.children = new ArrayList<>(Arrays.asList(children));
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,8 +10,14 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * The tuples of child1 are hashed in memory and child2 is probed against them.
+ * If child1 has more than {@link #setMapSize mapSize} tuples, this is a grace
+ * hash join: both children are split by hash of their join field into
+ * partitions on disk, and each pair of partitions is joined in turn, split
+ * again if it still does not fit.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
@@ -58,41 +65,228 @@ public class HashEquiJoin extends Operator {
     final Map<Object, List<Tuple>> map = new HashMap<>();
     public final static int MAP_SIZE = 20000;
 
+    /** The number of partitions the children are split into when child1 does not fit in memory. */
+    public final static int FANOUT = 16;
+
+    /** The number of times a partition that still does not fit is split again. */
+    public final static int MAX_LEVELS = 3;
+
+    private int mapSize = MAP_SIZE;
+
+    /**
+     * Sets the number of tuples of child1 that are hashed in memory. If child1
+     * has more, both children are split by hash into partitions on disk, which
+     * are then joined one pair at a time.
+     */
+    public void setMapSize(int mapSize) {
+        this.mapSize = mapSize;
+    }
+
+    /** A partition of each child, written to disk, that are joined together. */
+    private static class Partition {
+        final SpillFile build, probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    // the two sides of the current pass: the children, or a pair of partitions
+    transient private OpIterator buildSide = null;
+    transient private OpIterator probeSide = null;
+    transient private Partition current = null;
+    transient private Deque<Partition> pending = null;
+    transient private int numSpilled = 0;
+
+    /**
+     * @return the number of partitions written to disk since the join was opened
+     */
+    public int numSpilledPartitions() {
+        return numSpilled;
+    }
+
+    /**
+     * Hashes the next tuples of the build side, at most mapSize of them.
+     *
+     * @return true if there were any
+     */
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
+        while (cnt < mapSize && buildSide.hasNext()) {
+            t1 = buildSide.next();
             List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            cnt++;
         }
         return cnt > 0;
+    }
+
+    /**
+     * Starts joining build to probe. If build does not fit in memory, both
+     * are split into partitions that are joined by later passes instead.
+     *
+     * @return true if probe is to be read against the hashed tuples of build
+     */
+    private boolean startPass(OpIterator build, OpIterator probe, int level)
+            throws DbException, TransactionAbortedException {
+        buildSide = build;
+        probeSide = probe;
+        probeInput = null;
+        this.probe = null;
+        listIt = null;
+        if (!loadMap())
+            return false;
+        if (buildSide.hasNext() && level < MAX_LEVELS) {
+            spill(level);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the hashed tuples and the rest of the build side, then the probe
+     * side, to FANOUT pairs of partitions, and queues the pairs with tuples
+     * on both sides.
+     */
+    private void spill(int level) throws DbException, TransactionAbortedException {
+        SpillFile[] build = new SpillFile[FANOUT], probe = new SpillFile[FANOUT];
+        try {
+            for (int i = 0; i < FANOUT; i++) {
+                build[i] = new SpillFile(child1.getTupleDesc());
+                probe[i] = new SpillFile(child2.getTupleDesc());
+            }
+            int total = 0;
+            for (List<Tuple> l : map.values()) {
+                for (Tuple t : l)
+                    build[SpillFile.partitionOf(t.getField(pred.getField1()), level, FANOUT)].add(t);
+                total += l.size();
+            }
+            map.clear();
+            while (buildSide.hasNext()) {
+                Tuple t = buildSide.next();
+                build[SpillFile.partitionOf(t.getField(pred.getField1()), level, FANOUT)].add(t);
+                total++;
+            }
+            while (probeSide.hasNext()) {
+                Tuple t = probeSide.next();
+                probe[SpillFile.partitionOf(t.getField(pred.getField2()), level, FANOUT)].add(t);
+            }
+            for (int i = 0; i < FANOUT; i++) {
+                if (build[i].size() == 0 || probe[i].size() == 0) {
+                    build[i].delete();
+                    probe[i].delete();
+                } else {
+                    // a partition that hashing did not make smaller is joined as it is
+                    int next = build[i].size() == total ? MAX_LEVELS : level + 1;
+                    pending.push(new Partition(build[i], probe[i], next));
+                    numSpilled++;
+                }
+                build[i] = probe[i] = null;
+            }
+        } finally {
+            for (int i = 0; i < FANOUT; i++) {
+                if (build[i] != null)
+                    build[i].delete();
+                if (probe[i] != null)
+                    probe[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Moves on once the probe side has been read: to the next tuples of a
+     * build side that did not fit in memory, or to the next pair of
+     * partitions.
+     *
+     * @return false if the join is done
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        listIt = null;
+        if (buildSide.hasNext()) {
+            // a partition that could not be split further: read its probe side again
+            probeSide.rewind();
+            probe = null;
+            return loadMap();
+        }
+        while (true) {
+            finishPartition();
+            if (pending.isEmpty()) {
+                buildSide = probeSide = null;
+                map.clear();
+                return false;
+            }
+            current = pending.pop();
+            OpIterator build = current.build.iterator(), probe = current.probe.iterator();
+            build.open();
+            probe.open();
+            if (startPass(build, probe, current.level))
+                return true;
+        }
+    }
+
+    private void finishPartition() {
+        if (current != null) {
+            buildSide.close();
+            probeSide.close();
+            current.delete();
+            current = null;
+        }
+    }
 
+    private void start() throws DbException, TransactionAbortedException {
+        pending = new ArrayDeque<>();
+        numSpilled = 0;
+        if (!startPass(child1, child2, 0))
+            nextPass();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        start();
         super.open();
     }
 
+    /** Deletes the partitions left on disk. */
+    private void discardPartitions() {
+        finishPartition();
+        if (pending != null) {
+            for (Partition p : pending)
+                p.delete();
+            pending = null;
+        }
+        buildSide = probeSide = null;
+    }
+
     public void close() {
         super.close();
+        discardPartitions();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.probe=null;
+        this.probeInput=null;
+        this.out=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        discardPartitions();
         child1.rewind();
         child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -132,34 +326,79 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (probeSide != null) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+            // loop around the probe side
+            while (probeSide.hasNext()) {
+                t2 = probeSide.next();
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                List<Tuple> l = map.get(t2.getField(pred.getField2()));
+                if (l == null)
+                    continue;
+                listIt = l.iterator();
 
-            return processList();
+                return processList();
 
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // the probe side is done: advance the build side
+            nextPass();
         }
-
         return null;
     }
 
+    transient private BatchOpIterator probeInput = null;
+    transient private Batch probe = null;
+    transient private int probePos = 0;
+    transient private Batch out = null;
+
+    /**
+     * Returns the next batch of tuples generated by the join. The rows of
+     * the probe side are read a batch at a time and probed against the hash
+     * table built from the build side; the matches are written into an output
+     * batch, left tuple first, until it is full.
+     *
+     * @return The next batch of matching tuples, or null if there are no more
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) {
+            out = new Batch(comboTD);
+        }
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        while (!out.isFull()) {
+            // finish the matches of the last probed row
+            while (listIt != null && listIt.hasNext() && !out.isFull()) {
+                int row = out.addRow();
+                out.setFields(row, listIt.next(), 0);
+                out.copyFields(row, probe, probe.selection()[probePos - 1], td1n);
+            }
+            if (out.isFull() || probeSide == null) {
+                break;
+            }
+            if (probe == null || probePos == probe.numSelected()) {
+                if (probeInput == null) {
+                    probeInput = Batches.batches(probeSide);
+                }
+                probe = probeInput.nextBatch();
+                probePos = 0;
+                if (probe == null) {
+                    // the probe side is done: advance the build side
+                    nextPass();
+                    continue;
+                }
+            }
+            List<Tuple> l = map.get(probe.getField(probe.selection()[probePos++], pred.getField2()));
+            listIt = l == null ? null : l.iterator();
+        }
+        return out.size() == 0 ? null : out;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -169,6 +408,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        this.probeInput = null;
     }
     
 }
@@ -0,0 +1,217 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins an outer relation with an inner
+ * relation that has an index on the join field. Instead of scanning the inner
+ * relation, it probes the index once for every distinct join value of the
+ * outer relation.
+ * <p>
+ * Outer tuples are read in batches and sorted on the join field, so that
+ * consecutive probes visit the index in key order and each distinct value is
+ * only looked up once per batch.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** the number of outer tuples sorted together */
+    public final static int BATCH_SIZE = 1000;
+
+    private final JoinPredicate pred;
+    private final Predicate.Op probeOp;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private final TupleDesc comboTD;
+
+    // 当前批次的外表元组，按连接字段排序
+    private transient List<Tuple> batch = new ArrayList<>();
+    // 当前连接值相同的外表元组为 batch[groupStart, groupEnd)
+    private transient int groupStart = 0;
+    private transient int groupEnd = 0;
+    private transient int outerPos = 0;
+    private transient Tuple inner = null;
+    private transient boolean probing = false;
+    private transient boolean probed = false;
+
+    /**
+     * Constructor. Accepts the outer relation, an index access method on the
+     * inner relation and the predicate to join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; field2 must be the
+     *            field child2 is indexed on
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Index access method for the right(inner) relation to join
+     * @throws IllegalArgumentException if the index cannot answer the predicate
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+        this.pred = p;
+        this.probeOp = probeOp(p.getOperator());
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the operator that compares the inner field to an outer value, so
+     *         that outer op inner holds iff inner probeOp(op) outer does
+     */
+    private static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+                return Predicate.Op.EQUALS;
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                throw new IllegalArgumentException("an index cannot be probed for " + op);
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        resetBatch();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        probed = false;
+        resetBatch();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        resetBatch();
+    }
+
+    private void resetBatch() {
+        batch = new ArrayList<>();
+        groupStart = 0;
+        groupEnd = 0;
+        outerPos = 0;
+        inner = null;
+        probing = false;
+    }
+
+    /**
+     * Read the next batch of outer tuples and sort it on the join field.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        batch = new ArrayList<>();
+        while (batch.size() < BATCH_SIZE && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        int f1 = pred.getField1();
+        batch.sort((a, b) -> {
+            Field x = a.getField(f1);
+            Field y = b.getField(f1);
+            if (x.compare(Predicate.Op.LESS_THAN, y))
+                return -1;
+            return x.equals(y) ? 0 : 1;
+        });
+        groupStart = 0;
+        groupEnd = 0;
+        return !batch.isEmpty();
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple that
+     * satisfy the join predicate. Every inner tuple the index returns for a
+     * join value is paired with all outer tuples of the batch with that value.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (inner != null && outerPos < groupEnd) {
+                return merge(batch.get(outerPos++), inner);
+            }
+            if (probing && child2.hasNext()) {
+                inner = child2.next();
+                outerPos = groupStart;
+                continue;
+            }
+            inner = null;
+            probing = false;
+
+            // move on to the next join value, reading a new batch if needed
+            groupStart = groupEnd;
+            if (groupStart >= batch.size() && !loadBatch()) {
+                return null;
+            }
+            Field key = batch.get(groupStart).getField(pred.getField1());
+            groupEnd = groupStart + 1;
+            while (groupEnd < batch.size() && batch.get(groupEnd).getField(pred.getField1()).equals(key)) {
+                groupEnd++;
+            }
+            IndexPredicate ipred = new IndexPredicate(probeOp, key);
+            if (probed) {
+                child2.rewind(ipred);
+            } else {
+                child2.open(ipred);
+                probed = true;
+            }
+            probing = true;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexOpIterator) children[1];
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table that numbers int group keys 0, 1, 2, ... in
+ * the order they are first seen, so that an aggregator can keep the state of
+ * its groups in plain arrays indexed by group number. Keys are looked up by
+ * linear probing in a power-of-two array that is doubled whenever it gets
+ * half full; no object is allocated per key.
+ */
+final class IntGroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // 槽位中的键，以及对应的组号（-1 表示空槽）
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private int[] groups = newGroups(INITIAL_CAPACITY);
+    // 按组号存放的键
+    private int[] keyOfGroup = new int[INITIAL_CAPACITY / 2];
+    private int size = 0;
+
+    private static int[] newGroups(int capacity) {
+        int[] groups = new int[capacity];
+        Arrays.fill(groups, -1);
+        return groups;
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the number of the group of key, which is added as the next
+     *         group if it has not been seen before
+     */
+    int groupOf(int key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (groups[i] >= 0) {
+            if (keys[i] == key)
+                return groups[i];
+            i = (i + 1) & mask;
+        }
+        int group = size++;
+        keys[i] = key;
+        groups[i] = group;
+        if (group == keyOfGroup.length)
+            keyOfGroup = Arrays.copyOf(keyOfGroup, group * 2);
+        keyOfGroup[group] = key;
+        if (size * 2 > keys.length)
+            grow();
+        return group;
+    }
+
+    /**
+     * @return the number of the group of key, or -1 if it has not been seen
+     */
+    int find(int key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (groups[i] >= 0) {
+            if (keys[i] == key)
+                return groups[i];
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys, oldGroups = groups;
+        keys = new int[oldKeys.length * 2];
+        groups = newGroups(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldGroups[j] < 0)
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while (groups[i] >= 0)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            groups[i] = oldGroups[j];
+        }
+    }
+
+    /**
+     * @return the number of groups
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the key of a group
+     */
+    int key(int group) {
+        return keyOfGroup[group];
+    }
+}
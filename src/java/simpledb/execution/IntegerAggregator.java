@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,13 +9,18 @@ import java.util.Map;
 import simpledb.common.Type;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
-import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleIterator;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Each group keeps the count, sum, minimum and maximum of its values in
+ * long arrays indexed by group number, so that one pass over the input
+ * computes every aggregate of every group. Int group keys are numbered by an
+ * {@link IntGroupTable}, without boxing them; other group keys by a HashMap.
+ * Without grouping there is a single group and no lookup at all.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -23,96 +29,22 @@ public class IntegerAggregator implements Aggregator {
     private final int gbfieldId;
     private final Type gbfieldtype;
     // 聚合字段的序号（是用于取新插入的值） 举例： sum(字段),min(字段)
-    private int afield;
-    // 操作符
-    private Op what;
+    private final int afield;
+    // 要计算的运算符，SUM_COUNT 展开为 SUM 和 COUNT
+    private final Op[] whats;
 
-    private AggHandler aggHandler;
+    // 整数分组键到组号的映射
+    private final IntGroupTable intGroups = new IntGroupTable();
+    // 其他类型的分组键到组号的映射，以及按组号存放的键
+    private final Map<Field, Integer> fieldGroups = new HashMap<>();
+    private final List<Field> fieldKeys = new ArrayList<>();
 
-    private abstract class AggHandler {
-        // 存储字段对应的聚合结果
-        Map<Field, Integer> aggResult;
-
-        // gbField 用于分组的字段， aggField 现阶段聚合结果
-        abstract void handle(Field gbField, IntField aggField);
-
-        public AggHandler() {
-            aggResult = new HashMap<>();
-        }
-
-        public Map<Field, Integer> getAggResult() {
-            return aggResult;
-        }
-    }
-    private class CountHandler extends AggHandler{
-        @Override
-        void handle(Field gbField, IntField aggField) {
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, aggResult.get(gbField) + 1);
-            }
-            else{
-                aggResult.put(gbField, 1);
-            }
-        }
-    }
-
-    private class SumHandler extends AggHandler{
-        @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, aggResult.get(gbField) + value);
-            }
-            else{
-                aggResult.put(gbField, value);
-            }
-        }
-    }
-
-    private class MaxHandler extends AggHandler{
-        @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField,Math.max(aggResult.get(gbField), value));
-            }
-            else{
-                aggResult.put(gbField, value);
-            }
-        }
-    }
-
-    private class MinHandler extends AggHandler{
-        @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField,Math.min(aggResult.get(gbField), value));
-            }
-            else{
-                aggResult.put(gbField, value);
-            }
-        }
-    }
-
-    private class AvgHandler extends AggHandler{
-        Map<Field, Integer> sum = new HashMap<>();
-        Map<Field, Integer> count = new HashMap<>();
-        @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            // 求和 + 计数
-            if(sum.containsKey(gbField) && count.containsKey(gbField)){
-                sum.put(gbField, sum.get(gbField) + value);
-                count.put(gbField, count.get(gbField) + 1);
-            }
-            else{
-                sum.put(gbField, value);
-                count.put(gbField, 1);
-            }
-            aggResult.put(gbField, sum.get(gbField) / count.get(gbField));
-        }
-    }
+    // 按组号存放的计数、和、最小值、最大值
+    private long[] counts = new long[16];
+    private long[] sums = new long[16];
+    private int[] mins = new int[16];
+    private int[] maxs = new int[16];
+    private int numGroups = 0;
 
     /**
      * Aggregate constructor
@@ -131,31 +63,94 @@ public class IntegerAggregator implements Aggregator {
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-       // some code goes here
-       this.gbfieldId = gbfield;
-       this.gbfieldtype = gbfieldtype;
-       this.afield = afield;
-       this.what = what;
-       // 判读运算符号
-       switch (what){
-           case MIN:
-               aggHandler = new MinHandler();
-               break;
-           case MAX:
-               aggHandler = new MaxHandler();
-               break;
-           case AVG:
-               aggHandler = new AvgHandler();
-               break;
-           case SUM:
-               aggHandler = new SumHandler();
-               break;
-           case COUNT:
-               aggHandler = new CountHandler();
-               break;
-           default:
-               throw new IllegalArgumentException("聚合器不支持当前运算符");
-       }
+        this(gbfield, gbfieldtype, afield, new Op[]{what});
+    }
+
+    /**
+     * Aggregate constructor for several aggregates of the same field, which
+     * are computed together in one pass over the tuples.
+     *
+     * @param gbfield
+     *                    the 0-based index of the group-by field in the tuple, or
+     *                    NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *                    the type of the group by field, or null if there is no
+     *                    grouping
+     * @param afield
+     *                    the 0-based index of the aggregate field in the tuple
+     * @param whats
+     *                    the aggregation operators, in the order of their
+     *                    columns in the result
+     * @throws IllegalArgumentException if there are no operators, or one of
+     *                    them is SC_AVG
+     */
+    public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op[] whats) {
+        this.gbfieldId = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.afield = afield;
+        List<Op> ops = new ArrayList<>();
+        for (Op what : whats) {
+            switch (what) {
+                case MIN:
+                case MAX:
+                case AVG:
+                case SUM:
+                case COUNT:
+                    ops.add(what);
+                    break;
+                case SUM_COUNT:
+                    ops.add(Op.SUM);
+                    ops.add(Op.COUNT);
+                    break;
+                default:
+                    throw new IllegalArgumentException("聚合器不支持当前运算符");
+            }
+        }
+        if (ops.isEmpty())
+            throw new IllegalArgumentException("聚合器至少需要一个运算符");
+        this.whats = ops.toArray(new Op[0]);
+        if (gbfield == NO_GROUPING)
+            newGroup();
+    }
+
+    // 新建一个组，返回组号
+    private int newGroup() {
+        if (numGroups == counts.length) {
+            int capacity = numGroups * 2;
+            counts = Arrays.copyOf(counts, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+        }
+        mins[numGroups] = Integer.MAX_VALUE;
+        maxs[numGroups] = Integer.MIN_VALUE;
+        return numGroups++;
+    }
+
+    private int groupOf(int key) {
+        int group = intGroups.groupOf(key);
+        return group == numGroups ? newGroup() : group;
+    }
+
+    private int groupOf(Field key) {
+        if (gbfieldtype == Type.INT_TYPE)
+            return groupOf(((IntField) key).getValue());
+        Integer group = fieldGroups.get(key);
+        if (group == null) {
+            group = newGroup();
+            fieldGroups.put(key, group);
+            fieldKeys.add(key);
+        }
+        return group;
+    }
+
+    private void add(int group, int value) {
+        counts[group]++;
+        sums[group] += value;
+        if (value < mins[group])
+            mins[group] = value;
+        if (value > maxs[group])
+            maxs[group] = value;
     }
 
     /**
@@ -166,10 +161,94 @@ public class IntegerAggregator implements Aggregator {
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        IntField afield = (IntField) tup.getField(this.afield);
-        // 分组的字段
-        Field groupfield = this.gbfieldId == NO_GROUPING ? null : tup.getField(this.gbfieldId);
-        aggHandler.handle(groupfield, afield);
+        int value = ((IntField) tup.getField(this.afield)).getValue();
+        int group = this.gbfieldId == NO_GROUPING ? 0 : groupOf(tup.getField(this.gbfieldId));
+        add(group, value);
+    }
+
+    @Override
+    public boolean mergeTupleIntoExistingGroup(Tuple tup) {
+        int group;
+        if (this.gbfieldId == NO_GROUPING) {
+            group = 0;
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            group = intGroups.find(((IntField) tup.getField(this.gbfieldId)).getValue());
+        } else {
+            Integer g = fieldGroups.get(tup.getField(this.gbfieldId));
+            group = g == null ? -1 : g;
+        }
+        if (group < 0)
+            return false;
+        add(group, ((IntField) tup.getField(this.afield)).getValue());
+        return true;
+    }
+
+    @Override
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregate, reading the
+     * aggregate field, and an int group-by field, straight from their
+     * columns. Without grouping, the batch is reduced to its count, sum, min
+     * and max first and merged in one step.
+     *
+     * @param batch
+     *            the Batch containing an aggregate field and a group-by field
+     */
+    @Override
+    public void mergeBatchIntoGroups(Batch batch) {
+        int[] sel = batch.selection();
+        int[] values = batch.intColumn(this.afield);
+        int n = batch.numSelected();
+        if (this.gbfieldId == NO_GROUPING) {
+            if (n == 0) {
+                return;
+            }
+            long sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                int v = values[sel[i]];
+                sum += v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            counts[0] += n;
+            sums[0] += sum;
+            mins[0] = Math.min(mins[0], min);
+            maxs[0] = Math.max(maxs[0], max);
+            return;
+        }
+        if (gbfieldtype == Type.INT_TYPE) {
+            int[] keys = batch.intColumn(this.gbfieldId);
+            for (int i = 0; i < n; i++) {
+                int row = sel[i];
+                add(groupOf(keys[row]), values[row]);
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            int row = sel[i];
+            add(groupOf(batch.getField(row, this.gbfieldId)), values[row]);
+        }
+    }
+
+    // 组的某个聚合结果
+    private int result(Op what, int group) {
+        switch (what) {
+            case MIN:
+                return mins[group];
+            case MAX:
+                return maxs[group];
+            case SUM:
+                return (int) sums[group];
+            case COUNT:
+                return (int) counts[group];
+            default:
+                return (int) (sums[group] / counts[group]);
+        }
     }
 
     /**
@@ -178,50 +257,49 @@ public class IntegerAggregator implements Aggregator {
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
+     *         the constructor; with several of them, or SUM_COUNT, there is
+     *         one column for each, in order. Without grouping and without
+     *         tuples, there is no result unless every aggregate is a COUNT.
      */
     public OpIterator iterator() {
-        // some code goes here
-        Map<Field, Integer> aggResult = aggHandler.getAggResult();
         // 构建 tuple 需要
-        Type[] types;
-        String[] names;
-        TupleDesc tupleDesc;
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        boolean grouped = gbfieldId != NO_GROUPING;
+        if (grouped) {
+            types.add(gbfieldtype);
+            names.add("groupVal");
+        }
+        for (Op what : whats) {
+            types.add(Type.INT_TYPE);
+            names.add(whats.length == 1 ? "aggregateVal" : what.toString());
+        }
+        TupleDesc tupleDesc = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+        int offset = grouped ? 1 : 0;
+
         // 储存结果
         List<Tuple> tuples = new ArrayList<>();
-        // 如果没有分组
-        if(gbfieldId == NO_GROUPING){
-            types = new Type[]{Type.INT_TYPE};
-            names = new String[]{"aggregateVal"};
-            tupleDesc = new TupleDesc(types, names);
-            // 获取结果字段
-            IntField resultField = new IntField(aggResult.get(null));
-            // 组合成行（临时行，不需要存储，只需要设置字段值）
+        for (int group = 0; group < numGroups; group++) {
+            if (counts[group] == 0 && !onlyCounts())
+                continue;
             Tuple tuple = new Tuple(tupleDesc);
-            tuple.setField(0, resultField);
+            if (grouped) {
+                tuple.setField(0, gbfieldtype == Type.INT_TYPE
+                        ? new IntField(intGroups.key(group)) : fieldKeys.get(group));
+            }
+            for (int i = 0; i < whats.length; i++)
+                tuple.setField(offset + i, new IntField(result(whats[i], group)));
             tuples.add(tuple);
         }
-        else{
-            types = new Type[]{gbfieldtype, Type.INT_TYPE};
-            names = new String[]{"groupVal", "aggregateVal"};
-            tupleDesc = new TupleDesc(types, names);
-            for(Field field: aggResult.keySet()){
-                Tuple tuple = new Tuple(tupleDesc);
-                if(gbfieldtype == Type.INT_TYPE){
-                    IntField intField = (IntField) field;
-                    tuple.setField(0, intField);
-                }
-                else{
-                    StringField stringField = (StringField) field;
-                    tuple.setField(0, stringField);
-                }
-
-                IntField resultField = new IntField(aggResult.get(field));
-                tuple.setField(1, resultField);
-                tuples.add(tuple);
-            }
+        return new TupleIterator(tupleDesc, tuples);
+    }
+
+    private boolean onlyCounts() {
+        for (Op what : whats) {
+            if (what != Op.COUNT)
+                return false;
         }
-        return new TupleIterator(tupleDesc ,tuples);
+        return true;
     }
 
 }
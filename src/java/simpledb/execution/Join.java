@@ -10,15 +10,29 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loop join: the tuples of child1 are read in blocks of
+ * {@link #BLOCK_SIZE} tuples, and child2 is scanned once per block, each of
+ * its tuples being compared to every tuple of the block.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of tuples of child1 buffered at a time. */
+    public final static int BLOCK_SIZE = 10000;
+
     private final JoinPredicate joinPredicate;
     private OpIterator child1;
     private OpIterator child2;
-    // 临时元组，保存上次迭代用的 child1 的 Tuple
-    private Tuple t;
+    private TupleDesc comboTD;
+    private int blockSize = BLOCK_SIZE;
+    // 当前块中 child1 的元组
+    private transient List<Tuple> block;
+    // 当前 child2 的元组，以及下一个要与之比较的块中元组的位置
+    private transient Tuple inner;
+    private transient int blockPos;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -34,6 +48,17 @@ public class Join extends Operator {
         this.joinPredicate = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Sets the number of tuples of child1 that are buffered at a time. child2
+     * is scanned once for each such block.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("blockSize must be positive");
+        this.blockSize = blockSize;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -63,13 +88,28 @@ public class Join extends Operator {
      *      implementation logic.
      */
     public TupleDesc getTupleDesc() {
-        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        return comboTD;
+    }
+
+    /**
+     * Reads the next block of tuples of child1.
+     *
+     * @return true if there were any
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockSize && child1.hasNext())
+            block.add(child1.next());
+        inner = null;
+        return !block.isEmpty();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
+        block = new ArrayList<>();
+        loadBlock();
         super.open();
     }
 
@@ -77,13 +117,14 @@ public class Join extends Operator {
         super.close();
         child2.close();
         child1.close();
-
+        block = null;
+        inner = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
-        t = null;
+        loadBlock();
     }
 
     /**
@@ -105,46 +146,38 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        // t 的意义就是 笛卡尔积, 一个可能对多个相等
-        while (child1.hasNext() || t != null){
-            if(child1.hasNext() && t == null){
-                t = child1.next();
-            }
-            while(child2.hasNext()){
-                Tuple t2 = child2.next();
-                if(joinPredicate.filter(t, t2)){
-                    TupleDesc td1 = t.getTupleDesc();
-                    TupleDesc td2 = t2.getTupleDesc();
-                    // 合并
-                    TupleDesc tupleDesc = TupleDesc.merge(td1, td2);
-                    // 创建新的行
-                    Tuple newTuple = new Tuple(tupleDesc);
-                    // 设置路径
-                    newTuple.setRecordId(t.getRecordId());
-                    // 合并
-                    int i = 0;
-                    for (; i < td1.numFields(); i++) {
-                        newTuple.setField(i, t.getField(i));
-                    }
-                    for (int j = 0; j < td2.numFields(); j++) {
-                        newTuple.setField(i + j, t2.getField(j));
-                    }
-                    // 遍历完t2后重置，t置空，准备遍历下一个
-                    if(!child2.hasNext()){
-                        child2.rewind();
-                        t = null;
-                    }
-                    return newTuple;
+        while (!block.isEmpty()) {
+            if (inner != null) {
+                while (blockPos < block.size()) {
+                    Tuple t = block.get(blockPos++);
+                    if (joinPredicate.filter(t, inner))
+                        return merge(t, inner);
                 }
+                inner = null;
+            }
+            if (child2.hasNext()) {
+                inner = child2.next();
+                blockPos = 0;
+            } else if (loadBlock()) {
+                // child2 is done with this block: scan it again for the next one
+                child2.rewind();
             }
-            // 重置 child2
-            child2.rewind();
-            t = null;
         }
         return null;
     }
 
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        t.setRecordId(t1.getRecordId());
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{child1, child2};
@@ -154,6 +187,7 @@ public class Join extends Operator {
     public void setChildren(OpIterator[] children) {
         child1 = children[0];
         child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
 }
@@ -0,0 +1,103 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements LIMIT n OFFSET m: it skips the first m
+ * tuples of its child and returns at most the n after them. It stops reading
+ * its child as soon as it has returned the last of them, so a scan under it
+ * reads no more pages than it needs to.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int limit;
+    private final int offset;
+    // 已跳过和已返回的元组数
+    private transient int skipped;
+    private transient int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator
+     * @param limit
+     *            The largest number of tuples to return
+     * @param offset
+     *            The number of tuples of the child to skip first
+     * @throws IllegalArgumentException if limit or offset is negative
+     */
+    public Limit(OpIterator child, int limit, int offset) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("LIMIT and OFFSET cannot be negative");
+        this.child = child;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        skipped = 0;
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        skipped = 0;
+        returned = 0;
+    }
+
+    /**
+     * Returns the next tuple of the child after the skipped ones, or null
+     * once limit tuples have been returned, without reading the child again.
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned == limit)
+            return null;
+        while (skipped < offset && child.hasNext()) {
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext())
+            return null;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -2,25 +2,37 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.ExternalSorter;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples of the child are sorted by an {@link ExternalSorter}: they are
+ * kept in memory up to the sort memory budget, and beyond that sorted in runs
+ * that are spilled to temporary files and merged.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of bytes of heap the tuples sorted in memory may take */
+    public static final long SORT_MEMORY = 8L << 20;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] ascending;
+    private long sortMemory = SORT_MEMORY;
+    private File tempDir = null;
+    private transient ExternalSorter sorter;
+    private transient Iterator<Tuple> it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,26 +45,97 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: tuples are
+     * ordered on the first field, tuples equal in it on the second, and so
+     * on. Tuples equal in all of them keep the order of the child.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @throws IllegalArgumentException if there are no fields, or not one
+     *             direction per field
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one direction for each of at least one field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascending = asc.clone();
     }
-    
+
+    /**
+     * @return true if the sort order on the first field is ascending.
+     */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascending[0];
     }
     
+    /**
+     * @return the first field that the sort is applied to.
+     */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
+    }
+
+    /**
+     * @return the fields that the sort is applied to, most significant first.
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each field that the sort is applied to, whether the order
+     *         is ascending.
+     */
+    public boolean[] getAscending() {
+        return ascending.clone();
+    }
+
+    /**
+     * Sets the number of bytes of heap the tuples sorted in memory may take,
+     * as estimated by {@link ExternalSorter#heapSize}; larger inputs are
+     * sorted in runs of that size spilled to disk. Takes effect on
+     * the next open.
+     *
+     * @throws IllegalArgumentException if bytes is less than 1
+     */
+    public void setSortMemory(long bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("sort memory must be positive");
+        this.sortMemory = bytes;
+    }
+
+    /**
+     * Sets the directory sorted runs are spilled to, or null for the default
+     * temporary directory. Takes effect on the next open.
+     */
+    public void setTempDir(File dir) {
+        this.tempDir = dir;
+    }
+
+    /**
+     * @return the number of sorted runs spilled to disk since the last open,
+     *         0 if the tuples were sorted in memory.
+     */
+    public int numRuns() {
+        return sorter == null ? 0 : sorter.numRuns();
     }
     
     public TupleDesc getTupleDesc() {
@@ -62,21 +145,35 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        if (sorter != null)
+            sorter.close();
+        sorter = new ExternalSorter(td, new TupleComparator(orderByFields, ascending), sortMemory, tempDir);
+        try {
+            while (child.hasNext())
+                sorter.add(child.next());
+            it = sorter.sorted();
+        } catch (IOException e) {
+            throw new DbException("could not sort: " + e.getMessage());
+        }
         super.open();
     }
 
     public void close() {
         super.close();
+        child.close();
         it = null;
+        if (sorter != null) {
+            sorter.close();
+            sorter = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        try {
+            it = sorter.sorted();
+        } catch (IOException e) {
+            throw new DbException("could not sort: " + e.getMessage());
+        }
     }
 
     /**
@@ -86,11 +183,15 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+    protected Tuple fetchNext() throws NoSuchElementException, DbException {
+        try {
+            if (it != null && it.hasNext()) {
+                return it.next();
+            } else
+                return null;
+        } catch (UncheckedIOException e) {
+            throw new DbException("could not sort: " + e.getCause().getMessage());
+        }
     }
 
     @Override
@@ -104,25 +205,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
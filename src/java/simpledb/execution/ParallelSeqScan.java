@@ -0,0 +1,289 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParallelSeqScan reads a heap file on several threads. The pages of the file
+ * are split into morsels of {@link #MORSEL_PAGES} consecutive pages, which the
+ * workers of a ForkJoinPool take one at a time until none are left, so a slow
+ * morsel does not hold up the others. Each worker applies the pushed-down
+ * filter and projection to the tuples of its morsel and hands the result to
+ * the consuming thread.
+ * <p>
+ * At most a fixed number of morsels are read ahead of the consumer. Tuples
+ * come out in file order only if that is requested; otherwise morsels are
+ * returned as soon as they are done.
+ */
+public class ParallelSeqScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of pages a worker takes at a time. */
+    public static final int MORSEL_PAGES = 16;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final int parallelism;
+    private final Predicate filter;
+    private final List<Integer> outFields;
+    private final boolean ordered;
+    private final TupleDesc td;
+
+    /** The tuples of one morsel, or the end of a worker, or its failure. */
+    private static class Morsel {
+        final int index;
+        final List<Tuple> tuples;
+        final Exception error;
+
+        Morsel(int index, List<Tuple> tuples, Exception error) {
+            this.index = index;
+            this.tuples = tuples;
+            this.error = error;
+        }
+    }
+
+    private static final Morsel WORKER_DONE = new Morsel(-1, null, null);
+
+    /** What the workers of one open scan share with the consumer. */
+    private static class Run {
+        final BlockingQueue<Morsel> results = new LinkedBlockingQueue<>();
+        final Semaphore readAhead;
+        final AtomicInteger nextMorsel = new AtomicInteger(0);
+        volatile boolean cancelled = false;
+
+        Run(int readAhead) {
+            this.readAhead = new Semaphore(readAhead);
+        }
+    }
+
+    private transient ForkJoinPool pool;
+    private transient Run run;
+    private transient Map<Integer, Morsel> early;
+    private transient Iterator<Tuple> current;
+    private transient int nextIndex;
+    private transient int workersDone;
+
+    /**
+     * Creates a parallel scan of a whole table that returns its tuples in no
+     * particular order.
+     *
+     * @param tid         The transaction this scan is running as a part of.
+     * @param tableid     the table to scan, which must be a HeapFile.
+     * @param tableAlias  the alias of this table, as for {@link SeqScan}
+     * @param parallelism the number of worker threads
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, int parallelism) {
+        this(tid, tableid, tableAlias, parallelism, null, null, false);
+    }
+
+    /**
+     * Creates a parallel scan with a filter and a projection that are applied
+     * by the workers.
+     *
+     * @param tid         The transaction this scan is running as a part of.
+     * @param tableid     the table to scan, which must be a HeapFile.
+     * @param tableAlias  the alias of this table, as for {@link SeqScan}
+     * @param parallelism the number of worker threads
+     * @param filter      the predicate tuples must pass, or null to keep all
+     * @param outFields   the fields of the table to return, or null for all
+     * @param ordered     whether to return the tuples in file order
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, int parallelism,
+                           Predicate filter, List<Integer> outFields, boolean ordered) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.parallelism = parallelism;
+        this.filter = filter;
+        this.outFields = outFields;
+        this.ordered = ordered;
+
+        TupleDesc scanTd = new SeqScan(tid, tableid, tableAlias).getTupleDesc();
+        if (outFields == null) {
+            td = scanTd;
+        } else {
+            Type[] types = new Type[outFields.size()];
+            String[] names = new String[outFields.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = scanTd.getFieldType(outFields.get(i));
+                names[i] = scanTd.getFieldName(outFields.get(i));
+            }
+            td = new TupleDesc(types, names);
+        }
+    }
+
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new DbException("parallel scans need a heap file, table " + tableid + " is not one");
+        int numPages = ((HeapFile) f).numPages();
+        int numMorsels = (numPages + MORSEL_PAGES - 1) / MORSEL_PAGES;
+
+        Run run = new Run(2 * parallelism);
+        this.run = run;
+        early = new HashMap<>();
+        current = Collections.emptyIterator();
+        nextIndex = 0;
+        workersDone = 0;
+
+        pool = new ForkJoinPool(parallelism);
+        for (int w = 0; w < parallelism; w++) {
+            pool.execute(() -> {
+                try {
+                    while (!run.cancelled) {
+                        run.readAhead.acquire();
+                        int m = run.nextMorsel.getAndIncrement();
+                        if (m >= numMorsels) {
+                            run.readAhead.release();
+                            break;
+                        }
+                        int end = Math.min(numPages, (m + 1) * MORSEL_PAGES);
+                        run.results.put(new Morsel(m, scanPages(run, m * MORSEL_PAGES, end), null));
+                    }
+                    run.results.put(WORKER_DONE);
+                } catch (InterruptedException e) {
+                    // closed while waiting
+                } catch (Exception e) {
+                    run.results.add(new Morsel(-1, null, e));
+                }
+            });
+        }
+        super.open();
+    }
+
+    /**
+     * Reads the pages [start, end) and returns the tuples that pass the filter,
+     * projected to the output fields.
+     */
+    private List<Tuple> scanPages(Run run, int start, int end) throws DbException, TransactionAbortedException {
+        List<Tuple> out = new ArrayList<>();
+        for (int p = start; p < end && !run.cancelled; p++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableid, p), Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (filter != null && !filter.filter(t))
+                    continue;
+                if (outFields != null) {
+                    Tuple projected = new Tuple(td);
+                    projected.setRecordId(t.getRecordId());
+                    for (int i = 0; i < outFields.size(); i++)
+                        projected.setField(i, t.getField(outFields.get(i)));
+                    t = projected;
+                }
+                out.add(t);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the next morsel to read from, in file order if the scan is
+     * ordered, or null when every worker is done.
+     */
+    private Morsel nextMorsel() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (ordered && early.containsKey(nextIndex))
+                return early.remove(nextIndex++);
+            if (workersDone == parallelism)
+                return null;
+            Morsel m;
+            try {
+                m = run.results.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("parallel scan interrupted");
+            }
+            if (m.error != null) {
+                if (m.error instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) m.error;
+                if (m.error instanceof DbException)
+                    throw (DbException) m.error;
+                throw new DbException("parallel scan failed: " + m.error);
+            }
+            if (m == WORKER_DONE) {
+                workersDone++;
+            } else if (!ordered) {
+                return m;
+            } else {
+                early.put(m.index, m);
+            }
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (!current.hasNext()) {
+            Morsel m = nextMorsel();
+            if (m == null)
+                return null;
+            // the morsel has reached the consumer, so another one may be read
+            run.readAhead.release();
+            current = m.tuples.iterator();
+        }
+        return current.next();
+    }
+
+    public void close() {
+        super.close();
+        if (pool != null) {
+            run.cancelled = true;
+            pool.shutdownNow();
+            pool = null;
+        }
+        run = null;
+        early = null;
+        current = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
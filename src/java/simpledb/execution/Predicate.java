@@ -1,6 +1,8 @@
 package simpledb.execution;
 
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
@@ -106,6 +108,73 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Drops the rows of a batch that do not pass this predicate from its
+     * selection vector. Gives the same result as {@link #filter(Tuple)} on each
+     * row, but compares the values of the column directly.
+     *
+     * @param b
+     *            The batch to filter
+     */
+    public void filter(Batch b) {
+        int[] sel = b.selection();
+        int n = b.numSelected();
+        int kept = 0;
+        if (operand instanceof IntField) {
+            int[] col = b.intColumn(field);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] == v) sel[kept++] = sel[i];
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] != v) sel[kept++] = sel[i];
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] > v) sel[kept++] = sel[i];
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] >= v) sel[kept++] = sel[i];
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] < v) sel[kept++] = sel[i];
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] <= v) sel[kept++] = sel[i];
+                    break;
+            }
+        } else {
+            String[] col = b.stringColumn(field);
+            String v = ((StringField) operand).getValue();
+            for (int i = 0; i < n; i++) {
+                String s = col[sel[i]];
+                boolean pass;
+                if (op == Op.LIKE) {
+                    pass = s.contains(v);
+                } else {
+                    int cmp = s.compareTo(v);
+                    switch (op) {
+                        case EQUALS: pass = cmp == 0; break;
+                        case NOT_EQUALS: pass = cmp != 0; break;
+                        case GREATER_THAN: pass = cmp > 0; break;
+                        case GREATER_THAN_OR_EQ: pass = cmp >= 0; break;
+                        case LESS_THAN: pass = cmp < 0; break;
+                        default: pass = cmp <= 0; break;
+                    }
+                }
+                if (pass) sel[kept++] = sel[i];
+            }
+        }
+        b.setNumSelected(kept);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
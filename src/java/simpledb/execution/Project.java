@@ -11,10 +11,11 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
+    private transient BatchOpIterator input;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
 
@@ -57,6 +58,7 @@ public class Project extends Operator {
     public void close() {
         super.close();
         child.close();
+        input = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -81,6 +83,20 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Projects out the fields of the next batch of the child. The result shares
+     * the columns of the child's batch rather than copying them.
+     *
+     * @return The next batch, or null if there are no more tuples
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        if (input == null) {
+            input = Batches.batches(child);
+        }
+        Batch batch = input.nextBatch();
+        return batch == null ? null : batch.project(td, outFieldIds);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -90,6 +106,7 @@ public class Project extends Operator {
     public void setChildren(OpIterator[] children) {
         if (this.child != children[0]) {
             this.child = children[0];
+            this.input = null;
         }
     }
 
@@ -0,0 +1,198 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Repartition splits the tuples of its producers into a number of partitions,
+ * each read through an {@link Output} of its own, so that one operator per
+ * partition can work in parallel. A tuple goes to the partition picked by the
+ * hash of one of its fields, to the next partition in turn, or to every
+ * partition, depending on how the Repartition is made.
+ * <p>
+ * The producers start when the first output is opened and run until every
+ * output has been closed. An output whose parent stops early is closed and
+ * skipped by the producers, so it does not hold up the other outputs.
+ * Outputs are read once: an output that has been read can be rewound, as
+ * joins do when they are done with a child, but not read again.
+ */
+public class Repartition implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private enum Kind {
+        HASH, ROUND_ROBIN, BROADCAST
+    }
+
+    private final Kind kind;
+    private final int field;
+    private List<OpIterator> producers;
+    private final Output[] outputs;
+    private transient Exchange.Run run;
+    // outputs opened in the current run
+    private transient boolean[] reading;
+    private transient int numClosed;
+
+    private Repartition(Kind kind, int field, List<OpIterator> producers, int numPartitions) {
+        if (producers.isEmpty())
+            throw new IllegalArgumentException("nothing to repartition");
+        if (numPartitions < 1)
+            throw new IllegalArgumentException("numPartitions must be positive");
+        this.kind = kind;
+        this.field = field;
+        this.producers = new ArrayList<>(producers);
+        this.outputs = new Output[numPartitions];
+        for (int i = 0; i < numPartitions; i++)
+            outputs[i] = new Output(i);
+    }
+
+    /**
+     * Partitions tuples by the hash of a field, so that equal values of the
+     * field end up in the same partition.
+     */
+    public static Repartition hash(List<OpIterator> producers, int field, int numPartitions) {
+        return new Repartition(Kind.HASH, field, producers, numPartitions);
+    }
+
+    /**
+     * Sends each producer's tuples to the partitions in turn, so that every
+     * partition gets about as many tuples whatever their values.
+     */
+    public static Repartition roundRobin(List<OpIterator> producers, int numPartitions) {
+        return new Repartition(Kind.ROUND_ROBIN, -1, producers, numPartitions);
+    }
+
+    /**
+     * Sends every tuple to every partition.
+     */
+    public static Repartition broadcast(List<OpIterator> producers, int numPartitions) {
+        return new Repartition(Kind.BROADCAST, -1, producers, numPartitions);
+    }
+
+    public int numPartitions() {
+        return outputs.length;
+    }
+
+    /**
+     * @return the iterator over partition i
+     */
+    public Output output(int i) {
+        return outputs[i];
+    }
+
+    private ToIntFunction<Tuple> router() {
+        switch (kind) {
+            case HASH:
+                return t -> Math.floorMod(t.getField(field).hashCode(), outputs.length);
+            case ROUND_ROBIN:
+                int[] next = {0};
+                return t -> {
+                    int i = next[0];
+                    next[0] = (i + 1) % outputs.length;
+                    return i;
+                };
+            default:
+                return t -> -1;
+        }
+    }
+
+    private synchronized Exchange.Run openOutput(int i) throws DbException {
+        if (run == null) {
+            run = new Exchange.Run(outputs.length);
+            reading = new boolean[outputs.length];
+            numClosed = 0;
+            for (OpIterator producer : producers)
+                run.startProducer(producer, router());
+        } else if (reading[i] || run.closed.get(i) == 1) {
+            throw new DbException(outputs[i].getName() + " is already being read");
+        }
+        reading[i] = true;
+        return run;
+    }
+
+    private synchronized void closeOutput(int i) {
+        if (run == null || run.closed.get(i) == 1)
+            return;
+        run.closed.set(i, 1);
+        run.queues.get(i).clear();
+        if (++numClosed == outputs.length) {
+            run.cancel();
+            run = null;
+        }
+    }
+
+    /**
+     * The tuples of one partition of a Repartition.
+     */
+    public class Output extends Exchange {
+
+        private static final long serialVersionUID = 1L;
+        private final int partition;
+        private transient boolean rewound;
+
+        private Output(int partition) {
+            this.partition = partition;
+        }
+
+        /**
+         * @return the Repartition this is a partition of
+         */
+        public Repartition getRepartition() {
+            return Repartition.this;
+        }
+
+        public int getPartition() {
+            return partition;
+        }
+
+        public String getName() {
+            String how = kind == Kind.HASH ? "hash(" + getTupleDesc().getFieldName(field) + ")"
+                    : kind == Kind.ROUND_ROBIN ? "round-robin" : "broadcast";
+            return how + " " + (partition + 1) + "/" + outputs.length;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return producers.get(0).getTupleDesc();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            Exchange.Run r = openOutput(partition);
+            receive(r.queues.get(partition), producers.size());
+            rewound = false;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            closeOutput(partition);
+        }
+
+        public void rewind() {
+            rewound = true;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (rewound)
+                throw new DbException(getName() + " cannot be read again");
+            return super.fetchNext();
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return producers.toArray(new OpIterator[0]);
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            producers = new ArrayList<>(Arrays.asList(children));
+        }
+    }
+}
@@ -16,13 +16,14 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private final TransactionId tid;
     private int tableid;
     private String tableAlias;
     private DbFileIterator iterator;
+    private transient Batch batch;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -58,6 +59,13 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableid);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      */
@@ -138,8 +146,27 @@ public class SeqScan implements OpIterator {
         return tuple;
     }
 
+    /**
+     * Returns the next tuples of the table, up to {@link Batch#DEFAULT_SIZE} at
+     * a time. The same batch is reused by every call.
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        if (iterator == null) {
+            throw new IllegalStateException("SeqScan not yet open");
+        }
+        if (batch == null) {
+            batch = new Batch(getTupleDesc());
+        }
+        batch.clear();
+        while (!batch.isFull() && iterator.hasNext()) {
+            batch.addTuple(iterator.next());
+        }
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         iterator = null;
+        batch = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -0,0 +1,268 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two relations that are sorted on their join
+ * fields by reading each of them once, in step. A child that is not known to
+ * be sorted on its join field, see {@link #isSortedOn}, is sorted by an
+ * {@link OrderBy} first.
+ * <p>
+ * For an equality predicate, the tuples of child2 with the current join value
+ * are kept in memory while every tuple of child1 with that value is joined to
+ * them. For a range predicate, the tuples of one child that match every
+ * following tuple of the other are kept in memory instead, which may be all
+ * of that child; the optimizer only merges a range join when that child is
+ * estimated to fit in a block of a nested-loop {@link Join}.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    // whether tuples of child1 are read one at a time and joined to buffered tuples of child2
+    private final boolean leftDrives;
+
+    // the next tuple of the buffered child
+    private transient Tuple lookahead;
+    // tuples of the buffered child that match the current driving tuple
+    private transient List<Tuple> run;
+    private transient Field runKey;
+    private transient Tuple driver;
+    private transient int runPos;
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; one of =, <, <=,
+     *            > and >=
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException if the predicate cannot be merged
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        switch (p.getOperator()) {
+            case EQUALS:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                leftDrives = true;
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                leftDrives = false;
+                break;
+            default:
+                throw new IllegalArgumentException("cannot merge on " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = isSortedOn(child1, p.getField1()) ? child1 : new OrderBy(p.getField1(), true, child1);
+        this.child2 = isSortedOn(child2, p.getField2()) ? child2 : new OrderBy(p.getField2(), true, child2);
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if the tuples of it come in ascending order of field: it
+     *         is an ascending OrderBy, TopN or SortMergeJoin on that field, a
+     *         scan of a B+ tree keyed on it, or a Filter or Limit over one of
+     *         these
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        if (it instanceof TopN)
+            return ((TopN) it).getAscending()[0] && ((TopN) it).getOrderByFields()[0] == field;
+        if (it instanceof SortMergeJoin)
+            return ((SortMergeJoin) it).getOrderField() == field;
+        if (it instanceof Filter || it instanceof Limit)
+            return isSortedOn(((Operator) it).getChildren()[0], field);
+        int tableid;
+        if (it instanceof SeqScan)
+            tableid = ((SeqScan) it).getTableId();
+        else if (it instanceof BTreeScan)
+            tableid = ((BTreeScan) it).getTableId();
+        else
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * @return the field of the output tuples that they come in ascending
+     *         order of: the join field of child1, unless the predicate is <
+     *         or <=, in which case it is the join field of child2
+     */
+    public int getOrderField() {
+        return leftDrives ? pred.getField1() : child1.getTupleDesc().numFields() + pred.getField2();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    private OpIterator driving() {
+        return leftDrives ? child1 : child2;
+    }
+
+    private OpIterator buffered() {
+        return leftDrives ? child2 : child1;
+    }
+
+    private Field drivingKey(Tuple t) {
+        return t.getField(leftDrives ? pred.getField1() : pred.getField2());
+    }
+
+    private Field bufferedKey(Tuple t) {
+        return t.getField(leftDrives ? pred.getField2() : pred.getField1());
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    private void reset() throws DbException, TransactionAbortedException {
+        run = new ArrayList<>();
+        runKey = null;
+        driver = null;
+        runPos = 0;
+        lookahead = buffered().hasNext() ? buffered().next() : null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        run = null;
+        driver = null;
+        lookahead = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * @return true if a buffered tuple with join value b matches every driving
+     *         tuple from one with join value k on
+     */
+    private boolean matchesFrom(Field b, Field k) {
+        int c = compare(b, k);
+        switch (pred.getOperator()) {
+            case GREATER_THAN:
+                // t1 > t2, driven by t1
+            case LESS_THAN:
+                // t1 < t2, driven by t2
+                return c < 0;
+            default:
+                return c <= 0;
+        }
+    }
+
+    /**
+     * Reads the tuples of the buffered child that match the driving tuple
+     * into run.
+     */
+    private void advance(Field k) throws DbException, TransactionAbortedException {
+        if (pred.getOperator() != Predicate.Op.EQUALS) {
+            // the run only grows, since the driving child ascends
+            while (lookahead != null && matchesFrom(bufferedKey(lookahead), k)) {
+                run.add(lookahead);
+                lookahead = buffered().hasNext() ? buffered().next() : null;
+            }
+            return;
+        }
+        if (runKey != null && compare(runKey, k) == 0)
+            return;
+        run.clear();
+        runKey = null;
+        while (lookahead != null && compare(bufferedKey(lookahead), k) < 0)
+            lookahead = buffered().hasNext() ? buffered().next() : null;
+        if (lookahead == null || compare(bufferedKey(lookahead), k) != 0)
+            return;
+        runKey = k;
+        while (lookahead != null && compare(bufferedKey(lookahead), k) == 0) {
+            run.add(lookahead);
+            lookahead = buffered().hasNext() ? buffered().next() : null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As for {@link Join}, the output tuples are the fields of
+     * the tuple of child1 followed by those of the tuple of child2.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (driver != null && runPos < run.size()) {
+                Tuple b = run.get(runPos++);
+                return leftDrives ? merge(driver, b) : merge(b, driver);
+            }
+            if (!driving().hasNext())
+                return null;
+            driver = driving().next();
+            runPos = 0;
+            advance(drivingKey(driver));
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
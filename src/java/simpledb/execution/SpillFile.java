@@ -0,0 +1,160 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * A temporary file that an operator writes tuples to when they do not fit in
+ * memory, and reads back in the order they were written. Fields are stored in
+ * the same format as in a heap page; record ids are not kept.
+ */
+final class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            throw new DbException("could not create a spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The one of fanout partitions that a value is sent to. Each level hashes
+     * differently, so that a partition that is split again spreads over new
+     * partitions.
+     */
+    static int partitionOf(Field f, int level, int fanout) {
+        int h = f.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, fanout);
+    }
+
+    /**
+     * @return the number of tuples written to this file
+     */
+    int size() {
+        return size;
+    }
+
+    void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(out);
+        } catch (IOException e) {
+            throw new DbException("could not write " + file + ": " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * Finishes writing, and returns an unopened iterator over the tuples of
+     * this file. Rewinding it reads the file again from the start.
+     */
+    OpIterator iterator() throws DbException {
+        finish();
+        return new Reader();
+    }
+
+    private void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write " + file + ": " + e.getMessage());
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * Deletes the file; its iterators must be closed first.
+     */
+    void delete() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    private class Reader extends Operator {
+
+        private static final long serialVersionUID = 1L;
+        private transient DataInputStream in;
+        private transient int read;
+
+        public void open() throws DbException, TransactionAbortedException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (FileNotFoundException e) {
+                throw new DbException("could not read " + file + ": " + e.getMessage());
+            }
+            read = 0;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+                in = null;
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        protected Tuple fetchNext() throws DbException {
+            if (read == size)
+                return null;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("could not read " + file + ": " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+}
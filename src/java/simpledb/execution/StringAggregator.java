@@ -65,6 +65,21 @@ public class StringAggregator implements Aggregator {
         }
     }
 
+    @Override
+    public boolean mergeTupleIntoExistingGroup(Tuple tup) {
+        Field gbFiled = gbfield == NO_GROUPING ? null : tup.getField(gbfield);
+        if (!aggResult.containsKey(gbFiled) && gbfield != NO_GROUPING) {
+            return false;
+        }
+        mergeTupleIntoGroup(tup);
+        return true;
+    }
+
+    @Override
+    public int numGroups() {
+        return aggResult.size();
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
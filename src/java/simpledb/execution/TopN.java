@@ -0,0 +1,154 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * TopN returns the first n tuples of its child in the order of an
+ * {@link OrderBy} on the same fields, for ORDER BY combined with LIMIT. It
+ * reads the whole child but keeps only the best n tuples seen so far, in a
+ * heap whose root is the worst of them, so it needs memory for n tuples
+ * however large the child is.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The largest n the optimizer uses a TopN for; beyond it an OrderBy,
+     * which can spill to disk, is cheaper on memory
+     */
+    public static final int MAX_N = 100000;
+
+    private OpIterator child;
+    private final int[] orderByFields;
+    private final boolean[] ascending;
+    private final int n;
+    private transient List<Tuple> top;
+    private transient Iterator<Tuple> it;
+
+    /** A tuple and its position in the child, to keep the sort stable */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     * @throws IllegalArgumentException if there is not one direction per
+     *             field, or n is negative
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int n, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one direction for each of at least one field");
+        if (n < 0)
+            throw new IllegalArgumentException("n cannot be negative");
+        this.child = child;
+        this.orderByFields = orderbyFields.clone();
+        this.ascending = asc.clone();
+        this.n = n;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * @return the fields that the sort is applied to, most significant first.
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each field that the sort is applied to, whether the order
+     *         is ascending.
+     */
+    public boolean[] getAscending() {
+        return ascending.clone();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        TupleComparator order = new TupleComparator(orderByFields, ascending);
+        Comparator<Entry> better = (a, b) -> {
+            int c = order.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // 堆顶是保留的元组中最差的一个
+        PriorityQueue<Entry> heap = new PriorityQueue<>(better.reversed());
+        long seq = 0;
+        while (n > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < n) {
+                heap.add(new Entry(t, seq));
+            } else if (order.compare(t, heap.peek().tuple) < 0) {
+                // a later tuple only replaces a strictly worse one
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+        Entry[] sorted = heap.toArray(new Entry[0]);
+        Arrays.sort(sorted, better);
+        top = new ArrayList<>(sorted.length);
+        for (Entry e : sorted)
+            top.add(e.tuple);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = null;
+        it = null;
+    }
+
+    public void rewind() {
+        it = top.iterator();
+    }
+
+    /**
+     * @return The next of the top n tuples, or null if there are no more
+     */
+    protected Tuple fetchNext() throws NoSuchElementException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on a list of fields, each in ascending or descending order,
+ * as ORDER BY sorts them.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    final int[] fields;
+    final boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc[i] ? 1 : -1;
+            else
+                return asc[i] ? -1 : 1;
+        }
+        return 0;
+    }
+}
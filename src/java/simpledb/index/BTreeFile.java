@@ -2,6 +2,9 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -31,7 +34,49 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private final int keyField;
+	private final int[] keyFields;
+	private final boolean prefixCompressed;
+
+	// Inserts and in-place deletes hold this shared and synchronize with each other
+	// through page latches; deletes that must merge or redistribute pages hold it
+	// exclusively.
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+
+	// Bumped by every split, merge and redistribution of leaf pages, so a scan can
+	// tell whether the leaf it copied is still where it left it.
+	private final AtomicLong leafEpoch = new AtomicLong();
+
+	// the latches held by the operation running on the current thread, if any
+	private static final ThreadLocal<LatchPath> currentPath = new ThreadLocal<>();
+
+	/** the largest number of internal pages kept in the cache of upper levels */
+	public static final int MAX_CACHED_PAGES = 64;
+
+	// Copies of the root pointer and the top levels of internal pages, so that a search
+	// can skip straight past them. Bumping upperEpoch invalidates the copies; it is
+	// bumped whenever one of the copied pages is fetched for writing, which only happens
+	// when a split or merge reaches the top of the tree.
+	private volatile UpperLevels upperLevels = null;
+	private final AtomicLong upperEpoch = new AtomicLong();
+	private volatile boolean cacheUpperLevels = true;
+
+	// Set by a split of the rightmost leaf page for a key past its end, and cleared by any
+	// insert with a smaller key than the one before it. While it is set the tree is being
+	// appended to: splits at the right edge leave the old page full instead of half full,
+	// and inserts go straight to the rightmost leaf page. Both fields are only hints and
+	// are read and written without synchronization.
+	private volatile boolean appending = false;
+	private volatile Field lastInsertKey = null;
+	private volatile RightmostLeaf rightmostLeaf = null;
+
+	// Inserts and deletes not applied to the leaf pages yet, by transaction, see
+	// setMessageBufferSize. The scans of a transaction merge its own messages in as long as
+	// there are any, even once buffering is turned off.
+	private final ConcurrentHashMap<TransactionId, BTreeMessageBuffer> messages = new ConcurrentHashMap<>();
+	private volatile int messageBufferSize = 0;
+
+	// the tuple number of the RecordId of a tuple whose insert is still buffered
+	private static final int PENDING = -1;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,10 +87,232 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally storing its
+	 * keys prefix compressed. Internal pages then hold the shortest separator keys
+	 * that tell their children apart, and leaf and internal pages store each key
+	 * front coded against the one before it, so string-keyed indexes get a higher
+	 * fan-out and fewer levels. Prefix compression only applies to string keys, and
+	 * a file must always be opened with the format it was created with.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param prefixCompressed - whether keys are stored prefix compressed
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean prefixCompressed) {
+		this(f, new int[]{key}, td, prefixCompressed);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on an ordered list of fields. Keys are compared
+	 * lexicographically: by the first field, then by the second among tuples equal on
+	 * the first, and so on. Such a tree can be searched with a {@link CompositeField}
+	 * holding a prefix of the key, see {@link #indexIterator}.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, false);
+	}
+
+	private BTreeFile(File f, int[] keys, TupleDesc td, boolean prefixCompressed) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.prefixCompressed = prefixCompressed && keys.length == 1 && PrefixKeys.supports(td.getFieldType(keys[0]));
+	}
+
+	/**
+	 * @return true if the pages of this file store their keys prefix compressed
+	 */
+	public boolean isPrefixCompressed() {
+		return prefixCompressed;
+	}
+
+	/**
+	 * Turn the in-memory cache of the root pointer and the upper levels of the tree on
+	 * or off. It is on by default.
+	 */
+	public void setCacheUpperLevels(boolean enabled) {
+		cacheUpperLevels = enabled;
+		invalidateUpperLevels();
+	}
+
+	/**
+	 * Turn buffered updates on or off. With a buffer size of n greater than zero,
+	 * inserts and deletes are not applied to the leaf pages right away but added to an
+	 * in-memory buffer of messages in front of the root page, as in a B-epsilon tree.
+	 * When more than n messages are pending, the messages for the child of the root
+	 * that has the most of them are flushed down together, in key order, so that
+	 * each leaf page they reach is read and written once for the whole batch instead
+	 * of once per tuple. Scans and searches merge the pending messages with the
+	 * tuples on the leaf pages.
+	 * <p>
+	 * Every transaction has a buffer of its own. Only its own scans see its pending
+	 * messages, only it flushes them, and they are applied when it commits and dropped
+	 * when it aborts, see {@link #transactionComplete}. A tuple whose insert is buffered
+	 * has a RecordId on the root pointer page until it reaches a leaf. A buffered delete
+	 * of a tuple that is not in the file fails when its transaction flushes it. Turning
+	 * buffering off with a size of 0 leaves the pending messages in the buffers until
+	 * they are flushed.
+	 * 
+	 * @param size - the largest number of pending messages, or 0 to apply updates right away
+	 */
+	public void setMessageBufferSize(int size) {
+		if(size < 0) {
+			throw new IllegalArgumentException("negative message buffer size " + size);
+		}
+		messageBufferSize = size;
+	}
+
+	/**
+	 * @return the number of inserts and deletes of a transaction that have not reached
+	 * the leaf pages yet
+	 */
+	public int numPendingMessages(TransactionId tid) {
+		BTreeMessageBuffer buffer = messages.get(tid);
+		return buffer == null ? 0 : buffer.size();
+	}
+
+	/**
+	 * Apply every pending insert and delete of a transaction to the leaf pages. The pages
+	 * they dirty are marked dirty as they go.
+	 * 
+	 * @param tid - the transaction id
+	 * @see #setMessageBufferSize(int)
+	 */
+	public void flushMessages(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeMessageBuffer buffer = messages.get(tid);
+		if(buffer == null) {
+			return;
+		}
+		while(!buffer.isEmpty()) {
+			applyMessages(tid, buffer.takeLargestChild(Collections.emptyList()));
+		}
+	}
+
+	/**
+	 * Apply the pending messages of a transaction that commits, or drop those of one that
+	 * aborts. The buffer pool calls this when the transaction completes, for every file it
+	 * buffered messages in.
+	 * 
+	 * @param tid - the transaction id
+	 * @param commit - true to apply the messages, false to drop them
+	 * @see BufferPool#transactionComplete(TransactionId, boolean)
+	 */
+	public void transactionComplete(TransactionId tid, boolean commit)
+			throws DbException, IOException, TransactionAbortedException {
+		try {
+			if(commit) {
+				flushMessages(tid);
+			}
+		} finally {
+			messages.remove(tid);
+		}
+	}
+
+	/**
+	 * Flush batches of a transaction's messages down until no more than the buffer size
+	 * are pending.
+	 */
+	private void flushFullBuffer(TransactionId tid, BTreeMessageBuffer buffer)
+			throws DbException, IOException, TransactionAbortedException {
+		while(buffer.size() > messageBufferSize) {
+			applyMessages(tid, buffer.takeLargestChild(rootSeparators(tid)));
+		}
+	}
+
+	/**
+	 * @return the message buffer of a transaction, created and made known to the buffer
+	 * pool, so that it is applied or dropped when the transaction completes, if needed
+	 */
+	private BTreeMessageBuffer bufferOf(TransactionId tid) {
+		BTreeMessageBuffer buffer = messages.get(tid);
+		if(buffer == null) {
+			buffer = new BTreeMessageBuffer();
+			messages.put(tid, buffer);
+			Database.getBufferPool().addMessageBuffer(tid, this);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Apply a batch of messages to the leaf pages in key order. Each page is marked dirty
+	 * as soon as its message is applied instead of being returned to the buffer pool at
+	 * the end, since the pages of one message may be evicted and read again while the
+	 * next ones are applied, and the old copies must not be put back.
+	 */
+	private void applyMessages(TransactionId tid, List<BTreeMessageBuffer.Message> batch)
+			throws DbException, IOException, TransactionAbortedException {
+		for(BTreeMessageBuffer.Message m : batch) {
+			List<Page> pages;
+			if(m.delete) {
+				pages = deleteFromLeaf(tid, m.tuple);
+			}
+			else {
+				m.tuple.setRecordId(null);
+				pages = insertIntoLeaf(tid, m.tuple);
+			}
+			for(Page p : pages) {
+				p.markDirty(true, tid);
+			}
+		}
+	}
+
+	/**
+	 * @return the keys of the root page, or an empty list if the root is a leaf
+	 */
+	private List<Field> rootSeparators(TransactionId tid)
+			throws DbException, TransactionAbortedException {
+		List<Field> separators = new ArrayList<>();
+		if(f.length() == 0) {
+			// the first insert creates the root
+			return separators;
+		}
+		treeLatch.readLock().lock();
+		LatchPath path = new LatchPath();
+		try {
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			path.latch(rootPtrId, false);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+					tid, rootPtrId, Permissions.READ_ONLY);
+			BTreePageId rootId = rootPtr.getRootId();
+			if(rootId != null && rootId.pgcateg() == BTreePageId.INTERNAL) {
+				path.latch(rootId, false);
+				BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, rootId, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = root.iterator();
+				while(it.hasNext()) {
+					separators.add(it.next().getKey());
+				}
+			}
+			return separators;
+		} finally {
+			path.releaseAll();
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the messages of a transaction with a key of at least start, or all of them
+	 * if start is null, in key order, or null if there are none
+	 */
+	Iterator<BTreeMessageBuffer.Message> pendingMessages(TransactionId tid, Field start) {
+		BTreeMessageBuffer buffer = messages.get(tid);
+		return buffer == null || buffer.isEmpty() ? null : buffer.from(start);
 	}
 
 	/**
@@ -117,9 +384,9 @@ public class BTreeFile implements DbFile {
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    return new BTreeInternalPage(id, pageBuf, keyFields, prefixCompressed);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    return new BTreeLeafPage(id, pageBuf, keyFields, prefixCompressed);
                 } else { // id.pgcateg() == BTreePageId.HEADER
                     return new BTreeHeaderPage(id, pageBuf);
                 }
@@ -162,10 +429,27 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or of the first
+	 * one if it is keyed on several
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple: the value of the key field, or a {@link CompositeField}
+	 * of the values of the key fields if there are several
+	 */
+	Field keyOf(Tuple t) {
+		return CompositeKeys.key(t, keyFields);
 	}
 
 	/**
@@ -187,8 +471,11 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, page.findChild(f), perm, f);
 	}
 	
 	/**
@@ -231,16 +518,57 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		leafEpoch.incrementAndGet();
+		BTreeLeafPage rightPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// a key past the end of the rightmost leaf page is an append
+		Field lastKey = page.getNumTuples() == 0 ? null : keyOf(page.reverseIterator().next());
+		boolean append = page.getRightSiblingId() == null && field != null && lastKey != null
+				&& field.compare(Op.GREATER_THAN_OR_EQ, lastKey);
+		boolean keepFull = append && appending;
+		appending = append;
+
+		// move the upper half of the tuples to the new page, or none of them if the tree
+		// is being appended to, since no more keys will arrive for the old page
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		int total = page.getFill();
+		int moved = 0;
+		while(!keepFull && it.hasNext()) {
+			Tuple t = it.next();
+			int fill = page.getFillOf(t);
+			if(moved + fill > total - moved - fill) {
+				break;
+			}
+			moving.add(t);
+			moved += fill;
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			rightPage.insertTuple(t);
+		}
+
+		// copy the first key of the new page up into the parent
+		Field middleKey = keepFull ? separator(lastKey, field) : separator(page, rightPage);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middleKey);
+		parent.insertEntry(new BTreeEntry(middleKey, page.getId(), rightPage.getId()));
+		page.setParentId(parent.getId());
+		rightPage.setParentId(parent.getId());
+
+		// link the new page into the leaf level
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(rightPage.getId());
+		}
+		rightPage.setRightSiblingId(oldRightId);
+		rightPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(rightPage.getId());
+
+		if(keepFull || (field != null && field.compare(Op.GREATER_THAN, middleKey))) {
+			return rightPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -268,16 +596,58 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage rightPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, from right to left so
+		// that every entry shares a child pointer with the ones already moved. If the
+		// tree is being appended to, move only the last entry.
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		int total = page.getFill();
+		int moved = 0;
+		BTreeEntry middle = null;
+		if(appending && field != null && page.getNumEntries() >= 2) {
+			BTreeEntry last = it.next();
+			if(field.compare(Op.GREATER_THAN, last.getKey())) {
+				moving.add(last);
+				middle = it.next();
+			}
+			else {
+				it = page.reverseIterator();
+			}
+		}
+		while(middle == null && it.hasNext()) {
+			BTreeEntry e = it.next();
+			int fill = page.getFillOf(e);
+			if(moved + fill > total - moved - fill) {
+				middle = e;
+				break;
+			}
+			moving.add(e);
+			moved += fill;
+		}
+		if(middle == null) {
+			throw new DbException("cannot split internal page with fewer than two entries");
+		}
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			rightPage.insertEntry(e);
+		}
+
+		// push the middle key up into the parent
+		page.deleteKeyAndRightChild(middle);
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(rightPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		rightPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, rightPage);
+
+		if(field != null && field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return rightPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -389,6 +759,9 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * When called from an operation that tracks its page latches, pages requested with
+	 * read-write permission are also latched exclusively until the operation ends.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -405,9 +778,17 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
+			LatchPath path = currentPath.get();
+			if(perm == Permissions.READ_WRITE && path != null) {
+				path.latch(pid, true);
+			}
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				UpperLevels cached = upperLevels;
+				if(pid.pgcateg() == BTreePageId.ROOT_PTR || (cached != null && cached.pages.containsKey(pid))) {
+					invalidateUpperLevels();
+				}
 			}
 			return p;
 		}
@@ -417,37 +798,224 @@ public class BTreeFile implements DbFile {
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
 	 * 
+	 * Inserts may run concurrently. The leaf is first located optimistically, holding
+	 * only shared latches on the way down; if it turns out to be full the descent is
+	 * repeated in pessimistic mode, which keeps exclusive latches on every page the
+	 * split may reach.
+	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to insert
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node splits.
 	 * @see #splitLeafPage(TransactionId, Map, BTreeLeafPage, Field)
+	 * @see #setMessageBufferSize(int)
 	 */
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		BTreeMessageBuffer buffer = messages.get(tid);
+		if(messageBufferSize == 0 && buffer == null) {
+			return insertIntoLeaf(tid, t);
+		}
+		// an insert of the values of a pending delete leaves the tuple where it is
+		Tuple kept = buffer == null ? null : buffer.cancel(keyOf(t), t, true);
+		if(kept != null) {
+			t.setRecordId(kept.getRecordId());
+			return new ArrayList<>();
+		}
+		if(messageBufferSize == 0) {
+			return insertIntoLeaf(tid, t);
+		}
+		buffer = bufferOf(tid);
+		t.setRecordId(new RecordId(BTreeRootPtrPage.getId(tableid), PENDING));
+		buffer.add(keyOf(t), t, false);
+		flushFullBuffer(tid, buffer);
+		return new ArrayList<>();
+	}
+
+	/**
+	 * Insert a tuple into its leaf page right away.
+	 */
+	private List<Page> insertIntoLeaf(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = keyOf(t);
+		Field last = lastInsertKey;
+		if(last != null && key.compare(Op.LESS_THAN, last)) {
+			appending = false;
+		}
+		lastInsertKey = key;
+
+		treeLatch.readLock().lock();
+		try {
+			List<Page> dirtied = insertTuple(tid, t, false);
+			if(dirtied == null) {
+				dirtied = insertTuple(tid, t, true);
+			}
+			return dirtied;
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * One attempt at inserting a tuple.
+	 * 
+	 * @param pessimistic - whether to latch for a split
+	 * @return the dirtied pages, or null if an optimistic attempt found no room for the tuple
+	 * @see #latchLeafPage(TransactionId, Map, LatchPath, Field, boolean)
+	 */
+	private List<Page> insertTuple(TransactionId tid, Tuple t, boolean pessimistic)
+			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		LatchPath path = beginOperation();
+		try {
+			// find and latch the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = null;
+			if(!pessimistic && appending) {
+				leafPage = latchRightmostLeafPage(tid, dirtypages, path, keyOf(t));
+			}
+			if(leafPage == null) {
+				leafPage = latchLeafPage(tid, dirtypages, path, keyOf(t), pessimistic);
+			}
+			if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+				if(!pessimistic) {
+					return null;
+				}
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));
+			}
+			if(appending && leafPage.getRightSiblingId() == null) {
+				rightmostLeaf = new RightmostLeaf(leafPage.getId(), leafEpoch.get());
+			}
+
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+			return endOperation(tid, dirtypages);
+		} finally {
+			path.releaseAll();
+			currentPath.remove();
+		}
+	}
+
+	/**
+	 * Latch-coupled descent ("crabbing") from the root pointer to the left-most leaf page
+	 * possibly containing the key field f, which is returned latched exclusively and locked
+	 * with READ_WRITE permission.
+	 * 
+	 * In optimistic mode internal pages are latched shared and each page is released as soon
+	 * as its child is latched. In pessimistic mode every page is latched exclusively, and the
+	 * pages above a child are only released once the child is safe, i.e. has an empty slot so
+	 * that a split below it cannot reach them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param path - the latches held by this operation
+	 * @param f - the field to search for
+	 * @param pessimistic - whether to latch for a split
+	 * @return the leaf page, or null if the tree has no root yet and the descent is optimistic
+	 */
+	private BTreeLeafPage latchLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, LatchPath path,
+			Field f, boolean pessimistic) throws DbException, IOException, TransactionAbortedException {
+		// an optimistic descent never modifies the upper levels, so it can skip them
+		BTreePageId pid = pessimistic ? null : latchBelowUpperLevels(tid, path, f, true);
+		boolean latched = pid != null;
+
+		if(!latched) {
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			path.latch(rootPtrId, pessimistic);
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			pid = rootPtr.getRootId();
+
+			if(pid == null) { // the root has just been created, so set the root pointer to point to it
+				if(!pessimistic) {
+					return null;
+				}
+				pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+				rootPtr.setRootId(pid);
+			}
+		}
+
+		while(true) {
+			boolean isLeaf = pid.pgcateg() == BTreePageId.LEAF;
+			if(!latched) {
+				path.latch(pid, pessimistic || isLeaf);
+			}
+			latched = false;
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid,
+					isLeaf ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+			if(!pessimistic || page.getNumEmptySlots() > 0) {
+				path.releaseAllBut(1);
+			}
+			if(isLeaf) {
+				return (BTreeLeafPage) page;
+			}
+			pid = ((BTreeInternalPage) page).findChild(f);
+		}
+	}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+	/**
+	 * The rightmost leaf page, as of the given value of leafEpoch.
+	 */
+	private static class RightmostLeaf {
+		final BTreePageId pid;
+		final long epoch;
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		RightmostLeaf(BTreePageId pid, long epoch) {
+			this.pid = pid;
+			this.epoch = epoch;
 		}
+	}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+	/**
+	 * Latch the rightmost leaf page without descending the tree, if the key belongs on it.
+	 * The page remembered by the last append is only used if no leaf page has been split,
+	 * merged or redistributed since, it is still the rightmost one and f is not smaller
+	 * than its first key.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param path - the latches held by this operation, which must hold none yet
+	 * @param f - the key of the tuple to insert
+	 * @return the rightmost leaf page, latched exclusively, or null if the key does not
+	 * belong on it or it is not known; then nothing is latched
+	 */
+	private BTreeLeafPage latchRightmostLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, LatchPath path,
+			Field f) throws DbException, TransactionAbortedException {
+		RightmostLeaf hint = rightmostLeaf;
+		if(hint == null || hint.epoch != leafEpoch.get()) {
+			return null;
 		}
+		path.latch(hint.pid, true);
+		if(hint.epoch == leafEpoch.get()) {
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, hint.pid, Permissions.READ_WRITE);
+			if(page.getRightSiblingId() == null && page.getNumTuples() > 0
+					&& f.compare(Op.GREATER_THAN_OR_EQ, keyOf(page.iterator().next()))) {
+				return page;
+			}
+			dirtypages.remove(hint.pid);
+		}
+		path.releaseAll();
+		return null;
+	}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+	/**
+	 * Start tracking the latches of an operation on the current thread.
+	 */
+	private LatchPath beginOperation() {
+		LatchPath path = new LatchPath();
+		currentPath.set(path);
+		return path;
+	}
 
-        return new ArrayList<>(dirtypages.values());
+	/**
+	 * Mark the pages dirtied by an operation while they are still latched, so that the
+	 * buffer pool writes them out if it evicts them once they are released.
+	 */
+	private List<Page> endOperation(TransactionId tid, Map<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+		return new ArrayList<>(dirtypages.values());
 	}
 	
 	/**
@@ -524,30 +1092,70 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getFill() <= leftSibling.getMinFill()) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				restoreUpdateReserve(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getFill() <= rightSibling.getMinFill()) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				restoreUpdateReserve(tid, dirtypages, parent);
 			}
 		}
 	}
+
+	/**
+	 * Replacing a key of a prefix-compressed internal page may use up the room it keeps
+	 * for that purpose. Split the page if it has no room left, so that the next update
+	 * cannot overflow it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the internal page whose key was just updated
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void restoreUpdateReserve(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if(page.isPrefixCompressed() && page.getNumEmptySlots() == 0 && page.getNumEntries() > 1) {
+			splitInternalPage(tid, dirtypages, page, null);
+		}
+	}
+
+	/**
+	 * Returns the key separating two adjacent leaf pages: the first key of the right page,
+	 * or the shortest key between the two pages if keys are prefix compressed.
+	 */
+	private Field separator(BTreeLeafPage leftPage, BTreeLeafPage rightPage) {
+		return separator(keyOf(leftPage.reverseIterator().next()),
+				keyOf(rightPage.iterator().next()));
+	}
+
+	/**
+	 * Returns the key separating the last key of a leaf page from the first key of the
+	 * next one.
+	 */
+	private Field separator(Field last, Field first) {
+		if(!prefixCompressed) {
+			return first;
+		}
+		return PrefixKeys.separator(last, first);
+	}
 	
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
@@ -564,11 +1172,29 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		leafEpoch.incrementAndGet();
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		int pageFill = page.getFill();
+		int siblingFill = sibling.getFill();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			int fill = sibling.getFillOf(t);
+			if(pageFill + fill > siblingFill - fill) {
+				break;
+			}
+			moving.add(t);
+			pageFill += fill;
+			siblingFill -= fill;
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the parent key must separate the two pages
+		entry.setKey(isRightSibling ? separator(page, sibling) : separator(sibling, page));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -598,31 +1224,58 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getFill() <= leftSibling.getMinFill()) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				restoreUpdateReserve(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getFill() <= rightSibling.getMinFill()) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				restoreUpdateReserve(tid, dirtypages, parent);
 			}
 		}
 	}
 	
+	/**
+	 * Pick the entries of a sibling to move to a page that is less than half full, so that
+	 * both end up with about the same fill.
+	 * 
+	 * @param page - the internal page which is less than half full
+	 * @param sibling - the sibling which has entries to spare
+	 * @param it - iterator over the entries of the sibling, starting from the page
+	 */
+	private List<BTreeEntry> stealableEntries(BTreeInternalPage page, BTreeInternalPage sibling,
+			Iterator<BTreeEntry> it) {
+		List<BTreeEntry> moving = new ArrayList<>();
+		int pageFill = page.getFill();
+		int siblingFill = sibling.getFill();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			int fill = sibling.getFillOf(e);
+			if(pageFill + fill > siblingFill - fill) {
+				break;
+			}
+			moving.add(e);
+			pageFill += fill;
+			siblingFill -= fill;
+		}
+		return moving;
+	}
+
 	/**
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the 
@@ -643,11 +1296,18 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		List<BTreeEntry> moving = stealableEntries(page, leftSibling, leftSibling.reverseIterator());
+
+		// rotate the keys through the parent: the parent key comes down to the
+		// page and the last key of the left sibling goes up
+		for(BTreeEntry e : moving) {
+			BTreeEntry first = page.iterator().next();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), first.getLeftChild()));
+			leftSibling.deleteKeyAndRightChild(e);
+			parentEntry.setKey(e.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -670,11 +1330,18 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		List<BTreeEntry> moving = stealableEntries(page, rightSibling, rightSibling.iterator());
+
+		// rotate the keys through the parent: the parent key comes down to the
+		// page and the first key of the right sibling goes up
+		for(BTreeEntry e : moving) {
+			BTreeEntry last = page.reverseIterator().next();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), e.getLeftChild()));
+			rightSibling.deleteKeyAndLeftChild(e);
+			parentEntry.setKey(e.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -699,12 +1366,27 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		leafEpoch.incrementAndGet();
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page from the leaf level
+		BTreePageId rightSiblingId = rightPage.getRightSiblingId();
+		if(rightSiblingId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightSiblingId);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -731,13 +1413,24 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the parent key down between the two sets of entries
+		BTreeEntry last = leftPage.reverseIterator().next();
+		BTreeEntry first = rightPage.iterator().next();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -766,8 +1459,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -782,7 +1474,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.getFill() < parent.getMinFill()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -792,33 +1484,600 @@ public class BTreeFile implements DbFile {
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
 	 * become less than half full.
 	 * 
+	 * A delete that leaves its page at least half full only latches that page and runs
+	 * concurrently with inserts and other deletes. One that needs to merge or redistribute
+	 * pages waits until it has the whole tree to itself.
+	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node merges.
 	 * @see #handleMinOccupancyPage(TransactionId, Map, BTreePage)
+	 * @see #setMessageBufferSize(int)
 	 */
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		Map<PageId, Page> dirtypages = new HashMap<>();
-
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		BTreeMessageBuffer buffer = messages.get(tid);
+		if(messageBufferSize == 0 && buffer == null) {
+			return deleteFromLeaf(tid, t);
+		}
+		// a delete of a tuple whose insert is pending cancels the insert
+		if(buffer != null && buffer.cancel(keyOf(t), t, false) != null) {
+			t.setRecordId(null);
+			return new ArrayList<>();
+		}
+		if(messageBufferSize == 0) {
+			return deleteFromLeaf(tid, t);
+		}
+		buffer = bufferOf(tid);
+		buffer.add(keyOf(t), t, true);
+		flushFullBuffer(tid, buffer);
+		return new ArrayList<>();
+	}
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+	/**
+	 * Delete a tuple from its leaf page right away.
+	 */
+	private List<Page> deleteFromLeaf(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		treeLatch.readLock().lock();
+		try {
+			List<Page> dirtied = deleteTupleInPlace(tid, t);
+			if(dirtied != null) {
+				return dirtied;
+			}
+		} finally {
+			treeLatch.readLock().unlock();
 		}
 
-        return new ArrayList<>(dirtypages.values());
+		treeLatch.writeLock().lock();
+		LatchPath path = beginOperation();
+		try {
+			Map<PageId, Page> dirtypages = new HashMap<>();
+
+			BTreeLeafPage page = null;
+			Tuple victim = null;
+			RecordId rid = t.getRecordId();
+			if(rid != null) {
+				BTreePageId pageId = new BTreePageId(tableid, rid.getPageId().getPageNumber(),
+						BTreePageId.LEAF);
+				page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+				victim = findTuple(page, t);
+			}
+			if(victim == null) {
+				// the copy we were given is stale, look the tuple up by its key
+				BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+				page = findLeafPage(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_WRITE, 
+						keyOf(t));
+				while(page != null && (victim = findTuple(page, t)) == null) {
+					BTreePageId right = page.getRightSiblingId();
+					if(right == null || lastKeyBelow(page, keyOf(t)) == false) {
+						page = null;
+					}
+					else {
+						page = (BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_WRITE);
+					}
+				}
+				if(victim == null) {
+					throw new DbException("tried to delete tuple that is not in the index");
+				}
+			}
+			page.deleteTuple(victim);
+			t.setRecordId(null);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			if(page.getFill() < page.getMinFill()) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+
+			return endOperation(tid, dirtypages);
+		} finally {
+			path.releaseAll();
+			currentPath.remove();
+			treeLatch.writeLock().unlock();
+		}
 	}
 
 	/**
-	 * Get a read lock on the root pointer page. Create the root pointer page and root page
+	 * Delete a tuple from its leaf page if that leaves the page at least half full.
+	 * 
+	 * @return the dirtied pages, or null if the page would need to be rebalanced
+	 */
+	private List<Page> deleteTupleInPlace(TransactionId tid, Tuple t)
+			throws DbException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		LatchPath path = beginOperation();
+		try {
+			// a concurrent split may move the tuple until its page is latched
+			BTreePageId pageId;
+			while(true) {
+				RecordId rid = t.getRecordId();
+				if(rid == null) {
+					throw new DbException("tried to delete tuple with null rid");
+				}
+				pageId = new BTreePageId(tableid, rid.getPageId().getPageNumber(), BTreePageId.LEAF);
+				path.latch(pageId, true);
+				if(t.getRecordId() == rid) {
+					break;
+				}
+				path.releaseAll();
+			}
+
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			Tuple victim = findTuple(page, t);
+			if(victim == null || (page.getFill() - page.getFillOf(victim) < page.getMinFill() 
+					&& page.getParentId().pgcateg() != BTreePageId.ROOT_PTR)) {
+				return null;
+			}
+			page.deleteTuple(victim);
+			t.setRecordId(null);
+			return endOperation(tid, dirtypages);
+		} finally {
+			path.releaseAll();
+			currentPath.remove();
+		}
+	}
+
+	/**
+	 * Delete all tuples whose key satisfies a predicate from this BTreeFile in one pass.
+	 * 
+	 * Leaf pages that lie entirely in the key range are returned to the free list
+	 * without looking at their tuples one by one, along with the internal pages above
+	 * them, and only the pages at the edges of the range are edited. Pages left less
+	 * than half full are merged or redistributed once at the end, from the top down,
+	 * instead of after every tuple. Like a delete that rebalances pages, this waits
+	 * until it has the whole tree to itself. Pending buffered messages are flushed first.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key field, or null to delete every tuple
+	 * @return the number of deleted tuples
+	 * @throws DbException if the predicate does not describe a key range
+	 * @see #deleteTuple(TransactionId, Tuple)
+	 */
+	public int deleteRange(TransactionId tid, IndexPredicate ipred)
+			throws DbException, IOException, TransactionAbortedException {
+		KeyRange range = KeyRange.of(ipred, keyFields);
+		flushMessages(tid);
+		treeLatch.writeLock().lock();
+		LatchPath path = beginOperation();
+		try {
+			Map<PageId, Page> dirtypages = new HashMap<>();
+			leafEpoch.incrementAndGet();
+			RangeDeletion deletion = new RangeDeletion(tid, dirtypages, range);
+			BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+			if(deletion.prune(rootId, null, null) && rootId.pgcateg() == BTreePageId.INTERNAL) {
+				// nothing is left, so the first leaf page becomes the root
+				BTreePageId first = deletion.leaves.get(0);
+				deletion.free(rootId, first);
+				BTreeLeafPage root = (BTreeLeafPage) deletion.makePlaceholder(first, true);
+				root.setParentId(BTreeRootPtrPage.getId(tableid));
+				root.setLeftSiblingId(null);
+				root.setRightSiblingId(null);
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(first);
+			}
+			else {
+				deletion.relinkLeaves();
+				while(repairRange(tid, dirtypages, getRootPtrPage(tid, dirtypages).getRootId(), null, null, range)) {
+					// start over from the root after every change to the tree
+				}
+			}
+			leafEpoch.incrementAndGet();
+			endOperation(tid, dirtypages);
+			return deletion.count;
+		} finally {
+			path.releaseAll();
+			currentPath.remove();
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The keys matched by an IndexPredicate, between two optional bounds.
+	 * 
+	 * On a tree keyed on several fields the value of the predicate is a
+	 * {@link CompositeField} holding a prefix of the key. All values but the last one
+	 * must be equal, and the operator applies to the last one: (GREATER_THAN, (5, 7))
+	 * matches the keys starting with 5 whose second value is greater than 7. Since keys
+	 * are compared as prefixes, this is the range between (5, 7) and (5).
+	 */
+	static class KeyRange {
+		final Field low;
+		final boolean lowInclusive;
+		final Field high;
+		final boolean highInclusive;
+
+		private KeyRange(Field low, boolean lowInclusive, Field high, boolean highInclusive) {
+			this.low = low;
+			this.lowInclusive = lowInclusive;
+			this.high = high;
+			this.highInclusive = highInclusive;
+		}
+
+		static KeyRange of(IndexPredicate ipred, int[] keyFields) throws DbException {
+			if(ipred == null) {
+				return new KeyRange(null, false, null, false);
+			}
+			Field f = CompositeKeys.searchKey(ipred.getField(), keyFields);
+			// the values that must be equal bound the range on the other side
+			Field prefix = null;
+			if(f instanceof CompositeField && ((CompositeField) f).numFields() > 1) {
+				prefix = ((CompositeField) f).prefix(((CompositeField) f).numFields() - 1);
+			}
+			switch(ipred.getOp()) {
+			case EQUALS:
+				return new KeyRange(f, true, f, true);
+			case GREATER_THAN:
+				return new KeyRange(f, false, prefix, true);
+			case GREATER_THAN_OR_EQ:
+				return new KeyRange(f, true, prefix, true);
+			case LESS_THAN:
+				return new KeyRange(prefix, true, f, false);
+			case LESS_THAN_OR_EQ:
+				return new KeyRange(prefix, true, f, true);
+			default:
+				throw new DbException("not a key range: " + ipred.getOp());
+			}
+		}
+
+		/**
+		 * @return true if f and every key after it are past the end of the range
+		 */
+		boolean isPast(Field f) {
+			return high != null && !f.compare(highInclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, high);
+		}
+
+		boolean contains(Field f) {
+			return (low == null || f.compare(lowInclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN, low))
+					&& (high == null || f.compare(highInclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, high));
+		}
+
+		/**
+		 * @return true if some key between lower and upper (inclusive, null if unbounded)
+		 * may be in the range
+		 */
+		boolean overlaps(Field lower, Field upper) {
+			if(upper != null && low != null && upper.compare(lowInclusive ? Op.LESS_THAN : Op.LESS_THAN_OR_EQ, low)) {
+				return false;
+			}
+			return lower == null || high == null || !lower.compare(highInclusive ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ, high);
+		}
+
+		/**
+		 * @return true if every key between lower and upper (inclusive, null if unbounded)
+		 * is in the range
+		 */
+		boolean covers(Field lower, Field upper) {
+			return (low == null || lower != null && lower.compare(lowInclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN, low))
+					&& (high == null || upper != null && upper.compare(highInclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, high));
+		}
+	}
+
+	/**
+	 * The state of a range delete: the pages it has looked at and the tuples it has deleted.
+	 * 
+	 * An internal page must keep at least two children, so when all but one of its
+	 * children fall in the range, the one next to the survivor is kept as a placeholder:
+	 * an empty leaf page, or an internal page with two placeholder children. Placeholders
+	 * are merged away with the other pages left less than half full.
+	 */
+	private class RangeDeletion {
+		final TransactionId tid;
+		final Map<PageId, Page> dirtypages;
+		final KeyRange range;
+		int count = 0;
+		// the leaf pages in the range, in key order
+		final List<BTreePageId> leaves = new ArrayList<>();
+		final Set<BTreePageId> freedLeaves = new HashSet<>();
+
+		RangeDeletion(TransactionId tid, Map<PageId, Page> dirtypages, KeyRange range) {
+			this.tid = tid;
+			this.dirtypages = dirtypages;
+			this.range = range;
+		}
+
+		/**
+		 * Delete the tuples in the range from a subtree whose keys lie between lower and
+		 * upper. A subtree that ends up empty is left for the caller to free.
+		 * 
+		 * @return true if no tuples are left in the subtree
+		 */
+		boolean prune(BTreePageId pid, Field lower, Field upper)
+				throws DbException, IOException, TransactionAbortedException {
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				leaves.add(pid);
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				List<Tuple> victims = new ArrayList<>();
+				Iterator<Tuple> it = page.iterator();
+				while(it.hasNext()) {
+					Tuple t = it.next();
+					if(range.contains(keyOf(t))) {
+						victims.add(t);
+					}
+				}
+				for(Tuple t : victims) {
+					page.deleteTuple(t);
+				}
+				count += victims.size();
+				return page.getNumTuples() == 0;
+			}
+
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			List<BTreeEntry> entries = entries(page);
+			int n = entries.size();
+			boolean[] dead = new boolean[n + 1];
+			int alive = n + 1;
+			for(int i = 0; i <= n; i++) {
+				BTreePageId child = i == 0 ? entries.get(0).getLeftChild() : entries.get(i - 1).getRightChild();
+				Field childLower = i == 0 ? lower : entries.get(i - 1).getKey();
+				Field childUpper = i == n ? upper : entries.get(i).getKey();
+				if(!range.overlaps(childLower, childUpper)) {
+					continue;
+				}
+				if(range.covers(childLower, childUpper)) {
+					listLeaves(child);
+					dead[i] = true;
+				}
+				else {
+					dead[i] = prune(child, childLower, childUpper);
+				}
+				if(dead[i]) {
+					alive--;
+				}
+			}
+			if(alive == 0) {
+				return true;
+			}
+
+			// keep the dead child next to the only survivor, if there is just one
+			int keep = -1;
+			int survivor = -1;
+			if(alive == 1) {
+				for(int i = 0; i <= n; i++) {
+					if(!dead[i]) {
+						survivor = i;
+						keep = i > 0 ? i - 1 : i + 1;
+					}
+				}
+			}
+
+			// remove the other dead children, from right to left so that the entries
+			// still to be removed stay where they are
+			for(int i = n; i >= 1; i--) {
+				if(dead[i] && i != keep) {
+					free(entries.get(i - 1).getRightChild(), null);
+					page.deleteKeyAndRightChild(entries.get(i - 1));
+				}
+			}
+			if(dead[0] && keep != 0) {
+				BTreeEntry first = page.iterator().next();
+				free(first.getLeftChild(), null);
+				page.deleteKeyAndLeftChild(first);
+			}
+			if(keep != -1) {
+				BTreePageId placeholder = keep == 0 ? entries.get(0).getLeftChild() : entries.get(keep - 1).getRightChild();
+				makePlaceholder(placeholder, keep > survivor);
+			}
+			return false;
+		}
+
+		/**
+		 * Add the ids of the leaf pages of a subtree to the leaves in the range.
+		 */
+		void listLeaves(BTreePageId pid) throws DbException, TransactionAbortedException {
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				leaves.add(pid);
+				return;
+			}
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			List<BTreeEntry> entries = entries(page);
+			listLeaves(entries.get(0).getLeftChild());
+			for(BTreeEntry e : entries) {
+				listLeaves(e.getRightChild());
+			}
+		}
+
+		/**
+		 * Return the pages of a subtree to the free list, counting the tuples left on
+		 * its leaf pages as deleted.
+		 * 
+		 * @param keep - a leaf page of the subtree not to free, or null
+		 */
+		void free(BTreePageId pid, BTreePageId keep)
+				throws DbException, IOException, TransactionAbortedException {
+			if(pid.equals(keep)) {
+				return;
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				count += ((BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY)).getNumTuples();
+				freedLeaves.add(pid);
+			}
+			else {
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				List<BTreeEntry> entries = entries(page);
+				free(entries.get(0).getLeftChild(), keep);
+				for(BTreeEntry e : entries) {
+					free(e.getRightChild(), keep);
+				}
+			}
+			setEmptyPage(tid, dirtypages, pid.getPageNumber());
+		}
+
+		/**
+		 * Cut a dead subtree down to the smallest one an internal page can point to: an
+		 * empty leaf page, or an internal page with two such children.
+		 * 
+		 * @param first - whether to keep the first children of internal pages rather
+		 * than the last ones, so that the placeholder stays next to the live pages
+		 * @return the page at the top of the placeholder
+		 */
+		BTreePage makePlaceholder(BTreePageId pid, boolean first)
+				throws DbException, IOException, TransactionAbortedException {
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				List<Tuple> victims = new ArrayList<>();
+				Iterator<Tuple> it = page.iterator();
+				while(it.hasNext()) {
+					victims.add(it.next());
+				}
+				for(Tuple t : victims) {
+					page.deleteTuple(t);
+				}
+				count += victims.size();
+				return page;
+			}
+
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			List<BTreeEntry> entries = entries(page);
+			BTreeEntry kept = first ? entries.get(0) : entries.get(entries.size() - 1);
+			for(int i = entries.size() - 1; i >= 0; i--) {
+				BTreeEntry e = entries.get(i);
+				if(e == kept) {
+					continue;
+				}
+				if(first) {
+					free(e.getRightChild(), null);
+					page.deleteKeyAndRightChild(e);
+				}
+				else {
+					free(e.getLeftChild(), null);
+					page.deleteKeyAndLeftChild(e);
+				}
+			}
+			makePlaceholder(kept.getLeftChild(), first);
+			makePlaceholder(kept.getRightChild(), first);
+			return page;
+		}
+
+		/**
+		 * Link the leaf pages left in the range to each other and to the leaf pages
+		 * on either side of it.
+		 */
+		void relinkLeaves() throws DbException, TransactionAbortedException {
+			if(leaves.isEmpty()) {
+				return;
+			}
+			BTreePageId left = ((BTreeLeafPage) getPage(tid, dirtypages, leaves.get(0), Permissions.READ_ONLY)).getLeftSiblingId();
+			BTreePageId right = ((BTreeLeafPage) getPage(tid, dirtypages, leaves.get(leaves.size() - 1), Permissions.READ_ONLY)).getRightSiblingId();
+			List<BTreePageId> chain = new ArrayList<>();
+			chain.add(left);
+			for(BTreePageId pid : leaves) {
+				if(!freedLeaves.contains(pid)) {
+					chain.add(pid);
+				}
+			}
+			chain.add(right);
+			for(int i = 0; i + 1 < chain.size(); i++) {
+				BTreePageId a = chain.get(i);
+				BTreePageId b = chain.get(i + 1);
+				if(a != null) {
+					BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, a, Permissions.READ_ONLY);
+					if(!Objects.equals(page.getRightSiblingId(), b)) {
+						page = (BTreeLeafPage) getPage(tid, dirtypages, a, Permissions.READ_WRITE);
+						page.setRightSiblingId(b);
+					}
+				}
+				if(b != null) {
+					BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, b, Permissions.READ_ONLY);
+					if(!Objects.equals(page.getLeftSiblingId(), a)) {
+						page = (BTreeLeafPage) getPage(tid, dirtypages, b, Permissions.READ_WRITE);
+						page.setLeftSiblingId(a);
+					}
+				}
+			}
+		}
+	}
+
+	private static List<BTreeEntry> entries(BTreeInternalPage page) {
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			entries.add(it.next());
+		}
+		return entries;
+	}
+
+	/**
+	 * Merge or redistribute the first page less than half full among the pages of a
+	 * subtree whose keys overlap the range, looking at parents before their children.
+	 * 
+	 * @return true if a page was changed, so that the tree has to be searched again
+	 */
+	private boolean repairRange(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid,
+			Field lower, Field upper, KeyRange range)
+			throws DbException, IOException, TransactionAbortedException {
+		if(pid.pgcateg() != BTreePageId.INTERNAL) {
+			return false;
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		List<BTreeEntry> entries = entries(page);
+		int n = entries.size();
+		for(int i = 0; i <= n; i++) {
+			BTreePageId child = i == 0 ? entries.get(0).getLeftChild() : entries.get(i - 1).getRightChild();
+			Field childLower = i == 0 ? lower : entries.get(i - 1).getKey();
+			Field childUpper = i == n ? upper : entries.get(i).getKey();
+			if(!range.overlaps(childLower, childUpper)) {
+				continue;
+			}
+			BTreePage childPage = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+			if(childPage.getFill() < childPage.getMinFill()) {
+				handleMinOccupancyPage(tid, dirtypages, childPage);
+				return true;
+			}
+			if(repairRange(tid, dirtypages, child, childLower, childUpper, range)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the tuple of a leaf page that t refers to. The given tuple may be a copy
+	 * taken by a scan whose RecordId went stale when the page was evicted and read
+	 * back, so fall back to any tuple on the page with the same field values.
+	 * 
+	 * @return the matching tuple of the page, or null if there is none
+	 */
+	private static Tuple findTuple(BTreeLeafPage page, Tuple t) {
+		Tuple same = null;
+		Iterator<Tuple> it = page.iterator();
+		while(it.hasNext()) {
+			Tuple candidate = it.next();
+			if(candidate == t) {
+				return candidate;
+			}
+			if(same == null && sameFields(candidate, t)) {
+				same = candidate;
+			}
+		}
+		return same;
+	}
+
+	static boolean sameFields(Tuple a, Tuple b) {
+		int n = a.getTupleDesc().numFields();
+		if(n != b.getTupleDesc().numFields()) {
+			return false;
+		}
+		for(int i = 0; i < n; i++) {
+			if(!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the last key of the page is at most f, so that tuples with
+	 * key f may continue on the right sibling
+	 */
+	private boolean lastKeyBelow(BTreeLeafPage page, Field f) {
+		Iterator<Tuple> it = page.reverseIterator();
+		return !it.hasNext() || !keyOf(it.next()).compare(Op.GREATER_THAN, f);
+	}
+
+	/**
+	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
 	 * 
 	 * @param tid - the transaction id
@@ -846,6 +2105,49 @@ public class BTreeFile implements DbFile {
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * An in-memory summary of the header pages, so that allocating or freeing a page does
+	 * not walk the header page chain or scan full bitmaps. It is built from the header
+	 * pages the first time this BTreeFile allocates or frees a page, and is guarded by the
+	 * monitor of this BTreeFile like the header pages themselves.
+	 */
+	private static class FreePages {
+		// the header pages in chain order
+		final List<BTreePageId> headers = new ArrayList<>();
+		// the header pages that may have an empty slot
+		final BitSet hasFree = new BitSet();
+		// for each header page, a slot such that all slots before it are used
+		final List<Integer> nextFree = new ArrayList<>();
+
+		void add(BTreePageId headerId, int emptySlot) {
+			if(emptySlot != -1) {
+				hasFree.set(headers.size());
+				nextFree.add(emptySlot);
+			}
+			else {
+				nextFree.add(BTreeHeaderPage.getNumSlots());
+			}
+			headers.add(headerId);
+		}
+	}
+
+	private FreePages freePages = null;
+
+	private FreePages getFreePages(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(freePages == null) {
+			FreePages free = new FreePages();
+			BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+			while(headerId != null) {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+				free.add(headerId, headerPage.getEmptySlot());
+				headerId = headerPage.getNextPageId();
+			}
+			freePages = free;
+		}
+		return freePages;
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -858,52 +2160,43 @@ public class BTreeFile implements DbFile {
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
+	public synchronized int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
-
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
+		LatchPath path = suspendLatches();
+		try {
+			return findEmptyPageNo(tid, dirtypages);
+		} finally {
+			resumeLatches(path, tid, dirtypages);
+		}
+	}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
+	private int findEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		// take the first empty slot of the first header page that may have one
+		FreePages free = getFreePages(tid, dirtypages);
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		for(int i = free.hasFree.nextSetBit(0); i >= 0; i = free.hasFree.nextSetBit(i + 1)) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, free.headers.get(i), Permissions.READ_WRITE);
+			int emptySlot = headerPage.getEmptySlot(free.nextFree.get(i));
+			if(emptySlot != -1) {
 				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				free.nextFree.set(i, emptySlot + 1);
+				return i * numSlots + emptySlot;
 			}
+			free.hasFree.clear(i);
+			free.nextFree.set(i, numSlots);
 		}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+		// either there are no header pages or there are no free slots
+		synchronized(this) {
+			// create the new page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			bw.write(emptyData);
+			bw.close();
+			return numPages();
 		}
-
-		return emptyPageNo; 
 	}
 	
 	/**
@@ -934,9 +2227,13 @@ public class BTreeFile implements DbFile {
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		// make sure the page is not in the buffer pool	or in the local cache, 
+		// whatever it was used for before
+		for(int categ : new int[]{BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER}) {
+			BTreePageId oldId = new BTreePageId(tableid, emptyPageNo, categ);
+			Database.getBufferPool().discardPage(oldId);
+			dirtypages.remove(oldId);
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -954,7 +2251,17 @@ public class BTreeFile implements DbFile {
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	public void setEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo)
+	public synchronized void setEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		LatchPath path = suspendLatches();
+		try {
+			markPageEmpty(tid, dirtypages, emptyPageNo);
+		} finally {
+			resumeLatches(path, tid, dirtypages);
+		}
+	}
+
+	private void markPageEmpty(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo)
 			throws DbException, IOException, TransactionAbortedException {
 
 		// if this is the last page in the file (and not the only page), just 
@@ -977,54 +2284,312 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
-
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
+		// otherwise, find the header page containing the slot corresponding to emptyPageNo,
+		// adding header pages to the chain until there is one
+		FreePages free = getFreePages(tid, dirtypages);
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		int headerPageCount = emptyPageNo / numSlots;
+		while(free.headers.size() <= headerPageCount) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
 			headerPage.init();
-			rootPtr.setHeaderId(headerId);
+			if(free.headers.isEmpty()) {
+				// the first header page is pointed to by the BTreeRootPtrPage
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(headerPage.getId());
+			}
+			else {
+				BTreePageId prevId = free.headers.get(free.headers.size() - 1);
+				BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+				headerPage.setPrevPageId(prevId);
+				prevPage.setNextPageId(headerPage.getId());
+			}
+			free.add(headerPage.getId(), -1);
 		}
 
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, free.headers.get(headerPageCount), Permissions.READ_WRITE);
+		int emptySlot = emptyPageNo - headerPageCount * numSlots;
+		headerPage.markSlotUsed(emptySlot, false);
+		free.hasFree.set(headerPageCount);
+		free.nextFree.set(headerPageCount, Math.min(free.nextFree.get(headerPageCount), emptySlot));
+	}
+
+	/**
+	 * The header pages are guarded by the monitor of this BTreeFile rather than by the
+	 * latch order of the tree, so their latches must not outlive it. Free-list maintenance
+	 * therefore collects its latches separately and gives them up as soon as it is done.
+	 * The pages it dirtied are dropped from the dirty pages of the operation as well: once
+	 * unlatched they may be evicted, and a later change through the old copy would be lost.
+	 * 
+	 * @return the latches of the enclosing operation, to be passed to resumeLatches
+	 */
+	private LatchPath suspendLatches() {
+		LatchPath path = currentPath.get();
+		if(path != null) {
+			currentPath.set(new LatchPath());
 		}
+		return path;
+	}
 
-		// at this point headerId should either be null or set with 
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-			
-			headerPageCount++;
-			prevId = headerId;
+	private void resumeLatches(LatchPath path, TransactionId tid, Map<PageId, Page> dirtypages) {
+		if(path != null) {
+			LatchPath inner = currentPath.get();
+			for(BTreePageId pid : inner.pids) {
+				Page p = dirtypages.get(pid);
+				if(p != null) {
+					p.markDirty(true, tid);
+					dirtypages.remove(pid);
+				}
+			}
+			inner.releaseAll();
+			currentPath.set(path);
 		}
+	}
 
-		// now headerId should be set with the headerPage containing the slot corresponding to 
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
+	/**
+	 * A copy of the tuples of a leaf page, taken while the page was latched. Scans work
+	 * on copies so that they never hold a latch between calls.
+	 */
+	static class LeafSnapshot {
+		final BTreePageId pid;
+		final List<Tuple> tuples;
+		final BTreePageId rightSiblingId;
+		final long epoch;
+
+		LeafSnapshot(BTreeLeafPage page, long epoch) {
+			this.pid = page.getId();
+			this.tuples = new ArrayList<>(page.getNumTuples());
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				tuples.add(it.next());
+			}
+			this.rightSiblingId = page.getRightSiblingId();
+			this.epoch = epoch;
+		}
+	}
+
+	/**
+	 * Copy the left-most leaf page possibly containing the key field f, descending
+	 * with shared latches.
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the copy of the leaf page, or null if the tree is empty
+	 */
+	LeafSnapshot snapshotLeafPage(TransactionId tid, Field f)
+			throws DbException, TransactionAbortedException {
+		treeLatch.readLock().lock();
+		LatchPath path = new LatchPath();
+		try {
+			BTreePageId pid = latchBelowUpperLevels(tid, path, f, false);
+			boolean latched = pid != null;
+			if(!latched) {
+				BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+				path.latch(rootPtrId, false);
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+						tid, rootPtrId, Permissions.READ_ONLY);
+				pid = rootPtr.getRootId();
+				if(pid == null) {
+					return null;
+				}
+			}
+			while(true) {
+				if(!latched) {
+					path.latch(pid, false);
+					path.releaseAllBut(1);
+				}
+				latched = false;
+				Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				if(pid.pgcateg() == BTreePageId.LEAF) {
+					return new LeafSnapshot((BTreeLeafPage) page, leafEpoch.get());
+				}
+				pid = ((BTreeInternalPage) page).findChild(f);
+			}
+		} finally {
+			path.releaseAll();
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Copies of the root pointer and of the internal pages at the top of the tree.
+	 */
+	private static class UpperLevels {
+		final BufferPool pool;
+		final long epoch;
+		final BTreePageId rootId;
+		final Map<BTreePageId, BTreeInternalPage> pages;
+
+		UpperLevels(BufferPool pool, long epoch, BTreePageId rootId, Map<BTreePageId, BTreeInternalPage> pages) {
+			this.pool = pool;
+			this.epoch = epoch;
+			this.rootId = rootId;
+			this.pages = pages;
+		}
+	}
+
+	private void invalidateUpperLevels() {
+		upperEpoch.incrementAndGet();
+		upperLevels = null;
+	}
+
+	/**
+	 * Copy the root pointer and the levels of internal pages from the root down, stopping
+	 * above the lowest internal level, which changes with every split of a leaf, or when
+	 * the next level would take the cache past MAX_CACHED_PAGES. The pages are latched
+	 * shared until the copy is installed, so no writer can change them in the meantime.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the copy, or null if the tree is empty
+	 */
+	private UpperLevels cacheUpperLevels(TransactionId tid)
+			throws DbException, TransactionAbortedException {
+		if(f.length() == 0) {
+			return null;
+		}
+		long epoch = upperEpoch.get();
+		BufferPool pool = Database.getBufferPool();
+		LatchPath path = new LatchPath();
+		try {
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			path.latch(rootPtrId, false);
+			BTreePageId rootId = ((BTreeRootPtrPage) pool.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+			if(rootId == null) {
+				return null;
+			}
+			Map<BTreePageId, BTreeInternalPage> pages = new HashMap<>();
+			List<BTreePageId> level = Collections.singletonList(rootId);
+			while(level.get(0).pgcateg() == BTreePageId.INTERNAL && pages.size() + level.size() <= MAX_CACHED_PAGES) {
+				List<BTreeInternalPage> copies = new ArrayList<>();
+				List<BTreePageId> next = new ArrayList<>();
+				for(BTreePageId pid : level) {
+					path.latch(pid, false);
+					BTreeInternalPage page = (BTreeInternalPage) pool.getPage(tid, pid, Permissions.READ_ONLY);
+					copies.add(new BTreeInternalPage(pid, page.getPageData(), keyFields, prefixCompressed));
+					Iterator<BTreeEntry> it = page.iterator();
+					BTreeEntry e = null;
+					while(it.hasNext()) {
+						e = it.next();
+						next.add(e.getLeftChild());
+					}
+					if(e != null) {
+						next.add(e.getRightChild());
+					}
+				}
+				if(next.isEmpty() || next.get(0).pgcateg() != BTreePageId.INTERNAL) {
+					break;
+				}
+				for(BTreeInternalPage copy : copies) {
+					pages.put(copy.getId(), copy);
+				}
+				level = next;
+			}
+			UpperLevels cached = new UpperLevels(pool, epoch, rootId, pages);
+			if(upperEpoch.get() == epoch) {
+				upperLevels = cached;
+			}
+			return cached;
+		} catch (IOException e) {
+			throw new DbException("could not copy page: " + e.getMessage());
+		} finally {
+			path.releaseAll();
+		}
+	}
+
+	/**
+	 * Use the cached upper levels of the tree to find and latch the first page below them
+	 * on the way to the left-most leaf page possibly containing the key field f, copying
+	 * the upper levels first if there is no valid copy.
+	 * 
+	 * @param tid - the transaction id
+	 * @param path - the latches held by the caller, which must hold none yet
+	 * @param f - the field to search for
+	 * @param exclusiveLeaf - whether to latch the page exclusively if it is a leaf
+	 * @return the latched page, or null if the cache is turned off, the tree is empty or
+	 * the copy went stale before the page was latched; then nothing is latched
+	 */
+	private BTreePageId latchBelowUpperLevels(TransactionId tid, LatchPath path, Field f, boolean exclusiveLeaf)
+			throws DbException, TransactionAbortedException {
+		if(!cacheUpperLevels) {
+			return null;
+		}
+		UpperLevels cached = upperLevels;
+		if(cached == null || cached.epoch != upperEpoch.get() || cached.pool != Database.getBufferPool()) {
+			cached = cacheUpperLevels(tid);
+			if(cached == null) {
+				return null;
+			}
+		}
+		BTreePageId pid = cached.rootId;
+		BTreeInternalPage page;
+		while((page = cached.pages.get(pid)) != null) {
+			pid = page.findChild(f);
+		}
+		path.latch(pid, exclusiveLeaf && pid.pgcateg() == BTreePageId.LEAF);
+		// a split or merge that reached the copied levels may have moved the page
+		if(cached.epoch != upperEpoch.get()) {
+			path.releaseAll();
+			return null;
+		}
+		return pid;
+	}
+
+	/**
+	 * Copy the right sibling of a previously copied leaf page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param leaf - the copy of the current leaf page; must have a right sibling
+	 * @return the copy of its right sibling, or null if leaf pages were split, merged
+	 * or redistributed since the current page was copied and the caller must find
+	 * its place again from the root
+	 */
+	LeafSnapshot snapshotRightSibling(TransactionId tid, LeafSnapshot leaf)
+			throws DbException, TransactionAbortedException {
+		treeLatch.readLock().lock();
+		LatchPath path = new LatchPath();
+		try {
+			path.latch(leaf.rightSiblingId, false);
+			if(leafEpoch.get() != leaf.epoch) {
+				return null;
+			}
+			BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, leaf.rightSiblingId, Permissions.READ_ONLY);
+			return new LeafSnapshot(page, leaf.epoch);
+		} finally {
+			path.releaseAll();
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The page latches held by one operation on this BTreeFile, in the order in which
+	 * they were acquired.
+	 */
+	private static class LatchPath {
+		private final PageLatches latches = Database.getBufferPool().getPageLatches();
+		private final List<BTreePageId> pids = new ArrayList<>();
+		private final List<Boolean> exclusive = new ArrayList<>();
+
+		void latch(BTreePageId pid, boolean excl) {
+			latches.latch(pid, excl);
+			pids.add(pid);
+			exclusive.add(excl);
+		}
+
+		/**
+		 * Release all latches except the n most recently acquired ones
+		 */
+		void releaseAllBut(int n) {
+			int k = pids.size() - n;
+			for(int i = 0; i < k; i++) {
+				latches.unlatch(pids.get(i), exclusive.get(i));
+			}
+			pids.subList(0, k).clear();
+			exclusive.subList(0, k).clear();
+		}
+
+		void releaseAll() {
+			releaseAllBut(0);
+		}
 	}
 
 	/**
@@ -1055,13 +2620,172 @@ public class BTreeFile implements DbFile {
 
 }
 
+/**
+ * Helper class that walks the leaf pages of a BTreeFile from left to right, one
+ * latched copy of a page at a time. If leaf pages are split, merged or redistributed
+ * while it is between pages, it finds its place again by searching the tree for the
+ * last key it returned. Buffered inserts are merged in and buffered deletes left out.
+ */
+class BTreeLeafCursor {
+
+	private final TransactionId tid;
+	private final BTreeFile f;
+
+	private BTreeFile.LeafSnapshot curp = null;
+	private int pos = 0;
+
+	// the key of the last tuple returned and how many tuples with that key were returned
+	private Field startKey = null;
+	private Field lastKey = null;
+	private int lastKeyCount = 0;
+	private boolean skipping = false;
+	private int skipped = 0;
+
+	// the pending messages from the start key on, or null if there were none, the next
+	// message and leaf page tuple in key order, and the deletes waiting for their tuple
+	private Iterator<BTreeMessageBuffer.Message> messages = null;
+	private BTreeMessageBuffer.Message nextMessage = null;
+	private Tuple nextTuple = null;
+	private final List<Tuple> deletes = new ArrayList<>();
+
+	BTreeLeafCursor(BTreeFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Position the cursor on the left-most leaf page possibly containing the key field
+	 * start, or on the left-most leaf page if start is null
+	 */
+	void open(Field start) throws DbException, TransactionAbortedException {
+		startKey = start;
+		lastKey = null;
+		lastKeyCount = 0;
+		skipping = false;
+		messages = f.pendingMessages(tid, start);
+		nextMessage = null;
+		nextTuple = null;
+		deletes.clear();
+		curp = f.snapshotLeafPage(tid, start);
+		pos = 0;
+	}
+
+	/**
+	 * @return the next tuple in key order, or null at the end of the file
+	 */
+	Tuple next() throws DbException, TransactionAbortedException {
+		if(messages == null) {
+			return nextOnLeaves();
+		}
+		while(true) {
+			if(nextTuple == null) {
+				nextTuple = nextOnLeaves();
+			}
+			if(nextMessage == null && messages.hasNext()) {
+				nextMessage = messages.next();
+			}
+			if(nextMessage != null && (nextTuple == null
+					|| f.keyOf(nextMessage.tuple).compare(Op.LESS_THAN_OR_EQ, f.keyOf(nextTuple)))) {
+				BTreeMessageBuffer.Message m = nextMessage;
+				nextMessage = null;
+				if(!m.delete) {
+					return m.tuple;
+				}
+				deletes.add(m.tuple);
+				continue;
+			}
+			if(nextTuple == null) {
+				return null;
+			}
+			Tuple t = nextTuple;
+			nextTuple = null;
+			if(!isDeleted(t)) {
+				return t;
+			}
+		}
+	}
+
+	/**
+	 * @return true if a pending delete is waiting for t, which is then no longer waiting
+	 */
+	private boolean isDeleted(Tuple t) {
+		Field key = f.keyOf(t);
+		Iterator<Tuple> it = deletes.iterator();
+		while(it.hasNext()) {
+			Tuple d = it.next();
+			if(f.keyOf(d).compare(Op.LESS_THAN, key)) {
+				// the tuple was deleted before the scan reached it
+				it.remove();
+			}
+			else if(BTreeFile.sameFields(d, t)) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next tuple on the leaf pages in key order, or null at the end of the file
+	 */
+	private Tuple nextOnLeaves() throws DbException, TransactionAbortedException {
+		while(curp != null) {
+			if(pos < curp.tuples.size()) {
+				Tuple t = curp.tuples.get(pos++);
+				Field key = f.keyOf(t);
+				if(skipping) {
+					// skip everything returned before the structure changed
+					if(key.compare(Op.LESS_THAN, lastKey)) {
+						continue;
+					}
+					if(key.compare(Op.EQUALS, lastKey) && skipped < lastKeyCount) {
+						skipped++;
+						continue;
+					}
+					skipping = false;
+				}
+				if(lastKey != null && key.compare(Op.EQUALS, lastKey)) {
+					lastKeyCount++;
+				}
+				else {
+					lastKey = key;
+					lastKeyCount = 1;
+				}
+				return t;
+			}
+
+			if(curp.rightSiblingId == null) {
+				curp = null;
+			}
+			else {
+				BTreeFile.LeafSnapshot nextp = f.snapshotRightSibling(tid, curp);
+				if(nextp == null) {
+					nextp = f.snapshotLeafPage(tid, lastKey != null ? lastKey : startKey);
+					skipping = lastKey != null;
+					skipped = 0;
+				}
+				curp = nextp;
+				pos = 0;
+			}
+		}
+		return null;
+	}
+
+	void close() {
+		curp = null;
+		messages = null;
+		nextMessage = null;
+		nextTuple = null;
+		deletes.clear();
+	}
+}
+
 /**
  * Helper class that implements the Java Iterator for tuples on a BTreeFile
  */
 class BTreeFileIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafCursor cursor = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1080,11 +2804,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		cursor = new BTreeLeafCursor(f, tid);
+		cursor.open(null);
 	}
 
 	/**
@@ -1095,26 +2816,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
-		}
-
-		if (it == null)
+		if (cursor == null)
 			return null;
-		return it.next();
+		return cursor.next();
 	}
 
 	/**
@@ -1130,8 +2834,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
-		curp = null;
+		if (cursor != null)
+			cursor.close();
+		cursor = null;
 	}
 }
 
@@ -1141,13 +2846,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafCursor cursor = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
 
+	// the keys the predicate matches, or null if they are not a range
+	BTreeFile.KeyRange range = null;
+
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
@@ -1165,17 +2872,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+		cursor = new BTreeLeafCursor(f, tid);
+		if(ipred.getOp() == Op.NOT_EQUALS || ipred.getOp() == Op.LIKE) {
+			range = null;
+			cursor.open(null);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			range = BTreeFile.KeyRange.of(ipred, f.keyFields());
+			cursor.open(range.low);
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1187,35 +2892,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
+		if (cursor == null)
+			return null;
 
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+		Tuple t;
+		while ((t = cursor.next()) != null) {
+			Field key = f.keyOf(t);
+			if (range == null) {
+				if (key.compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
 			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
-				return null;
+			else if (range.contains(key)) {
+				return t;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+			else if (range.isPast(key)) {
+				// the keys are in order, so none of the rest can match either
+				return null;
 			}
 		}
 
@@ -1235,6 +2928,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
+		if (cursor != null)
+			cursor.close();
+		cursor = null;
 	}
 }
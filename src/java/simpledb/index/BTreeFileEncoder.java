@@ -21,6 +21,12 @@ import simpledb.transaction.TransactionId;
 
 public class BTreeFileEncoder {
 
+	/** Default fraction of each page filled by the bulk loader */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** Default number of bytes of heap the tuples the bulk loader sorts in memory may take */
+	public static final long DEFAULT_SORT_MEMORY = 8L << 20;
+
 	/**
 	 * Encode the file using the BTreeFile's Insert method.
 	 * 
@@ -113,15 +119,16 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private final int keyField;
+		private final int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
 		 * 
-		 * @param keyField - the index of the field the tuples are keyed on
+		 * @param keyFields - the indexes of the fields the tuples are keyed on, most
+		 * significant first
 		 */
-		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+		public TupleComparator(int... keyFields) {
+			this.keyFields = keyFields;
 		}
 
 		/**
@@ -130,11 +137,13 @@ public class BTreeFileEncoder {
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
+			Field k1 = CompositeKeys.key(t1, keyFields);
+			Field k2 = CompositeKeys.key(t2, keyFields);
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -201,25 +210,162 @@ public class BTreeFileEncoder {
 	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(inFile, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator, keyField,
+				DEFAULT_FILL_FACTOR, DEFAULT_SORT_MEMORY);
+	}
+
+	/** 
+	 * Faster method to encode the B+ tree file. The tuples are sorted with an external
+	 * merge sort, so the size of the input is not limited by the size of the heap.
+	 * 
+	 * @param inFile - the file containing the raw data
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each leaf and internal page to fill, in (0, 1]
+	 * @param sortMemory - the number of bytes of heap the tuples the sort keeps in memory may take
+	 * @return the B+ tree file
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int keyField,
+			double fillFactor, long sortMemory)
+					throws IOException, DbException, TransactionAbortedException {
 		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
+		ParallelHeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields, typeAr, fieldSeparator);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
-		// read all the tuples from the heap file and sort them on the keyField
-		List<Tuple> tuples = new ArrayList<>();
+		// sort the tuples of the heap file on the keyField, spilling sorted runs to disk
 		TransactionId tid = new TransactionId();
-		DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-		it.open();
-		while (it.hasNext()) {
-			Tuple tup = it.next();
-			tuples.add(tup);
+		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		try (ExternalSorter sorter = sort(tid, heapf, new int[]{keyField}, sortMemory)) {
+			bulkLoad(bf, sorter.sorted(), npagebytes, typeAr, keyField, fillFactor);
 		}
-		it.close();
-		tuples.sort(new TupleComparator(keyField));
 
-		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
-		Type keyType = typeAr[keyField];
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Build a B+ tree index over an existing table ("CREATE INDEX"). The table is
+	 * read through the buffer pool on behalf of the given transaction, sorted on the
+	 * key field with a bounded amount of memory and written bottom-up into bFile,
+	 * which is overwritten. The new BTreeFile is added to the catalog under name.
+	 * 
+	 * @param tid - the transaction reading the source table
+	 * @param source - the table to index
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @param name - the catalog name of the new BTreeFile
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each leaf and internal page to fill, in (0, 1]
+	 * @param sortMemory - the number of bytes of heap the tuples the sort keeps in memory may take
+	 * @return the new BTreeFile
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile createIndex(TransactionId tid, DbFile source, File bFile, String name,
+			int keyField, double fillFactor, long sortMemory)
+					throws IOException, DbException, TransactionAbortedException {
+		return createIndex(tid, source, bFile, name, new int[]{keyField}, fillFactor, sortMemory);
+	}
+
+	/**
+	 * Build a B+ tree index keyed on several fields over an existing table, like
+	 * {@link #createIndex(TransactionId, DbFile, File, String, int, double, long)}.
+	 * 
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most
+	 * significant first
+	 */
+	public static BTreeFile createIndex(TransactionId tid, DbFile source, File bFile, String name,
+			int[] keyFields, double fillFactor, long sortMemory)
+					throws IOException, DbException, TransactionAbortedException {
+		TupleDesc td = source.getTupleDesc();
+		Type[] typeAr = new Type[td.numFields()];
+		for (int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		}
+
+		// start from an empty file
+		new FileOutputStream(bFile).close();
+		BTreeFile bf = new BTreeFile(bFile, keyFields, td);
+		Database.getCatalog().addTable(bf, name);
+		try (ExternalSorter sorter = sort(tid, source, keyFields, sortMemory)) {
+			bulkLoad(bf, sorter.sorted(), BufferPool.getPageSize(), typeAr, keyFields, fillFactor);
+		}
+		return bf;
+	}
+
+	/**
+	 * Read every tuple of a file into an ExternalSorter ordered on keyFields.
+	 */
+	private static ExternalSorter sort(TransactionId tid, DbFile source, int[] keyFields, long sortMemory)
+			throws IOException, DbException, TransactionAbortedException {
+		ExternalSorter sorter = new ExternalSorter(source.getTupleDesc(), new TupleComparator(keyFields), sortMemory);
+		DbFileIterator it = source.iterator(tid);
+		try {
+			it.open();
+			while (it.hasNext()) {
+				sorter.add(it.next());
+			}
+		} catch (IOException | DbException | TransactionAbortedException | RuntimeException e) {
+			sorter.close();
+			throw e;
+		} finally {
+			it.close();
+		}
+		return sorter;
+	}
+
+	/**
+	 * Write a B+ tree bottom-up from a stream of tuples sorted on the key field. Leaf pages
+	 * are written left to right and internal pages as they fill up; the file must be empty
+	 * and use fixed-width pages.
+	 * 
+	 * @param bf - the (empty) BTreeFile to fill
+	 * @param tuples - the tuples, sorted on keyField
+	 * @param npagebytes - number of bytes per page
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each leaf and internal page to fill, in (0, 1]
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	public static void bulkLoad(BTreeFile bf, Iterator<Tuple> tuples, int npagebytes,
+			Type[] typeAr, int keyField, double fillFactor) throws IOException, DbException {
+		bulkLoad(bf, tuples, npagebytes, typeAr, new int[]{keyField}, fillFactor);
+	}
+
+	/**
+	 * Write a B+ tree keyed on several fields bottom-up from a stream of tuples sorted
+	 * on those fields, like {@link #bulkLoad(BTreeFile, Iterator, int, Type[], int, double)}.
+	 * 
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most
+	 * significant first
+	 */
+	public static void bulkLoad(BTreeFile bf, Iterator<Tuple> tuples, int npagebytes,
+			Type[] typeAr, int[] keyFields, double fillFactor) throws IOException, DbException {
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		}
+		if(bf.isPrefixCompressed()) {
+			throw new DbException("bulk loading writes fixed-width pages; prefix-compressed B+ trees must be built by inserts");
+		}
+		int numFields = typeAr.length;
+		int keyLen = 0;
+		for (int k : keyFields) {
+			keyLen += typeAr[k].getLen();
+		}
 		int tableid = bf.getId();
 
 		int nrecbytes = 0;
@@ -229,11 +375,13 @@ public class BTreeFileEncoder {
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		nrecords = Math.max(1, (int) (nrecords * fillFactor));
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		nentries = Math.max(1, (int) (nentries * fillFactor));
 
 		List<List<BTreeEntry>> entries = new ArrayList<>();
 
@@ -249,7 +397,8 @@ public class BTreeFileEncoder {
 		List<Tuple> page1 = new ArrayList<>();
 		List<Tuple> page2 = new ArrayList<>();
 		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
+		while(tuples.hasNext()) {
+			Tuple tup = tuples.next();
 			if(page1.size() < nrecords) {
 				page1.add(tup);
 			}
@@ -258,17 +407,17 @@ public class BTreeFileEncoder {
 			}
 			else {
 				// write out a page of records
-				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
+				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields);
 				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
+				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyFields, false);
 				leafPage.setLeftSiblingId(leftSiblingId);
 				bf.writePage(leafPage);
 				leftSiblingId = leafPid;
 
 				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
+				BTreeEntry copyUpEntry = new BTreeEntry(CompositeKeys.key(page2.get(0), keyFields), leafPid, null);
 				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keyLen, tableid, keyFields);
 
 				page1 = page2;
 				page2 = new ArrayList<>();
@@ -286,9 +435,9 @@ public class BTreeFileEncoder {
 		BTreePageId lastPid = null;
 		if(page2.size() == 0) {
 			// write out a page of records - this is the root page
-			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
+			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields);
 			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
+			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyFields, false);
 			lastPage.setLeftSiblingId(leftSiblingId);
 			bf.writePage(lastPage);
 		}
@@ -301,26 +450,26 @@ public class BTreeFileEncoder {
 			lastPg.addAll(page2);
 
 			// write out the last two pages of records
-			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyField);
+			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyFields);
 			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
+			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyFields, false);
 			secondToLastPage.setLeftSiblingId(leftSiblingId);
 			bf.writePage(secondToLastPage);
 
-			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
+			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyFields);
 			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
+			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyFields, false);
 			lastPage.setLeftSiblingId(secondToLastPid);
 			bf.writePage(lastPage);
 
 			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
+			BTreeEntry copyUpEntry = new BTreeEntry(CompositeKeys.key(lastPg.get(0), keyFields), secondToLastPid, lastPid);
 			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
+					keyLen, tableid, keyFields);
 		}
 
 		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
+		cleanUpEntries(entries, bf, nentries, npagebytes, keyLen, tableid, keyFields);
 
 		// update the root pointer to point to the last page of the file
 		int root = bf.numPages();
@@ -330,29 +479,28 @@ public class BTreeFileEncoder {
 
 		// set all the parent and sibling pointers
 		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
-		setRightSiblingPtrs(bf, lastPid, null);
-
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
+		setRightSiblingPtrs(bf, lastPid);
 	}
 
 	/**
-	 * Set all the right sibling pointers by following the left sibling pointers
+	 * Set all the right sibling pointers by following the left sibling pointers,
+	 * starting from the last leaf page
 	 * 
 	 * @param bf - the BTreeFile
-	 * @param pid - the id of the page to update with the right sibling pointer
-	 * @param rightSiblingId - the id of the page's right sibling
+	 * @param lastPid - the id of the right-most leaf page
 	 * @throws IOException
 	 * @throws DbException
 	 */
-	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
+	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId lastPid) 
 			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+		BTreePageId pid = lastPid;
+		BTreePageId rightSiblingId = null;
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			page.setRightSiblingId(rightSiblingId);
+			bf.writePage(page);
+			rightSiblingId = pid;
+			pid = page.getLeftSiblingId();
 		}
 	}
 
@@ -396,14 +544,14 @@ public class BTreeFileEncoder {
 	 * @param bf - the BTreeFile
 	 * @param nentries - number of entries per page
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
+	 * @param keyLen - the number of bytes of a key
 	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyFields - the indexes of the key fields
 	 * @throws IOException
 	 */
 	private static void cleanUpEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
+			BTreeFile bf, int nentries, int npagebytes, int keyLen, int tableid, 
+			int[] keyFields) throws IOException {
 		// As with the leaf pages, there are two options:
 		// 1. We have less than or equal to a full page of entries. Because of the way the code
 		//    was written, we know this must be the root page
@@ -416,9 +564,9 @@ public class BTreeFileEncoder {
 			int size = entries.get(i).size();
 			if(size <= nentries) {
 				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
+				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyLen, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyFields, false));
 			}
 			else {
 				// split the remaining entries in half
@@ -426,18 +574,18 @@ public class BTreeFileEncoder {
                 List<BTreeEntry> lastPg = new ArrayList<>(entries.get(i).subList(size / 2 + 1, size));
 
 				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
+				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyLen, childPageCategory);
 				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyFields, false));
 
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
+				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyLen, childPageCategory);
 				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyFields, false));
 
 				// update the parent by "pushing up" the next key
 				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
 				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keyLen, tableid, keyFields);
 			}
 
 		}
@@ -452,14 +600,14 @@ public class BTreeFileEncoder {
 	 * @param level - the level of the new entry (0 is closest to the leaf pages)
 	 * @param nentries - number of entries per page
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
+	 * @param keyLen - the number of bytes of a key
 	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyFields - the indexes of the key fields
 	 * @throws IOException
 	 */
 	private static void updateEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
+			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, int keyLen, 
+			int tableid, int[] keyFields) throws IOException {
 		while(entries.size() <= level) {
 			entries.add(new ArrayList<>());
 		}
@@ -473,14 +621,14 @@ public class BTreeFileEncoder {
 			if(size == nentries * 2 + 1) {
 				// write out a page of entries
                 ArrayList<BTreeEntry> pageEntries = new ArrayList<>(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
+				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyLen, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyFields, false));
 
 				// update the parent by "pushing up" the next key
 				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
 				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keyLen, tableid, keyFields);
                 List<BTreeEntry> remainingEntries = new ArrayList<>(entries.get(level).subList(nentries + 1, size));
 				entries.get(level).clear();
 				entries.get(level).addAll(remainingEntries);
@@ -503,6 +651,20 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[]{keyField});
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage keyed on
+	 * several fields
+	 * 
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most
+	 * significant first
+	 * @see #convertToLeafPage(List, int, int, Type[], int)
+	 */
+	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -551,7 +713,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		tuples.sort(new TupleComparator(keyField));
+		tuples.sort(new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -621,7 +783,20 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, keyType.getLen(), childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage whose
+	 * keys take keyLen bytes each
+	 * 
+	 * @param keyLen - the number of bytes of a key
+	 * @see #convertToInternalPage(List, int, Type, int)
+	 */
+	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
+			int keyLen, int childPageCategory)
+					throws IOException {
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -670,7 +845,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -30,6 +30,11 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// the used slots in order, and the fill of a prefix-compressed page;
+	// recomputed after the slots or keys change
+	private int[] usedSlots = null;
+	private int fill = -1;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +48,36 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+		// redistribution balances prefix-compressed pages by bytes, so they may end up
+		// short of the minimum by a couple of entries
+		int slack = prefixCompressed ? 2 * (INDEX_SIZE + PrefixKeys.MAX_KEY_SIZE) : 0;
+        assert !checkOccupancy || depth <= 0 || (getFill() + slack >= getMinFill());
+
+		if(prefixCompressed) {
+			assert(getFill() <= getCapacity());
+			assert(sameEntries(this, reparse()));
+		}
+	}
+
+	private BTreeInternalPage reparse() {
+		try {
+			return new BTreeInternalPage(pid, getPageData(), keyFields, prefixCompressed);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean sameEntries(BTreeInternalPage a, BTreeInternalPage b) {
+		Iterator<BTreeEntry> ita = a.iterator();
+		Iterator<BTreeEntry> itb = b.iterator();
+		while (ita.hasNext() && itb.hasNext()) {
+			BTreeEntry ea = ita.next();
+			BTreeEntry eb = itb.next();
+			if(!ea.getKey().equals(eb.getKey()) || !ea.getRecordId().equals(eb.getRecordId())
+					|| !ea.getLeftChild().equals(eb.getLeftChild()) || !ea.getRightChild().equals(eb.getRightChild()))
+				return false;
+		}
+		return !ita.hasNext() && !itb.hasNext();
 	}
 	
 	/**
@@ -71,7 +105,40 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, key, false);
+	}
+
+	/**
+	 * Create a BTreeInternalPage in either the fixed-width or the prefix-compressed format.
+	 * <p>
+	 * A prefix-compressed page has the same parent pointer, child category and header
+	 * as a fixed-width one, but the entries in the used slots are packed one after the
+	 * other, in slot order: the child pointer of the slot followed, except in slot 0, by
+	 * its key, front coded against the key before it (see {@link PrefixKeys}). The number
+	 * of slots is computed as if every key were empty, and a page is full when it has no
+	 * room left for the largest possible entry and for one key to grow to full length.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 * @param prefixCompressed - whether the page is in the prefix-compressed format
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int key, boolean prefixCompressed) throws IOException {
+		this(id, data, new int[]{key}, prefixCompressed);
+	}
+
+	/**
+	 * Create a BTreeInternalPage keyed on one or more fields. On a fixed-width page the
+	 * key of an entry keyed on several fields is stored as their values one after the
+	 * other.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @param prefixCompressed - whether the page is in the prefix-compressed format
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields, boolean prefixCompressed) throws IOException {
+		super(id, keyFields, prefixCompressed);
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -92,6 +159,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(this.prefixCompressed) {
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +177,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -120,7 +193,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		int keySize = prefixCompressed ? PrefixKeys.KEY_HEADER_SIZE : getKeyLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -140,6 +213,30 @@ public class BTreeInternalPage extends BTreePage {
 		return hb;
 	}
 
+	/**
+	 * Bytes available for the entries of a prefix-compressed page
+	 */
+	private int getCapacity() {
+		return BufferPool.getPageSize() - INDEX_SIZE - 1 - header.length;
+	}
+
+	/**
+	 * The most a single insert can add to the fill of a prefix-compressed page: the new
+	 * entry with a key sharing nothing with the one before it, plus the key of the next
+	 * entry no longer sharing its prefix with its old predecessor.
+	 */
+	private static int getMaxInsertFill() {
+		return INDEX_SIZE + PrefixKeys.MAX_KEY_SIZE + Type.STRING_LEN;
+	}
+
+	/**
+	 * Bytes kept free on a prefix-compressed page so that one key can be replaced by a
+	 * longer one (see {@link #updateEntry}) without overflowing it.
+	 */
+	private static int getUpdateReserve() {
+		return 2 * Type.STRING_LEN;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -149,7 +246,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields,prefixCompressed);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -172,7 +269,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeyLen(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +282,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = CompositeKeys.parse(dis, td, keyFields);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -224,6 +321,42 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the packed entries of a prefix-compressed page.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		byte[] prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if (i > 0) {
+				byte[] key = PrefixKeys.read(dis, prev);
+				keys[i] = PrefixKeys.field(key);
+				prev = key;
+			}
+		}
+	}
+
+	/**
+	 * Write the packed entries of a prefix-compressed page.
+	 */
+	private void writeCompressedEntries(DataOutputStream dos) throws IOException {
+		byte[] prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			dos.writeInt(children[i]);
+			if (i > 0) {
+				byte[] key = PrefixKeys.bytes(keys[i]);
+				PrefixKeys.write(dos, prev, key);
+				prev = key;
+			}
+		}
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -266,6 +399,24 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if (prefixCompressed) {
+			try {
+				writeCompressedEntries(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			int zerolen = BufferPool.getPageSize() - dos.size();
+			if (zerolen < 0)
+				throw new IllegalStateException("entries of page " + pid.getPageNumber() + " overflow it by " + (-zerolen) + " bytes");
+			try {
+				dos.write(new byte[zerolen], 0, zerolen);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -273,7 +424,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeyLen(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -320,7 +471,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeyLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -435,6 +586,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		fill = -1;
 	}
 
 	/**
@@ -445,7 +597,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!CompositeKeys.isKey(e.getKey(), td, keyFields))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -461,7 +613,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -566,20 +718,104 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		// the first slot only holds a child pointer
+		return Math.max(0, getUsedSlots().length - 1);
 	}
 	
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		int freeSlots = numSlots - 1 - getNumEntries();
+		if(!prefixCompressed)
+			return freeSlots;
+		int freeBytes = Math.max(0, getCapacity() - getUpdateReserve() - getFill());
+		return Math.min(freeSlots, freeBytes / getMaxInsertFill());
+	}
+
+	public int getFill() {
+		if(!prefixCompressed)
+			return getNumEntries();
+		int f = fill;
+		if(f < 0) {
+			f = 0;
+			byte[] prev = null;
+			for(int i : getUsedSlots()) {
+				f += INDEX_SIZE;
+				if(i > 0) {
+					byte[] key = PrefixKeys.bytes(keys[i]);
+					f += PrefixKeys.encodedSize(prev, key);
+					prev = key;
+				}
+			}
+			fill = f;
+		}
+		return f;
+	}
+
+	public int getMinFill() {
+		if(!prefixCompressed)
+			return getMaxEntries() / 2;
+		return (getCapacity() - getUpdateReserve() - getMaxInsertFill()) / 2;
+	}
+
+	/**
+	 * Returns how much the given entry (key and right child) adds to the fill of this page, at most
+	 */
+	public int getFillOf(BTreeEntry e) {
+		if(!prefixCompressed)
+			return 1;
+		return INDEX_SIZE + PrefixKeys.encodedSize(null, PrefixKeys.bytes(e.getKey()));
+	}
+
+	/**
+	 * Binary search for the left-most child whose subtree may contain the key f: the
+	 * left child of the first entry with a key greater than or equal to f, or the last
+	 * child if there is none.
+	 * 
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child, or null if the page is empty
+	 */
+	public BTreePageId findChild(Field f) {
+		int[] used = getUsedSlots();
+		if(used.length == 0)
+			return null;
+		// search the keys in used[1..]
+		int lo = 1;
+		int hi = used.length;
+		if(f != null) {
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(keys[used[mid]].compare(Op.GREATER_THAN_OR_EQ, f))
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+		}
+		int child = lo < used.length ? used[lo - 1] : used[used.length - 1];
+		return new BTreePageId(pid.getTableId(), children[child], childCategory);
+	}
+
+	/**
+	 * Returns the used slots of this page in order
+	 */
+	private int[] getUsedSlots() {
+		int[] used = usedSlots;
+		if(used == null) {
+			int cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			used = new int[cnt];
+			cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					used[cnt++] = i;
+			usedSlots = used;
+		}
+		return used;
 	}
 
 	/**
@@ -599,6 +835,8 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		usedSlots = null;
+		fill = -1;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -765,8 +1003,17 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is the child of the previous used slot, which
+				// need not be the slot right before this one
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					prev--;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
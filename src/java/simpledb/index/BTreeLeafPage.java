@@ -27,21 +27,70 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the used slots in order, and the fill of a prefix-compressed page;
+	// recomputed after the slots change
+	private int[] usedSlots = null;
+	private int fill = -1;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+		checkRep(new int[]{fieldid}, lowerBound, upperBound, checkoccupancy, depth);
+	}
+
+	/**
+	 * Check the page against the key of the B+ tree it belongs to.
+	 */
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+		checkRep(keyFields, lowerBound, upperBound, checkoccupancy, depth);
+	}
+
+	private void checkRep(int[] fields, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = CompositeKeys.key(t, fields);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+		// redistribution balances prefix-compressed pages by bytes, so they may end up
+		// short of the minimum by a couple of entries
+		int slack = prefixCompressed ? 2 * getMaxEntryFill() : 0;
+        assert !checkoccupancy || depth <= 0 || (getFill() + slack >= getMinFill());
+
+		if(prefixCompressed) {
+			assert(getFill() <= getCapacity());
+			assert(sameTuples(this, reparse()));
+		}
+	}
+
+	private BTreeLeafPage reparse() {
+		try {
+			return new BTreeLeafPage(pid, getPageData(), keyFields, prefixCompressed);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean sameTuples(BTreeLeafPage a, BTreeLeafPage b) {
+		Iterator<Tuple> ita = a.iterator();
+		Iterator<Tuple> itb = b.iterator();
+		while (ita.hasNext() && itb.hasNext()) {
+			Tuple ta = ita.next();
+			Tuple tb = itb.next();
+			if(!ta.getRecordId().equals(tb.getRecordId()))
+				return false;
+			for (int i = 0; i < ta.getTupleDesc().numFields(); i++) {
+				if(!ta.getField(i).equals(tb.getField(i)))
+					return false;
+			}
+		}
+		return !ita.hasNext() && !itb.hasNext();
 	}
 
 	/**
@@ -66,7 +115,39 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, key, false);
+	}
+
+	/**
+	 * Create a BTreeLeafPage in either the fixed-width or the prefix-compressed format.
+	 * <p>
+	 * A prefix-compressed page has the same pointers and header as a fixed-width one,
+	 * but the tuples in the used slots are packed one after the other, in slot order.
+	 * Each starts with its key, front coded against the key of the tuple before it
+	 * (see {@link PrefixKeys}), followed by the remaining fields. The number of slots
+	 * is computed as if every key were empty, and a page is full when it has no room
+	 * left for the largest possible tuple.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 * @param prefixCompressed - whether the page is in the prefix-compressed format
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int key, boolean prefixCompressed) throws IOException {
+		this(id, data, new int[]{key}, prefixCompressed);
+	}
+
+	/**
+	 * Create a BTreeLeafPage keyed on one or more fields. The tuples are stored the
+	 * same way whatever the key; only their order depends on it.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @param prefixCompressed - whether the page is in the prefix-compressed format
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields, boolean prefixCompressed) throws IOException {
+		super(id, keyFields, prefixCompressed);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -98,12 +179,17 @@ public class BTreeLeafPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		if(this.prefixCompressed) {
+			readCompressedTuples(dis);
+		}
+		else {
+			try{
+				// allocate and read the actual records of this page
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = readNextTuple(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -114,7 +200,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
 	public int getMaxTuples() {        
-		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		int tupleSize = prefixCompressed ? getRestSize() + PrefixKeys.KEY_HEADER_SIZE : td.getSize();
+		int bitsPerTupleIncludingHeader = tupleSize * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
@@ -131,6 +218,33 @@ public class BTreeLeafPage extends BTreePage {
 		return hb;
 	}
 
+	/**
+	 * Bytes of a tuple besides its key
+	 */
+	private int getRestSize() {
+		return td.getSize() - td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * Bytes available for the tuples of a prefix-compressed page
+	 */
+	private int getCapacity() {
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - header.length;
+	}
+
+	/**
+	 * The most a single insert can add to the fill of a prefix-compressed page: the new
+	 * tuple with a key sharing nothing with the one before it, plus the key of the next
+	 * tuple no longer sharing its prefix with its old predecessor.
+	 */
+	private int getMaxInsertFill() {
+		return getMaxEntryFill() + Type.STRING_LEN;
+	}
+
+	private int getMaxEntryFill() {
+		return prefixCompressed ? PrefixKeys.MAX_KEY_SIZE + getRestSize() : 1;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
@@ -140,7 +254,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields,prefixCompressed);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -190,6 +304,47 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
+	/**
+	 * Read the packed tuples of a prefix-compressed page.
+	 */
+	private void readCompressedTuples(DataInputStream dis) throws IOException {
+		byte[] prev = null;
+		for (int i=0; i<tuples.length; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			byte[] key = PrefixKeys.read(dis, prev);
+			Tuple t = new Tuple(td);
+			t.setRecordId(new RecordId(pid, i));
+			try {
+				for (int j=0; j<td.numFields(); j++) {
+					t.setField(j, j == keyField ? PrefixKeys.field(key) : td.getFieldType(j).parse(dis));
+				}
+			} catch (java.text.ParseException e) {
+				throw new IOException("parsing error!", e);
+			}
+			tuples[i] = t;
+			prev = key;
+		}
+	}
+
+	/**
+	 * Write the packed tuples of a prefix-compressed page.
+	 */
+	private void writeCompressedTuples(DataOutputStream dos) throws IOException {
+		byte[] prev = null;
+		for (int i=0; i<tuples.length; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			byte[] key = PrefixKeys.bytes(tuples[i].getField(keyField));
+			PrefixKeys.write(dos, prev, key);
+			for (int j=0; j<td.numFields(); j++) {
+				if (j != keyField)
+					tuples[i].getField(j).serialize(dos);
+			}
+			prev = key;
+		}
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -236,6 +391,24 @@ public class BTreeLeafPage extends BTreePage {
             }
         }
 
+		if (prefixCompressed) {
+			try {
+				writeCompressedTuples(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			int zerolen = BufferPool.getPageSize() - dos.size();
+			if (zerolen < 0)
+				throw new IllegalStateException("tuples of page " + pid.getPageNumber() + " overflow it by " + (-zerolen) + " bytes");
+			try {
+				dos.write(new byte[zerolen], 0, zerolen);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
@@ -325,17 +498,19 @@ public class BTreeLeafPage extends BTreePage {
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
 
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
+		// binary search for the last key less than or equal to the key being inserted
+		int[] used = getUsedSlots();
+		Field key = getKey(t);
+		int lo = 0;
+		int hi = used.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(getKey(tuples[used[mid]]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				lo = mid + 1;
+			else
+				hi = mid;
 		}
+		int lessOrEqKey = lo == 0 ? -1 : used[lo - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -441,18 +616,70 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		return getUsedSlots().length;
 	}
 
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		int freeSlots = numSlots - getNumTuples();
+		if(!prefixCompressed)
+			return freeSlots;
+		int freeBytes = Math.max(0, getCapacity() - getFill());
+		return Math.min(freeSlots, freeBytes / getMaxInsertFill());
+	}
+
+	public int getFill() {
+		if(!prefixCompressed)
+			return getNumTuples();
+		int f = fill;
+		if(f < 0) {
+			f = 0;
+			byte[] prev = null;
+			for(int i : getUsedSlots()) {
+				byte[] key = PrefixKeys.bytes(tuples[i].getField(keyField));
+				f += PrefixKeys.encodedSize(prev, key) + getRestSize();
+				prev = key;
+			}
+			fill = f;
+		}
+		return f;
+	}
+
+	public int getMinFill() {
+		if(!prefixCompressed)
+			return getMaxTuples() / 2;
+		return (getCapacity() - getMaxInsertFill()) / 2;
+	}
+
+	/**
+	 * Returns how much the given tuple adds to the fill of this page, at most
+	 */
+	public int getFillOf(Tuple t) {
+		if(!prefixCompressed)
+			return 1;
+		return PrefixKeys.encodedSize(null, PrefixKeys.bytes(t.getField(keyField))) + getRestSize();
+	}
+
+	/**
+	 * Returns the used slots of this page in order
+	 */
+	private int[] getUsedSlots() {
+		int[] used = usedSlots;
+		if(used == null) {
+			int cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			used = new int[cnt];
+			cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					used[cnt++] = i;
+			usedSlots = used;
+		}
+		return used;
 	}
 
 	/**
@@ -472,6 +699,8 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		usedSlots = null;
+		fill = -1;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
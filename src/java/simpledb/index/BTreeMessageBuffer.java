@@ -0,0 +1,188 @@
+package simpledb.index;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The inserts and deletes of one transaction in a BTreeFile that have not reached its
+ * leaf pages yet, in the manner of the message buffers of a B-epsilon tree.
+ * <p>
+ * Messages are kept in key order. For every set of field values the pending messages
+ * are either all inserts or all deletes: an insert of the same values as a pending
+ * delete cancels it, and the other way round, so the order in which messages with the
+ * same key reach the leaves does not matter.
+ * <p>
+ * Changes are synchronized on the buffer. Readers walk the messages without locking
+ * and see every message that is pending when they reach its key.
+ */
+class BTreeMessageBuffer {
+
+	/**
+	 * A pending insert or delete of a tuple
+	 */
+	static class Message {
+		final Tuple tuple;
+		final boolean delete;
+
+		Message(Tuple tuple, boolean delete) {
+			this.tuple = tuple;
+			this.delete = delete;
+		}
+	}
+
+	// the lists are never changed, only replaced
+	private final ConcurrentSkipListMap<Field, List<Message>> messages =
+			new ConcurrentSkipListMap<>(BTreeMessageBuffer::compareKeys);
+	private volatile int size = 0;
+
+	/**
+	 * Compare two keys, or a key and a prefix of a key. Unlike
+	 * {@link CompositeField#compareTo}, a prefix is smaller than every key that starts
+	 * with it, so that searching for a prefix finds the first of them.
+	 */
+	static int compareKeys(Field a, Field b) {
+		if(!(a instanceof CompositeField) && !(b instanceof CompositeField)) {
+			return a.compare(Op.LESS_THAN, b) ? -1 : a.compare(Op.GREATER_THAN, b) ? 1 : 0;
+		}
+		CompositeField ca = a instanceof CompositeField ? (CompositeField) a : new CompositeField(a);
+		CompositeField cb = b instanceof CompositeField ? (CompositeField) b : new CompositeField(b);
+		int cmp = ca.compareTo(cb);
+		return cmp != 0 ? cmp : Integer.compare(ca.numFields(), cb.numFields());
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Add a message for tuple t with key key
+	 */
+	synchronized void add(Field key, Tuple t, boolean delete) {
+		List<Message> list = messages.get(key);
+		List<Message> updated = list == null ? new ArrayList<>(1) : new ArrayList<>(list);
+		updated.add(new Message(t, delete));
+		messages.put(key, Collections.unmodifiableList(updated));
+		size++;
+	}
+
+	/**
+	 * Remove a pending message for the tuple t, or for one with the same field values.
+	 *
+	 * @param delete - whether to look for a delete or an insert
+	 * @return the tuple of the removed message, or null if there was none
+	 */
+	synchronized Tuple cancel(Field key, Tuple t, boolean delete) {
+		List<Message> list = messages.get(key);
+		if(list == null) {
+			return null;
+		}
+		int found = -1;
+		for(int i = 0; i < list.size(); i++) {
+			Message m = list.get(i);
+			if(m.delete != delete) {
+				continue;
+			}
+			if(m.tuple == t) {
+				found = i;
+				break;
+			}
+			if(found < 0 && BTreeFile.sameFields(m.tuple, t)) {
+				found = i;
+			}
+		}
+		if(found < 0) {
+			return null;
+		}
+		Tuple cancelled = list.get(found).tuple;
+		if(list.size() == 1) {
+			messages.remove(key);
+		}
+		else {
+			List<Message> updated = new ArrayList<>(list);
+			updated.remove(found);
+			messages.put(key, Collections.unmodifiableList(updated));
+		}
+		size--;
+		return cancelled;
+	}
+
+	/**
+	 * @return the pending messages with a key of at least start, or all of them if start
+	 * is null, in key order
+	 */
+	Iterator<Message> from(Field start) {
+		Collection<List<Message>> lists = start == null ? messages.values()
+				: messages.tailMap(start, true).values();
+		Iterator<List<Message>> it = lists.iterator();
+		return new Iterator<Message>() {
+			private Iterator<Message> current = Collections.emptyIterator();
+
+			public boolean hasNext() {
+				while(!current.hasNext() && it.hasNext()) {
+					current = it.next().iterator();
+				}
+				return current.hasNext();
+			}
+
+			public Message next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+		};
+	}
+
+	/**
+	 * Remove the messages of the child of an internal page that has the most of them. The
+	 * child i of a page with separators s[0..n-1] gets the keys above s[i-1] and up to
+	 * s[i], which is where a search for them descends to.
+	 *
+	 * @param separators - the keys of the internal page, in order, or an empty list to
+	 * remove every message
+	 * @return the removed messages, in key order
+	 */
+	synchronized List<Message> takeLargestChild(List<Field> separators) {
+		// count the messages below each child
+		int[] counts = new int[separators.size() + 1];
+		int child = 0;
+		for(Map.Entry<Field, List<Message>> e : messages.entrySet()) {
+			while(child < separators.size() && e.getKey().compare(Op.GREATER_THAN, separators.get(child))) {
+				child++;
+			}
+			counts[child] += e.getValue().size();
+		}
+		int largest = 0;
+		for(int i = 1; i < counts.length; i++) {
+			if(counts[i] > counts[largest]) {
+				largest = i;
+			}
+		}
+
+		Field low = largest == 0 ? null : separators.get(largest - 1);
+		Field high = largest == separators.size() ? null : separators.get(largest);
+		NavigableMap<Field, List<Message>> range = messages;
+		if(low != null) {
+			range = range.tailMap(low, false);
+		}
+		if(high != null) {
+			range = range.headMap(high, true);
+		}
+		List<Message> taken = new ArrayList<>(counts[largest]);
+		for(List<Message> list : range.values()) {
+			taken.addAll(list);
+		}
+		range.clear();
+		size -= taken.size();
+		return taken;
+	}
+}
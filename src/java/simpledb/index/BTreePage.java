@@ -5,7 +5,9 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -26,6 +28,8 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
+	protected final boolean prefixCompressed;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -55,9 +59,50 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, key, false);
+	}
+
+	/**
+	 * Create a BTreePage in either the fixed-width or the prefix-compressed format.
+	 * Prefix compression only applies to string keys and is ignored otherwise.
+	 * 
+	 * @param id - the id of this page
+	 * @param key - the field which the index is keyed on
+	 * @param prefixCompressed - whether keys are stored prefix compressed
+	 */
+	public BTreePage(BTreePageId id, int key, boolean prefixCompressed) {
+		this(id, new int[]{key}, prefixCompressed);
+	}
+
+	/**
+	 * Create a BTreePage keyed on one or more fields. A page keyed on several fields
+	 * compares its keys lexicographically (see {@link CompositeKeys}) and is never
+	 * prefix compressed.
+	 * 
+	 * @param id - the id of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @param prefixCompressed - whether keys are stored prefix compressed
+	 */
+	public BTreePage(BTreePageId id, int[] keyFields, boolean prefixCompressed) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keyFields[0];
+		this.keyFields = keyFields;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.prefixCompressed = prefixCompressed && keyFields.length == 1 && PrefixKeys.supports(td.getFieldType(keyField));
+	}
+
+	/**
+	 * @return the key of a tuple stored in this B+ tree
+	 */
+	protected Field getKey(Tuple t) {
+		return CompositeKeys.key(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes a key takes on a fixed-width internal page
+	 */
+	protected int getKeyLen() {
+		return CompositeKeys.getLen(td, keyFields);
 	}
 
 	/**
@@ -135,7 +180,29 @@ public abstract class BTreePage implements Page {
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * @return true if the keys on this page are stored prefix compressed. Such pages hold
+	 * a variable number of entries and measure their fill in bytes rather than in entries.
+	 */
+	public boolean isPrefixCompressed() {
+		return prefixCompressed;
+	}
+
+	/**
+	 * Returns how full this page is: the number of entries on a fixed-width page, or the
+	 * number of bytes its entries occupy on a prefix-compressed page.
+	 */
+	public abstract int getFill();
+
+	/**
+	 * Returns the fill below which a page other than the root is less than half full and
+	 * must steal from or merge with a sibling. A sibling whose fill is at most this much
+	 * can always be merged with such a page.
+	 */
+	public abstract int getMinFill();
+
+	/**
+	 * Returns the number of empty slots on this page. On a prefix-compressed page this is
+	 * the number of entries that are guaranteed to fit, whatever their keys.
 	 */
 	public abstract int getNumEmptySlots();
 	
@@ -3,8 +3,8 @@ package simpledb.index;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.execution.IndexOpIterator;
 import simpledb.execution.IndexPredicate;
-import simpledb.execution.OpIterator;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -15,9 +15,10 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate. As an IndexOpIterator it can be reopened with a
+ * new predicate, which is how index nested-loop joins probe it.
  */
-public class BTreeScan implements OpIterator {
+public class BTreeScan implements IndexOpIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -26,6 +27,7 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -71,6 +73,20 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the predicate the scan matches, or null if it returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -85,14 +101,10 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-		}
-		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
-		}
+		this.it = newIterator();
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
@@ -106,6 +118,13 @@ public class BTreeScan implements OpIterator {
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
+	private DbFileIterator newIterator() {
+		if(ipred == null) {
+			return Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		}
+		return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+	}
+
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
@@ -118,6 +137,23 @@ public class BTreeScan implements OpIterator {
 		isOpen = true;
 	}
 
+	/**
+	 * Open this scan with a new predicate, replacing the one it was created with.
+	 */
+	public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		this.ipred = ipred;
+		this.it = newIterator();
+		open();
+	}
+
+	/**
+	 * Restart this scan with a new predicate.
+	 */
+	public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		close();
+		open(ipred);
+	}
+
 	/**
 	 * Returns the TupleDesc with field names from the underlying BTreeFile,
 	 * prefixed with the tableAlias string from the constructor. This prefix
@@ -0,0 +1,91 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.DataInputStream;
+import java.text.ParseException;
+
+/**
+ * Keys of B+ trees keyed on an ordered list of fields.
+ * <p>
+ * A tree keyed on a single field uses the value of that field as the key, exactly
+ * as before. A tree keyed on several fields uses a {@link CompositeField} of their
+ * values, stored on internal pages as the values one after the other.
+ */
+final class CompositeKeys {
+
+	private CompositeKeys() {}
+
+	/**
+	 * @return the key of a tuple
+	 */
+	static Field key(Tuple t, int[] keyFields) {
+		if (keyFields.length == 1) {
+			return t.getField(keyFields[0]);
+		}
+		Field[] values = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			values[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(values);
+	}
+
+	/**
+	 * @return the number of bytes a key takes on an internal page
+	 */
+	static int getLen(TupleDesc td, int[] keyFields) {
+		int len = 0;
+		for (int k : keyFields) {
+			len += td.getFieldType(k).getLen();
+		}
+		return len;
+	}
+
+	/**
+	 * @return a key read from an internal page
+	 */
+	static Field parse(DataInputStream dis, TupleDesc td, int[] keyFields) throws ParseException {
+		if (keyFields.length == 1) {
+			return td.getFieldType(keyFields[0]).parse(dis);
+		}
+		Field[] values = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			values[i] = td.getFieldType(keyFields[i]).parse(dis);
+		}
+		return new CompositeField(values);
+	}
+
+	/**
+	 * @return true if f is a whole key of a tree keyed on keyFields
+	 */
+	static boolean isKey(Field f, TupleDesc td, int[] keyFields) {
+		if (keyFields.length == 1) {
+			return f.getType().equals(td.getFieldType(keyFields[0]));
+		}
+		if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length) {
+			return false;
+		}
+		for (int i = 0; i < keyFields.length; i++) {
+			Type t = ((CompositeField) f).getField(i).getType();
+			if (!t.equals(td.getFieldType(keyFields[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Turn the value of the first key field into a search key, so that a tree keyed
+	 * on several fields can be searched with it as a prefix.
+	 */
+	static Field searchKey(Field f, int[] keyFields) {
+		if (f == null || keyFields.length == 1 || f instanceof CompositeField) {
+			return f;
+		}
+		return new CompositeField(f);
+	}
+}
@@ -0,0 +1,298 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket (or one
+ * overflow page of a bucket) of a HashFile and implements the Page interface
+ * that is used by BufferPool.
+ * <p>
+ * A bucket page starts with the local depth of its bucket and the page number
+ * of the next page in the bucket's overflow chain (0 if there is none),
+ * followed by a header with one bit per slot and the tuple slots, like a
+ * HeapPage.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+
+	// bytes of the local depth and next page pointer
+	private static final int POINTER_SIZE = 8;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final int numSlots;
+
+	private int localDepth;
+	private int nextPage;
+	private final byte[] header;
+	private final Tuple[] tuples;
+
+	private byte[] oldData;
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param td - the TupleDesc of the tuples in the HashFile
+	 */
+	public HashBucketPage(HashPageId id, byte[] data, TupleDesc td) throws IOException {
+		this.pid = id;
+		this.td = td;
+		this.numSlots = getNumSlots(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		nextPage = dis.readInt();
+		header = new byte[getHeaderSize()];
+		for (int i = 0; i < header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			for (int i = 0; i < tuples.length; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuple slots on a bucket page for tuples of the given TupleDesc
+	 */
+	public static int getNumSlots(TupleDesc td) {
+		return ((BufferPool.getPageSize() - POINTER_SIZE) * 8) / (td.getSize() * 8 + 1);
+	}
+
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			try {
+				dis.skipBytes(td.getSize());
+			} catch (IOException e) {
+				throw new NoSuchElementException("error reading empty tuple");
+			}
+			return null;
+		}
+
+		// read fields in the tuple
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j = 0; j < td.numFields(); j++) {
+				t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+		return t;
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(nextPage);
+			dos.write(header);
+			for (int i = 0; i < tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++) {
+					tuples[i].getField(j).serialize(dos);
+				}
+			}
+			// padding
+			dos.write(new byte[len - POINTER_SIZE - header.length - td.getSize() * tuples.length]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+		-- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			return new HashBucketPage(pid, oldData, td);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of low-order hash bits shared by all keys in this bucket
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the page number of the next page in the overflow chain, or 0 if
+	 * this is the last one. On a free page, the next free page.
+	 */
+	public int getNextPage() {
+		return nextPage;
+	}
+
+	public void setNextPage(int nextPage) {
+		this.nextPage = nextPage;
+	}
+
+	/**
+	 * Adds the specified tuple to the page; the tuple is updated to reflect
+	 * that it is now stored on this page.
+	 *
+	 * @throws DbException if the page is full or the tupledesc is mismatched
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in addTuple");
+		}
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 *
+	 * @throws DbException if this tuple is not on this page, or its slot is
+	 *                     already empty.
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !rid.getPageId().equals(pid)) {
+			throw new DbException("tried to delete tuple on invalid page or table");
+		}
+		int i = rid.getTupleNumber();
+		if (i < 0 || i >= numSlots || !isSlotUsed(i)) {
+			throw new DbException("tried to delete null tuple.");
+		}
+		markSlotUsed(i, false);
+		tuples[i] = null;
+	}
+
+	/**
+	 * Remove all tuples from this page.
+	 */
+	public void clear() {
+		Arrays.fill(header, (byte) 0);
+		Arrays.fill(tuples, null);
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int count = 0;
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] >> (i % 8) & 1) == 1;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		byte mask = (byte) (1 << (i % 8));
+		if (value) {
+			header[i / 8] |= mask;
+		} else {
+			header[i / 8] &= ~mask;
+		}
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this
+	 *         iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> res = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				res.add(tuples[i]);
+			}
+		}
+		return Collections.unmodifiableList(res).iterator();
+	}
+}
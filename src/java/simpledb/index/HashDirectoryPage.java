@@ -0,0 +1,130 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+
+/**
+ * Each HashDirectoryPage stores a consecutive range of the directory of a
+ * HashFile: the page numbers of the bucket pages that the hash values ending
+ * in each bit pattern map to. It implements the Page interface that is used
+ * by BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashDirectoryPage implements Page {
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final int[] buckets;
+
+	private byte[] oldData;
+
+	/**
+	 * Construct the HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format is simply getNumEntries() integers, each the page number of
+	 * a bucket page (0 for entries beyond the current size of the directory).
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		buckets = new int[getNumEntries()];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = dis.readInt();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of directory entries on one page
+	 */
+	public static int getNumEntries() {
+		return BufferPool.getPageSize() / 4;
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int b : buckets) {
+				dos.writeInt(b);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - 4 * buckets.length]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashDirectoryPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+		-- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			return new HashDirectoryPage(pid, oldData);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the page number of the bucket of the i-th entry on this page
+	 */
+	public int getBucket(int i) {
+		return buckets[i];
+	}
+
+	/**
+	 * Point the i-th entry on this page to a bucket page.
+	 */
+	public void setBucket(int i, int bucketPageNo) {
+		buckets[i] = bucketPageNo;
+	}
+}
@@ -0,0 +1,642 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * HashFile is an on-disk extendible hash table of tuples, keyed on one field.
+ * It answers equality lookups with a fixed number of page reads, no matter
+ * how many tuples it holds, but keeps no order between keys.
+ * <p>
+ * Page 0 is a HashRootPage holding the global depth g of the directory and the
+ * locations of the HashDirectoryPages, which together map the g low-order bits
+ * of a key's hash to a HashBucketPage. A bucket with local depth d is shared by
+ * the 2^(g-d) directory entries that agree on the d low-order bits. When an
+ * insert finds its bucket full, only that bucket is split, doubling the
+ * directory first if d == g. Keys that split cannot separate (duplicates, or
+ * hashes that agree on every usable bit) go to a chain of overflow pages
+ * instead. Buckets are not merged again when tuples are deleted; pages freed
+ * while splitting a bucket with overflow pages are kept on a free list.
+ * <p>
+ * Inserts and deletes are serialized; lookups run concurrently with each other.
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	// inserts and deletes restructure buckets and the directory one at a time;
+	// lookups read a bucket chain in shared mode
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile: the hash of the absolute
+	 * file name of the underlying file.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash file is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the root page.
+	 */
+	public int numPages() {
+		// we only ever write full pages
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] pageBuf = new byte[BufferPool.getPageSize()];
+		try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+			long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+			if (offset + pageBuf.length > rf.length()) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			rf.seek(offset);
+			rf.readFully(pageBuf);
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			switch (id.pgcateg()) {
+				case HashPageId.ROOT:
+					return new HashRootPage(id, pageBuf);
+				case HashPageId.DIRECTORY:
+					return new HashDirectoryPage(id, pageBuf);
+				default:
+					return new HashBucketPage(id, pageBuf, td);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * @return the hash of a key. The low-order bits index the directory, so the
+	 * hash code of the field is mixed to spread keys that differ in high bits only.
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * @return the largest global (and local) depth, bounded by the number of
+	 * directory entries the root page can point to
+	 */
+	static int maxDepth() {
+		long entries = (long) HashRootPage.getMaxDirectoryPages() * HashDirectoryPage.getNumEntries();
+		return Math.min(30, 63 - Long.numberOfLeadingZeros(entries));
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page. First the method
+	 * checks the local cache ("dirtypages"), and if it can't find the requested page
+	 * there, it fetches it from the buffer pool. It also adds pages to the dirtypages
+	 * cache if they are fetched with read-write permission.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	private Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if (perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Get the root page, first creating an empty hash table (a root page, one
+	 * directory page and one empty bucket) if the file is empty.
+	 */
+	private HashRootPage getRootPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized (this) {
+			if (f.length() == 0) {
+				HashRootPage root = new HashRootPage(HashPageId.root(tableid), HashRootPage.createEmptyPageData());
+				root.addDirectoryPage(new HashPageId(tableid, 1, HashPageId.DIRECTORY));
+				HashDirectoryPage dir = new HashDirectoryPage(root.getDirectoryPageId(0),
+						HashDirectoryPage.createEmptyPageData());
+				dir.setBucket(0, 2);
+				try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+					bw.write(root.getPageData());
+					bw.write(dir.getPageData());
+					bw.write(HashBucketPage.createEmptyPageData());
+				}
+			}
+		}
+		return (HashRootPage) getPage(tid, dirtypages, HashPageId.root(tableid), perm);
+	}
+
+	/**
+	 * @return the page number of the bucket that a directory entry points to
+	 */
+	private int getEntry(TransactionId tid, Map<PageId, Page> dirtypages, HashRootPage root, int entry)
+			throws DbException, TransactionAbortedException {
+		int perPage = HashDirectoryPage.getNumEntries();
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+				root.getDirectoryPageId(entry / perPage), Permissions.READ_ONLY);
+		return dir.getBucket(entry % perPage);
+	}
+
+	private void setEntry(TransactionId tid, Map<PageId, Page> dirtypages, HashRootPage root, int entry,
+			int bucketPageNo) throws DbException, TransactionAbortedException {
+		int perPage = HashDirectoryPage.getNumEntries();
+		HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages,
+				root.getDirectoryPageId(entry / perPage), Permissions.READ_WRITE);
+		dir.setBucket(entry % perPage, bucketPageNo);
+	}
+
+	/**
+	 * @return the pages of the bucket a hash value belongs to, starting with the
+	 * primary page and followed by its overflow pages
+	 */
+	private List<HashBucketPage> getChain(TransactionId tid, Map<PageId, Page> dirtypages, int hash)
+			throws DbException, IOException, TransactionAbortedException {
+		HashRootPage root = getRootPage(tid, dirtypages, Permissions.READ_ONLY);
+		int entry = hash & ((1 << root.getGlobalDepth()) - 1);
+		int pgNo = getEntry(tid, dirtypages, root, entry);
+		List<HashBucketPage> chain = new ArrayList<>();
+		while (pgNo != 0) {
+			HashBucketPage p = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, pgNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+			chain.add(p);
+			pgNo = p.getNextPage();
+		}
+		return chain;
+	}
+
+	private HashBucketPage writable(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage p)
+			throws DbException, TransactionAbortedException {
+		return (HashBucketPage) getPage(tid, dirtypages, p.getId(), Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Insert a tuple into this HashFile, splitting its bucket (and doubling the
+	 * directory) or extending the bucket's overflow chain if the bucket is full.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("tuple desc does not match the hash file");
+		}
+		latch.writeLock().lock();
+		try {
+			Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+			int h = hash(t.getField(keyField));
+			while (true) {
+				List<HashBucketPage> chain = getChain(tid, dirtypages, h);
+				for (HashBucketPage p : chain) {
+					if (p.getNumEmptySlots() > 0) {
+						writable(tid, dirtypages, p).insertTuple(t);
+						return new ArrayList<>(dirtypages.values());
+					}
+				}
+
+				int localDepth = chain.get(0).getLocalDepth();
+				if (localDepth < maxDepth() && splitSeparates(chain, h)) {
+					splitBucket(tid, dirtypages, chain, h);
+					continue;
+				}
+				// splitting cannot make room, chain an overflow page
+				HashBucketPage overflow = getEmptyBucketPage(tid, dirtypages);
+				overflow.setLocalDepth(localDepth);
+				writable(tid, dirtypages, chain.get(chain.size() - 1))
+						.setNextPage(overflow.getId().getPageNumber());
+				overflow.insertTuple(t);
+				return new ArrayList<>(dirtypages.values());
+			}
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if some key in the bucket differs from the key being inserted
+	 * in one of the hash bits that splits can use
+	 */
+	private boolean splitSeparates(List<HashBucketPage> chain, int hash) {
+		int mask = (1 << maxDepth()) - 1;
+		for (HashBucketPage p : chain) {
+			Iterator<Tuple> it = p.iterator();
+			while (it.hasNext()) {
+				if ((hash(it.next().getField(keyField)) & mask) != (hash & mask)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Split the bucket a hash value belongs to. The tuples of the bucket, including
+	 * its overflow pages, are redistributed between the old primary page and a new
+	 * bucket on the next hash bit, and the directory entries with that bit set are
+	 * pointed to the new bucket. Overflow pages that are no longer needed are freed.
+	 */
+	private void splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, List<HashBucketPage> chain, int hash)
+			throws DbException, IOException, TransactionAbortedException {
+		HashRootPage root = getRootPage(tid, dirtypages, Permissions.READ_ONLY);
+		int depth = chain.get(0).getLocalDepth();
+		if (depth == root.getGlobalDepth()) {
+			root = doubleDirectory(tid, dirtypages);
+		}
+
+		List<Tuple> tuples = new ArrayList<>();
+		Deque<HashBucketPage> spare = new ArrayDeque<>();
+		for (int i = 0; i < chain.size(); i++) {
+			HashBucketPage p = writable(tid, dirtypages, chain.get(i));
+			p.iterator().forEachRemaining(tuples::add);
+			p.clear();
+			p.setNextPage(0);
+			p.setLocalDepth(depth + 1);
+			if (i > 0) {
+				spare.add(p);
+			}
+		}
+		HashBucketPage low = writable(tid, dirtypages, chain.get(0));
+		HashBucketPage high = getEmptyBucketPage(tid, dirtypages);
+		high.setLocalDepth(depth + 1);
+
+		HashBucketPage[] tails = new HashBucketPage[]{low, high};
+		for (Tuple t : tuples) {
+			int side = (hash(t.getField(keyField)) >>> depth) & 1;
+			if (tails[side].getNumEmptySlots() == 0) {
+				HashBucketPage next = spare.isEmpty() ? getEmptyBucketPage(tid, dirtypages) : spare.poll();
+				next.setLocalDepth(depth + 1);
+				tails[side].setNextPage(next.getId().getPageNumber());
+				tails[side] = next;
+			}
+			tails[side].insertTuple(t);
+		}
+		for (HashBucketPage p : spare) {
+			freePage(tid, dirtypages, p);
+		}
+
+		int highPageNo = high.getId().getPageNumber();
+		int lowBits = hash & ((1 << depth) - 1);
+		for (int e = lowBits | (1 << depth); e < (1 << root.getGlobalDepth()); e += 1 << (depth + 1)) {
+			setEntry(tid, dirtypages, root, e, highPageNo);
+		}
+	}
+
+	/**
+	 * Double the directory: entry i + 2^g becomes a copy of entry i, adding
+	 * directory pages as needed.
+	 *
+	 * @return the updated root page
+	 */
+	private HashRootPage doubleDirectory(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		HashRootPage root = getRootPage(tid, dirtypages, Permissions.READ_WRITE);
+		int size = 1 << root.getGlobalDepth();
+		int perPage = HashDirectoryPage.getNumEntries();
+		while ((long) root.getNumDirectoryPages() * perPage < 2L * size) {
+			root.addDirectoryPage((HashPageId) getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY).getId());
+		}
+		for (int e = 0; e < size; e++) {
+			setEntry(tid, dirtypages, root, e + size, getEntry(tid, dirtypages, root, e));
+		}
+		root.setGlobalDepth(root.getGlobalDepth() + 1);
+		return root;
+	}
+
+	private HashBucketPage getEmptyBucketPage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		return (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Method to encapsulate the process of creating a new page. It reuses a page
+	 * from the free list if possible, and appends a page to the file otherwise.
+	 * It wipes the page on disk and in the cache and returns a clean copy locked
+	 * with read-write permission
+	 *
+	 * @param pgcateg - the HashPageId category of the new page, DIRECTORY or BUCKET
+	 * @return the new empty page
+	 */
+	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		HashRootPage root = getRootPage(tid, dirtypages, Permissions.READ_WRITE);
+		int emptyPageNo = root.getFreeHead();
+		if (emptyPageNo != 0) {
+			HashBucketPage free = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, emptyPageNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+			root.setFreeHead(free.getNextPage());
+		} else {
+			synchronized (this) {
+				emptyPageNo = numPages();
+			}
+		}
+
+		// write empty page to disk
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.seek((long) emptyPageNo * BufferPool.getPageSize());
+			rf.write(HashBucketPage.createEmptyPageData());
+		}
+
+		// make sure the page is not in the buffer pool or in the local cache,
+		// whatever it was used for before
+		for (int categ : new int[]{HashPageId.DIRECTORY, HashPageId.BUCKET}) {
+			HashPageId oldId = new HashPageId(tableid, emptyPageNo, categ);
+			Database.getBufferPool().discardPage(oldId);
+			dirtypages.remove(oldId);
+		}
+
+		return getPage(tid, dirtypages, new HashPageId(tableid, emptyPageNo, pgcateg), Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Put a bucket page that is no longer used on the free list.
+	 */
+	private void freePage(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage p)
+			throws DbException, IOException, TransactionAbortedException {
+		HashRootPage root = getRootPage(tid, dirtypages, Permissions.READ_WRITE);
+		p = writable(tid, dirtypages, p);
+		p.clear();
+		p.setLocalDepth(0);
+		p.setNextPage(root.getFreeHead());
+		root.setFreeHead(p.getId().getPageNumber());
+	}
+
+	/**
+	 * Delete a tuple from this HashFile.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 * @throws DbException if the tuple is not stored in this file
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid
+				|| ((HashPageId) rid.getPageId()).pgcateg() != HashPageId.BUCKET) {
+			throw new DbException("tuple is not in this hash file");
+		}
+		latch.writeLock().lock();
+		try {
+			Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+					(HashPageId) rid.getPageId(), Permissions.READ_WRITE);
+			page.deleteTuple(t);
+			return new ArrayList<>(dirtypages.values());
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the tuples of the bucket the key belongs to whose key equals it
+	 */
+	private List<Tuple> lookup(TransactionId tid, Field key)
+			throws DbException, TransactionAbortedException {
+		latch.readLock().lock();
+		try {
+			List<Tuple> result = new ArrayList<>();
+			for (HashBucketPage p : getChain(tid, new HashMap<>(), hash(key))) {
+				Iterator<Tuple> it = p.iterator();
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (t.getField(keyField).equals(key)) {
+						result.add(t);
+					}
+				}
+			}
+			return result;
+		} catch (IOException e) {
+			throw new DbException("could not initialize hash file: " + e.getMessage());
+		} finally {
+			latch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the tuples on a page, or nothing if it is not a bucket page
+	 */
+	private List<Tuple> bucketTuples(TransactionId tid, int pgNo)
+			throws DbException, TransactionAbortedException {
+		latch.readLock().lock();
+		try {
+			List<Tuple> result = new ArrayList<>();
+			HashRootPage root = getRootPage(tid, new HashMap<>(), Permissions.READ_ONLY);
+			for (int i = 0; i < root.getNumDirectoryPages(); i++) {
+				if (root.getDirectoryPageId(i).getPageNumber() == pgNo) {
+					return result;
+				}
+			}
+			HashBucketPage p = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(tableid, pgNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+			p.iterator().forEachRemaining(result::add);
+			return result;
+		} catch (IOException e) {
+			throw new DbException("could not initialize hash file: " + e.getMessage());
+		} finally {
+			latch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get an iterator for the tuples that satisfy the given predicate on the key
+	 * field. EQUALS predicates read only the bucket of the key; other predicates
+	 * have no better plan than filtering a scan of the whole file.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred.getOp() == Op.EQUALS) {
+			return new HashLookupIterator(this, tid, ipred.getField());
+		}
+		return new HashScanIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, in no particular order.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashScanIterator(this, tid, null);
+	}
+
+	/**
+	 * Iterator over the tuples with one key
+	 */
+	private static class HashLookupIterator extends AbstractDbFileIterator {
+
+		private final HashFile f;
+		private final TransactionId tid;
+		private final Field key;
+		private Iterator<Tuple> it = null;
+
+		HashLookupIterator(HashFile f, TransactionId tid, Field key) {
+			this.f = f;
+			this.tid = tid;
+			this.key = key;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			it = f.lookup(tid, key).iterator();
+		}
+
+		@Override
+		protected Tuple readNext() {
+			if (it != null && it.hasNext()) {
+				return it.next();
+			}
+			return null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			it = null;
+		}
+	}
+
+	/**
+	 * Iterator over the bucket pages of a hash file in page order, returning
+	 * the tuples that satisfy a predicate (or all tuples if it is null)
+	 */
+	private static class HashScanIterator extends AbstractDbFileIterator {
+
+		private final HashFile f;
+		private final TransactionId tid;
+		private final IndexPredicate ipred;
+		private Iterator<Tuple> it = null;
+		private int pgNo;
+
+		HashScanIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+			this.f = f;
+			this.tid = tid;
+			this.ipred = ipred;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			it = Collections.emptyIterator();
+			// page 0 is the root page
+			pgNo = 0;
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (it == null) {
+				return null;
+			}
+			while (true) {
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+						return t;
+					}
+				}
+				if (++pgNo >= f.numPages()) {
+					return null;
+				}
+				it = f.bucketTuples(tid, pgNo).iterator();
+			}
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			it = null;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package simpledb.index;
+
+import simpledb.storage.PageId;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for the pages of a HashFile: the root page (always page 0),
+ * the directory pages and the bucket pages.
+ */
+public class HashPageId implements PageId {
+
+	public final static int ROOT = 0;
+	public final static int DIRECTORY = 1;
+	public final static int BUCKET = 2;
+
+	private final int tableId;
+	private final int pgNo;
+	private final int pgcateg;
+
+	static public String categToString(int categ) {
+		switch (categ) {
+			case ROOT:
+				return "ROOT";
+			case DIRECTORY:
+				return "DIRECTORY";
+			case BUCKET:
+				return "BUCKET";
+			default:
+				throw new IllegalArgumentException("categ");
+		}
+	}
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific HashFile.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param pgNo The page number in that table.
+	 * @param pgcateg which kind of page it is
+	 */
+	public HashPageId(int tableId, int pgNo, int pgcateg) {
+		this.tableId = tableId;
+		this.pgNo = pgNo;
+		this.pgcateg = pgcateg;
+	}
+
+	/**
+	 * @return the id of the root page of the given table
+	 */
+	public static HashPageId root(int tableId) {
+		return new HashPageId(tableId, 0, ROOT);
+	}
+
+	public int getTableId() {
+		return tableId;
+	}
+
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	public int pgcateg() {
+		return pgcateg;
+	}
+
+	public int hashCode() {
+		return Objects.hash(tableId, pgNo, pgcateg);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof HashPageId))
+			return false;
+		HashPageId p = (HashPageId) o;
+		return tableId == p.tableId && pgNo == p.pgNo && pgcateg == p.pgcateg;
+	}
+
+	public String toString() {
+		return "(tableId: " + tableId +
+				", pgNo: " + pgNo +
+				", pgcateg: " + categToString(pgcateg) +
+				")";
+	}
+
+	public int[] serialize() {
+		int[] data = new int[3];
+
+		data[0] = tableId;
+		data[1] = pgNo;
+		data[2] = pgcateg;
+
+		return data;
+	}
+}
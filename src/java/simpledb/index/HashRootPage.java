@@ -0,0 +1,178 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+
+/**
+ * HashRootPage is the first page of a HashFile. It stores the global depth of
+ * the directory, the head of the list of free pages and the page numbers of the
+ * directory pages, and implements the Page interface that is used by BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashRootPage implements Page {
+
+	// bytes of the global depth, free list head and directory page count
+	private static final int HEADER_SIZE = 12;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private final HashPageId pid;
+
+	private int globalDepth;
+	private int freeHead;
+	private final int[] directoryPages;
+	private int numDirectoryPages;
+
+	private byte[] oldData;
+
+	/**
+	 * Construct the HashRootPage from a set of bytes of data read from disk.
+	 * The format is an integer for the global depth, an integer for the page
+	 * number of the first free page (0 if there is none), an integer for the
+	 * number of directory pages and then the page numbers of the directory pages.
+	 */
+	public HashRootPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		globalDepth = dis.readInt();
+		freeHead = dis.readInt();
+		numDirectoryPages = dis.readInt();
+		directoryPages = new int[getMaxDirectoryPages()];
+		for (int i = 0; i < numDirectoryPages; i++) {
+			directoryPages[i] = dis.readInt();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the largest number of directory pages a root page can point to
+	 */
+	public static int getMaxDirectoryPages() {
+		return (BufferPool.getPageSize() - HEADER_SIZE) / 4;
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			dos.writeInt(freeHead);
+			dos.writeInt(numDirectoryPages);
+			for (int i = 0; i < numDirectoryPages; i++) {
+				dos.writeInt(directoryPages[i]);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - HEADER_SIZE - 4 * numDirectoryPages]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashRootPage: global depth 0, no free pages and no directory pages.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+		-- used by recovery */
+	public HashRootPage getBeforeImage() {
+		try {
+			return new HashRootPage(pid, oldData);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of low-order hash bits the directory is indexed by
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	public void setGlobalDepth(int globalDepth) {
+		this.globalDepth = globalDepth;
+	}
+
+	/**
+	 * @return the page number of the first free page, or 0 if there is none
+	 */
+	public int getFreeHead() {
+		return freeHead;
+	}
+
+	public void setFreeHead(int freeHead) {
+		this.freeHead = freeHead;
+	}
+
+	/**
+	 * @return the number of directory pages
+	 */
+	public int getNumDirectoryPages() {
+		return numDirectoryPages;
+	}
+
+	/**
+	 * @return the id of the i-th directory page
+	 */
+	public HashPageId getDirectoryPageId(int i) {
+		if (i < 0 || i >= numDirectoryPages) {
+			throw new IndexOutOfBoundsException("no directory page " + i);
+		}
+		return new HashPageId(pid.getTableId(), directoryPages[i], HashPageId.DIRECTORY);
+	}
+
+	/**
+	 * Append a directory page.
+	 */
+	public void addDirectoryPage(HashPageId id) {
+		if (numDirectoryPages == directoryPages.length) {
+			throw new IllegalStateException("root page has no room for another directory page");
+		}
+		directoryPages[numDirectoryPages++] = id.getPageNumber();
+	}
+}
@@ -0,0 +1,127 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.StringField;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encoding of string keys on prefix-compressed B+ tree pages.
+ * <p>
+ * Keys are front coded: each key is stored as the number of leading bytes it
+ * shares with the previous key on the page, the number of remaining bytes, and
+ * the remaining bytes themselves. The bytes of a key are the ones
+ * {@link StringField#serialize} writes, without the length and padding.
+ */
+final class PrefixKeys {
+
+	/** bytes of the two length prefixes of an encoded key */
+	static final int KEY_HEADER_SIZE = 2;
+
+	/** the largest number of bytes a key can occupy on a page */
+	static final int MAX_KEY_SIZE = KEY_HEADER_SIZE + Type.STRING_LEN;
+
+	private PrefixKeys() {}
+
+	/**
+	 * @return true if keys of the given type can be prefix compressed
+	 */
+	static boolean supports(Type t) {
+		return t == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the bytes of a string key
+	 */
+	static byte[] bytes(Field f) {
+		String s = ((StringField) f).getValue();
+		int len = Math.min(s.length(), Type.STRING_LEN);
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * @return the string key with the given bytes
+	 */
+	static Field field(byte[] b) {
+		return new StringField(new String(b), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the length of the longest common prefix of a and b
+	 */
+	static int commonPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < n && a[i] == b[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param prev - the bytes of the previous key on the page, or null for the first key
+	 * @param key - the bytes of the key
+	 * @return the number of bytes the key occupies when encoded after prev
+	 */
+	static int encodedSize(byte[] prev, byte[] key) {
+		int shared = prev == null ? 0 : commonPrefix(prev, key);
+		return KEY_HEADER_SIZE + key.length - shared;
+	}
+
+	/**
+	 * Write a key encoded relative to the previous key on the page.
+	 */
+	static void write(DataOutputStream dos, byte[] prev, byte[] key) throws IOException {
+		int shared = prev == null ? 0 : commonPrefix(prev, key);
+		dos.writeByte(shared);
+		dos.writeByte(key.length - shared);
+		dos.write(key, shared, key.length - shared);
+	}
+
+	/**
+	 * Read a key encoded relative to the previous key on the page.
+	 *
+	 * @return the bytes of the key
+	 */
+	static byte[] read(DataInputStream dis, byte[] prev) throws IOException {
+		int shared = dis.readUnsignedByte();
+		int suffix = dis.readUnsignedByte();
+		if (shared > 0 && (prev == null || shared > prev.length)) {
+			throw new IOException("corrupt prefix-compressed key: shares " + shared + " bytes");
+		}
+		byte[] key = new byte[shared + suffix];
+		if (shared > 0) {
+			System.arraycopy(prev, 0, key, 0, shared);
+		}
+		dis.readFully(key, shared, suffix);
+		return key;
+	}
+
+	/**
+	 * Return the shortest separator between two adjacent pages: the shortest prefix of
+	 * the first key of the right page that is still greater than or equal to the last
+	 * key of the left page. Every key on the left page is less than or equal to it and
+	 * every key on the right page greater than or equal to it.
+	 *
+	 * @param left - the last key of the left page
+	 * @param right - the first key of the right page
+	 */
+	static Field separator(Field left, Field right) {
+		String r = ((StringField) right).getValue();
+		for (int len = 0; len < r.length(); len++) {
+			Field candidate = new StringField(r.substring(0, len), Type.STRING_LEN);
+			if (candidate.compare(Op.GREATER_THAN_OR_EQ, left)) {
+				return candidate;
+			}
+		}
+		return right;
+	}
+}
@@ -0,0 +1,241 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A secondary index over one column of a HeapFile.
+ * <p>
+ * The index is a BTreeFile whose tuples are (key, page number, tuple number): the
+ * value of the indexed column and the RecordId of the heap tuple it came from. The
+ * BTreeFile is registered in the catalog as a table of its own, and the index itself
+ * with {@link simpledb.common.Catalog#addIndex}, after which the BufferPool keeps it
+ * up to date on every insert and delete into the base table. Lookups return the heap
+ * tuples, which are fetched page by page through the buffer pool.
+ *
+ * @see SecondaryIndexScan
+ */
+public class SecondaryIndex {
+
+	/** index of the RecordId fields in the tuples of the index */
+	private static final int PAGE_FIELD = 1;
+	private static final int TUPLE_FIELD = 2;
+
+	private final BTreeFile file;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Open an existing secondary index stored in f, or an empty one if f is empty.
+	 *
+	 * @param f - the file that stores the index entries
+	 * @param tableid - the id of the HeapFile the index is over
+	 * @param keyField - the field of the base table the index is keyed on
+	 */
+	public SecondaryIndex(File f, int tableid, int keyField) {
+		if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+			throw new IllegalArgumentException("secondary indexes point into HeapFiles, table " + tableid + " is not one");
+		}
+		this.tableid = tableid;
+		this.keyField = keyField;
+		this.file = new BTreeFile(f, 0, entryDesc(Database.getCatalog().getTupleDesc(tableid).getFieldType(keyField)));
+	}
+
+	/**
+	 * @return the TupleDesc of the index entries for a key of the given type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[]{keyType, Type.INT_TYPE, Type.INT_TYPE},
+				new String[]{"key", "pageno", "tupleno"});
+	}
+
+	/**
+	 * Build a secondary index over the current contents of a table ("CREATE INDEX").
+	 * The (key, RecordId) pairs of the table are sorted with a bounded amount of memory
+	 * and bulk loaded into f, which is overwritten. The index is added to the catalog
+	 * under name and maintained from then on.
+	 *
+	 * @param tid - the transaction reading the base table
+	 * @param tableid - the id of the HeapFile to index
+	 * @param keyField - the field of the base table to index
+	 * @param f - the file on disk to back the index
+	 * @param name - the catalog name of the index
+	 * @param sortMemory - the number of bytes of heap the entries the sort keeps in memory may take
+	 * @return the new index
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int keyField, File f, String name,
+			long sortMemory) throws IOException, DbException, TransactionAbortedException {
+		// start from an empty file
+		new FileOutputStream(f).close();
+		SecondaryIndex index = new SecondaryIndex(f, tableid, keyField);
+		TupleDesc td = index.file.getTupleDesc();
+		Type[] typeAr = new Type[]{td.getFieldType(0), Type.INT_TYPE, Type.INT_TYPE};
+
+		try (ExternalSorter sorter = new ExternalSorter(td, new BTreeFileEncoder.TupleComparator(0), sortMemory)) {
+			HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+			if (table.numPages() > 0) {
+				DbFileIterator it = table.iterator(tid);
+				it.open();
+				try {
+					while (it.hasNext()) {
+						sorter.add(index.entry(it.next()));
+					}
+				} finally {
+					it.close();
+				}
+			}
+			Database.getCatalog().addIndex(index, name);
+			BTreeFileEncoder.bulkLoad(index.file, sorter.sorted(), BufferPool.getPageSize(), typeAr, 0, 1.0);
+		}
+		return index;
+	}
+
+	/**
+	 * @return the BTreeFile storing the index entries
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the id of the table the index is over
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the field of the base table the index is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * @return the index entry for a heap tuple that has a RecordId
+	 */
+	private Tuple entry(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple e = new Tuple(file.getTupleDesc());
+		e.setField(0, t.getField(keyField));
+		e.setField(PAGE_FIELD, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(TUPLE_FIELD, new IntField(rid.getTupleNumber()));
+		return e;
+	}
+
+	/**
+	 * @return the RecordId an index entry points to
+	 */
+	private RecordId pointer(Tuple e) {
+		int pageNo = ((IntField) e.getField(PAGE_FIELD)).getValue();
+		int tupleNo = ((IntField) e.getField(TUPLE_FIELD)).getValue();
+		return new RecordId(new HeapPageId(tableid, pageNo), tupleNo);
+	}
+
+	/**
+	 * Add the entry for a tuple that was just inserted into the base table.
+	 *
+	 * @return the index pages that were modified
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, entry(t));
+	}
+
+	/**
+	 * Remove the entry for a tuple that was deleted from the base table.
+	 *
+	 * @return the index pages that were modified
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		Tuple victim = null;
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(keyField)));
+		it.open();
+		try {
+			while (victim == null && it.hasNext()) {
+				Tuple e = it.next();
+				if (pointer(e).equals(rid)) {
+					victim = e;
+				}
+			}
+		} finally {
+			it.close();
+		}
+		if (victim == null) {
+			throw new DbException("index " + file.getId() + " has no entry for " + rid);
+		}
+		return file.deleteTuple(tid, victim);
+	}
+
+	/**
+	 * Get an iterator over the heap tuples whose indexed field satisfies ipred, in
+	 * key order. Each entry is resolved by reading the HeapPage it points to.
+	 *
+	 * @param tid - the transaction this iterator runs as part of
+	 * @param ipred - the predicate on the indexed field, or null for all tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		DbFileIterator entries = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+		return new SecondaryIndexIterator(this, tid, entries);
+	}
+
+	/**
+	 * Fetches the heap tuple for each index entry
+	 */
+	private static class SecondaryIndexIterator extends AbstractDbFileIterator {
+
+		private final SecondaryIndex index;
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+
+		SecondaryIndexIterator(SecondaryIndex index, TransactionId tid, DbFileIterator entries) {
+			this.index = index;
+			this.tid = tid;
+			this.entries = entries;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (!entries.hasNext()) {
+				return null;
+			}
+			RecordId rid = index.pointer(entries.next());
+			HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			Tuple t = page.getTuple(rid.getTupleNumber());
+			if (t == null) {
+				throw new DbException("index " + index.file.getId() + " points to empty slot " + rid);
+			}
+			return t;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an operator which looks up the tuples of a HeapFile
+ * through a secondary index on one of its fields, returning them in the order
+ * of that field
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private TupleDesc myTd;
+	private transient DbFileIterator it;
+	private String alias;
+
+	/**
+	 * Creates a scan over the table of the given index as a part of the
+	 * specified transaction.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to look the tuples up in.
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields with name tableAlias.fieldName
+	 * @param ipred
+	 * 			  The predicate on the indexed field to match. If null, the scan
+	 *            returns all tuples in the order of the indexed field
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		reset(tableAlias);
+	}
+
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+		this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred);
+	}
+
+	/**
+	 * @return the actual name of the indexed table in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * @return the index this operator looks tuples up in
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Reset the alias of this operator.
+	 */
+	public void reset(String tableAlias) {
+		this.isOpen = false;
+		this.alias = tableAlias;
+		this.it = index.indexIterator(tid, ipred);
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the indexed table, with field names prefixed
+	 * with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
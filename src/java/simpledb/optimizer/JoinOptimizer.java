@@ -1,9 +1,16 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
 
@@ -49,6 +56,50 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, null, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, as
+     * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator, TransactionId, double, double)}
+     * does when the cardinality of plan2 is unknown.
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2,
+                                             TransactionId tid, double outerCard) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, tid, outerCard, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, as
+     * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)} does,
+     * but also consider an {@link IndexNestedLoopJoin} when plan2 is a plain scan
+     * of a B+ tree keyed on the join field: it is chosen when probing the index
+     * once for each of the estimated outer tuples reads fewer pages than one
+     * scan of the inner table. An estimate of no outer tuples is taken as
+     * unknown, since that is what tables without statistics report.
+     * <p>
+     * A range predicate is joined by a {@link SortMergeJoin} rather than a
+     * block nested-loop {@link Join} only when
+     * {@link #mergeBeatsNestedLoop} says so for the estimated cardinalities.
+     * 
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left (outer) join node's child
+     * @param plan2
+     *            The right (inner) join node's child
+     * @param tid
+     *            The transaction the plan runs in
+     * @param outerCard
+     *            The estimated cardinality of plan1
+     * @param innerCard
+     *            The estimated cardinality of plan2
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2,
+                                             TransactionId tid, double outerCard,
+                                             double innerCard) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -73,7 +124,21 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        BTreeFile index = indexOnJoinField(plan2, t2id);
+        if (lj.p == Predicate.Op.EQUALS && index != null && outerCard > 0
+                && outerCard * estimateIndexProbeCost(index) < index.numPages()) {
+            SeqScan inner = (SeqScan) plan2;
+            j = new IndexNestedLoopJoin(p, plan1, new BTreeScan(tid, inner.getTableId(), inner.getAlias(), null));
+        } else if (lj.p == Predicate.Op.EQUALS
+                && SortMergeJoin.isSortedOn(plan1, t1id) && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            // equality on sorted inputs merges them without hashing either
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p != Predicate.Op.EQUALS && isMergeable(lj.p)
+                && mergeBeatsNestedLoop(lj.p, outerCard, innerCard,
+                        estimateScanCost(plan1, outerCard), estimateScanCost(plan2, innerCard),
+                        SortMergeJoin.isSortedOn(plan1, t1id), SortMergeJoin.isSortedOn(plan2, t2id))) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -93,6 +158,169 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * @return the B+ tree plan scans if it is a plain scan of a B+ tree keyed on
+     *         the given field, or null otherwise
+     */
+    private static BTreeFile indexOnJoinField(OpIterator plan, int field) {
+        if (!(plan instanceof SeqScan)) {
+            return null;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+        if (f instanceof BTreeFile && ((BTreeFile) f).keyField() == field) {
+            return (BTreeFile) f;
+        }
+        return null;
+    }
+
+    /**
+     * Estimate the number of pages one equality probe of a B+ tree reads: one
+     * per level of internal pages, plus the leaf. An internal page holds about
+     * one key and one child pointer per entry.
+     */
+    public static double estimateIndexProbeCost(BTreeFile f) {
+        int keyLen = 0;
+        for (int k : f.keyFields())
+            keyLen += f.getTupleDesc().getFieldType(k).getLen();
+        double fanOut = Math.max(2.0, (double) BufferPool.getPageSize()
+                / (keyLen + Type.INT_TYPE.getLen()));
+        double levels = Math.ceil(Math.log(Math.max(f.numPages(), 1)) / Math.log(fanOut));
+        return Math.max(levels, 1) + 1;
+    }
+
+    /**
+     * Estimate the cost of one full scan of a plan: the pages of the table for
+     * a scan of one, and otherwise one per tuple, since the cost of running a
+     * subplan again is not known here.
+     */
+    private static double estimateScanCost(OpIterator plan, double card) {
+        int tableid;
+        if (plan instanceof SeqScan)
+            tableid = ((SeqScan) plan).getTableId();
+        else if (plan instanceof BTreeScan)
+            tableid = ((BTreeScan) plan).getTableId();
+        else
+            return card;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).numPages() * (double) TableStats.IOCOSTPERPAGE;
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).numPages() * (double) TableStats.IOCOSTPERPAGE;
+        return card;
+    }
+
+    /**
+     * @return true if a {@link SortMergeJoin} can evaluate a join predicate
+     */
+    public static boolean isMergeable(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Estimate the cost of a {@link SortMergeJoin}: one scan of each side, a
+     * sort of each side that is not already sorted on its join field, which
+     * compares each tuple about log2 of the side's cardinality times, and one
+     * comparison per tuple to merge them.
+     *
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param cost2
+     *            Estimated cost of one full scan of the right-hand side
+     * @param sorted1
+     *            Whether the left-hand side is already sorted
+     * @param sorted2
+     *            Whether the right-hand side is already sorted
+     */
+    public static double estimateSortMergeJoinCost(double card1, double card2, double cost1, double cost2,
+                                                   boolean sorted1, boolean sorted2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        if (!sorted1)
+            cost += card1 * log2(card1);
+        if (!sorted2)
+            cost += card2 * log2(card2);
+        return cost;
+    }
+
+    private static double log2(double card) {
+        return card < 2 ? 0 : Math.log(card) / Math.log(2);
+    }
+
+    /**
+     * Estimate the cost of a block nested-loop {@link Join}: one scan of the
+     * left-hand side, one scan of the right-hand side for each block of
+     * {@link Join#BLOCK_SIZE} tuples of the left-hand side, and one predicate
+     * for each pair of tuples.
+     *
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param cost2
+     *            Estimated cost of one full scan of the right-hand side
+     */
+    public static double estimateNestedLoopJoinCost(double card1, double card2, double cost1, double cost2) {
+        return cost1 + Math.ceil(card1 / Join.BLOCK_SIZE) * cost2 + card1 * card2;
+    }
+
+    /**
+     * Decide between a {@link SortMergeJoin} and a block nested-loop
+     * {@link Join} for a range predicate. The merge is only considered when
+     * at least one input is already sorted on its join field and both
+     * cardinalities are known, and only when the input it buffers (child2
+     * for &gt; and &gt;=, child1 for &lt; and &lt;=), which may be kept in
+     * memory whole, is estimated to fit in a block of the nested-loop join.
+     * It is then chosen if its estimated cost is the lower one.
+     *
+     * @return true if the range join should be a SortMergeJoin
+     */
+    public static boolean mergeBeatsNestedLoop(Predicate.Op op, double card1, double card2,
+                                               double cost1, double cost2,
+                                               boolean sorted1, boolean sorted2) {
+        if (!sorted1 && !sorted2)
+            return false;
+        if (!(card1 > 0 && card2 > 0) || Double.isInfinite(card1) || Double.isInfinite(card2))
+            return false;
+        double buffered = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ
+                ? card2 : card1;
+        if (buffered > Join.BLOCK_SIZE)
+            return false;
+        return estimateSortMergeJoinCost(card1, card2, cost1, cost2, sorted1, sorted2)
+                < estimateNestedLoopJoinCost(card1, card2, cost1, cost2);
+    }
+
+    /**
+     * @return true if the table with the given alias in the plan is a B+ tree
+     *         keyed on the given field, so that a scan of it is sorted on it
+     */
+    private boolean isSortedTable(String alias, String field) {
+        Integer tableid = alias == null ? null : p.getTableId(alias);
+        if (tableid == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile))
+            return false;
+        try {
+            return ((BTreeFile) f).keyField() == f.getTupleDesc().fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -125,6 +353,13 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p != Predicate.Op.EQUALS && isMergeable(j.p)) {
+            // range joins are merged only where instantiateJoin would merge them
+            boolean sorted1 = isSortedTable(j.t1Alias, j.f1PureName);
+            boolean sorted2 = isSortedTable(j.t2Alias, j.f2PureName);
+            if (mergeBeatsNestedLoop(j.p, card1, card2, cost1, cost2, sorted1, sorted2))
+                return estimateSortMergeJoinCost(card1, card2, cost1, cost2, sorted1, sorted2);
+            return estimateNestedLoopJoinCost(card1, card2, cost1, cost2);
         } else {
             // Insert your code here.
             // HINT: You may need to use the variable "j" if you implemented
@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -36,11 +38,19 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAsc = new ArrayList<>();
+    private int limit = -1, offset = 0;
     private String query;
+    private int parallelism = 1;
 //    private Query owner;
 
+    /** Joins and aggregations are run in parallel once they are estimated to read this many tuples. */
+    public static final int PARALLEL_MIN_CARD = 20000;
+
+    /** A join whose outer side is estimated to be no larger than this copies it to every partition. */
+    public static final int BROADCAST_MAX_CARD = 1000;
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new ArrayList<>();
@@ -69,6 +79,21 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the number of threads that large joins and aggregations are split over by
+        {@link #physicalPlan}.  With the default of 1, plans do not use exchanges.
+
+        @param parallelism the number of partitions of a parallel operator
+    */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -84,6 +109,11 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** @return true if field (a pure field name) is the primary key of the table with the given alias */
+    private boolean isPkey(String alias, String field) {
+        return Database.getCatalog().getPrimaryKey(getTableId(alias)).equals(field);
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -206,17 +236,28 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+        a field that breaks ties in the fields added before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAsc.add(asc);
+    }
+
+    /** Add a LIMIT clause: only the limit result tuples after the first offset are returned.
+        @param limit the largest number of tuples to return
+        @param offset the number of tuples to skip first
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET cannot be negative");
+        this.limit = limit;
+        this.offset = offset;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -274,6 +315,109 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Convert the constant of a filter to a field of the type of the field it is compared to.
+     *  @param td the TupleDesc of the subplan the filter is applied to
+     *  @throws ParsingException if the filter's field is not in td
+     */
+    private static Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp;
+        try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
+            ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Choose between a full scan and an index range scan for a table.  If the
+     *  table is a {@link BTreeFile}, the filters on it are matched against a
+     *  prefix of its key fields: the most selective range or equality filter on
+     *  the first key field is used, and as long as the filter used is an
+     *  equality the next key field is matched the same way.  The range they
+     *  select is costed as a descent of the tree followed by a scan of the
+     *  matching fraction of its pages; when that is cheaper than reading every
+     *  page, the SeqScan in subplanMap is replaced by a {@link BTreeScan}.
+     *  @return the filters the index scan answers, empty if the table is scanned
+     */
+    private Set<LogicalFilterNode> chooseAccessPath(TransactionId t, LogicalScanNode table,
+                                                    Map<String,TableStats> statsMap, boolean explain) throws ParsingException {
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+        if (!(file instanceof BTreeFile) || s == null) {
+            return Collections.emptySet();
+        }
+        BTreeFile bf = (BTreeFile) file;
+        TupleDesc td = subplanMap.get(table.alias).getTupleDesc();
+        int[] keyFields = bf.keyFields();
+
+        List<LogicalFilterNode> used = new ArrayList<>();
+        List<Field> prefix = new ArrayList<>();
+        double sel = 1.0;
+        for (int keyField : keyFields) {
+            LogicalFilterNode best = null;
+            Field bestField = null;
+            double bestSel = 1.0;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias) || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE) {
+                    continue;
+                }
+                int field;
+                try {
+                    field = td.fieldNameToIndex(lf.fieldQuantifiedName);
+                } catch (NoSuchElementException e) {
+                    continue;
+                }
+                if (field != keyField) {
+                    continue;
+                }
+                Field f = filterConstant(lf, td);
+                double fsel = s.estimateSelectivity(field, lf.p, f);
+                if (best == null || fsel < bestSel) {
+                    best = lf;
+                    bestField = f;
+                    bestSel = fsel;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            used.add(best);
+            prefix.add(bestField);
+            sel *= bestSel;
+            if (best.p != Predicate.Op.EQUALS) {
+                break;
+            }
+        }
+        if (used.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        // the last filter applies to the last field of the prefix, the others are equalities
+        Predicate.Op op = used.get(used.size() - 1).p;
+        IndexPredicate pred = keyFields.length == 1 ? new IndexPredicate(op, prefix.get(0))
+                : new IndexPredicate(op, new CompositeField(prefix.toArray(new Field[0])));
+        double scanCost = bf.numPages();
+        double indexCost = JoinOptimizer.estimateIndexProbeCost(bf) + sel * bf.numPages();
+        if (explain) {
+            StringBuilder range = new StringBuilder();
+            for (LogicalFilterNode lf : used) {
+                if (range.length() > 0)
+                    range.append(" AND ");
+                range.append(lf.fieldQuantifiedName).append(" ").append(lf.p).append(" ").append(lf.c);
+            }
+            System.out.println("Access path for " + table.alias + ": index scan on " + range
+                    + " costs " + indexCost + " pages, full scan costs " + scanCost + " pages");
+        }
+        if (indexCost >= scanCost) {
+            return Collections.emptySet();
+        }
+        subplanMap.put(table.alias, new BTreeScan(t, file.getId(), table.alias, pred));
+        return new HashSet<>(used);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -309,25 +453,19 @@ public class LogicalPlan {
 
         }
 
+        // filters answered by an index range scan instead of a Filter
+        Set<LogicalFilterNode> indexedFilters = new HashSet<>();
+        for (LogicalScanNode table : tables) {
+            indexedFilters.addAll(chooseAccessPath(t, table, statsMap, explain));
+        }
+
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            Field f = filterConstant(lf, subplan.getTupleDesc());
 
             Predicate p = null;
             try {
@@ -335,7 +473,9 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexedFilters.contains(lf)) {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -345,6 +485,14 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // estimated cardinality of each subplan, used to pick index nested-loop joins
+        Map<String,Double> cardinalities = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            cardinalities.put(table.alias, s == null ? Double.POSITIVE_INFINITY
+                    : knownCardinality(s.estimateTableCardinality(filterSelectivities.get(table.alias))));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -381,8 +529,22 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            double card1 = cardinalities.getOrDefault(t1name, Double.POSITIVE_INFINITY);
+            double card2 = isSubqueryJoin ? Double.POSITIVE_INFINITY
+                    : cardinalities.getOrDefault(t2name, Double.POSITIVE_INFINITY);
+            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, t, card1, card2);
+            if (!isSubqueryJoin && j instanceof HashEquiJoin && isLarge(card1 + card2)) {
+                j = parallelJoin(((HashEquiJoin) j).getJoinPredicate(), plan1, plan2, card1);
+            }
             subplanMap.put(t1name, j);
+            if (isSubqueryJoin) {
+                cardinalities.put(t1name, card1);
+            } else {
+                cardinalities.put(t1name, Double.isInfinite(card1) || Double.isInfinite(card2)
+                        ? Double.POSITIVE_INFINITY
+                        : knownCardinality(jo.estimateJoinCardinality(lj, (int) card1, (int) card2,
+                                isPkey(lj.t1Alias, lj.f1PureName), isPkey(lj.t2Alias, lj.f2PureName), statsMap)));
+            }
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -405,7 +567,9 @@ public class LogicalPlan {
             throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
         
-        OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        Map.Entry<String, OpIterator> last = subplanMap.entrySet().iterator().next();
+        OpIterator node = last.getValue();
+        double nodeCard = cardinalities.getOrDefault(last.getKey(), Double.POSITIVE_INFINITY);
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
@@ -459,25 +623,85 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            OpIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int afield = td.fieldNameToIndex(aggField);
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                if (gfield != Aggregator.NO_GROUPING && isLarge(nodeCard)) {
+                    // each group is aggregated in the partition its group value hashes to
+                    Repartition parts = Repartition.hash(Collections.singletonList(node), gfield, parallelism);
+                    List<OpIterator> aggs = new ArrayList<>();
+                    for (int i = 0; i < parallelism; i++)
+                        aggs.add(new Aggregate(parts.output(i), afield, gfield, getAggOp(aggOp)));
+                    aggNode = new Gather(aggs);
+                } else {
+                    aggNode = new Aggregate(node, afield, gfield, getAggOp(aggOp));
+                }
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                asc[i] = oByAsc.get(i);
+            }
+            // with a small LIMIT, only the tuples that can be returned are kept
+            if (limit >= 0 && (long) limit + offset <= TopN.MAX_N)
+                node = new TopN(fields, asc, limit + offset, node);
+            else
+                node = new OrderBy(fields, asc, node);
+        }
+
+        if (limit >= 0) {
+            node = new Limit(node, limit, offset);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * @return the estimate, or infinity if it is not positive: the estimates
+     *         of tables without statistics are 0, and must not make a plan
+     *         look cheap
+     */
+    private static double knownCardinality(double card) {
+        return card > 0 ? card : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return true if an operator that reads an estimated card tuples should run
+     *         in parallel
+     */
+    private boolean isLarge(double card) {
+        return parallelism > 1 && !Double.isInfinite(card) && card >= PARALLEL_MIN_CARD;
+    }
+
+    /**
+     * Builds a hash join that runs in {@link #parallelism} partitions. Both
+     * sides are partitioned by the hash of their join field, unless the outer
+     * side is small: then it is copied to every partition and the inner side
+     * is split evenly, which also copes with join fields that have few values.
+     */
+    private OpIterator parallelJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2, double card1) {
+        Repartition left, right;
+        if (card1 <= BROADCAST_MAX_CARD) {
+            left = Repartition.broadcast(Collections.singletonList(plan1), parallelism);
+            right = Repartition.roundRobin(Collections.singletonList(plan2), parallelism);
+        } else {
+            left = Repartition.hash(Collections.singletonList(plan1), p.getField1(), parallelism);
+            right = Repartition.hash(Collections.singletonList(plan2), p.getField2(), parallelism);
+        }
+        List<OpIterator> joins = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++)
+            joins.add(new HashEquiJoin(p, left.output(i), right.output(i)));
+        return new Gather(joins);
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -29,8 +29,13 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
-                    tableAliasToId, tableStats);
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -49,6 +54,11 @@ public class OperatorCardinality {
                             .estimateTableCardinality(1.0);
                 }
             }
+            // LIMIT returns at most its limit of them
+            if (o instanceof Limit)
+                childC = Math.min(childC, ((Limit) o).getLimit());
+            else if (o instanceof TopN)
+                childC = Math.min(childC, ((TopN) o).getN());
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -146,7 +156,12 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
+    /**
+     * Updates the cardinality of a join operator other than {@link Join}, such
+     * as a HashEquiJoin or a SortMergeJoin.
+     */
+    private static boolean updateHashEquiJoinCardinality(Operator j, JoinPredicate pred,
+                                                         String joinField1Name, String joinField2Name,
                                                          Map<String, Integer> tableAliasToId,
                                                          Map<String, TableStats> tableStats) {
 
@@ -156,10 +171,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -194,8 +209,8 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                pred.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -12,6 +14,9 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -22,6 +27,11 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking; when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Only the page table and the LRU list are guarded by the monitor of the
+ * BufferPool. Pages are read from and evicted to disk outside of it, so one
+ * thread waiting for the disk does not hold up threads whose pages are
+ * cached.
  * 
  * @Threadsafe, all fields are final
  */
@@ -43,48 +53,63 @@ public class BufferPool {
     // 储存的页面
     // key 为 PageId
     private final ConcurrentHashMap<PageId, LinkedNode> pageStore;
+    // 页面短期闩锁，与事务锁相互独立
+    private final PageLatches latches = new PageLatches();
+    // 事务在其中缓冲了插入和删除的 B+ 树
+    private final ConcurrentHashMap<TransactionId, Set<BTreeFile>> messageBuffers = new ConcurrentHashMap<>();
 
     // 页面的访问顺序
+    // 节点有三种状态：正在读入（page 为空，不在链表中）、已缓存（在链表中）、
+    // 正在淘汰写回（不在链表中，仍在 pageStore 中，再次访问时放回链表）
     private static class LinkedNode {
         PageId pageId;
         Page page;
         LinkedNode prev;
         LinkedNode next;
+        // 读入完成时完成，等待同一页面的线程不必再读一次磁盘
+        final CompletableFuture<Page> loaded = new CompletableFuture<>();
 
         public LinkedNode(PageId pageId, Page page) {
             this.pageId = pageId;
             this.page = page;
         }
+
+        boolean linked() {
+            return prev != null;
+        }
     }
 
     // 头节点
     LinkedNode head;
     // 尾节点
     LinkedNode tail;
+    // 链表中的页面数量
+    private int cached;
 
     private void addToHead(LinkedNode node) {
         node.prev = head;
         node.next = head.next;
         head.next.prev = node;
         head.next = node;
+        cached++;
     }
 
     private void remove(LinkedNode node) {
         node.prev.next = node.next;
         node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        cached--;
     }
 
+    // 放到链表头部，正在淘汰的页面也由此放回缓存
     private void moveToHead(LinkedNode node) {
-        remove(node);
+        if (node.linked()) {
+            remove(node);
+        }
         addToHead(node);
     }
 
-    private LinkedNode removeTail() {
-        LinkedNode node = tail.prev;
-        remove(node);
-        return node;
-    }
-
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -100,6 +125,24 @@ public class BufferPool {
         tail.prev = head;
     }
 
+    /**
+     * Returns the page latches used by access methods to protect pages
+     * during a single operation. Pages that are latched are never evicted.
+     */
+    public PageLatches getPageLatches() {
+        return latches;
+    }
+
+    /**
+     * Records that a transaction buffered inserts or deletes in a B+ tree, which
+     * are applied when it commits and dropped when it aborts.
+     *
+     * @see BTreeFile#setMessageBufferSize(int)
+     */
+    public void addMessageBuffer(TransactionId tid, BTreeFile f) {
+        messageBuffers.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(f);
+    }
+
     public static int getPageSize() {
         return pageSize;
     }
@@ -132,26 +175,70 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        // 如果缓存池中没有
-        if (!pageStore.containsKey(pid)) {
-            // 获取
+        LinkedNode node;
+        boolean load = false;
+        // LRU 链表不是线程安全的，只有查找和更新链表时持有锁
+        synchronized (this) {
+            node = pageStore.get(pid);
+            if (node != null && node.page != null) {
+                // 移动到头部
+                moveToHead(node);
+                // 从 缓存池 中获取
+                return node.page;
+            }
+            if (node == null) {
+                // 如果缓存池中没有，放入占位节点，由当前线程读入
+                node = new LinkedNode(pid, null);
+                pageStore.put(pid, node);
+                load = true;
+            }
+        }
+        if (!load) {
+            // 另一线程正在读入该页面
+            return awaitPage(node);
+        }
+        // 在锁外读取磁盘
+        Page page;
+        try {
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            // 是否超过大小
-            if (pageStore.size() >= numPages) {
-                // 淘汰 (后面的 lab 书写)
-                eviction();
+            page = dbFile.readPage(pid);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                pageStore.remove(pid, node);
+            }
+            node.loaded.completeExceptionally(e);
+            throw e;
+        }
+        List<LinkedNode> victims;
+        synchronized (this) {
+            // 读入期间页面可能已被修改后放入（见 updateBufferPoll），它比磁盘上的新
+            if (node.page == null) {
+                node.page = page;
+            }
+            // 读入期间页面可能已被丢弃，此时不再缓存
+            if (pageStore.get(pid) == node) {
+                moveToHead(node);
+            }
+            // 是否超过大小，淘汰 (后面的 lab 书写)
+            victims = chooseVictims();
+        }
+        node.loaded.complete(node.page);
+        writeVictims(victims);
+        return node.page;
+    }
+
+    /**
+     * 等待另一线程读入页面
+     */
+    private Page awaitPage(LinkedNode node) {
+        try {
+            return node.loaded.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            LinkedNode node = new LinkedNode(pid, page);
-            // 放入缓存
-            pageStore.put(pid, node);
-            // 插入头节点
-            addToHead(node);
+            throw e;
         }
-        // 移动到头部
-        moveToHead(pageStore.get(pid));
-        // 从 缓存池 中获取
-        return pageStore.get(pid).page;
     }
 
     /**
@@ -176,6 +263,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -195,6 +283,22 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        // 提交时将缓冲的插入和删除写入 B+ 树的叶子页，中止时丢弃
+        Set<BTreeFile> files = messageBuffers.remove(tid);
+        if (files == null) {
+            return;
+        }
+        Exception failure = null;
+        for (BTreeFile f : files) {
+            try {
+                f.transactionComplete(tid, commit && failure == null);
+            } catch (DbException | IOException | TransactionAbortedException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new RuntimeException("failed to apply the buffered updates of " + tid, failure);
+        }
     }
 
     /**
@@ -217,9 +321,13 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         // 获取 数据库文件 DBfile
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         // 将页面刷新到缓存中
-        updateBufferPollforInsert(heapFile.insertTuple(tid, t), tid);
+        updateBufferPoll(dbFile.insertTuple(tid, t), tid);
+        // 维护二级索引，此时 t 已有 RecordId
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            updateBufferPoll(index.insertTuple(tid, t), tid);
+        }
     }
 
     /**
@@ -240,9 +348,14 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         // 查询所属表对应的文件
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         // 将页面刷新到缓存中
-        updateBufferPoll(heapFile.deleteTuple(tid, t), tid);
+        updateBufferPoll(dbFile.deleteTuple(tid, t), tid);
+        // 删除二级索引中指向该元组的项
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            updateBufferPoll(index.deleteTuple(tid, t), tid);
+        }
     }
 
     /**
@@ -251,59 +364,104 @@ public class BufferPool {
      * @param pageList 需要更新的页面
      * @param tid      事务id
      */
-    private void updateBufferPoll(List<Page> pageList, TransactionId tid) {
-        for (Page page : pageList) {
-            page.markDirty(true, tid);
-            // 如果缓存池已满，执行淘汰策略
-            if (pageStore.size() > numPages) {
-                eviction();
+    private void updateBufferPoll(List<Page> pageList, TransactionId tid) throws DbException {
+        List<LinkedNode> victims;
+        synchronized (this) {
+            for (Page page : pageList) {
+                // 缓存中是另一线程重新读入并已修改的副本，而这个页面没有在闩锁下标记为脏页：
+                // 它可能在修改期间被当作干净页面淘汰，两份修改无法合并，不能静默丢弃其中一份
+                if (isStale(page) && page.isDirty() == null) {
+                    throw new DbException("page " + page.getId() + " modified by " + tid
+                            + " was evicted and modified again by " + pageStore.get(page.getId()).page.isDirty());
+                }
             }
-            // 获取节点，此时的页一定已经在缓存了，因为刚刚被修改的时候就已经放入缓存了
-            LinkedNode node = pageStore.get(page.getId());
-            // 更新新的页内容
-            node.page = page;
-            // 更新到缓存
-            pageStore.put(page.getId(), node);
+            for (Page page : pageList) {
+                // 页面在闩锁下修改并标记为脏页，淘汰时已写回，重新读入的副本包含这次修改
+                if (isStale(page)) {
+                    continue;
+                }
+                page.markDirty(true, tid);
+                // 获取节点，此时的页通常已经在缓存了，因为刚刚被修改的时候就已经放入缓存了
+                LinkedNode node = pageStore.get(page.getId());
+                if (node == null) {
+                    // 页在修改之后被其它线程淘汰（淘汰时已写回），重新放入缓存
+                    node = new LinkedNode(page.getId(), page);
+                    pageStore.put(page.getId(), node);
+                }
+                node.page = page;
+                moveToHead(node);
+            }
+            // 如果缓存池已满，执行淘汰策略
+            victims = chooseVictims();
         }
+        writeVictims(victims);
     }
-    
-    private void updateBufferPollforInsert(List<Page> pageList, TransactionId tid) {
-        for (Page page : pageList) {
-            page.markDirty(true, tid);
-            // 如果缓存池已满，执行淘汰策略
-            if (pageStore.size() > numPages) {
-                eviction();
-            }
-            // 获取节点，此时的页一定已经在缓存了，因为刚刚被修改的时候就已经放入缓存了
-            LinkedNode node = pageStore.get(page.getId());
-            // 更新新的页内容
-            if (node == null) {
-                node = new LinkedNode(page.getId(), page);
-                // 放入缓存
-                pageStore.put(page.getId(), node);
-                // 插入头节点
-                addToHead(node);
+
+    /**
+     * @return 缓存中是否是该页面另一个已修改的副本
+     */
+    private boolean isStale(Page page) {
+        LinkedNode node = pageStore.get(page.getId());
+        return node != null && node.page != null && node.page != page && node.page.isDirty() != null;
+    }
+
+    /**
+     * 淘汰策略
+     * 使用 LRU 算法选出最近最久未使用的页面，直到链表中不超过 numPages 个页面。
+     * 干净的页面直接移除；脏页仍留在 pageStore 中，由 writeVictims 在锁外写回后移除。
+     *
+     * @return 需要写回的脏页节点
+     */
+    private List<LinkedNode> chooseVictims() {
+        List<LinkedNode> victims = new ArrayList<>();
+        // 淘汰尾部节点，跳过正被其他线程闩住的页面；所有页面都在使用中时暂时超出容量
+        LinkedNode node = tail.prev;
+        while (cached > numPages && node != head) {
+            LinkedNode prev = node.prev;
+            if (!latches.isLatched(node.pageId)) {
+                remove(node);
+                if (node.page.isDirty() == null) {
+                    // 移除缓存中的记录
+                    pageStore.remove(node.pageId);
+                } else {
+                    victims.add(node);
+                }
             }
-            node.page = page;
-            // 更新到缓存
-            pageStore.put(page.getId(), node);
+            node = prev;
         }
+        return victims;
     }
 
     /**
-     * 淘汰策略
-     * 使用 LRU 算法进行淘汰最近最久未使用
+     * 在锁外写回被淘汰的脏页。写回期间再次访问的页面会被放回链表，此时保留在缓存中。
      */
-    private void eviction() {
-        // 淘汰尾部节点
-        LinkedNode node = removeTail();
-        try {
-            flushPage(node.pageId);
-        } catch (IOException e) {
-            System.out.println("[simpledb] bufferpool: eviction IO error");
+    private void writeVictims(List<LinkedNode> victims) {
+        for (LinkedNode node : victims) {
+            boolean written = false;
+            // 持有节点的锁，discardPage 借此等待写回结束
+            synchronized (node) {
+                try {
+                    Database.getCatalog().getDatabaseFile(node.pageId.getTableId()).writePage(node.page);
+                    written = true;
+                } catch (IOException e) {
+                    System.out.println("[simpledb] bufferpool: eviction IO error");
+                }
+            }
+            synchronized (this) {
+                if (node.linked() || pageStore.get(node.pageId) != node) {
+                    // 已被放回缓存或已被丢弃
+                    continue;
+                }
+                if (written) {
+                    // 移除脏页标签 和 事务标签，移除缓存中的记录
+                    node.page.markDirty(false, null);
+                    pageStore.remove(node.pageId);
+                } else {
+                    // 写回失败，保留脏页
+                    addToHead(node);
+                }
+            }
         }
-        // 移除缓存中的记录
-        pageStore.remove(node.pageId);
     }
 
     /**
@@ -327,15 +485,21 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) throws IOException {
-        // 删除使用记录
-        remove(pageStore.get(pid));
-        try {
-            flushPage(pid);
-        } catch (IOException e) {
-            System.out.println("[simpledb] bufferpool: eviction IO error");
+    public void discardPage(PageId pid) throws IOException {
+        LinkedNode node;
+        synchronized (this) {
+            node = pageStore.remove(pid);// 删除缓存
+            if (node == null) {
+                return;
+            }
+            // 删除使用记录；不写回磁盘，页面内容已作废
+            if (node.linked()) {
+                remove(node);
+            }
+        }
+        // 等待正在进行的淘汰写回结束，以免它在之后覆盖磁盘上的内容
+        synchronized (node) {
         }
-        pageStore.remove(pid);// 删除缓存
     }
 
     /**
@@ -345,9 +509,11 @@ public class BufferPool {
      */
     private synchronized void flushPage(PageId pid) throws IOException {
         // not necessary for lab1
-        Page page = pageStore.get(pid).page;
+        LinkedNode node = pageStore.get(pid);
+        // 正在读入的页面还没有内容
+        Page page = node == null ? null : node.page;
         // 如果是是脏页
-        if (page.isDirty() != null) {
+        if (page != null && page.isDirty() != null) {
             // 写入脏页
             Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
             // 移除脏页标签 和 事务标签
@@ -0,0 +1,137 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, compared
+ * lexicographically. It is the key of a B+ tree keyed on more than one field.
+ * <p>
+ * A CompositeField with fewer values than another is compared to it as a
+ * prefix: only the values both have are compared, so (5) is equal to every
+ * (5, x). A search for a prefix therefore finds every key that starts with it.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of this field, most significant first.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one value");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of values in this field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th value of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the composite field of the first n values of this field
+     */
+    public CompositeField prefix(int n) {
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compare this field to another, value by value, up to the shorter of the two.
+     * A field that is not a CompositeField is compared as a composite field of one
+     * value.
+     *
+     * @return a negative number, zero or a positive number as this field is less
+     *         than, equal to or greater than val
+     */
+    public int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[]{val};
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare the specified field to the value of this Field.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see #compareTo
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int cmp = compareTo(val);
+
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of this field. There is no Type for several values, so
+     * this is the type of the first one.
+     *
+     * @return the type of the first value
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
@@ -0,0 +1,314 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are stored deflated on disk.
+ * It is intended for cold tables that are scanned rarely: HeapPages are
+ * mostly padding (empty slots, string tails), so they compress very well.
+ * <p>
+ * Pages are still handed to the BufferPool as ordinary, uncompressed
+ * HeapPages; only readPage and writePage know about the on-disk format,
+ * which is:
+ * <pre>
+ * int magic, int numPages, int capacity
+ * capacity x (long offset, int length)   -- the page directory
+ * compressed page images
+ * </pre>
+ * A directory entry with length 0 is an all-zero (empty) page and has no
+ * data. A rewritten page that no longer fits in its old location is
+ * appended to the end of the file; {@link #compact()} reclaims the space.
+ *
+ * @see HeapFile
+ * @see HeapPage
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    private static final int MAGIC = 0x53444243;
+    private static final int HEADER_SIZE = 12;
+    private static final int DIR_ENTRY_SIZE = 12;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // 页目录（懒加载）
+    private long[] offsets;
+    private int[] lengths;
+    private int numPages;
+    private boolean loaded = false;
+
+    /**
+     * Constructs a compressed heap file backed by the specified file. The file
+     * must either be empty or in the format written by this class.
+     *
+     * @param f  the file that stores the on-disk backing store for this file.
+     * @param td the tuple descriptor of tuples in the file
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /**
+     * Read the page directory from disk, if it has not been read yet.
+     */
+    private synchronized void loadDirectory() {
+        if (loaded)
+            return;
+        File f = getFile();
+        if (!f.exists() || f.length() == 0) {
+            offsets = new long[0];
+            lengths = new int[0];
+            numPages = 0;
+            loaded = true;
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (dis.readInt() != MAGIC)
+                throw new IllegalArgumentException("not a compressed heap file: " + f);
+            numPages = dis.readInt();
+            int capacity = dis.readInt();
+            offsets = new long[capacity];
+            lengths = new int[capacity];
+            for (int i = 0; i < capacity; i++) {
+                offsets[i] = dis.readLong();
+                lengths[i] = dis.readInt();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to read page directory of " + f, e);
+        }
+        loaded = true;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        byte[] data = readPageData(pid.getPageNumber());
+        try {
+            return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Read and inflate the image of the given page.
+     */
+    private synchronized byte[] readPageData(int pgNo) {
+        loadDirectory();
+        if (pgNo < 0 || pgNo >= numPages)
+            throw new IllegalArgumentException(String.format("表 %d 页 %d 不存在", getId(), pgNo));
+        byte[] data = new byte[BufferPool.getPageSize()];
+        // 长度为 0 表示空页
+        if (lengths[pgNo] == 0)
+            return data;
+
+        byte[] compressed = new byte[lengths[pgNo]];
+        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r")) {
+            raf.seek(offsets[pgNo]);
+            raf.readFully(compressed);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < data.length && !inflater.finished())
+                n += inflater.inflate(data, n, data.length - n);
+            if (n != data.length)
+                throw new IllegalArgumentException("corrupt page " + pgNo + " in " + getFile());
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt page " + pgNo + " in " + getFile(), e);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized void writePage(Page page) throws IOException {
+        loadDirectory();
+        int pgNo = page.getId().getPageNumber();
+        if (pgNo < 0 || pgNo >= numPages)
+            throw new IllegalArgumentException();
+
+        byte[] compressed = compress(page.getPageData());
+        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "rw")) {
+            if (compressed.length == 0) {
+                offsets[pgNo] = 0;
+            } else if (compressed.length > lengths[pgNo]) {
+                // 原位置放不下，追加到文件末尾
+                offsets[pgNo] = raf.length();
+            }
+            lengths[pgNo] = compressed.length;
+            if (compressed.length > 0) {
+                raf.seek(offsets[pgNo]);
+                raf.write(compressed);
+            }
+            writeDirectoryEntry(raf, pgNo);
+        }
+    }
+
+    /**
+     * Returns the number of pages in this CompressedHeapFile.
+     */
+    public synchronized int numPages() {
+        loadDirectory();
+        return numPages;
+    }
+
+    @Override
+    protected synchronized void appendEmptyPage() throws IOException {
+        loadDirectory();
+        if (numPages == offsets.length)
+            rewrite(Math.max(INITIAL_CAPACITY, offsets.length * 2));
+        offsets[numPages] = 0;
+        lengths[numPages] = 0;
+        numPages++;
+        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "rw")) {
+            writeDirectoryEntry(raf, numPages - 1);
+            raf.seek(4);
+            raf.writeInt(numPages);
+        }
+    }
+
+    /**
+     * Rewrite this file so that page images are stored contiguously, dropping
+     * space left behind by pages that were relocated when they grew.
+     * Must not be called while dirty pages of this file are in the BufferPool.
+     */
+    public synchronized void compact() throws IOException {
+        loadDirectory();
+        rewrite(offsets.length);
+    }
+
+    /**
+     * Returns the number of bytes this file occupies on disk.
+     */
+    public long sizeOnDisk() {
+        return getFile().length();
+    }
+
+    private void writeDirectoryEntry(RandomAccessFile raf, int pgNo) throws IOException {
+        raf.seek(HEADER_SIZE + (long) pgNo * DIR_ENTRY_SIZE);
+        raf.writeLong(offsets[pgNo]);
+        raf.writeInt(lengths[pgNo]);
+    }
+
+    /**
+     * Copy every page image into a fresh file with room for capacity directory
+     * entries, then swap it in place of the current file.
+     */
+    private void rewrite(int capacity) throws IOException {
+        File f = getFile();
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getAbsoluteFile().getParentFile());
+        long[] newOffsets = new long[capacity];
+        int[] newLengths = Arrays.copyOf(lengths, capacity);
+        long pos = HEADER_SIZE + (long) capacity * DIR_ENTRY_SIZE;
+        for (int i = 0; i < numPages; i++) {
+            newOffsets[i] = lengths[i] == 0 ? 0 : pos;
+            pos += lengths[i];
+        }
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            writeHeader(dos, numPages, newOffsets, newLengths);
+            if (numPages > 0) {
+                try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                    for (int i = 0; i < numPages; i++) {
+                        if (lengths[i] == 0)
+                            continue;
+                        byte[] buf = new byte[lengths[i]];
+                        raf.seek(offsets[i]);
+                        raf.readFully(buf);
+                        dos.write(buf);
+                    }
+                }
+            }
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        offsets = newOffsets;
+        lengths = newLengths;
+    }
+
+    private static void writeHeader(DataOutputStream dos, int numPages, long[] offsets, int[] lengths)
+            throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeInt(numPages);
+        dos.writeInt(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            dos.writeLong(offsets[i]);
+            dos.writeInt(lengths[i]);
+        }
+    }
+
+    /**
+     * Deflate a page image. All-zero pages compress to an empty array.
+     */
+    private static byte[] compress(byte[] data) {
+        boolean empty = true;
+        for (byte b : data) {
+            if (b != 0) {
+                empty = false;
+                break;
+            }
+        }
+        if (empty)
+            return new byte[0];
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Convert a raw heap file (as written by HeapFileEncoder) into the
+     * compressed format. The raw file is left untouched.
+     *
+     * @param rawFile the heap file to read pages from
+     * @param outFile the compressed file to write
+     * @throws IOException if either file can't be read/written
+     */
+    public static void convert(File rawFile, File outFile) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int numPages = (int) (rawFile.length() / pageSize);
+        int capacity = Math.max(INITIAL_CAPACITY, numPages);
+        long[] offsets = new long[capacity];
+        int[] lengths = new int[capacity];
+
+        // 先顺序写出所有压缩页，最后回填页目录
+        long pos = HEADER_SIZE + (long) capacity * DIR_ENTRY_SIZE;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(rawFile)));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)))) {
+            writeHeader(dos, numPages, offsets, lengths);
+            byte[] page = new byte[pageSize];
+            for (int i = 0; i < numPages; i++) {
+                dis.readFully(page);
+                byte[] compressed = compress(page);
+                offsets[i] = compressed.length == 0 ? 0 : pos;
+                lengths[i] = compressed.length;
+                dos.write(compressed);
+                pos += compressed.length;
+            }
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeHeader(new DataOutputStream(header), numPages, offsets, lengths);
+        try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+            raf.write(header.toByteArray());
+        }
+    }
+}
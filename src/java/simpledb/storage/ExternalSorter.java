@@ -0,0 +1,359 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ExternalSorter sorts an arbitrarily large stream of tuples using a bounded
+ * amount of memory. Tuples are buffered until the memory budget is used up,
+ * then the buffer is sorted and spilled to a temporary file as a sorted run.
+ * The budget is charged with the heap the buffered tuples take, as estimated
+ * by {@link #heapSize}, not with their much smaller serialized size.
+ * Once all tuples have been added, {@link #sorted()} merges the runs (k-way,
+ * with a loser tree) into a single sorted stream. If there are more than
+ * {@link #MAX_FAN_IN} runs, groups of them are first merged into longer runs,
+ * so that no more than that many files are open at once.
+ * <p>
+ * Runs are stored in a compact binary format: an int field takes 4 bytes and
+ * a string field 4 bytes for its length followed by its characters, without
+ * the padding of {@link Field#serialize}. Tuples read back from a run do not
+ * carry a RecordId. The sort is stable: tuples that compare equal come out in
+ * the order they were added.
+ */
+public class ExternalSorter implements Closeable {
+
+    private static final int IO_BUFFER_SIZE = 64 << 10;
+
+    /** The largest number of runs merged at once */
+    public static final int MAX_FAN_IN = 128;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final long memoryBudget;
+    private final File tempDir;
+
+    // 内存中尚未溢写的元组
+    private List<Tuple> buffer = new ArrayList<>();
+    private long bufferedBytes = 0;
+    // 已经溢写到磁盘的有序 run
+    private List<File> runs = new ArrayList<>();
+    private List<Integer> runSizes = new ArrayList<>();
+    private final List<DataInputStream> openRuns = new ArrayList<>();
+    private long count = 0;
+    private boolean sorted = false;
+
+    /**
+     * Create a sorter spilling to the default temporary directory.
+     *
+     * @param td           the schema of the tuples to sort
+     * @param comparator   the sort order
+     * @param memoryBudget the number of bytes of heap the buffered tuples may
+     *                     take before a run is spilled
+     */
+    public ExternalSorter(TupleDesc td, Comparator<Tuple> comparator, long memoryBudget) {
+        this(td, comparator, memoryBudget, null);
+    }
+
+    /**
+     * Create a sorter.
+     *
+     * @param td           the schema of the tuples to sort
+     * @param comparator   the sort order
+     * @param memoryBudget the number of bytes of heap the buffered tuples may
+     *                     take before a run is spilled
+     * @param tempDir      where to put sorted runs, or null for the default
+     *                     temporary directory
+     */
+    public ExternalSorter(TupleDesc td, Comparator<Tuple> comparator, long memoryBudget, File tempDir) {
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Add a tuple to be sorted. May spill a sorted run to disk.
+     *
+     * @throws IllegalStateException if {@link #sorted()} has been called
+     */
+    public void add(Tuple t) throws IOException {
+        if (sorted)
+            throw new IllegalStateException("tuples cannot be added once sorted");
+        buffer.add(t);
+        bufferedBytes += heapSize(t);
+        count++;
+        if (bufferedBytes >= memoryBudget)
+            spill();
+    }
+
+    /**
+     * Estimates the bytes of heap a buffered tuple takes on a 64-bit JVM with
+     * compressed references: the Tuple, its Field array, each Field, the
+     * String of a string field, the RecordId of a tuple read from a table (its
+     * PageId is shared with the other tuples of the page), and the slot of the
+     * buffer, with room for the buffer's spare capacity.
+     *
+     * @return the estimated size of t in bytes
+     */
+    public static long heapSize(Tuple t) {
+        int n = t.getTupleDesc().numFields();
+        long size = 24 + align(16 + 4L * n) + 8;
+        for (int i = 0; i < n; i++) {
+            Field f = t.getField(i);
+            if (f instanceof StringField)
+                size += 24 + 24 + align(16 + ((StringField) f).getValue().length());
+            else if (f != null)
+                size += 16;
+        }
+        if (t.getRecordId() != null)
+            size += 24;
+        return size;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /** @return the number of tuples added so far */
+    public long size() {
+        return count;
+    }
+
+    /** @return the number of sorted runs spilled to disk so far */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(comparator);
+        writeRun(buffer.iterator(), buffer.size());
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+    }
+
+    private void writeRun(Iterator<Tuple> tuples, int size) throws IOException {
+        File run = File.createTempFile("sortrun", ".dat", tempDir);
+        run.deleteOnExit();
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE))) {
+            while (tuples.hasNext())
+                writeTuple(dos, tuples.next());
+        }
+        runs.add(run);
+        runSizes.add(size);
+    }
+
+    private void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                dos.writeInt(((IntField) f).getValue());
+            } else {
+                String s = ((StringField) f).getValue();
+                if (s.length() > Type.STRING_LEN)
+                    s = s.substring(0, Type.STRING_LEN);
+                dos.writeInt(s.length());
+                dos.writeBytes(s);
+            }
+        }
+    }
+
+    private Tuple readTuple(DataInputStream dis) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField(dis.readInt()));
+            } else {
+                int len = dis.readInt();
+                if (len < 0 || len > Type.STRING_LEN)
+                    throw new IOException("corrupt sort run");
+                byte[] bs = new byte[len];
+                dis.readFully(bs);
+                t.setField(i, new StringField(new String(bs), Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Returns all added tuples in sorted order. No more tuples may be added
+     * afterwards. If nothing was spilled the tuples are sorted in memory.
+     * Calling this again reads the tuples again from the start; iterators
+     * returned by earlier calls must not be used after that.
+     *
+     * @throws UncheckedIOException from the iterator if a run can't be read
+     */
+    public Iterator<Tuple> sorted() throws IOException {
+        if (!sorted) {
+            sorted = true;
+            if (runs.isEmpty()) {
+                buffer.sort(comparator);
+            } else {
+                if (!buffer.isEmpty())
+                    spill();
+                while (runs.size() > MAX_FAN_IN)
+                    mergePass();
+            }
+        }
+        if (runs.isEmpty())
+            return buffer.iterator();
+        closeRuns();
+        return new LoserTree(openAll(runs, runSizes));
+    }
+
+    /**
+     * Merges consecutive groups of MAX_FAN_IN runs into longer runs, keeping
+     * the order of the runs so that the sort stays stable.
+     */
+    private void mergePass() throws IOException {
+        List<File> inputs = runs;
+        List<Integer> inputSizes = runSizes;
+        runs = new ArrayList<>();
+        runSizes = new ArrayList<>();
+        for (int from = 0; from < inputs.size(); from += MAX_FAN_IN) {
+            int to = Math.min(inputs.size(), from + MAX_FAN_IN);
+            List<Integer> sizes = inputSizes.subList(from, to);
+            int size = 0;
+            for (int s : sizes)
+                size += s;
+            writeRun(new LoserTree(openAll(inputs.subList(from, to), sizes)), size);
+            closeRuns();
+            for (File f : inputs.subList(from, to))
+                f.delete();
+        }
+    }
+
+    private List<RunHead> openAll(List<File> files, List<Integer> sizes) throws IOException {
+        List<RunHead> heads = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            DataInputStream dis = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(files.get(i)), IO_BUFFER_SIZE));
+            openRuns.add(dis);
+            RunHead head = new RunHead(dis, sizes.get(i));
+            head.advance();
+            heads.add(head);
+        }
+        return heads;
+    }
+
+    private void closeRuns() {
+        for (DataInputStream dis : openRuns) {
+            try {
+                dis.close();
+            } catch (IOException e) {
+                // ignore, nothing more is read from it
+            }
+        }
+        openRuns.clear();
+    }
+
+    /** The next unread tuple of a sorted run. */
+    private class RunHead {
+        final DataInputStream dis;
+        int remaining;
+        Tuple tuple;
+
+        RunHead(DataInputStream dis, int size) {
+            this.dis = dis;
+            this.remaining = size;
+        }
+
+        void advance() throws IOException {
+            if (remaining == 0) {
+                tuple = null;
+                return;
+            }
+            remaining--;
+            tuple = readTuple(dis);
+        }
+    }
+
+    /**
+     * A k-way merge of sorted runs. The internal nodes of the tree hold the
+     * run that lost the match played there, and tree[0] the overall winner,
+     * so replacing the winner's tuple takes one comparison per level of the
+     * tree, on the path from its leaf to the root.
+     */
+    private class LoserTree implements Iterator<Tuple> {
+        private final List<RunHead> heads;
+        private final int[] tree;
+
+        LoserTree(List<RunHead> heads) {
+            this.heads = heads;
+            this.tree = new int[heads.size()];
+            tree[0] = build(1);
+        }
+
+        // 自底向上进行初始比赛，返回子树的胜者
+        private int build(int node) {
+            int k = heads.size();
+            if (node >= k)
+                return node - k;
+            int left = build(2 * node);
+            int right = build(2 * node + 1);
+            if (beats(left, right)) {
+                tree[node] = right;
+                return left;
+            }
+            tree[node] = left;
+            return right;
+        }
+
+        /**
+         * @return true if the head of run a comes before that of run b; an
+         *         exhausted run loses to every other, and ties go to the
+         *         earlier run
+         */
+        private boolean beats(int a, int b) {
+            Tuple ta = heads.get(a).tuple, tb = heads.get(b).tuple;
+            if (ta == null)
+                return false;
+            if (tb == null)
+                return true;
+            int c = comparator.compare(ta, tb);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        public boolean hasNext() {
+            return heads.get(tree[0]).tuple != null;
+        }
+
+        public Tuple next() {
+            int winner = tree[0];
+            RunHead head = heads.get(winner);
+            Tuple t = head.tuple;
+            if (t == null)
+                throw new NoSuchElementException();
+            try {
+                head.advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // 胜者的新元组沿路径向上与各层的败者比较
+            for (int node = (winner + heads.size()) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+            return t;
+        }
+    }
+
+    /**
+     * Release the in-memory buffer and delete all spilled runs.
+     */
+    public void close() {
+        closeRuns();
+        for (File run : runs)
+            run.delete();
+        runs.clear();
+        runSizes.clear();
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+    }
+}
@@ -154,29 +154,59 @@ public class HeapFile implements DbFile {
         for (int pageNo = 0; pageNo < numPages(); pageNo++) {
             // 查询页
             HeapPageId pageId = new HeapPageId(getId(), pageNo);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            // 看当前页是有 空闲空间
-            if(page.getNumEmptySlots() != 0){
-                page.insertTuple(t);
-                list.add(page);
-                return list;
+            latches().latch(pageId, true);
+            try {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+                // 看当前页是有 空闲空间
+                if(page.getNumEmptySlots() != 0){
+                    page.insertTuple(t);
+                    page.markDirty(true, tid);
+                    list.add(page);
+                    return list;
+                }
+            } finally {
+                latches().unlatch(pageId, true);
             }
         }
 
-        // 如果所有页都已经写满，就要新建新的页面来加入(记得开启 append = true 也就是增量增加)
+        // 如果所有页都已经写满，就要新建新的页面来加入
+        appendEmptyPage();
+
+        // 创建新的页面
+        HeapPageId pageId = new HeapPageId(getId(), numPages() - 1);
+        latches().latch(pageId, true);
+        try {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+            page.insertTuple(t);
+            page.markDirty(true, tid);
+            list.add(page);
+        } finally {
+            latches().unlatch(pageId, true);
+        }
+        return list;
+    }
+
+    /**
+     * Pages are modified while their latch is held and marked dirty before it is
+     * released, so the buffer pool neither evicts a page during a modification
+     * nor drops one that was modified as a clean page.
+     */
+    private static PageLatches latches() {
+        return Database.getBufferPool().getPageLatches();
+    }
+
+    /**
+     * Appends a new, empty page to the end of this file on disk. Subclasses
+     * that store pages in a different on-disk format override this.
+     */
+    protected void appendEmptyPage() throws IOException {
+        // 开启 append = true 也就是增量增加
         BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(file, true));
         // 新建一个空的页
         byte[] emptyPage = HeapPage.createEmptyPageData();
         output.write(emptyPage);
         // close 前会调用 flush() 刷盘到文件
         output.close();
-
-        // 创建新的页面
-        HeapPageId pageId = new HeapPageId(getId(), numPages() - 1);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-        page.insertTuple(t);
-        list.add(page);
-        return list;
     }
 
     // see DbFile.java for javadocs
@@ -186,10 +216,16 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
         ArrayList<Page> list = new ArrayList<>();
         PageId pageId = t.getRecordId().getPageId();
-        // 找到相应的页
-        HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        list.add(page);
+        latches().latch(pageId, true);
+        try {
+            // 找到相应的页
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+            list.add(page);
+        } finally {
+            latches().unlatch(pageId, true);
+        }
         return list;
     }
 
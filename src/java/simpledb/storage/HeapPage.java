@@ -345,6 +345,16 @@ public class HeapPage implements Page {
         return ((bitidx >> offset) & 1) == 1;
     }
 
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i)) {
+            return null;
+        }
+        return tuples[i];
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -0,0 +1,81 @@
+package simpledb.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatches holds the short-term latches that protect the in-memory
+ * contents of pages while a thread reads or modifies them.
+ * <p>
+ * Latches are not transaction locks: they are taken and released by a
+ * single thread around one access-method operation (e.g. one B+ tree
+ * descent), never wait for deadlock detection and are not released by
+ * {@link BufferPool#transactionComplete}. Callers must acquire them in a
+ * fixed order (top-down, then left-to-right) to stay deadlock free.
+ * <p>
+ * The buffer pool consults the latches so that it never evicts a page a
+ * thread is working on.
+ * <p>
+ * A page has an entry only while threads hold or wait for its latch, so the
+ * table stays as small as the number of pages latched at once.
+ *
+ * @Threadsafe
+ */
+public class PageLatches {
+
+    /** The latch of a page, and the number of threads holding or waiting for it. */
+    private static class Latch extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+        // guarded by the entry of the page in latches
+        int users;
+    }
+
+    private final ConcurrentHashMap<PageId, Latch> latches = new ConcurrentHashMap<>();
+
+    /**
+     * Acquire the latch on a page, blocking until it is available.
+     *
+     * @param pid       the page to latch
+     * @param exclusive true for an exclusive (write) latch, false for a
+     *                  shared (read) latch
+     */
+    public void latch(PageId pid, boolean exclusive) {
+        Latch l = latches.compute(pid, (k, v) -> {
+            if (v == null)
+                v = new Latch();
+            v.users++;
+            return v;
+        });
+        if (exclusive)
+            l.writeLock().lock();
+        else
+            l.readLock().lock();
+    }
+
+    /**
+     * Release a latch previously acquired by this thread with
+     * {@link #latch(PageId, boolean)}.
+     */
+    public void unlatch(PageId pid, boolean exclusive) {
+        Latch l = latches.get(pid);
+        if (l == null)
+            throw new IllegalMonitorStateException("page " + pid + " is not latched");
+        if (exclusive)
+            l.writeLock().unlock();
+        else
+            l.readLock().unlock();
+        // drop the entry once no thread holds or waits for the latch
+        latches.computeIfPresent(pid, (k, v) -> --v.users == 0 ? null : v);
+    }
+
+    /** @return true if any thread holds a latch on the page */
+    public boolean isLatched(PageId pid) {
+        ReentrantReadWriteLock l = latches.get(pid);
+        return l != null && (l.isWriteLocked() || l.getReadLockCount() > 0);
+    }
+
+    /** @return the number of pages that threads hold or wait for latches on */
+    public int size() {
+        return latches.size();
+    }
+}
@@ -0,0 +1,309 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * ParallelHeapFileEncoder converts a delimited text file into a heap file,
+ * producing exactly the page format of {@link HeapFileEncoder}, but streaming
+ * and on several threads:
+ * <ul>
+ * <li>the calling thread reads the input in large line-aligned chunks,</li>
+ * <li>worker threads parse the fields of a chunk and build complete pages,</li>
+ * <li>a writer thread appends the pages of each chunk, in input order, with
+ * large buffered writes.</li>
+ * </ul>
+ * Memory is bounded by the number of chunks in flight. Every chunk is turned
+ * into whole pages, so the last page of a chunk may be only partially full;
+ * with the default chunk size this wastes well under one percent of the file.
+ *
+ * @see HeapFileEncoder
+ */
+public class ParallelHeapFileEncoder {
+
+    /** Default number of input bytes handed to a worker at a time. */
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Summary of a conversion.
+     */
+    public static class Stats {
+        private final long rows;
+        private final int pages;
+        private final long nanos;
+
+        Stats(long rows, int pages, long nanos) {
+            this.rows = rows;
+            this.pages = pages;
+            this.nanos = nanos;
+        }
+
+        /** @return the number of tuples written */
+        public long getRows() {
+            return rows;
+        }
+
+        /** @return the number of pages written */
+        public int getPages() {
+            return pages;
+        }
+
+        /** @return the wall clock time of the conversion in nanoseconds */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /** @return the conversion throughput */
+        public double rowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        public String toString() {
+            return String.format("%d rows, %d pages in %.2f s (%.0f rows/sec)",
+                    rows, pages, nanos / 1e9, rowsPerSecond());
+        }
+    }
+
+    /** The pages built from one chunk of input. */
+    private static class EncodedChunk {
+        final byte[] data;
+        final int len;
+        final long rows;
+        final int pages;
+
+        EncodedChunk(byte[] data, int len, long rows, int pages) {
+            this.data = data;
+            this.len = len;
+            this.rows = rows;
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * Convert the specified input text file into a binary page file, using
+     * one worker thread per available processor.
+     *
+     * @see HeapFileEncoder#convert(File, File, int, int, Type[], char)
+     */
+    public static Stats convert(File inFile, File outFile, int npagebytes,
+                                int numFields, Type[] typeAr, char fieldSeparator) throws IOException {
+        return convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Convert the specified input text file into a binary page file.
+     *
+     * @param inFile         The input file to read data from
+     * @param outFile        The output file to write data to
+     * @param npagebytes     The number of bytes per page in the output file
+     * @param numFields      the number of fields in each input line/output tuple
+     * @param typeAr         the types of the fields
+     * @param fieldSeparator the character separating fields on a line
+     * @param numThreads     the number of parsing threads
+     * @param chunkSize      the number of input bytes parsed by a worker at a time
+     * @return the number of rows and pages written and the time it took
+     * @throws IOException if the input/output file can't be opened or read
+     */
+    public static Stats convert(File inFile, File outFile, int npagebytes, int numFields,
+                                Type[] typeAr, char fieldSeparator, int numThreads, int chunkSize)
+            throws IOException {
+        long start = System.nanoTime();
+        Type[] types = Arrays.copyOf(typeAr, numFields);
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread t = new Thread(r, "heapfile-encoder");
+            t.setDaemon(true);
+            return t;
+        });
+        // 有界队列：既保证写出顺序，也限制了内存中的分块数量
+        BlockingQueue<Future<EncodedChunk>> pending = new ArrayBlockingQueue<>(2 * numThreads);
+        Future<EncodedChunk> endOfInput = CompletableFuture.completedFuture(null);
+
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        Future<long[]> writer = writerThread.submit(() -> {
+            long rows = 0;
+            long pages = 0;
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile), WRITE_BUFFER_SIZE)) {
+                while (true) {
+                    Future<EncodedChunk> f = pending.take();
+                    if (f == endOfInput)
+                        break;
+                    EncodedChunk chunk = f.get();
+                    os.write(chunk.data, 0, chunk.len);
+                    rows += chunk.rows;
+                    pages += chunk.pages;
+                }
+                // an empty input still produces one empty page
+                if (pages == 0) {
+                    os.write(new byte[npagebytes]);
+                    pages = 1;
+                }
+            }
+            return new long[]{rows, pages};
+        });
+
+        try (InputStream is = new FileInputStream(inFile)) {
+            byte[] buf = new byte[chunkSize];
+            int filled = 0;
+            while (true) {
+                int n = is.read(buf, filled, buf.length - filled);
+                if (n == -1) {
+                    if (filled > 0)
+                        enqueue(pending, writer, workers.submit(encoder(Arrays.copyOf(buf, filled), npagebytes, types, fieldSeparator)));
+                    break;
+                }
+                filled += n;
+                if (filled < buf.length)
+                    continue;
+
+                // 切分到最后一个换行符，剩余部分留给下一个分块
+                int cut = filled - 1;
+                while (cut >= 0 && buf[cut] != '\n')
+                    cut--;
+                if (cut < 0) {
+                    // a single line longer than the chunk
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    continue;
+                }
+                enqueue(pending, writer, workers.submit(encoder(Arrays.copyOf(buf, cut + 1), npagebytes, types, fieldSeparator)));
+                byte[] next = new byte[chunkSize < filled - cut - 1 ? buf.length : chunkSize];
+                System.arraycopy(buf, cut + 1, next, 0, filled - cut - 1);
+                filled = filled - cut - 1;
+                buf = next;
+            }
+            enqueue(pending, writer, endOfInput);
+            long[] totals = writer.get();
+            return new Stats(totals[0], (int) totals[1], System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("heap file conversion interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+            writerThread.shutdownNow();
+        }
+    }
+
+    private static Callable<EncodedChunk> encoder(byte[] chunk, int npagebytes, Type[] types, char fieldSeparator) {
+        return () -> encodeChunk(chunk, npagebytes, types, fieldSeparator);
+    }
+
+    /**
+     * Hand a chunk to the writer, blocking while too many chunks are in flight.
+     * Fails instead of blocking forever if the writer has died.
+     */
+    private static void enqueue(BlockingQueue<Future<EncodedChunk>> pending, Future<?> writer,
+                                Future<EncodedChunk> chunk) throws InterruptedException, ExecutionException {
+        while (!pending.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (writer.isDone())
+                writer.get();
+        }
+    }
+
+    /**
+     * Parse the lines of a chunk and lay the resulting tuples out in heap pages.
+     */
+    private static EncodedChunk encodeChunk(byte[] chunk, int npagebytes, Type[] types, char fieldSeparator)
+            throws IOException {
+        int nrecbytes = 0;
+        for (Type t : types)
+            nrecbytes += t.getLen();
+        int nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);  //floor comes for free
+        int nheaderbytes = (nrecords + 7) / 8;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.length);
+        byte[] page = new byte[npagebytes];
+        int recordcount = 0;
+        long rows = 0;
+        int pages = 0;
+
+        int pos = 0;
+        while (pos < chunk.length) {
+            int eol = pos;
+            while (eol < chunk.length && chunk[eol] != '\n')
+                eol++;
+            int end = eol;
+            // Ignore Windows/Notepad special line endings
+            if (end > pos && chunk[end - 1] == '\r')
+                end--;
+            int slot = nheaderbytes + recordcount * nrecbytes;
+            if (end > pos) {
+                if (encodeLine(chunk, pos, end, types, fieldSeparator, page, slot)) {
+                    // 标记槽位已使用
+                    page[recordcount / 8] |= (byte) (1 << (recordcount % 8));
+                    recordcount++;
+                    rows++;
+                    if (recordcount == nrecords) {
+                        out.write(page);
+                        pages++;
+                        page = new byte[npagebytes];
+                        recordcount = 0;
+                    }
+                } else {
+                    Arrays.fill(page, slot, slot + nrecbytes, (byte) 0);
+                }
+            }
+            pos = eol + 1;
+        }
+        if (recordcount > 0) {
+            out.write(page);
+            pages++;
+        }
+        return new EncodedChunk(out.toByteArray(), out.size(), rows, pages);
+    }
+
+    /**
+     * Serialize one input line as a tuple into the page buffer at offset off.
+     *
+     * @return false if the line is malformed and was skipped
+     */
+    private static boolean encodeLine(byte[] chunk, int start, int end, Type[] types,
+                                      char fieldSeparator, byte[] page, int off) throws IOException {
+        int fieldNo = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end && fieldNo < types.length; i++) {
+            if (i < end && chunk[i] != fieldSeparator)
+                continue;
+            String s = new String(chunk, fieldStart, i - fieldStart, "ISO-8859-1").trim();
+            if (types[fieldNo] == Type.INT_TYPE) {
+                try {
+                    writeInt(page, off, Integer.parseInt(s));
+                } catch (NumberFormatException e) {
+                    System.out.println("BAD LINE : " + new String(chunk, start, end - start, "ISO-8859-1"));
+                    return false;
+                }
+            } else if (types[fieldNo] == Type.STRING_TYPE) {
+                if (s.length() > Type.STRING_LEN)
+                    s = s.substring(0, Type.STRING_LEN);
+                writeInt(page, off, s.length());
+                // 与 DataOutputStream.writeBytes 一致，只写低 8 位；剩余部分保持为 0
+                for (int c = 0; c < s.length(); c++)
+                    page[off + 4 + c] = (byte) s.charAt(c);
+            }
+            off += types[fieldNo].getLen();
+            fieldNo++;
+            fieldStart = i + 1;
+        }
+        if (fieldNo < types.length) {
+            System.out.println("BAD LINE : " + new String(chunk, start, end - start, "ISO-8859-1"));
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -112,6 +112,23 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 		assertEquals(50, page.getEmptySlot());
 	}
 
+	/**
+	 * Unit test for BTreeHeaderPage.getEmptySlot(int)
+	 */
+	@Test public void getEmptySlotFrom() throws Exception {
+		BTreeHeaderPage page = new BTreeHeaderPage(pid, EXAMPLE_DATA);
+		page.init();
+		page.markSlotUsed(50, false);
+		page.markSlotUsed(53, false);
+		page.markSlotUsed(200, false);
+		assertEquals(50, page.getEmptySlot(0));
+		assertEquals(50, page.getEmptySlot(50));
+		assertEquals(53, page.getEmptySlot(51));
+		assertEquals(200, page.getEmptySlot(54));
+		assertEquals(-1, page.getEmptySlot(201));
+		assertEquals(-1, page.getEmptySlot(BTreeHeaderPage.getNumSlots()));
+	}
+
 	/**
 	 * Unit test for BTreeHeaderPage.isSlotUsed() and BTreeHeaderPage.markSlotUsed()
 	 */
@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolReadTest {
+    private TransactionId tid;
+    private ExecutorService pool;
+
+    // class whose reads of one page block until they are released
+    static class HeapFileSlowPage extends HeapFile {
+
+        private final int slowPage;
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger slowReads = new AtomicInteger();
+
+        public HeapFileSlowPage(File f, TupleDesc td, int slowPage) {
+            super(f, td);
+            this.slowPage = slowPage;
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            if (pid.getPageNumber() == slowPage) {
+                slowReads.incrementAndGet();
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    @Before public void setUp() {
+        Database.reset();
+        tid = new TransactionId();
+        pool = Executors.newFixedThreadPool(2);
+    }
+
+    @After public void tearDown() {
+        pool.shutdownNow();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A page being read from disk neither blocks access to other pages nor is
+     * read a second time by threads that ask for it meanwhile.
+     */
+    @Test public void readOutsideLock() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        HeapFileSlowPage slow = new HeapFileSlowPage(hf.getFile(), hf.getTupleDesc(), 1);
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        HeapPageId cached = new HeapPageId(slow.getId(), 0);
+        HeapPageId blocked = new HeapPageId(slow.getId(), 1);
+        HeapPageId uncached = new HeapPageId(slow.getId(), 2);
+        Page first = Database.getBufferPool().getPage(tid, cached, Permissions.READ_ONLY);
+
+        Future<Page> reader = pool.submit(() -> Database.getBufferPool().getPage(tid, blocked, Permissions.READ_ONLY));
+        assertTrue(slow.reading.await(10, TimeUnit.SECONDS));
+        Future<Page> waiter = pool.submit(() -> Database.getBufferPool().getPage(tid, blocked, Permissions.READ_ONLY));
+
+        // other pages are served, from the cache or from disk, while page 1 is read
+        assertSame(first, Database.getBufferPool().getPage(tid, cached, Permissions.READ_ONLY));
+        assertEquals(uncached, Database.getBufferPool().getPage(tid, uncached, Permissions.READ_ONLY).getId());
+        assertFalse(reader.isDone());
+
+        slow.release.countDown();
+        Page page = reader.get(10, TimeUnit.SECONDS);
+        assertSame(page, waiter.get(10, TimeUnit.SECONDS));
+        assertSame(page, Database.getBufferPool().getPage(tid, blocked, Permissions.READ_ONLY));
+        assertEquals(1, slow.slowReads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolReadTest.class);
+    }
+}
@@ -55,6 +55,24 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class that inserts into a copy of the first page read from disk, as if the
+    // cached copy had been evicted and read again while it was being modified
+    static class HeapFileStaleCopy extends HeapFile {
+
+        public HeapFileStaleCopy(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+            HeapPage p = (HeapPage) readPage(new HeapPageId(getId(), 0));
+            p.insertTuple(t);
+            List<Page> dirtypages = new ArrayList<>();
+            dirtypages.add(p);
+            return dirtypages;
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -140,6 +158,33 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A page modified without being marked dirty under its latch must not silently
+     * replace, or be replaced by, another modified copy of it in the buffer pool.
+     */
+    @Test public void staleCopyFailsLoudly() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFileStaleCopy stale = new HeapFileStaleCopy(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(stale, SystemTestUtil.getUUID());
+
+        // dirty the cached copy of the first page
+        DbFileIterator it = stale.iterator(tid);
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+        HeapPageId pid = new HeapPageId(stale.getId(), 0);
+        HeapPage cached = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(tid, cached.isDirty());
+
+        try {
+            Database.getBufferPool().insertTuple(tid, stale.getId(), Utility.getHeapTuple(1, 2));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertSame(cached, Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY));
+    }
+
     /**
      * JUnit suite target
      */
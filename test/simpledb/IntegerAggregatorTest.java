@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import java.util.NoSuchElementException;
 
@@ -130,6 +131,49 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test several aggregates computed together, one column each
+   */
+  @Test public void mergeSeveral() throws Exception {
+    scan1.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1,
+        new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.SUM_COUNT, Aggregator.Op.AVG });
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+
+    OpIterator it = agg.iterator();
+    it.open();
+    // group, min, sum, count, avg
+    TestUtil.matchAllTuples(TestUtil.createTupleList(5,
+        new int[] { 1, 2, 12, 3, 4,
+                    3, 2, 12, 3, 4,
+                    5, 7, 7, 1, 7 }), it);
+  }
+
+  /**
+   * Test aggregates without grouping, which come out as a single tuple
+   */
+  @Test public void mergeNoGrouping() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 1,
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MAX });
+    OpIterator it = agg.iterator();
+    it.open();
+    // no tuples: a COUNT is 0, but there is no MAX
+    assertFalse(it.hasNext());
+
+    scan1.open();
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(2, new int[] { 7, 7 }), it);
+
+    IntegerAggregator count = new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.COUNT);
+    it = count.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 0 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
@@ -0,0 +1,113 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelHeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File writeText(List<String> lines) throws IOException {
+        File f = File.createTempFile("encoder", ".txt");
+        f.deleteOnExit();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))) {
+            for (String line : lines) {
+                bw.write(line);
+                bw.write('\n');
+            }
+        }
+        return f;
+    }
+
+    private static File tempDat() throws IOException {
+        File f = File.createTempFile("encoder", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * With a single chunk the output must be byte for byte what HeapFileEncoder writes.
+     */
+    @Test public void sameAsHeapFileEncoder() throws Exception {
+        Type[] types = new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE};
+        Random r = new Random(1);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 3000; i++)
+            lines.add(r.nextInt() + "," + Integer.toHexString(r.nextInt()) + " ," + i);
+        File in = writeText(lines);
+
+        File expected = tempDat();
+        File actual = tempDat();
+        HeapFileEncoder.convert(in, expected, BufferPool.getPageSize(), 3, types, ',');
+        ParallelHeapFileEncoder.Stats stats = ParallelHeapFileEncoder.convert(in, actual,
+                BufferPool.getPageSize(), 3, types, ',', 4, 64 << 20);
+
+        assertEquals(3000, stats.getRows());
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+    }
+
+    /**
+     * Small chunks spread over several workers must still come out in input order.
+     */
+    @Test public void manyChunks() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        Random r = new Random(2);
+        for (int i = 0; i < 20000; i++) {
+            List<Integer> t = Arrays.asList(i, r.nextInt(), r.nextInt(100));
+            tuples.add(t);
+            lines.add(t.get(0) + "," + t.get(1) + "," + t.get(2));
+        }
+        // blank lines and Windows line endings are ignored
+        lines.add(5, "");
+        lines.set(7, lines.get(7) + "\r");
+        File in = writeText(lines);
+        File out = tempDat();
+
+        ParallelHeapFileEncoder.Stats stats = ParallelHeapFileEncoder.convert(in, out,
+                BufferPool.getPageSize(), 3, Utility.getTypes(3), ',', 4, 1000);
+        assertEquals(20000, stats.getRows());
+        assertEquals(out.length(), (long) stats.getPages() * BufferPool.getPageSize());
+
+        HeapFile hf = Utility.openHeapFile(3, out);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (List<Integer> expected : tuples) {
+            assertTrue(it.hasNext());
+            assertEquals(expected, SystemTestUtil.tupleToList(it.next()));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * An empty input still produces a file with one empty page.
+     */
+    @Test public void emptyInput() throws Exception {
+        File in = writeText(new ArrayList<>());
+        File out = tempDat();
+        ParallelHeapFileEncoder.Stats stats = ParallelHeapFileEncoder.convert(in, out,
+                BufferPool.getPageSize(), 2, Utility.getTypes(2), ',');
+        assertEquals(0, stats.getRows());
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHeapFileEncoderTest.class);
+    }
+}
@@ -0,0 +1,56 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Benchmark of loading a B+ tree in ascending and in shuffled key order, run
+ * with ant benchmark
+ */
+public class BTreeAppendBenchmark extends SimpleDbTestBase {
+
+	private static final int ROWS = 200000;
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** Compare the time and the pages taken to load ascending and shuffled keys. */
+	@Test public void testAscendingAgainstShuffled() throws Exception {
+		List<Integer> ascending = BTreeAppendTest.range(0, ROWS);
+		List<Integer> shuffled = new ArrayList<>(ascending);
+		Collections.shuffle(shuffled, new Random(1));
+
+		StringBuilder report = new StringBuilder();
+		for (List<Integer> keys : Arrays.asList(ascending, shuffled)) {
+			long best = Long.MAX_VALUE;
+			int pages = 0;
+			for (int rep = 0; rep < 3; rep++) {
+				BTreeFile bf = BTreeAppendTest.emptyTree();
+				long start = System.nanoTime();
+				BTreeAppendTest.insert(bf, tid, keys);
+				best = Math.min(best, System.nanoTime() - start);
+				pages = bf.numPages();
+			}
+			report.append(String.format(" %s: %.0f ms, %d pages;",
+					keys == ascending ? "ascending" : "shuffled", best / 1e6, pages));
+		}
+		System.out.println("BTree load of " + ROWS + " keys:" + report);
+	}
+}
@@ -0,0 +1,150 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for appending monotonically increasing keys to a B+ tree
+ */
+public class BTreeAppendTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 50000;
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	static BTreeFile emptyTree() throws Exception {
+		File f = File.createTempFile("append", "dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	static void insert(BTreeFile bf, TransactionId tid, List<Integer> keys) throws Exception {
+		for (int k : keys) {
+			Tuple t = new Tuple(bf.getTupleDesc());
+			t.setField(0, new IntField(k));
+			t.setField(1, new IntField(-k));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+	}
+
+	private void checkContents(BTreeFile bf, List<Integer> keys) throws Exception {
+		List<Integer> sorted = new ArrayList<>(keys);
+		Collections.sort(sorted);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int i = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals((int) sorted.get(i), ((IntField) t.getField(0)).getValue());
+			assertEquals(-sorted.get(i), ((IntField) t.getField(1)).getValue());
+			i++;
+		}
+		it.close();
+		assertEquals(sorted.size(), i);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+	}
+
+	static List<Integer> range(int from, int to) {
+		List<Integer> keys = new ArrayList<>();
+		for (int i = from; i < to; i++)
+			keys.add(i);
+		return keys;
+	}
+
+	@Test public void testAscendingFillsPages() throws Exception {
+		List<Integer> keys = range(0, ROWS);
+		List<Integer> shuffled = new ArrayList<>(keys);
+		Collections.shuffle(shuffled, new Random(1));
+
+		BTreeFile ascending = emptyTree();
+		insert(ascending, tid, keys);
+		checkContents(ascending, keys);
+		BTreeFile random = emptyTree();
+		insert(random, tid, shuffled);
+		checkContents(random, shuffled);
+
+		// all leaf pages but the last are full, not half full
+		int perPage = BTreeUtility.getNumTuplesPerPage(2);
+		int minLeaves = (ROWS + perPage - 1) / perPage;
+		assertTrue(ascending.numPages() < minLeaves * 1.05);
+		assertTrue(ascending.numPages() < random.numPages());
+	}
+
+	@Test public void testDescendingInsertStopsAppending() throws Exception {
+		BTreeFile bf = emptyTree();
+		List<Integer> keys = range(0, 5000);
+		insert(bf, tid, keys);
+		int appended = bf.numPages();
+
+		// inserts into the middle of the key space split the full pages in half again
+		List<Integer> middle = new ArrayList<>();
+		for (int i = 5000; i > 0; i -= 2)
+			middle.add(i - 1);
+		insert(bf, tid, middle);
+		keys.addAll(middle);
+		checkContents(bf, keys);
+		assertTrue(bf.numPages() > appended * 3 / 2);
+	}
+
+	@Test public void testAppendAfterBulkLoad() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile converted = BTreeUtility.createRandomBTreeFile(2, ROWS, 100000, null, tuples, 0);
+		BTreeFile bf = new BTreeFile(converted.getFile(), 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		int before = bf.numPages();
+
+		// keys past the largest one and duplicates of them go to the right edge
+		List<Integer> keys = range(100000, 100000 + ROWS / 2);
+		keys.add(0, 100000);
+		insert(bf, tid, keys);
+		int perPage = BTreeUtility.getNumTuplesPerPage(2);
+		assertTrue(bf.numPages() - before < (keys.size() / perPage) * 1.1 + 2);
+
+		// the bulk loaded keys are all smaller than 100000
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(100000)));
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(keys.size(), count);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeAppendTest.class);
+	}
+}
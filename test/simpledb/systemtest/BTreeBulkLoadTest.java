@@ -0,0 +1,161 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for building a B+ tree bottom-up from an externally sorted table
+ */
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Follow the left-most child pointers down to the first leaf, then the right
+	 * sibling pointers across the leaf level, collecting every tuple.
+	 */
+	private static List<List<Integer>> scanLeaves(BTreeFile bf, TransactionId tid, List<Integer> leafSizes)
+			throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			pid = p.iterator().next().getLeftChild();
+		}
+
+		List<List<Integer>> result = new ArrayList<>();
+		while (pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			leafSizes.add(leaf.getNumTuples());
+			Iterator<Tuple> it = leaf.iterator();
+			while (it.hasNext()) {
+				result.add(SystemTestUtil.tupleToList(it.next()));
+			}
+			pid = leaf.getRightSiblingId();
+		}
+		return result;
+	}
+
+	private static List<List<Integer>> sortedOn(List<List<Integer>> tuples, int keyField) {
+		List<List<Integer>> sorted = new ArrayList<>(tuples);
+		sorted.sort(Comparator.comparing(t -> t.get(keyField)));
+		return sorted;
+	}
+
+	private static void assertSameKeys(List<List<Integer>> expected, List<List<Integer>> actual, int keyField) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).get(keyField), actual.get(i).get(keyField));
+		}
+		List<List<Integer>> a = new ArrayList<>(actual);
+		List<List<Integer>> e = new ArrayList<>(expected);
+		Comparator<List<Integer>> byAll = (x, y) -> {
+			for (int i = 0; i < x.size(); i++) {
+				int c = Integer.compare(x.get(i), y.get(i));
+				if (c != 0)
+					return c;
+			}
+			return 0;
+		};
+		a.sort(byAll);
+		e.sort(byAll);
+		assertEquals(e, a);
+	}
+
+	@Test public void testExternalSortManyRuns() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 30000, null, tuples);
+		TransactionId tid = new TransactionId();
+
+		// room for only 1000 tuples in memory, so the sort spills 30 runs
+		ExternalSorter sorter = new ExternalSorter(hf.getTupleDesc(), new BTreeFileEncoder.TupleComparator(1),
+				1000 * ExternalSortTest.tupleBytes(2));
+		DbFileIterator it = hf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			sorter.add(it.next());
+		it.close();
+		assertEquals(30, sorter.numRuns());
+
+		List<List<Integer>> sorted = new ArrayList<>();
+		Iterator<Tuple> s = sorter.sorted();
+		while (s.hasNext())
+			sorted.add(SystemTestUtil.tupleToList(s.next()));
+		sorter.close();
+		assertSameKeys(sortedOn(tuples, 1), sorted, 1);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testCreateIndex() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 50000, null, tuples);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+
+		TransactionId tid = new TransactionId();
+		BTreeFile bf = BTreeFileEncoder.createIndex(tid, hf, bFile, "bulk_idx", 0,
+				BTreeFileEncoder.DEFAULT_FILL_FACTOR, 64 << 10);
+		assertEquals(bf.getId(), Database.getCatalog().getTableId("bulk_idx"));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<Integer> leafSizes = new ArrayList<>();
+		assertSameKeys(sortedOn(tuples, 0), scanLeaves(bf, tid, leafSizes), 0);
+		// every leaf but the last two is completely full
+		int full = BTreeUtility.getNumTuplesPerPage(2);
+		for (int i = 0; i < leafSizes.size() - 2; i++)
+			assertEquals(full, (int) leafSizes.get(i));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test public void testFillFactor() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+
+		TransactionId tid = new TransactionId();
+		BTreeFile bf = BTreeFileEncoder.createIndex(tid, hf, bFile, "bulk_ff", 1, 0.7, 64 << 10);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<Integer> leafSizes = new ArrayList<>();
+		assertSameKeys(sortedOn(tuples, 1), scanLeaves(bf, tid, leafSizes), 1);
+		int target = (int) (BTreeUtility.getNumTuplesPerPage(2) * 0.7);
+		for (int i = 0; i < leafSizes.size() - 2; i++)
+			assertEquals(target, (int) leafSizes.get(i));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadFillFactor() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+		BTreeFileEncoder.createIndex(new TransactionId(), hf, bFile, "bulk_bad", 0, 1.5, 64 << 10);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
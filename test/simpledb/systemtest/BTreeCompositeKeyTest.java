@@ -0,0 +1,279 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for B+ trees keyed on more than one field
+ */
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 20000;
+	// small domains give many tuples per prefix and duplicate whole keys
+	private static final int MAX_VALUE = 50;
+	private static final int[] KEY = {0, 1};
+
+	private TransactionId tid;
+
+	/**
+	 * Statistics that estimate a fixed selectivity for every predicate
+	 */
+	private static class FixedStats extends TableStats {
+		private final double sel;
+
+		FixedStats(int tableid, double sel) {
+			super(tableid, 1000);
+			this.sel = sel;
+		}
+
+		@Override
+		public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+			return sel;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		// small pages make the tree deep enough to have several internal levels
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile emptyTree() throws Exception {
+		File f = File.createTempFile("composite", "dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, KEY, Utility.getTupleDesc(3, "f"));
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private List<List<Integer>> insertRandom(BTreeFile bf, int rows) throws Exception {
+		Random r = new Random(1);
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (int i = 0; i < rows; i++) {
+			List<Integer> values = Arrays.asList(r.nextInt(MAX_VALUE), r.nextInt(MAX_VALUE), i);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(values));
+			tuples.add(values);
+		}
+		return tuples;
+	}
+
+	private static Comparator<List<Integer>> on(int... fields) {
+		return (a, b) -> {
+			for (int f : fields) {
+				int cmp = Integer.compare(a.get(f), b.get(f));
+				if (cmp != 0)
+					return cmp;
+			}
+			return 0;
+		};
+	}
+
+	private static List<List<Integer>> collect(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext())
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		return result;
+	}
+
+	private static IndexPredicate pred(Op op, int... values) {
+		Field[] fields = new Field[values.length];
+		for (int i = 0; i < values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return new IndexPredicate(op, new CompositeField(fields));
+	}
+
+	/** @return the tuples whose first field equals a and whose second one compares to b with op */
+	private static List<List<Integer>> select(List<List<Integer>> tuples, int a, Op op, int b) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(0) == a && new IntField(t.get(1)).compare(op, new IntField(b)))
+				result.add(t);
+		}
+		return result;
+	}
+
+	/** Check that a search, or a full scan if ipred is null, returns exactly the expected tuples, in key order */
+	private void checkSearch(BTreeFile bf, IndexPredicate ipred, List<List<Integer>> expected) throws Exception {
+		List<List<Integer>> actual = collect(ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred));
+		for (int i = 1; i < actual.size(); i++)
+			assertTrue(on(KEY).compare(actual.get(i - 1), actual.get(i)) <= 0);
+		expected = new ArrayList<>(expected);
+		expected.sort(on(0, 1, 2));
+		actual.sort(on(0, 1, 2));
+		assertEquals(expected, actual);
+	}
+
+	@Test public void testInsertAndDelete() throws Exception {
+		BTreeFile bf = emptyTree();
+		List<List<Integer>> tuples = insertRandom(bf, ROWS);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+
+		// a full scan returns the tuples ordered on both key fields
+		List<List<Integer>> scanned = collect(bf.iterator(tid));
+		assertEquals(ROWS, scanned.size());
+		for (int i = 1; i < scanned.size(); i++)
+			assertTrue(on(KEY).compare(scanned.get(i - 1), scanned.get(i)) <= 0);
+
+		// delete every other tuple
+		List<List<Integer>> remaining = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		List<Tuple> victims = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(2)).getValue() % 2 == 0)
+				victims.add(t);
+			else
+				remaining.add(SystemTestUtil.tupleToList(t));
+		}
+		it.close();
+		for (Tuple t : victims)
+			Database.getBufferPool().deleteTuple(tid, t);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkSearch(bf, null, remaining);
+	}
+
+	@Test public void testPrefixSearch() throws Exception {
+		BTreeFile bf = emptyTree();
+		List<List<Integer>> tuples = insertRandom(bf, ROWS);
+
+		// equality on the first field alone, as a plain field and as a prefix
+		List<List<Integer>> first = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(0) == 7)
+				first.add(t);
+		}
+		checkSearch(bf, new IndexPredicate(Op.EQUALS, new IntField(7)), first);
+		checkSearch(bf, pred(Op.EQUALS, 7), first);
+
+		// equality on the first field and any operator on the second
+		for (Op op : new Op[]{Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.LESS_THAN, Op.LESS_THAN_OR_EQ})
+			checkSearch(bf, pred(op, 7, 20), select(tuples, 7, op, 20));
+		checkSearch(bf, pred(Op.GREATER_THAN, 0, MAX_VALUE), new ArrayList<>());
+		checkSearch(bf, pred(Op.LESS_THAN, MAX_VALUE - 1, 0), new ArrayList<>());
+
+		// a range on the first field is not limited to one prefix
+		List<List<Integer>> above = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(0) > 40)
+				above.add(t);
+		}
+		checkSearch(bf, new IndexPredicate(Op.GREATER_THAN, new IntField(40)), above);
+	}
+
+	@Test public void testDeleteRange() throws Exception {
+		BTreeFile bf = emptyTree();
+		List<List<Integer>> tuples = insertRandom(bf, ROWS);
+		List<List<Integer>> victims = select(tuples, 12, Op.LESS_THAN_OR_EQ, 30);
+		assertEquals(victims.size(), bf.deleteRange(tid, pred(Op.LESS_THAN_OR_EQ, 12, 30)));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<List<Integer>> remaining = new ArrayList<>(tuples);
+		remaining.removeAll(victims);
+		checkSearch(bf, null, remaining);
+		checkSearch(bf, pred(Op.EQUALS, 12), select(tuples, 12, Op.GREATER_THAN, 30));
+	}
+
+	@Test public void testBulkLoad() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples);
+		File bFile = File.createTempFile("composite", ".dat");
+		bFile.deleteOnExit();
+
+		// keyed on the second field, then the first
+		BTreeFile bf = BTreeFileEncoder.createIndex(tid, hf, bFile, "composite_bulk", new int[]{1, 0},
+				BTreeFileEncoder.DEFAULT_FILL_FACTOR, 64 << 10);
+		assertArrayEquals(new int[]{1, 0}, bf.keyFields());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<List<Integer>> scanned = collect(bf.iterator(tid));
+		assertEquals(ROWS, scanned.size());
+		for (int i = 1; i < scanned.size(); i++)
+			assertTrue(on(1, 0).compare(scanned.get(i - 1), scanned.get(i)) <= 0);
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(1) == 3 && t.get(0) >= 25)
+				expected.add(t);
+		}
+		List<List<Integer>> actual = collect(bf.indexIterator(tid, pred(Op.GREATER_THAN_OR_EQ, 3, 25)));
+		expected.sort(on(0, 1, 2));
+		actual.sort(on(0, 1, 2));
+		assertEquals(expected, actual);
+	}
+
+	@Test public void testPlannerUsesKeyPrefix() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples, "f");
+		File bFile = File.createTempFile("composite", ".dat");
+		bFile.deleteOnExit();
+		BTreeFile bf = BTreeFileEncoder.createIndex(tid, hf, bFile, "composite_plan", KEY,
+				BTreeFileEncoder.DEFAULT_FILL_FACTOR, 64 << 10);
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.f0", Op.EQUALS, "9");
+		lp.addFilter("t.f1", Op.GREATER_THAN, "30");
+		lp.addFilter("t.f2", Op.GREATER_THAN, "10");
+		lp.addProjectField("t.f0", null);
+		lp.addProjectField("t.f1", null);
+		lp.addProjectField("t.f2", null);
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("composite_plan", new FixedStats(bf.getId(), 0.1));
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		// the filters on both key fields become one index predicate, the other one stays
+		OpIterator child = ((Operator) plan).getChildren()[0];
+		assertTrue(child instanceof Filter);
+		OpIterator scan = ((Filter) child).getChildren()[0];
+		assertTrue(scan instanceof BTreeScan);
+		IndexPredicate ipred = ((BTreeScan) scan).getIndexPredicate();
+		assertEquals(Op.GREATER_THAN, ipred.getOp());
+		assertEquals(new CompositeField(new IntField(9), new IntField(30)), ipred.getField());
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : select(tuples, 9, Op.GREATER_THAN, 30)) {
+			if (t.get(2) > 10)
+				expected.add(t);
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+		String explain = new QueryPlanVisualizer().getQueryPlanTree(plan);
+		assertTrue(explain.contains("index(composite_plan t,(t.f0,t.f1)>(9, 30))"));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
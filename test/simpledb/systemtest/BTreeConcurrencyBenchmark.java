@@ -0,0 +1,38 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Benchmark of BTreeFile inserts and lookups on several threads, run with
+ * ant benchmark
+ */
+public class BTreeConcurrencyBenchmark extends SimpleDbTestBase {
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(BTreeConcurrencyTest.POOL_PAGES);
+	}
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/** Compare insert+lookup throughput on one and on several threads. */
+	@Test public void testThroughput() throws Exception {
+		int ops = 20000;
+		for (int threads : new int[]{1, 2, 4}) {
+			BTreeFile bf = BTreeConcurrencyTest.emptyTree();
+			long nanos = BTreeConcurrencyTest.insertAndLookup(bf, threads, ops / threads);
+			System.out.printf("BTree concurrency: %d threads, %.0f inserts+lookups/sec%n",
+					threads, ops * 1e9 / nanos);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Multi-threaded inserts, lookups and deletes on one BTreeFile
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+
+	static final int POOL_PAGES = 2000;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(POOL_PAGES);
+	}
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	static BTreeFile emptyTree() throws Exception {
+		File f = File.createTempFile("concurrent", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+	}
+
+	private static int countMatches(BTreeFile bf, TransactionId tid, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * Run the same task on several threads and wait for all of them, rethrowing
+	 * the first failure.
+	 */
+	private static void runThreads(int threads, Callable<Void> task) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < threads; i++)
+				futures.add(pool.submit(task));
+			for (Future<Void> f : futures)
+				f.get(300, TimeUnit.SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Each thread inserts its own keys and immediately looks them up again.
+	 * @return the elapsed nanoseconds
+	 */
+	static long insertAndLookup(BTreeFile bf, int threads, int perThread) throws Exception {
+		AtomicLong nextThread = new AtomicLong();
+		long start = System.nanoTime();
+		runThreads(threads, () -> {
+			int id = (int) nextThread.getAndIncrement();
+			Random r = new Random(id);
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < perThread; i++) {
+				// interleave the threads' keys so they contend for the same leaves
+				int key = r.nextInt(perThread) * threads + id;
+				Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, id}));
+				assertTrue(countMatches(bf, tid, key) > 0);
+			}
+			return null;
+		});
+		return System.nanoTime() - start;
+	}
+
+	@Test public void testConcurrentInsertAndLookup() throws Exception {
+		BTreeFile bf = emptyTree();
+		int threads = 4;
+		int perThread = 5000;
+		insertAndLookup(bf, threads, perThread);
+		// the latches of the pages are dropped once nobody holds them
+		assertEquals(0, Database.getBufferPool().getPageLatches().size());
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		int prev = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= prev);
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(threads * perThread, count);
+	}
+
+	@Test public void testConcurrentDeletes() throws Exception {
+		BTreeFile bf = emptyTree();
+		int threads = 4;
+		int perThread = 3000;
+		insertAndLookup(bf, threads, perThread);
+
+		// every thread deletes the tuples it inserted with even keys, forcing merges
+		// and redistributions while the other threads keep deleting
+		AtomicLong nextThread = new AtomicLong();
+		runThreads(threads, () -> {
+			int id = (int) nextThread.getAndIncrement();
+			TransactionId tid = new TransactionId();
+			for (int key = id; key < perThread * threads; key += threads) {
+				if (key % 2 != 0)
+					continue;
+				DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+				it.open();
+				List<Tuple> mine = new ArrayList<>();
+				while (it.hasNext())
+					mine.add(it.next());
+				it.close();
+				for (Tuple t : mine)
+					Database.getBufferPool().deleteTuple(tid, t);
+			}
+			return null;
+		});
+		assertEquals(0, Database.getBufferPool().getPageLatches().size());
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			assertEquals(1, ((IntField) it.next().getField(0)).getValue() % 2);
+		it.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeConcurrencyTest.class);
+	}
+}
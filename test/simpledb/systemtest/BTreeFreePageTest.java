@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for allocating and freeing pages of a B+ tree with many header pages
+ */
+public class BTreeFreePageTest extends SimpleDbTestBase {
+
+	// small pages give many header pages for a file of moderate size
+	private static final int PAGE_SIZE = 256;
+	private static final int PAGES = 20000;
+
+	private TransactionId tid;
+	private File file;
+	private BTreeFile bf;
+	private Map<PageId, Page> dirtypages;
+
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(PAGE_SIZE);
+		Database.resetBufferPool(50000);
+		tid = new TransactionId();
+		file = File.createTempFile("free", "dat");
+		file.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0, PAGES);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		dirtypages = new HashMap<>();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private Page getPage(PageId pid) throws Exception {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private int countHeaderPages() throws Exception {
+		int count = 0;
+		BTreePageId headerId = ((BTreeRootPtrPage) getPage(BTreeRootPtrPage.getId(bf.getId()))).getHeaderId();
+		while (headerId != null) {
+			headerId = ((BTreeHeaderPage) getPage(headerId)).getNextPageId();
+			count++;
+		}
+		return count;
+	}
+
+	@Test public void testFreedPagesAreReusedInOrder() throws Exception {
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		assertTrue(PAGES > 5 * numSlots);
+
+		// free pages in descending order, spread over all header pages
+		TreeSet<Integer> freed = new TreeSet<>();
+		for (int p = PAGES; p >= 2; p -= 3) {
+			bf.setEmptyPage(tid, dirtypages, p);
+			freed.add(p);
+		}
+		// the header pages for all of them were added at the end of the file at once
+		assertEquals(PAGES / numSlots + 1, countHeaderPages());
+		assertEquals(PAGES + countHeaderPages(), bf.numPages());
+
+		// every freed page is handed out again, lowest first, before the file grows
+		List<Integer> allocated = new ArrayList<>();
+		int numPages = bf.numPages();
+		while (true) {
+			int p = bf.getEmptyPageNo(tid, dirtypages);
+			if (p > numPages)
+				break;
+			allocated.add(p);
+		}
+		assertEquals(new ArrayList<>(freed), allocated);
+		assertEquals(numPages + 2, bf.getEmptyPageNo(tid, dirtypages));
+	}
+
+	@Test public void testSummaryIsRebuiltOnOpen() throws Exception {
+		int[] freed = {100, 500, 900, 1300};
+		for (int p : freed)
+			bf.setEmptyPage(tid, dirtypages, p);
+		assertEquals(100, bf.getEmptyPageNo(tid, dirtypages));
+
+		// write the header pages out and open the file again
+		for (Page p : dirtypages.values())
+			bf.writePage(p);
+		Database.reset();
+		bf = BTreeUtility.openBTreeFile(2, file, 0);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		dirtypages = new HashMap<>();
+
+		for (int i = 1; i < freed.length; i++)
+			assertEquals(freed[i], bf.getEmptyPageNo(tid, dirtypages));
+		assertEquals(bf.numPages() + 1, bf.getEmptyPageNo(tid, dirtypages));
+
+		// pages freed after the summary was built are found again
+		bf.setEmptyPage(tid, dirtypages, 7777);
+		bf.setEmptyPage(tid, dirtypages, 5);
+		assertEquals(5, bf.getEmptyPageNo(tid, dirtypages));
+		assertEquals(7777, bf.getEmptyPageNo(tid, dirtypages));
+	}
+
+	@Test public void testReuseOnLastHeaderPage() throws Exception {
+		// create all header pages and fill them
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		for (int p = PAGES - 1; p >= numSlots; p -= numSlots)
+			bf.setEmptyPage(tid, dirtypages, p);
+		while (bf.getEmptyPageNo(tid, dirtypages) <= PAGES) {
+			// use up the freed pages
+		}
+
+		// free and reuse pages covered by the last header page
+		for (int i = 0; i < 1000; i++) {
+			int p = PAGES - i % 100;
+			bf.setEmptyPage(tid, dirtypages, p);
+			assertEquals(p, bf.getEmptyPageNo(tid, dirtypages));
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeFreePageTest.class);
+	}
+}
@@ -0,0 +1,63 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of random inserts into a B+ tree larger than memory, with and
+ * without a message buffer, run with ant benchmark
+ */
+public class BTreeMessageBufferBenchmark extends SimpleDbTestBase {
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		BufferPool.setPageSize(1024);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	@Test public void testRandomInsertsLargerThanMemory() throws Exception {
+		int rows = 100000;
+		List<Integer> keys = new ArrayList<>();
+		Random r = new Random(2);
+		for (int i = 0; i < rows; i++)
+			keys.add(r.nextInt(1 << 20));
+
+		long[] millis = new long[2];
+		int[] reads = new int[2];
+		for (int run = 0; run < 2; run++) {
+			// the tree outgrows a buffer pool of 100 pages many times over
+			Database.resetBufferPool(100);
+			BTreeMessageBufferTest.CountingBTreeFile bf = BTreeMessageBufferTest.emptyTree();
+			if (run == 1)
+				bf.setMessageBufferSize(rows / 4);
+			long start = System.nanoTime();
+			for (int i = 0; i < rows; i++)
+				Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(Arrays.asList(keys.get(i), i)));
+			bf.flushMessages(tid);
+			millis[run] = (System.nanoTime() - start) / 1000000;
+			reads[run] = bf.reads;
+			assertEquals(rows, BTreeMessageBufferTest.collect(bf.iterator(tid)).size());
+		}
+		System.out.printf("BTree random insert of %d keys: %d ms and %d page reads unbuffered, %d ms and %d page reads buffered%n",
+				rows, millis[0], reads[0], millis[1], reads[1]);
+	}
+}
@@ -0,0 +1,245 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for B+ trees that buffer inserts and deletes in front of their leaf pages
+ */
+public class BTreeMessageBufferTest extends SimpleDbTestBase {
+
+	private static final int MAX_VALUE = 1 << 20;
+
+	private TransactionId tid;
+
+	/**
+	 * A B+ tree that counts the pages read from disk
+	 */
+	static class CountingBTreeFile extends BTreeFile {
+		int reads = 0;
+
+		CountingBTreeFile(File f) {
+			super(f, 0, Utility.getTupleDesc(2));
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		// small pages make the tree deep enough to have internal pages below the root
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	static CountingBTreeFile emptyTree() throws Exception {
+		File f = File.createTempFile("buffered", "dat");
+		f.deleteOnExit();
+		CountingBTreeFile bf = new CountingBTreeFile(f);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	static List<List<Integer>> collect(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext())
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		return result;
+	}
+
+	/** Check a scan of the tree, and a search, against the expected tuples */
+	private void checkContents(BTreeFile bf, List<List<Integer>> expected) throws Exception {
+		List<List<Integer>> actual = collect(bf.iterator(tid));
+		for (int i = 1; i < actual.size(); i++)
+			assertTrue(actual.get(i - 1).get(0) <= actual.get(i).get(0));
+		Comparator<List<Integer>> order = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0)).thenComparing(t -> t.get(1));
+		List<List<Integer>> sorted = new ArrayList<>(expected);
+		sorted.sort(order);
+		actual.sort(order);
+		assertEquals(sorted, actual);
+
+		int c = MAX_VALUE / 3;
+		List<List<Integer>> above = new ArrayList<>();
+		for (List<Integer> t : sorted) {
+			if (t.get(0) >= c)
+				above.add(t);
+		}
+		List<List<Integer>> found = collect(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(c))));
+		found.sort(order);
+		assertEquals(above, found);
+	}
+
+	@Test public void testInsertAndDelete() throws Exception {
+		BTreeFile bf = emptyTree();
+		bf.setMessageBufferSize(500);
+		Random r = new Random(1);
+		List<List<Integer>> expected = new ArrayList<>();
+		List<Tuple> inserted = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			List<Integer> values = Arrays.asList(r.nextInt(MAX_VALUE), i);
+			Tuple t = BTreeUtility.getBTreeTuple(values);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			expected.add(values);
+			inserted.add(t);
+			assertTrue(bf.numPendingMessages(tid) <= 500);
+		}
+		checkContents(bf, expected);
+
+		// delete tuples that are still buffered and ones already on the leaf pages
+		for (int i = 0; i < 20000; i += 3) {
+			Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+			expected.remove(SystemTestUtil.tupleToList(inserted.get(i)));
+		}
+		checkContents(bf, expected);
+
+		// tuples found by a scan can be deleted as well
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(MAX_VALUE / 10)));
+		List<Tuple> victims = new ArrayList<>();
+		it.open();
+		while (it.hasNext())
+			victims.add(it.next());
+		it.close();
+		for (Tuple t : victims) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			expected.remove(SystemTestUtil.tupleToList(t));
+		}
+		checkContents(bf, expected);
+
+		bf.flushMessages(tid);
+		assertEquals(0, bf.numPendingMessages(tid));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		checkContents(bf, expected);
+	}
+
+	@Test public void testMessagesCancel() throws Exception {
+		BTreeFile bf = emptyTree();
+		for (int i = 0; i < 1000; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		bf.setMessageBufferSize(100);
+
+		// a delete of a buffered insert removes both
+		Tuple t = BTreeUtility.getBTreeTuple(5000, 2);
+		Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		assertEquals(1, bf.numPendingMessages(tid));
+		Database.getBufferPool().deleteTuple(tid, t);
+		assertEquals(0, bf.numPendingMessages(tid));
+
+		// so does an insert of the values of a buffered delete
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(7)));
+		it.open();
+		Tuple onLeaf = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(tid, onLeaf);
+		assertEquals(1, bf.numPendingMessages(tid));
+		assertTrue(collect(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(7)))).isEmpty());
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(7, 2));
+		assertEquals(0, bf.numPendingMessages(tid));
+		assertEquals(1, collect(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(7)))).size());
+
+		// turning buffering off keeps the pending messages until they are flushed
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(6000, 2));
+		bf.setMessageBufferSize(0);
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(6001, 2));
+		assertEquals(1, bf.numPendingMessages(tid));
+		assertEquals(1002, collect(bf.iterator(tid)).size());
+		Database.getBufferPool().flushAllPages();
+		bf.flushMessages(tid);
+		assertEquals(1002, collect(bf.iterator(tid)).size());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+	}
+
+	@Test public void testTransactions() throws Exception {
+		BTreeFile bf = emptyTree();
+		for (int i = 0; i < 1000; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		Database.getBufferPool().transactionComplete(tid);
+		bf.setMessageBufferSize(100);
+
+		// the pending messages of a transaction are its own
+		TransactionId aborted = new TransactionId();
+		for (int i = 1000; i < 1050; i++)
+			Database.getBufferPool().insertTuple(aborted, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		TransactionId other = new TransactionId();
+		assertEquals(0, bf.numPendingMessages(other));
+		assertEquals(1000, collect(bf.iterator(other)).size());
+		assertEquals(1050, collect(bf.iterator(aborted)).size());
+
+		// and are not flushed by another transaction that fills its own buffer
+		for (int i = 2000; i < 2150; i++)
+			Database.getBufferPool().insertTuple(other, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		assertEquals(50, bf.numPendingMessages(aborted));
+		assertTrue(bf.numPendingMessages(other) <= 100);
+
+		// they are dropped when the transaction aborts
+		Database.getBufferPool().transactionComplete(aborted, false);
+		assertEquals(0, bf.numPendingMessages(aborted));
+		assertEquals(1150, collect(bf.iterator(other)).size());
+
+		// and applied when it commits
+		Database.getBufferPool().transactionComplete(other, true);
+		assertEquals(0, bf.numPendingMessages(other));
+		List<List<Integer>> all = collect(bf.iterator(tid));
+		assertEquals(1150, all.size());
+		assertEquals(Arrays.asList(2149, 2149), all.get(all.size() - 1));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+	}
+
+	@Test public void testRandomInsertsLargerThanMemory() throws Exception {
+		int rows = 20000;
+		List<Integer> keys = new ArrayList<>();
+		Random r = new Random(2);
+		for (int i = 0; i < rows; i++)
+			keys.add(r.nextInt(MAX_VALUE));
+
+		int[] reads = new int[2];
+		for (int run = 0; run < 2; run++) {
+			// the tree outgrows a buffer pool of 20 pages many times over
+			Database.resetBufferPool(20);
+			CountingBTreeFile bf = emptyTree();
+			if (run == 1)
+				bf.setMessageBufferSize(rows / 4);
+			for (int i = 0; i < rows; i++)
+				Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(Arrays.asList(keys.get(i), i)));
+			bf.flushMessages(tid);
+			reads[run] = bf.reads;
+			assertEquals(rows, collect(bf.iterator(tid)).size());
+		}
+		assertTrue(reads[1] < reads[0] / 2);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeMessageBufferTest.class);
+	}
+}
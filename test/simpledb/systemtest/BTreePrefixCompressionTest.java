@@ -0,0 +1,245 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for string-keyed B+ trees with prefix-compressed pages
+ */
+public class BTreePrefixCompressionTest extends SimpleDbTestBase {
+
+	private static final int NUM_TUPLES = 8000;
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static BTreeFile createStringKeyed(boolean prefixCompressed) throws Exception {
+		File f = File.createTempFile("prefix", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+		BTreeFile bf = new BTreeFile(f, 0, td, prefixCompressed);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static String key(int i) {
+		return String.format("customer-%08d", i);
+	}
+
+	private static Tuple tuple(TupleDesc td, int i) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new StringField(key(i), Type.STRING_LEN));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	private void insertShuffled(BTreeFile bf, List<Integer> values) throws Exception {
+		for (int i : values) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf.getTupleDesc(), i));
+		}
+	}
+
+	private static List<Integer> shuffled(int n) {
+		List<Integer> values = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			values.add(i);
+		Collections.shuffle(values, new Random(42));
+		return values;
+	}
+
+	private List<Integer> scan(BTreeFile bf) throws Exception {
+		List<Integer> result = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			int v = ((IntField) t.getField(1)).getValue();
+			assertEquals(key(v), ((StringField) t.getField(0)).getValue());
+			result.add(v);
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * @return the number of levels of the tree and, in stats[0] and stats[1], the number
+	 * of internal pages and the number of entries on them
+	 */
+	private int height(BTreeFile bf, int[] stats) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		List<BTreePageId> level = Collections.singletonList(rootPtr.getRootId());
+		int height = 1;
+		while (level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			List<BTreePageId> next = new ArrayList<>();
+			for (BTreePageId pid : level) {
+				BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, pid, Permissions.READ_ONLY);
+				stats[0]++;
+				stats[1] += p.getNumEntries();
+				Iterator<BTreeEntry> it = p.iterator();
+				BTreeEntry e = null;
+				while (it.hasNext()) {
+					e = it.next();
+					next.add(e.getLeftChild());
+				}
+				next.add(e.getRightChild());
+			}
+			level = next;
+			height++;
+		}
+		return height;
+	}
+
+	@Test public void testHigherFanOutAndLowerTree() throws Exception {
+		BTreeFile plain = createStringKeyed(false);
+		BTreeFile compressed = createStringKeyed(true);
+		assertFalse(plain.isPrefixCompressed());
+		assertTrue(compressed.isPrefixCompressed());
+
+		List<Integer> values = shuffled(NUM_TUPLES);
+		insertShuffled(plain, values);
+		insertShuffled(compressed, values);
+		BTreeChecker.checkRep(plain, tid, new HashMap<>(), false);
+		BTreeChecker.checkRep(compressed, tid, new HashMap<>(), false);
+
+		List<Integer> expected = new ArrayList<>(values);
+		Collections.sort(expected);
+		assertEquals(expected, scan(plain));
+		assertEquals(expected, scan(compressed));
+
+		int[] plainStats = new int[2];
+		int[] compressedStats = new int[2];
+		int plainHeight = height(plain, plainStats);
+		int compressedHeight = height(compressed, compressedStats);
+		assertTrue(compressedHeight < plainHeight);
+		assertTrue(compressed.numPages() * 4 < plain.numPages());
+		double plainFanOut = 1 + (double) plainStats[1] / plainStats[0];
+		double compressedFanOut = 1 + (double) compressedStats[1] / compressedStats[0];
+		assertTrue(compressedFanOut > plainFanOut);
+	}
+
+	@Test public void testSearchAndReadBack() throws Exception {
+		BTreeFile bf = createStringKeyed(true);
+		insertShuffled(bf, shuffled(NUM_TUPLES));
+
+		// write everything out and read the pages back from disk
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+
+		for (int i = 0; i < NUM_TUPLES; i += 97) {
+			DbFileIterator it = bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, new StringField(key(i), Type.STRING_LEN)));
+			it.open();
+			assertTrue(it.hasNext());
+			assertEquals(i, ((IntField) it.next().getField(1)).getValue());
+			assertFalse(it.hasNext());
+			it.close();
+		}
+
+		// a separator may be shorter than any stored key
+		DbFileIterator it = bf.indexIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new StringField("customer-00005", Type.STRING_LEN)));
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(NUM_TUPLES - 5000, count);
+	}
+
+	@Test public void testDeleteRebalances() throws Exception {
+		deleteAndReinsert();
+	}
+
+	@Test public void testDeleteRebalancesInternalPages() throws Exception {
+		// small pages make the tree deep enough for internal pages to be
+		// split, merged and redistributed
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(1000);
+		deleteAndReinsert();
+	}
+
+	private void deleteAndReinsert() throws Exception {
+		BTreeFile bf = createStringKeyed(true);
+		insertShuffled(bf, shuffled(NUM_TUPLES));
+		int pagesBefore = bf.numPages();
+
+		// delete all but every tenth tuple, forcing merges and redistributions
+		List<Tuple> victims = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(1)).getValue() % 10 != 0)
+				victims.add(t);
+		}
+		it.close();
+		for (Tuple t : victims)
+			Database.getBufferPool().deleteTuple(tid, t);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Integer> remaining = scan(bf);
+		assertEquals(NUM_TUPLES / 10, remaining.size());
+		for (int v : remaining)
+			assertEquals(0, v % 10);
+
+		// the freed pages are reused by new inserts
+		List<Integer> more = new ArrayList<>();
+		for (int i = 0; i < NUM_TUPLES; i++)
+			if (i % 10 != 0)
+				more.add(i);
+		insertShuffled(bf, more);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		assertEquals(NUM_TUPLES, scan(bf).size());
+		assertTrue(bf.numPages() <= pagesBefore + 2);
+	}
+
+	@Test public void testIntKeysIgnoreCompression() throws Exception {
+		File f = File.createTempFile("prefix", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2), true);
+		assertFalse(bf.isPrefixCompressed());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePrefixCompressionTest.class);
+	}
+}
@@ -0,0 +1,74 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of purging a key range from a B+ tree against deleting its tuples
+ * one at a time, run with ant benchmark
+ */
+public class BTreeRangeDeleteBenchmark extends SimpleDbTestBase {
+
+	private static final int MAX_VALUE = 10000;
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(20000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	@Test public void testPurgeLatency() throws Exception {
+		int rows = 60000;
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField(MAX_VALUE * 8 / 10));
+
+		// one tuple at a time
+		BTreeFile bf = BTreeRangeDeleteTest.createTree(rows, MAX_VALUE, new ArrayList<>());
+		List<Tuple> victims = new ArrayList<>();
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		while (it.hasNext())
+			victims.add(it.next());
+		it.close();
+		long start = System.nanoTime();
+		for (Tuple t : victims)
+			Database.getBufferPool().deleteTuple(tid, t);
+		long oneByOne = (System.nanoTime() - start) / 1000000;
+
+		// as a range, from another tree of the same size
+		List<List<Integer>> tuples = new ArrayList<>();
+		bf = BTreeRangeDeleteTest.createTree(rows, MAX_VALUE, tuples);
+		int expected = 0;
+		for (List<Integer> t : tuples) {
+			if (t.get(0) < MAX_VALUE * 8 / 10)
+				expected++;
+		}
+		start = System.nanoTime();
+		assertEquals(expected, bf.deleteRange(tid, ipred));
+		long ranged = (System.nanoTime() - start) / 1000000;
+		System.out.printf("BTree purge of %d of %d tuples: %d ms one at a time, %d ms as a range%n",
+				expected, rows, oneByOne, ranged);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+}
@@ -0,0 +1,187 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for deleting key ranges from a B+ tree
+ */
+public class BTreeRangeDeleteTest extends SimpleDbTestBase {
+
+	private static final int MAX_VALUE = 10000;
+	private static final Op[] OPS = {Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ,
+			Op.LESS_THAN, Op.LESS_THAN_OR_EQ};
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		// small pages make the tree deep enough to prune internal pages
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(20000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	static BTreeFile createTree(int rows, int maxValue, List<List<Integer>> tuples) throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, maxValue, null, tuples, 0);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	/** @return the tuples of the tree, in key order */
+	private List<List<Integer>> contents(BTreeFile bf) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Delete the range from the tree and check the tree against the tuples left in
+	 * the list, which the range is removed from as well.
+	 */
+	private void deleteAndCheck(BTreeFile bf, List<List<Integer>> tuples, IndexPredicate ipred) throws Exception {
+		List<List<Integer>> remaining = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (ipred != null && !new IntField(t.get(0)).compare(ipred.getOp(), ipred.getField()))
+				remaining.add(t);
+		}
+		int expected = tuples.size() - remaining.size();
+		tuples.clear();
+		tuples.addAll(remaining);
+
+		assertEquals(expected, bf.deleteRange(tid, ipred));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<List<Integer>> actual = contents(bf);
+		assertEquals(remaining.size(), actual.size());
+		Comparator<List<Integer>> byKey = Comparator.comparing(t -> t.get(0));
+		remaining.sort(byKey.thenComparing(t -> t.get(1)));
+		actual.sort(byKey.thenComparing(t -> t.get(1)));
+		assertEquals(remaining, actual);
+	}
+
+	@Test public void testEveryOperator() throws Exception {
+		Random r = new Random(1);
+		for (Op op : OPS) {
+			List<List<Integer>> tuples = new ArrayList<>();
+			BTreeFile bf = createTree(20000, MAX_VALUE, tuples);
+			deleteAndCheck(bf, tuples, new IndexPredicate(op, new IntField(r.nextInt(MAX_VALUE))));
+		}
+	}
+
+	@Test public void testRepeatedRanges() throws Exception {
+		Random r = new Random(2);
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = createTree(30000, MAX_VALUE, tuples);
+		// carve the tree up with ranges of all sizes, from both ends and the middle
+		for (int i = 0; i < 30; i++) {
+			int c = r.nextInt(MAX_VALUE);
+			Op op = OPS[r.nextInt(OPS.length)];
+			deleteAndCheck(bf, tuples, new IndexPredicate(op, new IntField(c)));
+			if (tuples.isEmpty())
+				break;
+			// keep some tuples around for the next round
+			if (tuples.size() < 2000) {
+				for (int j = 0; j < 5000; j++) {
+					int k = r.nextInt(MAX_VALUE);
+					Tuple t = new Tuple(bf.getTupleDesc());
+					t.setField(0, new IntField(k));
+					t.setField(1, new IntField(j));
+					Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+					tuples.add(Arrays.asList(k, j));
+				}
+			}
+		}
+	}
+
+	@Test public void testDuplicateKeys() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		// a few keys, each spread over many leaf pages
+		BTreeFile bf = createTree(20000, 20, tuples);
+		deleteAndCheck(bf, tuples, new IndexPredicate(Op.EQUALS, new IntField(7)));
+		deleteAndCheck(bf, tuples, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(15)));
+		deleteAndCheck(bf, tuples, new IndexPredicate(Op.LESS_THAN, new IntField(3)));
+		deleteAndCheck(bf, tuples, new IndexPredicate(Op.EQUALS, new IntField(8)));
+	}
+
+	@Test public void testEmptyRange() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = createTree(5000, MAX_VALUE, tuples);
+		deleteAndCheck(bf, tuples, new IndexPredicate(Op.GREATER_THAN, new IntField(MAX_VALUE)));
+		deleteAndCheck(bf, tuples, new IndexPredicate(Op.LESS_THAN, new IntField(-1)));
+		assertEquals(5000, tuples.size());
+	}
+
+	@Test public void testDeleteEverything() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = createTree(20000, MAX_VALUE, tuples);
+		deleteAndCheck(bf, tuples, null);
+		int pages = bf.numPages();
+
+		// the freed pages are used again before the file grows
+		for (int i = 0; i < 10000; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		assertEquals(pages, bf.numPages());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+	}
+
+	@Test(expected = simpledb.common.DbException.class)
+	public void testNotARange() throws Exception {
+		BTreeFile bf = createTree(100, MAX_VALUE, new ArrayList<>());
+		bf.deleteRange(tid, new IndexPredicate(Op.NOT_EQUALS, new IntField(5)));
+	}
+
+	@Test public void testDeleteOperator() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = createTree(20000, MAX_VALUE, tuples);
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(MAX_VALUE / 2));
+		int expected = 0;
+		for (List<Integer> t : tuples) {
+			if (t.get(0) <= MAX_VALUE / 2)
+				expected++;
+		}
+
+		Delete delete = new Delete(tid, new BTreeScan(tid, bf.getId(), "", ipred));
+		delete.open();
+		assertEquals(expected, ((IntField) delete.next().getField(0)).getValue());
+		assertFalse(delete.hasNext());
+		delete.close();
+
+		assertEquals(tuples.size() - expected, contents(bf).size());
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeRangeDeleteTest.class);
+	}
+}
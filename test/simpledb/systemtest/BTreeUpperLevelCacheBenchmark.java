@@ -0,0 +1,67 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of B+ tree point lookups with and without the upper level cache,
+ * run with ant benchmark
+ */
+public class BTreeUpperLevelCacheBenchmark extends SimpleDbTestBase {
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		// small pages make the tree deep enough to cache more than the root
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/** @return the mean time of a lookup in microseconds */
+	private double timeLookups(BTreeFile bf, int[] keys) throws Exception {
+		long start = System.nanoTime();
+		for (int k : keys)
+			assertTrue(BTreeUpperLevelCacheTest.lookup(bf, tid, k) > 0);
+		return (System.nanoTime() - start) / 1000.0 / keys.length;
+	}
+
+	@Test public void testLookupLatency() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUpperLevelCacheTest.createTree(200000, tuples);
+		Random r = new Random(3);
+		int[] keys = new int[20000];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = tuples.get(r.nextInt(tuples.size())).get(0);
+
+		// alternate between the two modes and keep the best round of each
+		double uncached = Double.MAX_VALUE;
+		double cached = Double.MAX_VALUE;
+		for (int round = 0; round < 3; round++) {
+			bf.setCacheUpperLevels(false);
+			uncached = Math.min(uncached, timeLookups(bf, keys));
+			bf.setCacheUpperLevels(true);
+			cached = Math.min(cached, timeLookups(bf, keys));
+		}
+		System.out.printf("BTree point lookup: %.2f us without the upper level cache, %.2f us with it%n",
+				uncached, cached);
+	}
+}
@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for the cache of the root pointer and upper levels of a B+ tree
+ */
+public class BTreeUpperLevelCacheTest extends SimpleDbTestBase {
+
+	private static final int MAX_VALUE = 1 << 20;
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		// small pages make the tree deep enough to cache more than the root
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	static BTreeFile createTree(int rows, List<List<Integer>> tuples) throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, MAX_VALUE, null, tuples, 0);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	/** @return the number of tuples with key k */
+	static int lookup(BTreeFile bf, TransactionId tid, int k) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(k)));
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			assertEquals(k, ((IntField) it.next().getField(0)).getValue());
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	private static Map<Integer, Integer> counts(List<List<Integer>> tuples) {
+		Map<Integer, Integer> counts = new HashMap<>();
+		for (List<Integer> t : tuples)
+			counts.merge(t.get(0), 1, Integer::sum);
+		return counts;
+	}
+
+	private void checkLookups(BTreeFile bf, Map<Integer, Integer> counts, Random r) throws Exception {
+		List<Integer> keys = new ArrayList<>(counts.keySet());
+		for (int i = 0; i < 500; i++) {
+			int k = keys.get(r.nextInt(keys.size()));
+			assertEquals((int) counts.get(k), lookup(bf, tid, k));
+		}
+		for (int i = 0; i < 100; i++) {
+			int k = r.nextInt(MAX_VALUE);
+			assertEquals((int) counts.getOrDefault(k, 0), lookup(bf, tid, k));
+		}
+	}
+
+	@Test public void testLookupsFollowSplits() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = createTree(20000, tuples);
+		Map<Integer, Integer> counts = counts(tuples);
+		Random r = new Random(1);
+		checkLookups(bf, counts, r);
+
+		// enough inserts to split pages at every level, with lookups in between
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 10000; i++) {
+				int k = r.nextInt(MAX_VALUE);
+				Tuple t = new Tuple(bf.getTupleDesc());
+				t.setField(0, new IntField(k));
+				t.setField(1, new IntField(i));
+				Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+				counts.merge(k, 1, Integer::sum);
+			}
+			checkLookups(bf, counts, r);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+	}
+
+	@Test public void testLookupsFollowMerges() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = createTree(30000, tuples);
+		Random r = new Random(2);
+		checkLookups(bf, counts(tuples), r);
+
+		// delete most tuples so that pages merge all the way up to the root
+		List<Tuple> victims = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (n++ % 20 != 0)
+				victims.add(t);
+		}
+		it.close();
+		List<List<Integer>> remaining = new ArrayList<>();
+		for (int i = 0; i < victims.size(); i++) {
+			Database.getBufferPool().deleteTuple(tid, victims.get(i));
+			if (i % 5000 == 0)
+				lookup(bf, tid, ((IntField) victims.get(i).getField(0)).getValue());
+		}
+		it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			remaining.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		assertEquals(n - victims.size(), remaining.size());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkLookups(bf, counts(remaining), r);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeUpperLevelCacheTest.class);
+	}
+}
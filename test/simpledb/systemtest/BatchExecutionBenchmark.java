@@ -0,0 +1,92 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of a plan run a tuple at a time against a batch at a time, run
+ * with ant benchmark
+ */
+public class BatchExecutionBenchmark extends SimpleDbTestBase {
+
+    @Test public void testScanFilterAggregateThroughput() throws IOException, DbException, TransactionAbortedException {
+        int rows = 500000;
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, rows, 1000, null, null);
+        TransactionId tid = new TransactionId();
+        Database.resetBufferPool(table.numPages() + 10);
+
+        int[] sums = new int[2];
+        long[] nanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int rep = 0; rep < 5; rep++) {
+            for (int mode = 0; mode < 2; mode++) {
+                Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)),
+                        new SeqScan(tid, table.getId(), ""));
+                // tuple mode: hide the batch interface of the filter from the aggregate
+                OpIterator child = mode == 0 ? new TupleOnly(filter) : filter;
+                Aggregate agg = new Aggregate(child, 2, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+                long start = System.nanoTime();
+                agg.open();
+                sums[mode] = ((IntField) agg.next().getField(0)).getValue();
+                agg.close();
+                nanos[mode] = Math.min(nanos[mode], System.nanoTime() - start);
+            }
+            assertEquals(sums[0], sums[1]);
+        }
+        System.out.printf("scan-filter-aggregate over %d rows: %.0f rows/s by tuple, %.0f rows/s by batch%n",
+                rows, rows * 1e9 / nanos[0], rows * 1e9 / nanos[1]);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Passes on the tuples of an operator without its batch interface. */
+    private static class TupleOnly extends Operator {
+        private static final long serialVersionUID = 1L;
+        private OpIterator child;
+
+        TupleOnly(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return child.hasNext() ? child.next() : null;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+    }
+}
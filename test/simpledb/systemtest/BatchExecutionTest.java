@@ -0,0 +1,171 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs plans both a tuple at a time and a batch at a time and checks that the
+ * two modes give the same results.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+
+    /** Checks a plan in tuple mode, then in batch mode. */
+    private static void matchBothModes(OpIterator plan, List<List<Integer>> expected)
+            throws DbException, TransactionAbortedException {
+        SystemTestUtil.matchTuples(plan, expected);
+        SystemTestUtil.matchTuples(Batches.tuples((BatchOpIterator) plan), expected);
+    }
+
+    @Test public void testFilterAndProject() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(50));
+            List<List<Integer>> expected = new ArrayList<>();
+            for (List<Integer> t : tuples) {
+                if (new IntField(t.get(1)).compare(op, new IntField(50)))
+                    expected.add(Arrays.asList(t.get(2), t.get(0)));
+            }
+            OpIterator plan = new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+                    new Filter(p, new SeqScan(tid, table.getId(), "")));
+            matchBothModes(plan, expected);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testNotOpen() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        try {
+            scan.nextBatch();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        scan.open();
+        assertEquals(10, scan.nextBatch().numSelected());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testStringFilter() throws DbException, TransactionAbortedException {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        List<Tuple> tuples = new ArrayList<>();
+        String[] words = {"apple", "banana", "cherry", "grape", "pineapple"};
+        for (int i = 0; i < 3000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(words[i % words.length], Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(0, op, new StringField("apple", Type.STRING_LEN));
+            List<Integer> expected = new ArrayList<>();
+            for (Tuple t : tuples) {
+                if (p.filter(t))
+                    expected.add(((IntField) t.getField(1)).getValue());
+            }
+
+            // a child without batches of its own is read through an adapter
+            Filter filter = new Filter(p, new TupleIterator(td, tuples));
+            filter.open();
+            List<Integer> actual = new ArrayList<>();
+            Batch b;
+            while ((b = filter.nextBatch()) != null) {
+                assertTrue(b.numSelected() > 0);
+                for (int i = 0; i < b.numSelected(); i++)
+                    actual.add(b.intColumn(1)[b.selection()[i]]);
+            }
+            filter.close();
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test public void testAggregate() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, tuples);
+        TransactionId tid = new TransactionId();
+        Aggregator.Op[] ops = {Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT};
+        for (Aggregator.Op op : ops) {
+            for (int gfield : new int[]{Aggregator.NO_GROUPING, 0}) {
+                // the same aggregate over a child that is read by tuples
+                Aggregate byTuples = new Aggregate(new TupleIterator(table.getTupleDesc(), tuplesOf(tuples)), 1, gfield, op);
+                List<List<Integer>> expected = new ArrayList<>();
+                byTuples.open();
+                while (byTuples.hasNext())
+                    expected.add(SystemTestUtil.tupleToList(byTuples.next()));
+                byTuples.close();
+
+                // an Aggregate keeps its groups when reopened, so each mode gets its own
+                SystemTestUtil.matchTuples(new Aggregate(new SeqScan(tid, table.getId(), ""), 1, gfield, op), expected);
+                Aggregate byBatches = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, gfield, op);
+                SystemTestUtil.matchTuples(Batches.tuples(byBatches), expected);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<Tuple> tuplesOf(List<List<Integer>> rows) {
+        TupleDesc td = Utility.getTupleDesc(rows.get(0).size());
+        List<Tuple> result = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < row.size(); i++)
+                t.setField(i, new IntField(row.get(i)));
+            result.add(t);
+        }
+        return result;
+    }
+
+    @Test public void testHashEquiJoin() throws IOException, DbException, TransactionAbortedException {
+        // more rows on the left than fit in the hash table at once
+        List<List<Integer>> left = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, HashEquiJoin.MAP_SIZE + 5000, null, left);
+        List<List<Integer>> right = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, 3000, null, right);
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t : left)
+            byKey.computeIfAbsent(t.get(0), k -> new ArrayList<>()).add(t);
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t2 : right) {
+            for (List<Integer> t1 : byKey.getOrDefault(t2.get(0), new ArrayList<>())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expected.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin join = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), "a"),
+                new SeqScan(tid, table2.getId(), "b"));
+        matchBothModes(join, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Benchmark of CompressedHeapFile against HeapFile, run with ant benchmark
+ */
+public class CompressedHeapFileBenchmark extends SimpleDbTestBase {
+
+    /** Scan the whole file from a cold buffer pool and return the elapsed nanoseconds. */
+    private static long timeScan(DbFile f) throws DbException, TransactionAbortedException {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        long start = System.nanoTime();
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+        long elapsed = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        return elapsed;
+    }
+
+    /** Compare on-disk size and cold scan time of the raw and compressed formats. */
+    @Test public void testSizeAndThroughput() throws IOException, DbException, TransactionAbortedException {
+        // small value domain, as is typical for historical fact tables
+        HeapFile raw = SystemTestUtil.createRandomHeapFile(4, 20000, 1000, null, null);
+        CompressedHeapFile cf = CompressedHeapFileTest.compress(raw, 4);
+
+        timeScan(raw);
+        timeScan(cf);
+        long rawNanos = timeScan(raw);
+        long compressedNanos = timeScan(cf);
+        System.out.printf("CompressedHeapFile: %d pages, raw %d bytes, compressed %d bytes (%.1f%%)%n",
+                raw.numPages(), raw.getFile().length(), cf.sizeOnDisk(),
+                100.0 * cf.sizeOnDisk() / raw.getFile().length());
+        System.out.printf("CompressedHeapFile: cold scan raw %.2f ms, compressed %.2f ms%n",
+                rawNanos / 1e6, compressedNanos / 1e6);
+    }
+}
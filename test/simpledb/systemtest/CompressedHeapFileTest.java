@@ -0,0 +1,87 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    static CompressedHeapFile compress(HeapFile raw, int columns) throws IOException {
+        File out = File.createTempFile("ctable", ".dat");
+        out.deleteOnExit();
+        CompressedHeapFile.convert(raw.getFile(), out);
+        CompressedHeapFile cf = new CompressedHeapFile(out, Utility.getTupleDesc(columns));
+        Database.getCatalog().addTable(cf, "c" + cf.getId());
+        return cf;
+    }
+
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        int[] rowSizes = new int[]{0, 1, 511, 512, 513, 5000};
+        for (int rows : rowSizes) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            HeapFile raw = SystemTestUtil.createRandomHeapFile(3, rows, null, tuples);
+            CompressedHeapFile cf = compress(raw, 3);
+            assertEquals(raw.numPages(), cf.numPages());
+            SystemTestUtil.matchTuples(cf, tuples);
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        }
+    }
+
+    @Test public void testInsertAndReopen() throws IOException, DbException, TransactionAbortedException {
+        // 100 completely full pages, so the page directory is also full
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile raw = SystemTestUtil.createRandomHeapFile(10, 102 * 100, null, tuples);
+        CompressedHeapFile cf = compress(raw, 10);
+        Database.resetBufferPool(200);
+
+        // the next insert needs a new page and must grow the directory
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 200; i++) {
+            int[] values = new int[10];
+            List<Integer> l = new ArrayList<>();
+            for (int j = 0; j < values.length; j++) {
+                values[j] = i * j;
+                l.add(i * j);
+            }
+            Database.getBufferPool().insertTuple(tid, cf.getId(), Utility.getHeapTuple(values));
+            tuples.add(l);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        // a fresh instance must see the same directory
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        CompressedHeapFile reopened = new CompressedHeapFile(cf.getFile(), Utility.getTupleDesc(10));
+        Database.getCatalog().addTable(reopened, "reopened");
+        assertEquals(102, reopened.numPages());
+        SystemTestUtil.matchTuples(reopened, tuples);
+
+        reopened.compact();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(reopened, tuples);
+    }
+
+    /** Small value domains, as are typical for historical fact tables, compress. */
+    @Test public void testSize() throws IOException, DbException, TransactionAbortedException {
+        HeapFile raw = SystemTestUtil.createRandomHeapFile(4, 20000, 1000, null, null);
+        CompressedHeapFile cf = compress(raw, 4);
+        assertTrue(cf.sizeOnDisk() < raw.getFile().length());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
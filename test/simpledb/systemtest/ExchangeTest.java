@@ -0,0 +1,315 @@
+package simpledb.systemtest;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    /** Passes the tuples of its child through, and records them and whether it is open. */
+    private static class Watched extends Operator {
+        private static final long serialVersionUID = 1L;
+        private OpIterator child;
+        private final int failAfter;
+        private int read;
+        final List<Tuple> seen = new ArrayList<>();
+        volatile boolean isOpen;
+
+        Watched(OpIterator child, int failAfter) {
+            this.child = child;
+            this.failAfter = failAfter;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            read = 0;
+            isOpen = true;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+            isOpen = false;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (read++ == failAfter)
+                throw new DbException("failed after " + failAfter + " tuples");
+            if (!child.hasNext())
+                return null;
+            Tuple t = child.next();
+            seen.add(t);
+            return t;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+    }
+
+    /**
+     * Statistics that know the size of a table; TableStats itself estimates
+     * every table to be empty
+     */
+    private static class SizeStats extends TableStats {
+        private final int rows;
+
+        SizeStats(int tableid, int rows) {
+            super(tableid, 1000);
+            this.rows = rows;
+        }
+
+        @Override
+        public int estimateTableCardinality(double selectivityFactor) {
+            return (int) (rows * selectivityFactor);
+        }
+
+        @Override
+        public double estimateScanCost() {
+            return rows;
+        }
+    }
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<List<Integer>> readAll(OpIterator it) throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    private static List<List<Integer>> sorted(List<List<Integer>> tuples) {
+        List<List<Integer>> copy = new ArrayList<>(tuples);
+        copy.sort((a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        });
+        return copy;
+    }
+
+    @Test public void testGather() throws Exception {
+        List<List<Integer>> expected = new ArrayList<>();
+        List<OpIterator> scans = new ArrayList<>();
+        for (int rows : new int[]{0, 1, 3000, 10000}) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+            expected.addAll(tuples);
+            scans.add(new SeqScan(tid, f.getId(), "t"));
+        }
+        Gather gather = new Gather(scans);
+        assertEquals("gather(4)", gather.getName());
+        SystemTestUtil.matchTuples(gather, expected);
+        // matchTuples has already rewound it once
+        SystemTestUtil.matchTuples(gather, expected);
+    }
+
+    @Test public void testHashRepartition() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        List<List<Integer>> more = new ArrayList<>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, tuples);
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 7000, 100, null, more);
+        tuples.addAll(more);
+        Repartition parts = Repartition.hash(
+                Arrays.asList(new SeqScan(tid, f1.getId(), "t"), new SeqScan(tid, f2.getId(), "t")), 1, 3);
+
+        List<Watched> outputs = new ArrayList<>();
+        for (int i = 0; i < parts.numPartitions(); i++)
+            outputs.add(new Watched(parts.output(i), -1));
+        assertEquals(sorted(tuples), sorted(readAll(new Gather(new ArrayList<>(outputs)))));
+
+        // each partition holds only the values that hash to it
+        for (int i = 0; i < parts.numPartitions(); i++) {
+            assertFalse(outputs.get(i).seen.isEmpty());
+            for (Tuple t : outputs.get(i).seen)
+                assertEquals(i, Math.floorMod(t.getField(1).hashCode(), 3));
+        }
+    }
+
+    @Test public void testBroadcastAndRoundRobin() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 4000, null, tuples);
+
+        Repartition broadcast = Repartition.broadcast(
+                Collections.singletonList(new SeqScan(tid, f.getId(), "t")), 3);
+        List<OpIterator> outputs = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            outputs.add(broadcast.output(i));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            expected.addAll(tuples);
+        assertEquals(sorted(expected), sorted(readAll(new Gather(outputs))));
+
+        Repartition roundRobin = Repartition.roundRobin(
+                Collections.singletonList(new SeqScan(tid, f.getId(), "t")), 4);
+        outputs.clear();
+        for (int i = 0; i < 4; i++)
+            outputs.add(roundRobin.output(i));
+        assertEquals(sorted(tuples), sorted(readAll(new Gather(outputs))));
+    }
+
+    @Test public void testReadOnce() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Repartition parts = Repartition.roundRobin(
+                Collections.singletonList(new SeqScan(tid, f.getId(), "t")), 1);
+        Repartition.Output out = parts.output(0);
+        out.open();
+        while (out.hasNext())
+            out.next();
+        out.rewind();
+        try {
+            out.hasNext();
+            fail("expected a rewound output to refuse to be read again");
+        } catch (DbException e) {
+            // expected
+        }
+        out.close();
+    }
+
+    @Test public void testProducerFailure() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10000, null, null);
+        Watched failing = new Watched(new SeqScan(tid, f.getId(), "t"), 5000);
+        Gather gather = new Gather(Arrays.asList(
+                new SeqScan(tid, f.getId(), "t"), failing));
+        gather.open();
+        try {
+            while (gather.hasNext())
+                gather.next();
+            fail("expected the producer's failure");
+        } catch (DbException e) {
+            assertEquals("failed after 5000 tuples", e.getMessage());
+        }
+        gather.close();
+        assertFalse(failing.isOpen);
+    }
+
+    @Test public void testCloseEarly() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 50000, null, null);
+        Watched scan = new Watched(new SeqScan(tid, f.getId(), "t"), -1);
+        Repartition parts = Repartition.hash(Collections.singletonList(scan), 0, 4);
+        List<OpIterator> outputs = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            outputs.add(parts.output(i));
+        Gather gather = new Gather(outputs);
+        gather.open();
+        for (int i = 0; i < 10; i++)
+            gather.next();
+        // the producers are stopped while most of the table is unread
+        gather.close();
+        assertFalse(scan.isOpen);
+    }
+
+    private List<List<Integer>> runPlan(LogicalPlan lp, Map<String, TableStats> stats, int parallelism,
+                                        boolean expectGather) throws Exception {
+        lp.setParallelism(parallelism);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(expectGather, containsGather(plan));
+        return readAll(plan);
+    }
+
+    private static boolean containsGather(OpIterator plan) {
+        if (plan instanceof Gather)
+            return true;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && containsGather(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, TableStats> addTables(String[] names, int[] rows, int maxValue) throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows[i], maxValue, null, null, "f");
+            Database.getCatalog().addTable(f, names[i]);
+            stats.put(names[i], new SizeStats(f.getId(), rows[i]));
+        }
+        return stats;
+    }
+
+    @Test public void testParallelJoins() throws Exception {
+        for (int smallRows : new int[]{500, 25000}) {
+            String small = "small" + smallRows, large = "large" + smallRows;
+            Map<String, TableStats> stats = addTables(new String[]{small, large}, new int[]{smallRows, 30000}, 20000);
+            Database.resetBufferPool(1000);
+            List<List<Integer>> expected = null;
+            for (int parallelism : new int[]{1, 4}) {
+                LogicalPlan lp = new LogicalPlan();
+                lp.addScan(Database.getCatalog().getTableId(small), "a");
+                lp.addScan(Database.getCatalog().getTableId(large), "b");
+                lp.addJoin("a.f0", "b.f0", Predicate.Op.EQUALS);
+                for (String field : new String[]{"a.f0", "a.f1", "b.f1"})
+                    lp.addProjectField(field, null);
+                List<List<Integer>> result = sorted(runPlan(lp, stats, parallelism, parallelism > 1));
+                if (expected == null) {
+                    assertFalse(result.isEmpty());
+                    expected = result;
+                }
+                assertEquals(expected, result);
+            }
+        }
+    }
+
+    @Test public void testParallelAggregate() throws Exception {
+        Map<String, TableStats> stats = addTables(new String[]{"grouped"}, new int[]{40000}, 1000);
+        Database.resetBufferPool(1000);
+        List<List<Integer>> expected = null;
+        for (int parallelism : new int[]{1, 4}) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(Database.getCatalog().getTableId("grouped"), "g");
+            lp.addProjectField("g.f1", null);
+            lp.addProjectField("g.f0", "sum");
+            lp.addAggregate("sum", "g.f0", "g.f1");
+            List<List<Integer>> result = sorted(runPlan(lp, stats, parallelism, parallelism > 1));
+            if (expected == null) {
+                assertEquals(1000, result.size(), 10);
+                expected = result;
+            }
+            assertEquals(expected, result);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of ORDER BY on an input larger than its sort memory, run with ant
+ * benchmark
+ */
+public class ExternalSortBenchmark extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Sorts a table ten times larger than the sort memory, and compares the
+     * time to sorting it in memory.
+     */
+    @Test public void testLargerThanMemory() throws Exception {
+        int rows = 200000;
+        long budget = rows / 10 * ExternalSortTest.tupleBytes(3);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, rows, rows, null, null);
+        Database.resetBufferPool(f.numPages() + 10);
+
+        StringBuilder report = new StringBuilder();
+        for (long memory : new long[]{Long.MAX_VALUE, budget}) {
+            long best = Long.MAX_VALUE;
+            int runs = 0;
+            for (int rep = 0; rep < 3; rep++) {
+                OrderBy sort = new OrderBy(new int[]{0, 1}, new boolean[]{true, false},
+                        new SeqScan(tid, f.getId(), ""));
+                sort.setSortMemory(memory);
+                long start = System.nanoTime();
+                sort.open();
+                int n = 0;
+                Tuple prev = null;
+                while (sort.hasNext()) {
+                    Tuple t = sort.next();
+                    if (prev != null)
+                        assertTrue(prev.getField(0).compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(0)));
+                    prev = t;
+                    n++;
+                }
+                runs = sort.numRuns();
+                sort.close();
+                best = Math.min(best, System.nanoTime() - start);
+                assertEquals(rows, n);
+            }
+            report.append(String.format(" %s: %.0f ms (%d runs);",
+                    memory == Long.MAX_VALUE ? "in memory" : "budget " + memory + " bytes", best / 1e6, runs));
+        }
+        System.out.println("sort of " + rows + " rows:" + report);
+    }
+}
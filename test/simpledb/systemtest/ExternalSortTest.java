@@ -0,0 +1,190 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * System test for ORDER BY on inputs larger than its sort memory
+ */
+public class ExternalSortTest extends SimpleDbTestBase {
+
+    // the heap a tuple of three int fields read from a table takes in a sort
+    private static final long TUPLE_BYTES = tupleBytes(3);
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Sorts the tuples on fields, stably, as OrderBy should. */
+    private static List<List<Integer>> expectedSort(List<List<Integer>> tuples, int[] fields, boolean[] asc) {
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort((a, b) -> {
+            for (int i = 0; i < fields.length; i++) {
+                int c = Integer.compare(a.get(fields[i]), b.get(fields[i]));
+                if (c != 0)
+                    return asc[i] ? c : -c;
+            }
+            return 0;
+        });
+        return expected;
+    }
+
+    /** @return the heap a tuple of n int fields read from a table takes in a sort */
+    static long tupleBytes(int n) {
+        Tuple t = new Tuple(Utility.getTupleDesc(n));
+        for (int i = 0; i < n; i++)
+            t.setField(i, new IntField(i));
+        t.setRecordId(new RecordId(new HeapPageId(0, 0), 0));
+        return ExternalSorter.heapSize(t);
+    }
+
+    private static List<List<Integer>> readAll(OpIterator it) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        return result;
+    }
+
+    private OrderBy validateSort(int rows, int maxValue, int[] fields, boolean[] asc, long sortMemory)
+            throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, rows, maxValue, null, tuples);
+        OrderBy sort = new OrderBy(fields, asc, new SeqScan(tid, f.getId(), ""));
+        sort.setSortMemory(sortMemory);
+        List<List<Integer>> expected = expectedSort(tuples, fields, asc);
+
+        sort.open();
+        // equal tuples keep the order of the scan
+        assertEquals(expected, readAll(sort));
+        sort.rewind();
+        assertEquals(expected, readAll(sort));
+        return sort;
+    }
+
+    @Test public void testInMemory() throws Exception {
+        OrderBy sort = validateSort(2000, 50, new int[]{1, 0}, new boolean[]{true, false}, OrderBy.SORT_MEMORY);
+        assertEquals(0, sort.numRuns());
+        sort.close();
+        sort = validateSort(0, 50, new int[]{0}, new boolean[]{true}, OrderBy.SORT_MEMORY);
+        assertEquals(0, sort.numRuns());
+        sort.close();
+    }
+
+    @Test public void testSpill() throws Exception {
+        // about 10 runs, sorted on three keys in mixed directions
+        OrderBy sort = validateSort(5000, 20, new int[]{2, 0, 1}, new boolean[]{false, true, false},
+                500 * TUPLE_BYTES);
+        assertEquals(10, sort.numRuns());
+        sort.close();
+        assertEquals(0, sort.numRuns());
+
+        // one tuple per run
+        sort = validateSort(100, 1000, new int[]{0}, new boolean[]{true}, 1);
+        assertEquals(100, sort.numRuns());
+        sort.close();
+    }
+
+    @Test public void testManyRuns() throws Exception {
+        // more runs than are merged at once, so runs are merged in several passes
+        int runs = ExternalSorter.MAX_FAN_IN * 2 + 3;
+        OrderBy sort = validateSort(runs * 20, 100, new int[]{1, 2}, new boolean[]{true, true},
+                20 * TUPLE_BYTES);
+        assertTrue(sort.numRuns() <= ExternalSorter.MAX_FAN_IN);
+        sort.close();
+    }
+
+    @Test public void testLargerThanHeap() throws Exception {
+        // more tuples than fit in a 128 MB heap, with the default sort memory
+        int rows = 2000000;
+        OrderBy sort = new OrderBy(0, false, new TestUtil.MockScan(0, rows, 2));
+        sort.open();
+        assertTrue(sort.numRuns() > 0);
+        int expected = rows;
+        while (sort.hasNext())
+            assertEquals(--expected, ((IntField) sort.next().getField(0)).getValue());
+        assertEquals(0, expected);
+        sort.close();
+    }
+
+    @Test public void testTempDir() throws Exception {
+        File dir = Files.createTempDirectory("sort").toFile();
+        try {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, new ArrayList<>());
+            OrderBy sort = new OrderBy(0, true, new SeqScan(tid, f.getId(), ""));
+            sort.setSortMemory(1000 * TUPLE_BYTES);
+            sort.setTempDir(dir);
+            sort.open();
+            assertEquals(3, sort.numRuns());
+            assertEquals(3, Objects.requireNonNull(dir.listFiles()).length);
+            sort.close();
+            // the runs are deleted when the sort is closed
+            assertEquals(0, Objects.requireNonNull(dir.listFiles()).length);
+        } finally {
+            dir.delete();
+        }
+    }
+
+    @Test public void testStrings() throws Exception {
+        Object[] data = new Object[]{
+                "pear", 1, "apple", 2, "fig", 3, "", 4,
+                "apple", 5, "banana", 6, "fig", 7, "cherry", 8};
+        OrderBy sort = new OrderBy(new int[]{0, 1}, new boolean[]{true, false}, TestUtil.createTupleList(2, data));
+        // a run per tuple, read back from the compact format
+        sort.setSortMemory(1);
+        sort.open();
+        assertEquals(8, sort.numRuns());
+        List<String> result = new ArrayList<>();
+        while (sort.hasNext()) {
+            Tuple t = sort.next();
+            result.add(t.getField(0) + ":" + t.getField(1));
+        }
+        sort.close();
+        assertEquals(Arrays.asList(":4", "apple:5", "apple:2", "banana:6", "cherry:8", "fig:7", "fig:3", "pear:1"),
+                result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoDirections() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 10, null, null);
+        new OrderBy(new int[]{0, 1}, new boolean[]{true}, new SeqScan(tid, f.getId(), ""));
+    }
+
+    @Test public void testMultipleOrderByFields() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, 10, null, tuples, "f");
+        Database.getCatalog().addTable(f, "sorted_plan");
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        for (String field : new String[]{"t.f0", "t.f1", "t.f2"})
+            lp.addProjectField(field, null);
+        lp.addOrderBy("t.f1", false);
+        lp.addOrderBy("t.f2", true);
+        OpIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        plan.open();
+        List<List<Integer>> result = readAll(plan);
+        plan.close();
+        assertEquals(expectedSort(tuples, new int[]{1, 2}, new boolean[]{false, true}), result);
+    }
+}
@@ -0,0 +1,62 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.HashEquiJoin;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of a HashEquiJoin larger than its memory budget, run with ant
+ * benchmark
+ */
+public class GraceHashJoinBenchmark extends SimpleDbTestBase {
+
+    /**
+     * Joins two tables that are each ten times larger than the memory budget,
+     * and compares the time to the same join with an unlimited budget.
+     */
+    @Test public void testLargerThanMemory() throws IOException, DbException, TransactionAbortedException {
+        int rows = 100000;
+        int budget = rows / 10;
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, null);
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, null);
+        Database.resetBufferPool(t1.numPages() + t2.numPages() + 10);
+        TransactionId tid = new TransactionId();
+
+        int expected = -1;
+        StringBuilder report = new StringBuilder();
+        for (int mapSize : new int[]{Integer.MAX_VALUE, budget}) {
+            long best = Long.MAX_VALUE;
+            int spilled = 0;
+            for (int rep = 0; rep < 3; rep++) {
+                HashEquiJoin j = GraceHashJoinTest.join(tid, t1, t2, mapSize);
+                long start = System.nanoTime();
+                int n = 0;
+                j.open();
+                while (j.hasNext()) {
+                    j.next();
+                    n++;
+                }
+                spilled = j.numSpilledPartitions();
+                j.close();
+                best = Math.min(best, System.nanoTime() - start);
+                if (expected < 0)
+                    expected = n;
+                assertEquals(expected, n);
+            }
+            report.append(String.format(" %s: %.0f ms (%d partitions);",
+                    mapSize == Integer.MAX_VALUE ? "in memory" : "budget " + mapSize,
+                    best / 1e6, spilled));
+        }
+        System.out.println("hash join of " + rows + " x " + rows + " rows:" + report);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
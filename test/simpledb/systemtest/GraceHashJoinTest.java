@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class GraceHashJoinTest extends SimpleDbTestBase {
+
+    private static List<List<Integer>> expectedJoin(List<List<Integer>> t1Tuples, List<List<Integer>> t2Tuples) {
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t1 : t1Tuples)
+            byKey.computeIfAbsent(t1.get(0), k -> new ArrayList<>()).add(t1);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t2 : t2Tuples) {
+            for (List<Integer> t1 : byKey.getOrDefault(t2.get(0), Collections.emptyList())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expected.add(out);
+            }
+        }
+        return expected;
+    }
+
+    static HashEquiJoin join(TransactionId tid, HeapFile t1, HeapFile t2, int mapSize) {
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, t1.getId(), "a"), new SeqScan(tid, t2.getId(), "b"));
+        j.setMapSize(mapSize);
+        return j;
+    }
+
+    private void validateJoin(int rows1, int rows2, int maxValue, Integer key, int mapSize, boolean spills)
+            throws IOException, DbException, TransactionAbortedException {
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        if (key != null)
+            columnSpecification.put(0, key);
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, rows1, maxValue, columnSpecification, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, rows2, maxValue, columnSpecification, t2Tuples);
+        List<List<Integer>> expected = expectedJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        HashEquiJoin j = join(tid, t1, t2, mapSize);
+        SystemTestUtil.matchTuples(j, expected);
+        assertEquals(spills, j.numSpilledPartitions() > 0);
+
+        // the same join, a batch at a time
+        OpIterator batched = Batches.tuples(join(tid, t1, t2, mapSize));
+        SystemTestUtil.matchTuples(batched, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testFitsInMemory() throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1000, 2000, 500, null, 1000, false);
+        validateJoin(0, 2000, 500, null, 10, false);
+    }
+
+    @Test public void testSpill() throws IOException, DbException, TransactionAbortedException {
+        validateJoin(5000, 3000, 2000, null, 500, true);
+        // a budget so small that partitions are split again
+        validateJoin(5000, 5000, 100000, null, 20, true);
+    }
+
+    @Test public void testSkew() throws IOException, DbException, TransactionAbortedException {
+        // every tuple has the same join value, so partitioning cannot help
+        validateJoin(300, 200, 10, 7, 50, true);
+    }
+
+    @Test public void testRewindAfterSpill() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, t2Tuples);
+        List<List<Integer>> expected = expectedJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        HashEquiJoin j = join(tid, t1, t2, 200);
+        j.open();
+        for (int i = 0; i < 100 && j.hasNext(); i++)
+            j.next();
+        j.rewind();
+        List<List<Integer>> result = new ArrayList<>();
+        while (j.hasNext())
+            result.add(SystemTestUtil.tupleToList(j.next()));
+        j.close();
+        assertEquals(expected.size(), result.size());
+        SystemTestUtil.matchTuples(j, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
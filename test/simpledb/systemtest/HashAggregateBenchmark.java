@@ -0,0 +1,80 @@
+package simpledb.systemtest;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleDesc;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of grouped aggregation, run with ant benchmark
+ */
+public class HashAggregateBenchmark extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+
+    /**
+     * Measures the rate at which 10M rows are aggregated a batch at a time,
+     * into few and into many groups, against a HashMap from IntField to
+     * boxed Integers as the aggregator used to keep.
+     */
+    @Test public void testThroughput() throws Exception {
+        int rows = 10000000;
+        Random rand = new Random(1);
+        int[] keyColumn = new int[rows];
+        int[] valueColumn = new int[rows];
+        for (int i = 0; i < rows; i++)
+            valueColumn[i] = rand.nextInt(1000);
+
+        Batch batch = new Batch(TD);
+        while (!batch.isFull())
+            batch.addRow();
+        int size = batch.size();
+
+        StringBuilder report = new StringBuilder();
+        for (int groups : new int[]{10, 1000000}) {
+            for (int i = 0; i < rows; i++)
+                keyColumn[i] = rand.nextInt(groups);
+            double best = Double.MAX_VALUE;
+            int found = 0;
+            for (int rep = 0; rep < 2; rep++) {
+                long start = System.nanoTime();
+                IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1,
+                        new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX});
+                for (int from = 0; from < rows; from += size) {
+                    int n = Math.min(size, rows - from);
+                    System.arraycopy(keyColumn, from, batch.intColumn(0), 0, n);
+                    System.arraycopy(valueColumn, from, batch.intColumn(1), 0, n);
+                    batch.setNumSelected(n);
+                    agg.mergeBatchIntoGroups(batch);
+                }
+                best = Math.min(best, (System.nanoTime() - start) / 1e9);
+                OpIterator it = agg.iterator();
+                it.open();
+                found = 0;
+                while (it.hasNext()) {
+                    it.next();
+                    found++;
+                }
+                it.close();
+            }
+            assertEquals(groups, found, groups / 100);
+
+            long start = System.nanoTime();
+            Map<IntField, Integer> sums = new HashMap<>();
+            for (int i = 0; i < rows; i++)
+                sums.merge(new IntField(keyColumn[i]), valueColumn[i], Integer::sum);
+            double boxed = (System.nanoTime() - start) / 1e9;
+            assertEquals(found, sums.size());
+
+            report.append(String.format(" %d groups: %.1fM rows/s (boxed map, sum only: %.1fM rows/s);",
+                    groups, rows / best / 1e6, rows / boxed / 1e6));
+        }
+        System.out.println("aggregating " + rows + " rows:" + report);
+    }
+}
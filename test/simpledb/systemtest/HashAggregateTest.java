@@ -0,0 +1,145 @@
+package simpledb.systemtest;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import static org.junit.Assert.*;
+
+/**
+ * System test for grouped aggregation over many groups
+ */
+public class HashAggregateTest extends SimpleDbTestBase {
+
+    private static final Aggregator.Op[] OPS = {Aggregator.Op.MIN, Aggregator.Op.MAX,
+            Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.AVG};
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+
+    /** The aggregates of each group, computed in the simplest way. */
+    private static Map<Object, List<Integer>> expected(Object[] keys, int[] values) {
+        Map<Object, long[]> acc = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            long[] a = acc.computeIfAbsent(keys[i], k -> new long[]{Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0});
+            a[0] = Math.min(a[0], values[i]);
+            a[1] = Math.max(a[1], values[i]);
+            a[2] += values[i];
+            a[3]++;
+        }
+        Map<Object, List<Integer>> result = new HashMap<>();
+        for (Map.Entry<Object, long[]> e : acc.entrySet()) {
+            long[] a = e.getValue();
+            result.put(e.getKey(), Arrays.asList((int) a[0], (int) a[1], (int) a[2], (int) a[3], (int) (a[2] / a[3])));
+        }
+        return result;
+    }
+
+    private static Map<Object, List<Integer>> results(Aggregator agg) throws Exception {
+        Map<Object, List<Integer>> result = new HashMap<>();
+        OpIterator it = agg.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Object key = t.getField(0) instanceof IntField ? (Object) ((IntField) t.getField(0)).getValue()
+                    : ((StringField) t.getField(0)).getValue();
+            List<Integer> values = new ArrayList<>();
+            for (int i = 1; i < t.getTupleDesc().numFields(); i++)
+                values.add(((IntField) t.getField(i)).getValue());
+            assertNull("group " + key + " returned twice", result.put(key, values));
+        }
+        it.close();
+        return result;
+    }
+
+    @Test public void testManyIntGroups() throws Exception {
+        Random rand = new Random(42);
+        int rows = 200000;
+        for (int groups : new int[]{1, 7, 50000, Integer.MAX_VALUE}) {
+            Object[] keys = new Object[rows];
+            int[] values = new int[rows];
+            IntegerAggregator byTuple = new IntegerAggregator(0, Type.INT_TYPE, 1, OPS);
+            IntegerAggregator byBatch = new IntegerAggregator(0, Type.INT_TYPE, 1, OPS);
+            Batch batch = new Batch(TD);
+            for (int i = 0; i < rows; i++) {
+                // negative keys, and values large enough that sums overflow an int
+                int key = groups == Integer.MAX_VALUE ? rand.nextInt() : rand.nextInt(groups) - groups / 2;
+                int value = rand.nextInt();
+                keys[i] = key;
+                values[i] = value;
+                Tuple t = new Tuple(TD);
+                t.setField(0, new IntField(key));
+                t.setField(1, new IntField(value));
+                byTuple.mergeTupleIntoGroup(t);
+                batch.addTuple(t);
+                if (batch.isFull() || i == rows - 1) {
+                    byBatch.mergeBatchIntoGroups(batch);
+                    batch.clear();
+                }
+            }
+            Map<Object, List<Integer>> expected = expected(keys, values);
+            assertEquals(expected, results(byTuple));
+            assertEquals(expected, results(byBatch));
+        }
+    }
+
+    @Test public void testSelection() throws Exception {
+        Batch batch = new Batch(TD);
+        for (int i = 0; i < 100; i++) {
+            int row = batch.addRow();
+            batch.intColumn(0)[row] = i % 10;
+            batch.intColumn(1)[row] = i;
+        }
+        // keep only the even rows
+        int[] sel = batch.selection();
+        for (int i = 0; i < 50; i++)
+            sel[i] = 2 * i;
+        batch.setNumSelected(50);
+        for (int grouping : new int[]{0, Aggregator.NO_GROUPING}) {
+            IntegerAggregator agg = new IntegerAggregator(grouping,
+                    grouping == Aggregator.NO_GROUPING ? null : Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+            agg.mergeBatchIntoGroups(batch);
+            Map<Object, List<Integer>> result = new HashMap<>();
+            OpIterator it = agg.iterator();
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                int n = t.getTupleDesc().numFields();
+                result.put(grouping == Aggregator.NO_GROUPING ? null : ((IntField) t.getField(0)).getValue(),
+                        Arrays.asList(((IntField) t.getField(n - 2)).getValue(),
+                                ((IntField) t.getField(n - 1)).getValue()));
+            }
+            if (grouping == Aggregator.NO_GROUPING) {
+                assertEquals(Collections.singletonMap(null, Arrays.asList(2450, 50)), result);
+            } else {
+                assertEquals(5, result.size());
+                for (int g = 0; g < 10; g += 2)
+                    assertEquals(Arrays.asList(450 + 10 * g, 10), result.get(g));
+            }
+        }
+    }
+
+    @Test public void testStringGroups() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        Random rand = new Random(7);
+        int rows = 20000;
+        Object[] keys = new Object[rows];
+        int[] values = new int[rows];
+        IntegerAggregator agg = new IntegerAggregator(0, Type.STRING_TYPE, 1, OPS);
+        for (int i = 0; i < rows; i++) {
+            keys[i] = "group" + rand.nextInt(3000);
+            values[i] = rand.nextInt(1000);
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField((String) keys[i], Type.STRING_LEN));
+            t.setField(1, new IntField(values[i]));
+            agg.mergeTupleIntoGroup(t);
+        }
+        assertEquals(expected(keys, values), results(agg));
+    }
+}
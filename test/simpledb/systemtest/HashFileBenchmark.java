@@ -0,0 +1,90 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of equality lookups in a HashFile against a BTreeFile, run with
+ * ant benchmark
+ */
+public class HashFileBenchmark extends SimpleDbTestBase {
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static long count(DbFileIterator it) throws Exception {
+		long n = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	@Test public void testEqualityLookupsAgainstBTree() throws Exception {
+		int rows = 100000;
+		int maxKey = 50000;
+		HashFile hf = HashFileTest.createHashFile(2);
+		Random r = new Random(5);
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (int i = 0; i < rows; i++) {
+			int key = r.nextInt(maxKey);
+			tuples.add(Arrays.asList(key, i));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{key, i}));
+		}
+		File hFile = File.createTempFile("btree", ".dat");
+		File bFile = File.createTempFile("btree", ".dat");
+		hFile.deleteOnExit();
+		bFile.deleteOnExit();
+		BTreeFile bf = BTreeFileEncoder.convert(tuples, hFile, bFile, 0, 2);
+
+		int[] probes = new int[20000];
+		for (int i = 0; i < probes.length; i++)
+			probes[i] = r.nextInt(maxKey);
+		long hashTime = 0, btreeTime = 0;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			long hashCount = 0;
+			for (int key : probes)
+				hashCount += count(hf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))));
+			hashTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long btreeCount = 0;
+			for (int key : probes)
+				btreeCount += count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))));
+			btreeTime = System.nanoTime() - start;
+			assertEquals(btreeCount, hashCount);
+		}
+		System.out.printf("Equality lookups: HashFile %.2f us vs BTreeFile %.2f us per probe%n",
+				hashTime / 1e3 / probes.length, btreeTime / 1e3 / probes.length);
+	}
+}
@@ -0,0 +1,179 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for the extendible hash file
+ */
+public class HashFileTest extends SimpleDbTestBase {
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	static HashFile createHashFile(int columns) throws Exception {
+		File f = File.createTempFile("hash", ".dat");
+		f.delete();
+		f.deleteOnExit();
+		HashFile hf = new HashFile(f, 0, Utility.getTupleDesc(columns));
+		Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+		return hf;
+	}
+
+	/** insert tuples (key, i), counting the tuples with each key */
+	private Map<Integer, Integer> insertRandom(HashFile hf, int rows, int maxKey, Random r,
+			Map<Integer, Integer> counts) throws Exception {
+		for (int i = 0; i < rows; i++) {
+			int key = r.nextInt(maxKey);
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{key, i}));
+			counts.merge(key, 1, Integer::sum);
+		}
+		return counts;
+	}
+
+	private List<Tuple> lookup(DbFileIterator it) throws Exception {
+		List<Tuple> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext())
+			result.add(it.next());
+		it.close();
+		return result;
+	}
+
+	private List<Tuple> lookup(HashFile hf, int key) throws Exception {
+		List<Tuple> result = lookup(hf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))));
+		for (Tuple t : result)
+			assertEquals(key, ((IntField) t.getField(0)).getValue());
+		return result;
+	}
+
+	private void checkContents(HashFile hf, Map<Integer, Integer> counts, int maxKey) throws Exception {
+		int total = 0;
+		for (int key = 0; key < maxKey; key++) {
+			int expected = counts.getOrDefault(key, 0);
+			assertEquals(expected, lookup(hf, key).size());
+			total += expected;
+		}
+		assertEquals(total, lookup(hf.iterator(tid)).size());
+	}
+
+	private HashRootPage root(HashFile hf) throws Exception {
+		return (HashRootPage) Database.getBufferPool().getPage(tid, HashPageId.root(hf.getId()), Permissions.READ_ONLY);
+	}
+
+	@Test public void testEmpty() throws Exception {
+		HashFile hf = createHashFile(2);
+		assertTrue(lookup(hf, 5).isEmpty());
+		assertTrue(lookup(hf.iterator(tid)).isEmpty());
+		assertEquals(0, root(hf).getGlobalDepth());
+	}
+
+	@Test public void testInsertAndLookup() throws Exception {
+		HashFile hf = createHashFile(2);
+		Map<Integer, Integer> counts = insertRandom(hf, 20000, 5000, new Random(1), new HashMap<>());
+		checkContents(hf, counts, 5000);
+		assertTrue(root(hf).getGlobalDepth() > 0);
+
+		// predicates other than EQUALS are answered by filtering a scan
+		int expected = 0;
+		for (Map.Entry<Integer, Integer> e : counts.entrySet())
+			if (e.getKey() < 100)
+				expected += e.getValue();
+		assertEquals(expected, lookup(hf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(100)))).size());
+	}
+
+	@Test public void testDirectorySpansPagesAndSurvivesReopen() throws Exception {
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(1000);
+		HashFile hf = createHashFile(2);
+		Map<Integer, Integer> counts = insertRandom(hf, 30000, 100000, new Random(2), new HashMap<>());
+		assertTrue(root(hf).getNumDirectoryPages() > 1);
+
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+		checkContents(hf, counts, 100000);
+	}
+
+	@Test public void testDuplicatesAndDelete() throws Exception {
+		HashFile hf = createHashFile(2);
+		Map<Integer, Integer> counts = insertRandom(hf, 3000, 1000, new Random(3), new HashMap<>());
+		// far more duplicates of one key than fit in a bucket
+		for (int i = 0; i < 2000; i++)
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{7, i}));
+		counts.merge(7, 2000, Integer::sum);
+		int depth = root(hf).getGlobalDepth();
+		// keys that share the overflowing bucket split it again
+		insertRandom(hf, 3000, 1000, new Random(4), counts);
+		assertTrue(root(hf).getGlobalDepth() < depth + 4);
+		checkContents(hf, counts, 1000);
+
+		// delete every other duplicate and all tuples of a few keys
+		List<Tuple> victims = new ArrayList<>();
+		List<Tuple> sevens = lookup(hf, 7);
+		for (int i = 0; i < sevens.size(); i += 2)
+			victims.add(sevens.get(i));
+		for (int key = 100; key < 110; key++) {
+			victims.addAll(lookup(hf, key));
+			counts.remove(key);
+		}
+		counts.put(7, sevens.size() / 2);
+		for (Tuple t : victims)
+			Database.getBufferPool().deleteTuple(tid, t);
+		checkContents(hf, counts, 1000);
+	}
+
+	@Test public void testLoadSchema() throws Exception {
+		File dir = File.createTempFile("hashschema", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		File schema = new File(dir, "catalog.txt");
+		schema.deleteOnExit();
+		try (java.io.PrintWriter w = new java.io.PrintWriter(schema)) {
+			w.println("people (id int hash, age int)");
+		}
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		int id = Database.getCatalog().getTableId("people");
+		assertTrue(Database.getCatalog().getDatabaseFile(id) instanceof HashFile);
+		assertEquals("id", Database.getCatalog().getPrimaryKey(id));
+		new File(dir, "people.dat").deleteOnExit();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
@@ -0,0 +1,140 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for choosing between a full scan and a B+ tree range scan
+ */
+public class IndexAccessPathTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 10000;
+
+    private TransactionId tid;
+    private BTreeFile table;
+    private List<List<Integer>> tuples;
+
+    /**
+     * Statistics that estimate a fixed selectivity for every predicate
+     */
+    private static class FixedStats extends TableStats {
+        private final double sel;
+
+        FixedStats(int tableid, double sel) {
+            super(tableid, 1000);
+            this.sel = sel;
+        }
+
+        @Override
+        public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+            return sel;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        tid = new TransactionId();
+        tuples = new ArrayList<>();
+        BTreeFile converted = BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_VALUE, null, tuples, 0);
+        table = new BTreeFile(converted.getFile(), 0, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(table, "indexed");
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private OpIterator plan(String field, Predicate.Op op, int c, double sel) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t." + field, op, Integer.toString(c));
+        lp.addProjectField("t.f0", null);
+        lp.addProjectField("t.f1", null);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("indexed", new FixedStats(table.getId(), sel));
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** @return the scan at the bottom of a plan over one table */
+    private static OpIterator leaf(OpIterator plan) {
+        while (plan instanceof Operator) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return plan;
+    }
+
+    private List<List<Integer>> expected(int field, Predicate.Op op, int c) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(field)).compare(op, new IntField(c))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    @Test public void testSelectiveRangeUsesIndex() throws Exception {
+        OpIterator plan = plan("f0", Predicate.Op.GREATER_THAN, MAX_VALUE - 100, 0.01);
+        OpIterator scan = leaf(plan);
+        assertTrue(scan instanceof BTreeScan);
+        assertEquals(Predicate.Op.GREATER_THAN, ((BTreeScan) scan).getIndexPredicate().getOp());
+        // the index answers the filter, so no Filter is left above the scan
+        assertFalse(((Operator) plan).getChildren()[0] instanceof Filter);
+        SystemTestUtil.matchTuples(plan, expected(0, Predicate.Op.GREATER_THAN, MAX_VALUE - 100));
+
+        String explain = new QueryPlanVisualizer().getQueryPlanTree(plan);
+        assertTrue(explain.contains("index(indexed t,t.f0>" + (MAX_VALUE - 100) + ")"));
+    }
+
+    @Test public void testEqualityUsesIndex() throws Exception {
+        int c = tuples.get(ROWS / 2).get(0);
+        OpIterator plan = plan("f0", Predicate.Op.EQUALS, c, 1.0 / MAX_VALUE);
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        SystemTestUtil.matchTuples(plan, expected(0, Predicate.Op.EQUALS, c));
+    }
+
+    @Test public void testUnselectiveRangeScansTable() throws Exception {
+        OpIterator plan = plan("f0", Predicate.Op.LESS_THAN, MAX_VALUE - 100, 0.99);
+        assertTrue(leaf(plan) instanceof SeqScan);
+        SystemTestUtil.matchTuples(plan, expected(0, Predicate.Op.LESS_THAN, MAX_VALUE - 100));
+    }
+
+    @Test public void testNonKeyFieldScansTable() throws Exception {
+        OpIterator plan = plan("f1", Predicate.Op.GREATER_THAN, MAX_VALUE - 100, 0.01);
+        assertTrue(leaf(plan) instanceof SeqScan);
+        SystemTestUtil.matchTuples(plan, expected(1, Predicate.Op.GREATER_THAN, MAX_VALUE - 100));
+    }
+
+    @Test public void testNotEqualsScansTable() throws Exception {
+        OpIterator plan = plan("f0", Predicate.Op.NOT_EQUALS, 5, 0.01);
+        assertTrue(leaf(plan) instanceof SeqScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexAccessPathTest.class);
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * System test for the index nested-loop join
+ */
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private static final int MAX_VALUE = 5000;
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<List<Integer>> expectedJoin(List<List<Integer>> outer, List<List<Integer>> inner,
+                                                    Predicate.Op op) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : outer) {
+            for (List<Integer> t2 : inner) {
+                int a = t1.get(0), b = t2.get(0);
+                boolean match = op == Predicate.Op.EQUALS ? a == b
+                        : op == Predicate.Op.GREATER_THAN ? a > b : a < b;
+                if (match) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private void validateJoin(int outerRows, int innerRows, int maxValue, Predicate.Op op) throws Exception {
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, outerRows, maxValue, null, outerTuples);
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(2, innerRows, maxValue, null, innerTuples, 0);
+        Database.getCatalog().addTable(inner, UUID.randomUUID().toString());
+
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), ""),
+                new BTreeScan(tid, inner.getId(), "", null));
+        List<List<Integer>> expected = expectedJoin(outerTuples, innerTuples, op);
+        SystemTestUtil.matchTuples(join, expected);
+
+        // the join can be run again after a rewind
+        join.open();
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(expected.size(), count);
+    }
+
+    @Test public void testSingleBatch() throws Exception {
+        validateJoin(100, 2000, MAX_VALUE, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testManyBatches() throws Exception {
+        // more outer tuples than fit in one sorted batch
+        validateJoin(IndexNestedLoopJoin.BATCH_SIZE * 2 + 500, 10000, MAX_VALUE, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testDuplicateKeys() throws Exception {
+        // few distinct values on both sides
+        validateJoin(IndexNestedLoopJoin.BATCH_SIZE + 200, 200, 50, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testRangeJoin() throws Exception {
+        validateJoin(50, 200, 100, Predicate.Op.GREATER_THAN);
+        validateJoin(50, 200, 100, Predicate.Op.LESS_THAN);
+    }
+
+    @Test public void testNoMatch() throws Exception {
+        Map<Integer, Integer> spec = new HashMap<>();
+        spec.put(0, 1);
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 10, spec, null);
+        spec.put(0, 2);
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(2, 100, spec, null, 0);
+        Database.getCatalog().addTable(inner, UUID.randomUUID().toString());
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, outer.getId(), ""), new BTreeScan(tid, inner.getId(), "", null));
+        SystemTestUtil.matchTuples(join, new ArrayList<>());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotEqualsUnsupported() throws Exception {
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+        Database.getCatalog().addTable(inner, UUID.randomUUID().toString());
+        new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                new SeqScan(tid, outer.getId(), ""), new BTreeScan(tid, inner.getId(), "", null));
+    }
+
+    @Test public void testOptimizerChoosesIndexJoin() throws Exception {
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "f");
+        Database.getCatalog().addTable(outer, "outer");
+        BTreeFile converted = BTreeUtility.createRandomBTreeFile(2, 50000, null, null, 0);
+        BTreeFile inner = new BTreeFile(converted.getFile(), 0, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(inner, "inner");
+
+        LogicalJoinNode lj = new LogicalJoinNode("o", "i", "f0", "f0", Predicate.Op.EQUALS);
+        SeqScan outerScan = new SeqScan(tid, outer.getId(), "o");
+        SeqScan innerScan = new SeqScan(tid, inner.getId(), "i");
+
+        // a few probes are cheaper than scanning the inner table
+        double probe = JoinOptimizer.estimateIndexProbeCost(inner);
+        assertTrue(probe >= 2);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, outerScan, innerScan, tid, 10)
+                instanceof IndexNestedLoopJoin);
+
+        // one probe per outer tuple is not when the outer side is large
+        assertFalse(JoinOptimizer.instantiateJoin(lj, outerScan, innerScan, tid, inner.numPages())
+                instanceof IndexNestedLoopJoin);
+        assertFalse(JoinOptimizer.instantiateJoin(lj, outerScan, innerScan)
+                instanceof IndexNestedLoopJoin);
+        // nor when the estimate is unknown, which tables without statistics report as 0
+        assertFalse(JoinOptimizer.instantiateJoin(lj, outerScan, innerScan, tid, 0)
+                instanceof IndexNestedLoopJoin);
+
+        // the index only helps if it is keyed on the join field
+        LogicalJoinNode other = new LogicalJoinNode("o", "i", "f0", "f1", Predicate.Op.EQUALS);
+        assertFalse(JoinOptimizer.instantiateJoin(other, outerScan, innerScan, tid, 10)
+                instanceof IndexNestedLoopJoin);
+
+        // and the plan it builds returns the same tuples as a hash join
+        OpIterator indexJoin = JoinOptimizer.instantiateJoin(lj, outerScan, innerScan, tid, 10);
+        OpIterator hashJoin = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, outer.getId(), "o"),
+                new SeqScan(tid, inner.getId(), "i"));
+        List<List<Integer>> expected = new ArrayList<>();
+        hashJoin.open();
+        while (hashJoin.hasNext()) {
+            expected.add(SystemTestUtil.tupleToList(hashJoin.next()));
+        }
+        hashJoin.close();
+        SystemTestUtil.matchTuples(indexJoin, expected);
+    }
+
+    private static boolean contains(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && contains(child, c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @Test public void testPlannerWithoutStatistics() throws Exception {
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 20000, null, null, "f");
+        Database.getCatalog().addTable(outer, "large_outer");
+        BTreeFile converted = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        BTreeFile inner = new BTreeFile(converted.getFile(), 0, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(inner, "small_inner");
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(outer.getId(), "o");
+        lp.addScan(inner.getId(), "i");
+        lp.addJoin("o.f0", "i.f0", Predicate.Op.EQUALS);
+        lp.addProjectField("o.f0", null);
+        // the statistics of the lab stub estimate every table to be empty
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("large_outer", new TableStats(outer.getId(), 1000));
+        stats.put("small_inner", new TableStats(inner.getId(), 1000));
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertFalse(contains(plan, IndexNestedLoopJoin.class));
+        assertTrue(contains(plan, HashEquiJoin.class));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
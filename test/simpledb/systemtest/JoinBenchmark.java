@@ -0,0 +1,61 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Benchmark of a block nested-loop join, run with ant benchmark
+ */
+public class JoinBenchmark extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /**
+     * Times a range join of two 10k-row tables with one scan of the inner
+     * table per outer tuple, as a tuple-at-a-time nested-loop join does, and
+     * with one scan per block.
+     */
+    @Test public void testRangeJoinSpeed()
+            throws IOException, DbException, TransactionAbortedException {
+        int rows = 10000;
+        // few outer values are small enough to match, so that the output stays small
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, 1000000, null, null);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, 1000, null, null);
+        Database.resetBufferPool(table1.numPages() + table2.numPages() + 10);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+
+        StringBuilder report = new StringBuilder();
+        int expected = -1;
+        for (int blockSize : new int[]{1, Join.BLOCK_SIZE}) {
+            Join joinOp = new Join(p, new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            joinOp.setBlockSize(blockSize);
+            long start = System.nanoTime();
+            int n = 0;
+            joinOp.open();
+            while (joinOp.hasNext()) {
+                joinOp.next();
+                n++;
+            }
+            joinOp.close();
+            long elapsed = System.nanoTime() - start;
+            if (expected < 0)
+                expected = n;
+            Assert.assertEquals(expected, n);
+            report.append(String.format(" block of %d: %.0f ms;", blockSize, elapsed / 1e6));
+        }
+        System.out.println("range join of " + rows + " x " + rows + " rows, " + expected + " results:" + report);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import simpledb.common.Database;
@@ -79,6 +80,39 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    private static List<List<Integer>> rangeJoin(List<List<Integer>> t1Tuples, List<List<Integer>> t2Tuples) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (t1.get(0) < t2.get(0)) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    @Test public void testBlocks()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 1000, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 80, 1000, null, t2Tuples);
+        List<List<Integer>> expected = rangeJoin(t1Tuples, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        // blocks that divide child1 evenly, that do not, and that hold all of it
+        for (int blockSize : new int[]{1, 7, 20, 99, 100, 10000}) {
+            Join joinOp = new Join(p, new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            joinOp.setBlockSize(blockSize);
+            SystemTestUtil.matchTuples(joinOp, expected);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
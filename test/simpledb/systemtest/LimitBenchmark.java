@@ -0,0 +1,66 @@
+package simpledb.systemtest;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of ORDER BY with LIMIT by a TopN against a full sort, run with ant
+ * benchmark
+ */
+public class LimitBenchmark extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Compares the time to find the top 100 of a million tuples with a TopN
+     * and with a full sort.
+     */
+    @Test public void testTopNSpeed() throws Exception {
+        int rows = 1000000;
+        int n = 100;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, null);
+        Database.resetBufferPool(f.numPages() + 10);
+        int[] fields = {0};
+        boolean[] asc = {true};
+
+        List<List<Integer>> expected = null;
+        StringBuilder report = new StringBuilder();
+        for (boolean useTopN : new boolean[]{true, false}) {
+            long best = Long.MAX_VALUE;
+            for (int rep = 0; rep < 3; rep++) {
+                OpIterator scan = new SeqScan(tid, f.getId(), "");
+                OpIterator op = useTopN ? new TopN(fields, asc, n, scan)
+                        : new Limit(new OrderBy(fields, asc, scan), n, 0);
+                long start = System.nanoTime();
+                op.open();
+                List<List<Integer>> result = LimitTest.readAll(op);
+                op.close();
+                best = Math.min(best, System.nanoTime() - start);
+                if (expected == null)
+                    expected = result;
+                assertEquals(expected, result);
+            }
+            report.append(String.format(" %s: %.0f ms;", useTopN ? "top-n heap" : "full sort", best / 1e6));
+        }
+        assertEquals(n, expected.size());
+        System.out.println("top " + n + " of " + rows + " rows:" + report);
+    }
+}
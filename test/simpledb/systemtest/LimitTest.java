@@ -0,0 +1,208 @@
+package simpledb.systemtest;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * System test for LIMIT, and for ORDER BY with LIMIT
+ */
+public class LimitTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    /** Passes the tuples of its child through, counting them. */
+    private static class Counted extends Operator {
+        private static final long serialVersionUID = 1L;
+        private OpIterator child;
+        int read;
+
+        Counted(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            read = 0;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext())
+                return null;
+            read++;
+            return child.next();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+    }
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Sorts the tuples on fields, stably, as OrderBy should. */
+    private static List<List<Integer>> expectedSort(List<List<Integer>> tuples, int[] fields, boolean[] asc) {
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort((a, b) -> {
+            for (int i = 0; i < fields.length; i++) {
+                int c = Integer.compare(a.get(fields[i]), b.get(fields[i]));
+                if (c != 0)
+                    return asc[i] ? c : -c;
+            }
+            return 0;
+        });
+        return expected;
+    }
+
+    static List<List<Integer>> readAll(OpIterator it) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        return result;
+    }
+
+    private static <T> List<T> slice(List<T> list, int limit, int offset) {
+        int from = Math.min(offset, list.size());
+        return list.subList(from, Math.min(list.size(), from + limit));
+    }
+
+    @Test public void testLimit() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+        int[][] cases = {{10, 0}, {10, 20}, {0, 0}, {100, 4950}, {100, 6000}, {5000, 0}};
+        for (int[] c : cases) {
+            Counted scan = new Counted(new SeqScan(tid, f.getId(), ""));
+            Limit limit = new Limit(scan, c[0], c[1]);
+            limit.open();
+            assertEquals(slice(tuples, c[0], c[1]), readAll(limit));
+            // the scan is not read past the last tuple returned
+            assertEquals(Math.min(tuples.size(), c[0] + c[1]), scan.read);
+            limit.rewind();
+            assertEquals(slice(tuples, c[0], c[1]), readAll(limit));
+            limit.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        new Limit(new SeqScan(tid, f.getId(), ""), -1, 0);
+    }
+
+    @Test public void testTopN() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        // few values, so that many tuples tie
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 10000, 30, null, tuples);
+        int[] fields = {1, 2};
+        boolean[] asc = {false, true};
+        List<List<Integer>> sorted = expectedSort(tuples, fields, asc);
+        for (int n : new int[]{0, 1, 100, 9999, 10000, 20000}) {
+            TopN top = new TopN(fields, asc, n, new SeqScan(tid, f.getId(), ""));
+            top.open();
+            // the same tuples as the head of a stable sort, ties included
+            assertEquals(slice(sorted, n, 0), readAll(top));
+            top.rewind();
+            assertEquals(slice(sorted, n, 0), readAll(top));
+            top.close();
+        }
+    }
+
+    private OpIterator plan(Parser p, String query) throws Exception {
+        LogicalPlan lp = p.generateLogicalPlan(tid, query);
+        return lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+    }
+
+    private static <T> T find(OpIterator plan, Class<T> c) {
+        if (c.isInstance(plan))
+            return c.cast(plan);
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                T found = child == null ? null : find(child, c);
+                if (found != null)
+                    return found;
+            }
+        }
+        return null;
+    }
+
+    @Test public void testParsedLimit() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, tuples, "f");
+        Database.getCatalog().addTable(f, "limited");
+        Parser p = new Parser();
+
+        // ORDER BY with LIMIT keeps only the top tuples
+        OpIterator top = plan(p, "SELECT t.f0, t.f1 FROM limited t ORDER BY t.f1 DESC LIMIT 10 OFFSET 5;");
+        assertNull(find(top, OrderBy.class));
+        assertEquals(15, find(top, TopN.class).getN());
+        top.open();
+        assertEquals(slice(expectedSort(tuples, new int[]{1}, new boolean[]{false}), 10, 5), readAll(top));
+        top.close();
+
+        // a bare LIMIT reads only the start of the table
+        OpIterator head = plan(p, "SELECT t.f0, t.f1 FROM limited t limit 7 ;");
+        assertNull(find(head, TopN.class));
+        head.open();
+        assertEquals(slice(tuples, 7, 0), readAll(head));
+        head.close();
+
+        // only the first of several statements is read, and its LIMIT cut off
+        OpIterator first = plan(p, "SELECT t.f0, t.f1 FROM limited t LIMIT 3;\nSELECT t.f0 FROM limited t LIMIT 4;\n");
+        first.open();
+        assertEquals(slice(tuples, 3, 0), readAll(first));
+        first.close();
+
+        // a statement without LIMIT is not limited by the one before it
+        OpIterator all = plan(p, "SELECT t.f0 FROM limited t;");
+        assertNull(find(all, Limit.class));
+
+        // and a large LIMIT sorts the table rather than keeping it in a heap
+        OpIterator large = plan(p, "SELECT t.f0, t.f1 FROM limited t ORDER BY t.f0 LIMIT "
+                + (TopN.MAX_N + 1) + ";");
+        assertNull(find(large, TopN.class));
+        assertNotNull(find(large, OrderBy.class));
+        large.open();
+        assertEquals(expectedSort(tuples, new int[]{0}, new boolean[]{true}), readAll(large));
+        large.close();
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.ParallelSeqScan;
+import simpledb.execution.Predicate;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of a ParallelSeqScan on increasing numbers of threads, run with
+ * ant benchmark
+ */
+public class ParallelScanBenchmark extends SimpleDbTestBase {
+
+    @Test public void testSpeedup() throws IOException, DbException, TransactionAbortedException {
+        int rows = 400000;
+        HeapFile table = SystemTestUtil.createRandomHeapFile(4, rows, 1000, null, null);
+        Database.resetBufferPool(table.numPages() + 10);
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100));
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        StringBuilder report = new StringBuilder();
+        int expected = -1;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long best = Long.MAX_VALUE;
+            for (int rep = 0; rep < 3; rep++) {
+                long start = System.nanoTime();
+                int n = ParallelScanTest.readAll(new ParallelSeqScan(tid, table.getId(), "t", threads, p, null, false)).size();
+                best = Math.min(best, System.nanoTime() - start);
+                if (expected < 0)
+                    expected = n;
+                assertEquals(expected, n);
+            }
+            report.append(String.format(" %d threads: %.0f rows/s;", threads, rows * 1e9 / best));
+        }
+        System.out.println("parallel scan of " + rows + " rows on "
+                + Runtime.getRuntime().availableProcessors() + " cores:" + report);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
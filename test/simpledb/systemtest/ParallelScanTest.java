@@ -0,0 +1,92 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.execution.ParallelSeqScan;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+
+    static List<List<Integer>> readAll(OpIterator it) throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    @Test public void testUnordered() throws IOException, DbException, TransactionAbortedException {
+        for (int rows : new int[]{0, 1, 1000, 20000}) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            HeapFile table = SystemTestUtil.createRandomHeapFile(3, rows, null, tuples);
+            Database.resetBufferPool(table.numPages() + 10);
+            TransactionId tid = new TransactionId();
+            for (int parallelism : new int[]{1, 3, 8}) {
+                SystemTestUtil.matchTuples(new ParallelSeqScan(tid, table.getId(), "t", parallelism), tuples);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    @Test public void testOrderedWithFilterAndProjection() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 30000, 1000, null, tuples);
+        Database.resetBufferPool(table.numPages() + 10);
+        TransactionId tid = new TransactionId();
+
+        // file order is the order of a sequential scan
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : readAll(new SeqScan(tid, table.getId(), "t"))) {
+            if (t.get(1) < 300)
+                expected.add(Arrays.asList(t.get(2), t.get(0)));
+        }
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300));
+        ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "t", 4, p, Arrays.asList(2, 0), true);
+        assertEquals(new SeqScan(tid, table.getId(), "t").getTupleDesc().getFieldName(2),
+                scan.getTupleDesc().getFieldName(0));
+        assertEquals(expected, readAll(scan));
+
+        // rewinding starts the workers over
+        scan.open();
+        int n = 0;
+        while (scan.hasNext() && n < 10) {
+            scan.next();
+            n++;
+        }
+        scan.rewind();
+        List<List<Integer>> again = new ArrayList<>();
+        while (scan.hasNext())
+            again.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        assertEquals(expected, again);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testCloseEarly() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 50000, null, null);
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "t", 4);
+        scan.open();
+        assertTrue(scan.hasNext());
+        scan.next();
+        // the workers are stopped while morsels are still unread
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
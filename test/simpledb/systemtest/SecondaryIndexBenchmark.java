@@ -0,0 +1,74 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Benchmark of equality lookups through a SecondaryIndex against a SeqScan,
+ * run with ant benchmark
+ */
+public class SecondaryIndexBenchmark extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return the number of tuples of the iterator whose keyField equals value */
+    private static int count(OpIterator it, int keyField, int value) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(keyField)).getValue() == value)
+                n++;
+        }
+        it.close();
+        return n;
+    }
+
+    @Test public void testLookupAgainstScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 100000, 100000, null, tuples);
+        File f = File.createTempFile("secondary", ".dat");
+        f.deleteOnExit();
+        SecondaryIndex index = SecondaryIndex.create(tid, table.getId(), 2, f, "idx" + table.getId(), 1 << 20);
+        int value = tuples.get(12345).get(2);
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        SecondaryIndexScan lookup = new SecondaryIndexScan(tid, index, "t",
+                new IndexPredicate(Op.EQUALS, new IntField(value)));
+
+        // warm both paths up, then time them from the buffer pool
+        assertEquals(count(scan, 2, value), count(lookup, 2, value));
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            count(scan, 2, value);
+        long scanTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            count(lookup, 2, value);
+        long lookupTime = System.nanoTime() - start;
+        System.out.printf("Secondary index lookup: %.2f ms vs SeqScan %.2f ms%n",
+                lookupTime / 5e6, scanTime / 5e6);
+    }
+}
@@ -0,0 +1,180 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeChecker;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 2000;
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private SecondaryIndex createIndex(HeapFile table, int keyField) throws Exception {
+        File f = File.createTempFile("secondary", ".dat");
+        f.deleteOnExit();
+        return SecondaryIndex.create(tid, table.getId(), keyField, f, "idx" + table.getId() + "_" + keyField, 1 << 20);
+    }
+
+    /** @return the tuples of the table whose keyField equals value, by SeqScan */
+    private List<List<Integer>> scanFor(HeapFile table, int keyField, int value) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (((IntField) t.getField(keyField)).getValue() == value)
+                result.add(SystemTestUtil.tupleToList(t));
+        }
+        scan.close();
+        return result;
+    }
+
+    private List<List<Integer>> lookup(SecondaryIndex index, int value) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t",
+                new IndexPredicate(Op.EQUALS, new IntField(value)));
+        scan.open();
+        while (scan.hasNext())
+            result.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        return result;
+    }
+
+    private void assertSameBag(List<List<Integer>> expected, List<List<Integer>> actual) {
+        Comparator<List<Integer>> cmp = Comparator.comparing(Object::toString);
+        expected.sort(cmp);
+        actual.sort(cmp);
+        assertEquals(expected, actual);
+    }
+
+    @Test public void testLookupMatchesSeqScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples);
+        SecondaryIndex index = createIndex(table, 1);
+        assertEquals(1, Database.getCatalog().getIndexes(table.getId()).size());
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), false);
+
+        for (int i = 0; i < 20; i++) {
+            int value = tuples.get(i * 997).get(1);
+            assertSameBag(scanFor(table, 1, value), lookup(index, value));
+        }
+        assertTrue(lookup(index, MAX_VALUE + 1).isEmpty());
+
+        // a range scan returns the tuples in key order
+        SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t",
+                new IndexPredicate(Op.LESS_THAN, new IntField(MAX_VALUE / 10)));
+        assertEquals(table.getTupleDesc().numFields(), scan.getTupleDesc().numFields());
+        scan.open();
+        int count = 0;
+        int prev = Integer.MIN_VALUE;
+        while (scan.hasNext()) {
+            int key = ((IntField) scan.next().getField(1)).getValue();
+            assertTrue(key >= prev && key < MAX_VALUE / 10);
+            prev = key;
+            count++;
+        }
+        scan.close();
+        int expected = 0;
+        for (List<Integer> t : tuples)
+            if (t.get(1) < MAX_VALUE / 10)
+                expected++;
+        assertEquals(expected, count);
+    }
+
+    @Test public void testMaintainedByBufferPool() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, MAX_VALUE, null, null);
+        SecondaryIndex index = createIndex(table, 1);
+
+        // inserts go into the index as well
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(MAX_VALUE + i % 7));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        }
+        for (int v = MAX_VALUE; v < MAX_VALUE + 7; v++)
+            assertSameBag(scanFor(table, 1, v), lookup(index, v));
+
+        // delete every other tuple of one key, and all tuples of another
+        List<Tuple> victims = new ArrayList<>();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        int seen = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int key = ((IntField) t.getField(1)).getValue();
+            if ((key == MAX_VALUE && seen++ % 2 == 0) || key == MAX_VALUE + 1)
+                victims.add(t);
+        }
+        scan.close();
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+
+        assertSameBag(scanFor(table, 1, MAX_VALUE), lookup(index, MAX_VALUE));
+        assertTrue(lookup(index, MAX_VALUE + 1).isEmpty());
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), false);
+
+        // every tuple of the table has exactly one entry
+        int total = 0;
+        DbFileIterator it = index.indexIterator(tid, null);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            total++;
+        }
+        it.close();
+        assertEquals(2000 + 500 - victims.size(), total);
+    }
+
+    @Test public void testEmptyIndexOnStrings() throws Exception {
+        File f = File.createTempFile("strings", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        HeapFile table = new HeapFile(f, td);
+        Database.getCatalog().addTable(table, "strings");
+        SecondaryIndex index = createIndex(table, 1);
+
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("name" + (i % 10), Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        }
+        DbFileIterator it = index.indexIterator(tid,
+                new IndexPredicate(Op.EQUALS, new StringField("name3", Type.STRING_LEN)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(3, ((IntField) it.next().getField(0)).getValue() % 10);
+            count++;
+        }
+        it.close();
+        assertEquals(100, count);
+    }
+}
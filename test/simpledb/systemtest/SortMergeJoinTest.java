@@ -0,0 +1,187 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * System test for the sort-merge join
+ */
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean matches(int a, int b, Predicate.Op op) {
+        return new IntField(a).compare(op, new IntField(b));
+    }
+
+    private static List<List<Integer>> expectedJoin(List<List<Integer>> left, List<List<Integer>> right,
+                                                    Predicate.Op op) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : left) {
+            for (List<Integer> t2 : right) {
+                if (matches(t1.get(0), t2.get(0), op)) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    /** Checks that the join returns its tuples in ascending order of its order field. */
+    private static void checkOrder(SortMergeJoin join) throws Exception {
+        int field = join.getOrderField();
+        join.open();
+        Tuple prev = null;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            if (prev != null)
+                assertTrue(prev.getField(field).compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(field)));
+            prev = t;
+        }
+        join.close();
+    }
+
+    private void validateJoin(int leftRows, int rightRows, int maxValue, Predicate.Op op) throws Exception {
+        List<List<Integer>> leftTuples = new ArrayList<>();
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, leftRows, maxValue, null, leftTuples);
+        List<List<Integer>> rightTuples = new ArrayList<>();
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, rightRows, maxValue, null, rightTuples);
+
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""));
+        // heap files are not sorted, so both sides are sorted first
+        assertTrue(join.getChildren()[0] instanceof OrderBy);
+        assertTrue(join.getChildren()[1] instanceof OrderBy);
+        List<List<Integer>> expected = expectedJoin(leftTuples, rightTuples, op);
+        SystemTestUtil.matchTuples(join, expected);
+        checkOrder(join);
+
+        // the join can be run again after a rewind
+        join.open();
+        for (int i = 0; i < 10 && join.hasNext(); i++)
+            join.next();
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(expected.size(), count);
+    }
+
+    @Test public void testEquals() throws Exception {
+        // few values, so that both sides have long runs of duplicates
+        validateJoin(300, 400, 20, Predicate.Op.EQUALS);
+        validateJoin(2000, 2000, 5000, Predicate.Op.EQUALS);
+        validateJoin(0, 100, 20, Predicate.Op.EQUALS);
+        validateJoin(100, 0, 20, Predicate.Op.EQUALS);
+    }
+
+    @Test public void testRanges() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+            validateJoin(150, 200, 50, op);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotEquals() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                new SeqScan(tid, f.getId(), ""), new SeqScan(tid, f.getId(), ""));
+    }
+
+    @Test public void testSortedInputs() throws Exception {
+        List<List<Integer>> leftTuples = new ArrayList<>();
+        BTreeFile left = BTreeUtility.createRandomBTreeFile(2, 3000, 1000, null, leftTuples, 0);
+        Database.getCatalog().addTable(left, UUID.randomUUID().toString());
+        List<List<Integer>> rightTuples = new ArrayList<>();
+        BTreeFile right = BTreeUtility.createRandomBTreeFile(2, 3000, 1000, null, rightTuples, 0);
+        Database.getCatalog().addTable(right, UUID.randomUUID().toString());
+
+        OpIterator leftScan = new BTreeScan(tid, left.getId(), "", null);
+        OpIterator rightScan = new SeqScan(tid, right.getId(), "");
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), leftScan, rightScan);
+        // scans of B+ trees keyed on the join fields are merged as they are
+        assertSame(leftScan, join.getChildren()[0]);
+        assertSame(rightScan, join.getChildren()[1]);
+        SystemTestUtil.matchTuples(join, expectedJoin(leftTuples, rightTuples, Predicate.Op.EQUALS));
+        checkOrder(join);
+
+        // and so is the output of a merge join, on its order field
+        assertTrue(SortMergeJoin.isSortedOn(join, join.getOrderField()));
+        assertFalse(SortMergeJoin.isSortedOn(join, 1));
+        assertFalse(SortMergeJoin.isSortedOn(new BTreeScan(tid, left.getId(), "", null), 1));
+    }
+
+    @Test public void testOptimizerChoosesMergeJoin() throws Exception {
+        BTreeFile converted = BTreeUtility.createRandomBTreeFile(2, 2000, 500, null, null, 0);
+        BTreeFile sorted = new BTreeFile(converted.getFile(), 0, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(sorted, "sorted");
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, null, "f");
+        Database.getCatalog().addTable(heap, "heap");
+
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "f0", "f0", Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", "f0", "f0", Predicate.Op.LESS_THAN);
+
+        // equality on two sorted inputs
+        assertTrue(JoinOptimizer.instantiateJoin(eq, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, sorted.getId(), "b")) instanceof SortMergeJoin);
+        // but a hash join if one of them would have to be sorted
+        assertTrue(JoinOptimizer.instantiateJoin(eq, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, heap.getId(), "b")) instanceof HashEquiJoin);
+        // a range join of two unsorted inputs stays a nested-loop join
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, heap.getId(), "a"),
+                new SeqScan(tid, heap.getId(), "b"), tid, 2000, 2000) instanceof Join);
+        // as does one of a sorted input whose cardinalities are unknown
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, heap.getId(), "b")) instanceof Join);
+        // a sorted input with known cardinalities is merged
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, heap.getId(), "b"), tid, 2000, 2000) instanceof SortMergeJoin);
+        // unless the side it buffers is larger than a block of the nested-loop join
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, heap.getId(), "b"), tid, 2 * Join.BLOCK_SIZE, 2000) instanceof Join);
+        // or it costs more than the nested loops
+        assertFalse(JoinOptimizer.mergeBeatsNestedLoop(Predicate.Op.LESS_THAN, 1, 1, 10, 10, false, true));
+        assertTrue(JoinOptimizer.mergeBeatsNestedLoop(Predicate.Op.LESS_THAN, 1000, 1000, 10, 10, false, true));
+
+        // sorting costs more than reading an input in order
+        double unsorted = JoinOptimizer.estimateSortMergeJoinCost(1000, 1000, 10, 10, false, false);
+        double half = JoinOptimizer.estimateSortMergeJoinCost(1000, 1000, 10, 10, true, false);
+        double presorted = JoinOptimizer.estimateSortMergeJoinCost(1000, 1000, 10, 10, true, true);
+        assertTrue(presorted < half && half < unsorted);
+        assertEquals(2020, presorted, 1e-9);
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of grouped aggregation with more groups than fit in memory, run
+ * with ant benchmark
+ */
+public class SpillingAggregateBenchmark extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Aggregates a table with ten times as many groups as the budget, and
+     * compares the time to aggregating it all in memory.
+     */
+    @Test public void testTenTimesTheBudget() throws Exception {
+        int rows = 2000000;
+        int groups = 1000000;
+        int budget = groups / 10;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, groups, null, null);
+        Database.resetBufferPool(f.numPages() + 10);
+
+        StringBuilder report = new StringBuilder();
+        int expected = -1;
+        for (int maxGroups : new int[]{Integer.MAX_VALUE, budget}) {
+            long best = Long.MAX_VALUE;
+            int partitions = 0;
+            for (int rep = 0; rep < 2; rep++) {
+                Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), ""), 1, 0, Aggregator.Op.SUM);
+                agg.setMaxGroups(maxGroups);
+                long start = System.nanoTime();
+                agg.open();
+                int found = 0;
+                Batch batch;
+                while ((batch = agg.nextBatch()) != null)
+                    found += batch.numSelected();
+                partitions = agg.numSpilledPartitions();
+                agg.close();
+                best = Math.min(best, System.nanoTime() - start);
+                if (expected < 0)
+                    expected = found;
+                assertEquals(expected, found);
+            }
+            assertEquals(maxGroups == budget, partitions > 0);
+            report.append(String.format(" %s: %.0f ms (%d partitions);",
+                    maxGroups == budget ? "budget " + budget + " groups" : "in memory", best / 1e6, partitions));
+        }
+        System.out.println("aggregating " + expected + " groups of " + rows + " rows:" + report);
+    }
+}
@@ -0,0 +1,181 @@
+package simpledb.systemtest;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * System test for grouped aggregation with more groups than fit in memory
+ */
+public class SpillingAggregateTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Reads the results of an aggregate, by group. */
+    private static Map<String, String> readAll(OpIterator it) throws Exception {
+        Map<String, String> result = new HashMap<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertNull("group " + t.getField(0) + " returned twice",
+                    result.put(t.getField(0).toString(), t.getField(1).toString()));
+        }
+        return result;
+    }
+
+    private static Map<String, String> readBatches(Aggregate agg) throws Exception {
+        Map<String, String> result = new HashMap<>();
+        Batch batch;
+        while ((batch = agg.nextBatch()) != null) {
+            for (int i = 0; i < batch.numSelected(); i++) {
+                Tuple t = batch.getTuple(batch.selection()[i]);
+                assertNull(result.put(t.getField(0).toString(), t.getField(1).toString()));
+            }
+        }
+        return result;
+    }
+
+    private Aggregate aggregate(HeapFile f, Aggregator.Op op, int maxGroups) {
+        Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), ""), 1, 0, op);
+        agg.setMaxGroups(maxGroups);
+        return agg;
+    }
+
+    @Test public void testSpillMatchesInMemory() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, null);
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.AVG}) {
+            Aggregate inMemory = aggregate(f, op, Aggregate.MAX_GROUPS);
+            inMemory.open();
+            Map<String, String> expected = readAll(inMemory);
+            assertEquals(0, inMemory.numSpilledPartitions());
+            inMemory.close();
+
+            Aggregate spilled = aggregate(f, op, 500);
+            spilled.open();
+            assertEquals(expected, readAll(spilled));
+            assertTrue(spilled.numSpilledPartitions() > 0);
+            spilled.close();
+
+            // and read a batch at a time
+            spilled.open();
+            assertEquals(expected, readBatches(spilled));
+            spilled.close();
+        }
+    }
+
+    @Test public void testRecursiveSplit() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 1000000, null, null);
+        Aggregate inMemory = aggregate(f, Aggregator.Op.SUM, Aggregate.MAX_GROUPS);
+        inMemory.open();
+        Map<String, String> expected = readAll(inMemory);
+        inMemory.close();
+
+        // too few groups for the partitions of the first split, so they are split again
+        Aggregate spilled = aggregate(f, Aggregator.Op.SUM, 2);
+        spilled.open();
+        assertEquals(expected, readAll(spilled));
+        assertTrue(spilled.numSpilledPartitions() > Aggregate.FANOUT);
+        spilled.close();
+    }
+
+    @Test public void testRewind() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10000, 3000, null, null);
+        Aggregate agg = aggregate(f, Aggregator.Op.COUNT, 100);
+        agg.open();
+        Map<String, String> expected = readAll(agg);
+        agg.rewind();
+        assertEquals(expected, readAll(agg));
+
+        // rewound part way through the partitions
+        agg.rewind();
+        for (int i = 0; i < 500; i++)
+            agg.next();
+        agg.rewind();
+        assertEquals(expected, readAll(agg));
+        agg.close();
+    }
+
+    @Test public void testBatchChild() throws Exception {
+        // several batches of join results, with more groups than the budget
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 5000, 5000, null, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 5000, 5000, null, null);
+        Map<String, String> expected = null;
+        for (int maxGroups : new int[]{Aggregate.MAX_GROUPS, 200}) {
+            // a join returns its tuples a batch at a time, and is read only that way
+            HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""));
+            Aggregate agg = new Aggregate(join, 3, 1, Aggregator.Op.SUM);
+            agg.setMaxGroups(maxGroups);
+            agg.open();
+            Map<String, String> result = readAll(agg);
+            assertEquals(maxGroups == 200, agg.numSpilledPartitions() > 0);
+            agg.close();
+            if (expected == null)
+                expected = result;
+            assertEquals(expected, result);
+        }
+        assertTrue(expected.size() > 1000);
+    }
+
+    @Test public void testStrings() throws Exception {
+        Object[] data = new Object[600];
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = "group" + (i / 2 * 7 % 90);
+            data[i + 1] = i;
+        }
+        Map<String, String> expected = null;
+        for (int maxGroups : new int[]{Aggregate.MAX_GROUPS, 10}) {
+            // grouped by a string, and aggregating a string
+            for (int[] fields : new int[][]{{1, 0}, {0, 1}}) {
+                Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data), fields[0], fields[1],
+                        Aggregator.Op.COUNT);
+                agg.setMaxGroups(maxGroups);
+                agg.open();
+                Map<String, String> result = readAll(agg);
+                assertEquals(maxGroups == 10, agg.numSpilledPartitions() > 0);
+                agg.close();
+                if (fields[1] == 0) {
+                    if (expected == null)
+                        expected = result;
+                    assertEquals(expected, result);
+                } else {
+                    assertEquals(300, result.size());
+                }
+            }
+        }
+        assertEquals(90, expected.size());
+    }
+
+    @Test public void testNoGrouping() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null);
+        // without grouping there is one group, and nothing to spill
+        Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), ""), 1, Aggregator.NO_GROUPING,
+                Aggregator.Op.COUNT);
+        agg.setMaxGroups(0);
+        agg.open();
+        assertEquals(1000, ((IntField) agg.next().getField(0)).getValue());
+        assertFalse(agg.hasNext());
+        assertEquals(0, agg.numSpilledPartitions());
+        agg.close();
+    }
+}